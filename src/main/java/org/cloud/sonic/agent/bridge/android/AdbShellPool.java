@@ -0,0 +1,157 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.bridge.android;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.android.ddmlib.IDevice;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 每台设备保持少量常驻的{@link AdbShellSession}，executeCommand优先通过它们执行
+ * <p>
+ * 只把命令写入空闲的会话，都在忙时新开一个（最多maxSessions个），不排在其他命令后面，
+ * 等待时间只取决于命令本身。会话都在忙且已达上限，或者会话打不开（adb server不可用、设备不支持exec服务）时
+ * 返回null，此时命令还没有写入，由调用方改为单独执行。打开失败后一段时间内不再尝试。
+ * 命令一旦写入会话就不会再单独重试，避免重复执行。
+ * 设备断开或重新接入时关闭对应的会话。
+ */
+@Slf4j
+public class AdbShellPool {
+
+    private static final int MAX_SESSIONS = 2;
+    private static final long RETRY_MILLIS = 30_000;
+
+    private static final Map<String, AdbShellPool> pools = new ConcurrentHashMap<>();
+
+    static {
+        AndroidDeviceRegistry.subscribe((previous, current) -> {
+            if (previous != null && (current == null || current.getDevice() != previous.getDevice())) {
+                AdbShellPool pool = pools.remove(previous.getSerialNumber());
+                if (pool != null) {
+                    pool.close();
+                }
+            }
+        });
+    }
+
+    private final InetSocketAddress adb;
+
+    private final String serial;
+
+    private final int maxSessions;
+
+    private final long retryNanos;
+
+    private final List<AdbShellSession> sessions = new ArrayList<>();
+
+    private long retryAt = System.nanoTime();
+
+    private boolean closed = false;
+
+    public AdbShellPool(InetSocketAddress adb, String serial, int maxSessions, long retryMillis) {
+        this.adb = adb;
+        this.serial = serial;
+        this.maxSessions = maxSessions;
+        this.retryNanos = TimeUnit.MILLISECONDS.toNanos(retryMillis);
+    }
+
+    /**
+     * adb server的端口与ddmlib一致，可以通过ANDROID_ADB_SERVER_PORT修改
+     */
+    private static InetSocketAddress adbAddress() {
+        String port = System.getenv("ANDROID_ADB_SERVER_PORT");
+        return new InetSocketAddress("127.0.0.1", port == null ? 5037 : Integer.parseInt(port.trim()));
+    }
+
+    public static AdbShellPool of(IDevice iDevice) {
+        return pools.computeIfAbsent(iDevice.getSerialNumber(),
+                serial -> new AdbShellPool(adbAddress(), serial, MAX_SESSIONS, RETRY_MILLIS));
+    }
+
+    /**
+     * @return 命令的执行结果，没有可用的会话时返回null，此时命令没有执行
+     */
+    public AdbShellSession.Result execute(String command) throws InterruptedException {
+        CompletableFuture<AdbShellSession.Result> result = submit(command);
+        if (result == null) {
+            return null;
+        }
+        try {
+            // 会话原本空闲，等待的只是这条命令本身
+            return result.get();
+        } catch (ExecutionException e) {
+            // 结果只会正常完成，不会走到这里
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * 选会话与写入在同一把锁内完成，两条命令不会同时写进同一个空闲会话
+     *
+     * @return 命令的结果，没有空闲会话时返回null，此时命令没有写入
+     */
+    private synchronized CompletableFuture<AdbShellSession.Result> submit(String command) {
+        if (closed) {
+            return null;
+        }
+        sessions.removeIf(AdbShellSession::isClosed);
+        for (AdbShellSession session : sessions) {
+            if (session.getInFlight() == 0) {
+                try {
+                    return session.submit(command);
+                } catch (IOException e) {
+                    // 写入失败时会话已关闭，命令没有执行，换下一个
+                    log.info("write to shell session of {} failed: {}", serial, e.getMessage());
+                }
+            }
+        }
+        long now = System.nanoTime();
+        if (sessions.size() < maxSessions && now - retryAt >= 0) {
+            try {
+                AdbShellSession session = AdbShellSession.open(adb, serial);
+                sessions.add(session);
+                return session.submit(command);
+            } catch (IOException e) {
+                log.info("open shell session of {} failed: {}, run commands one by one.", serial, e.getMessage());
+                retryAt = now + retryNanos;
+            }
+        }
+        return null;
+    }
+
+    public synchronized int getSessionCount() {
+        sessions.removeIf(AdbShellSession::isClosed);
+        return sessions.size();
+    }
+
+    public synchronized void close() {
+        closed = true;
+        sessions.forEach(AdbShellSession::close);
+        sessions.clear();
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.bridge.android;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 一个常驻的adb shell会话，可以连续发送多条命令
+ * <p>
+ * 直接与adb server通信：切换到设备后打开exec:sh，之后的命令都写入这个sh的标准输入，不必每条命令重新建立shell。
+ * 每条命令包装为sh -c执行（命令本身的语法错误不会影响会话），标准输入指向/dev/null，
+ * 执行完再输出一行带会话标记、序号与退出码的结束标记，读线程据此把输出切分给对应的命令。
+ * 命令可以不等上一条返回就连续写入，sh按顺序执行，结果按写入顺序返回。
+ */
+@Slf4j
+public class AdbShellSession implements Closeable {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 3000;
+
+    private final Socket socket;
+
+    private final OutputStream out;
+
+    private final String serial;
+
+    // 结束标记的前缀，前面的换行由printf补上，不属于命令输出
+    private final String markerText;
+
+    private final byte[] marker;
+
+    private final Deque<Pending> pending = new ArrayDeque<>();
+
+    private long nextId = 0;
+
+    private volatile boolean closed = false;
+
+    public static class Result {
+        private final String output;
+        private final int exitCode;
+
+        public Result(String output, int exitCode) {
+            this.output = output;
+            this.exitCode = exitCode;
+        }
+
+        public String getOutput() {
+            return output;
+        }
+
+        /**
+         * @return 命令的退出码，会话中断时为-1
+         */
+        public int getExitCode() {
+            return exitCode;
+        }
+    }
+
+    private static class Pending {
+        private final long id;
+        private final CompletableFuture<Result> future = new CompletableFuture<>();
+
+        Pending(long id) {
+            this.id = id;
+        }
+    }
+
+    private AdbShellSession(Socket socket, String serial) throws IOException {
+        this.socket = socket;
+        this.out = socket.getOutputStream();
+        this.serial = serial;
+        this.markerText = "__sonic_" + Long.toHexString(ThreadLocalRandom.current().nextLong()) + "_";
+        this.marker = ("\n" + markerText).getBytes(StandardCharsets.US_ASCII);
+        InputStream in = socket.getInputStream();
+        Thread reader = new Thread(() -> readLoop(in), "adb-shell-" + serial);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * @param adb    adb server地址
+     * @param serial 设备序列号
+     * @throws IOException adb server不可用，或设备不支持exec服务（Android 5.0以下）
+     */
+    public static AdbShellSession open(InetSocketAddress adb, String serial) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(adb, CONNECT_TIMEOUT_MILLIS);
+            request(socket, "host:transport:" + serial);
+            request(socket, "exec:sh");
+            return new AdbShellSession(socket, serial);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * adb server协议：4位十六进制长度加请求内容，回复OKAY或FAIL加原因
+     */
+    static void request(Socket socket, String service) throws IOException {
+        byte[] body = service.getBytes(StandardCharsets.UTF_8);
+        OutputStream o = socket.getOutputStream();
+        o.write(String.format("%04x", body.length).getBytes(StandardCharsets.US_ASCII));
+        o.write(body);
+        o.flush();
+        InputStream in = socket.getInputStream();
+        String status = new String(in.readNBytes(4), StandardCharsets.US_ASCII);
+        if (status.equals("OKAY")) {
+            return;
+        }
+        String reason = "";
+        if (status.equals("FAIL")) {
+            int length = Integer.parseInt(new String(in.readNBytes(4), StandardCharsets.US_ASCII), 16);
+            reason = new String(in.readNBytes(length), StandardCharsets.UTF_8);
+        }
+        throw new IOException(String.format("adb rejected %s: %s %s", service, status, reason));
+    }
+
+    static String frame(String command, long id, String markerText) {
+        return "sh -c '" + command.replace("'", "'\\''") + "' </dev/null 2>&1; printf '\\n"
+                + markerText + "%d_%d\\n' " + id + " $?\n";
+    }
+
+    /**
+     * 写入一条命令，不等待之前的命令返回
+     *
+     * @throws IOException 会话已关闭或写入失败，此时命令没有执行
+     */
+    public CompletableFuture<Result> submit(String command) throws IOException {
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("shell session of " + serial + " closed");
+            }
+            Pending p = new Pending(nextId++);
+            pending.addLast(p);
+            try {
+                out.write(frame(command, p.id, markerText).getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            } catch (IOException e) {
+                pending.removeLast();
+                close();
+                throw e;
+            }
+            return p.future;
+        }
+    }
+
+    public synchronized int getInFlight() {
+        return pending.size();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    private void readLoop(InputStream in) {
+        byte[] data = new byte[16 * 1024];
+        int length = 0;
+        int searchFrom = 0;
+        byte[] buffer = new byte[16 * 1024];
+        try {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                if (length + n > data.length) {
+                    data = Arrays.copyOf(data, Math.max(data.length * 2, length + n));
+                }
+                System.arraycopy(buffer, 0, data, length, n);
+                length += n;
+                while (true) {
+                    int at = indexOf(data, length, marker, searchFrom);
+                    if (at < 0) {
+                        searchFrom = Math.max(0, length - marker.length + 1);
+                        break;
+                    }
+                    int eol = at + marker.length;
+                    while (eol < length && data[eol] != '\n') {
+                        eol++;
+                    }
+                    if (eol == length) {
+                        // 结束标记还没收全
+                        searchFrom = at;
+                        break;
+                    }
+                    String tail = new String(data, at + marker.length, eol - at - marker.length,
+                            StandardCharsets.US_ASCII);
+                    complete(new String(data, 0, at, StandardCharsets.UTF_8), tail);
+                    length -= eol + 1;
+                    System.arraycopy(data, eol + 1, data, 0, length);
+                    searchFrom = 0;
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                log.info("shell session of {} broken: {}", serial, e.getMessage());
+            }
+        }
+        close(new String(data, 0, length, StandardCharsets.UTF_8));
+    }
+
+    private void complete(String output, String tail) {
+        int split = tail.indexOf('_');
+        long id = Long.parseLong(tail.substring(0, split));
+        int exitCode = Integer.parseInt(tail.substring(split + 1).trim());
+        Pending p;
+        synchronized (this) {
+            p = pending.pollFirst();
+        }
+        if (p == null || p.id != id) {
+            log.warn("shell session of {} out of order, expect {} but got {}", serial, p == null ? -1 : p.id, id);
+        }
+        if (p != null) {
+            p.future.complete(new Result(output, exitCode));
+        }
+    }
+
+    private static int indexOf(byte[] data, int length, byte[] target, int from) {
+        outer: for (int i = from; i <= length - target.length; i++) {
+            for (int j = 0; j < target.length; j++) {
+                if (data[i + j] != target[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() {
+        close("");
+    }
+
+    /**
+     * 会话中断时，正在执行的命令拿到已经收到的输出，之后排队的命令返回空输出，退出码都为-1
+     */
+    private void close(String partial) {
+        Deque<Pending> left;
+        synchronized (this) {
+            closed = true;
+            left = new ArrayDeque<>(pending);
+            pending.clear();
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+        boolean head = true;
+        for (Pending p : left) {
+            p.future.complete(new Result(head ? partial : "", -1));
+            head = false;
+        }
+    }
+}
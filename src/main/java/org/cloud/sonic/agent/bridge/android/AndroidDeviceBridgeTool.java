@@ -44,6 +44,7 @@ import org.cloud.sonic.agent.tools.ScheduleTool;
 import org.cloud.sonic.agent.tools.file.DownloadTool;
 import org.cloud.sonic.agent.tools.file.FileTool;
 import org.cloud.sonic.agent.tools.file.UploadTools;
+import org.cloud.sonic.agent.tools.metrics.MetricsRegistry;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationListener;
@@ -95,6 +96,10 @@ public class AndroidDeviceBridgeTool implements ApplicationListener<ContextRefre
     private String ver;
     @Value("${sonic.saus}")
     private String uiaVer;
+    @Value("${sonic.battery.android.period:30}")
+    private long batteryPeriod;
+    @Value("${sonic.battery.android.parallelism:8}")
+    private int batteryParallelism;
     @Autowired
     private RestTemplate restTemplateBean;
 
@@ -162,9 +167,9 @@ public class AndroidDeviceBridgeTool implements ApplicationListener<ContextRefre
             }
         }
         ScheduleTool.scheduleAtFixedRate(
-                new AndroidBatteryThread(),
-                AndroidBatteryThread.DELAY,
-                AndroidBatteryThread.DELAY,
+                new AndroidBatteryThread(batteryParallelism, batteryPeriod),
+                batteryPeriod,
+                batteryPeriod,
                 AndroidBatteryThread.TIME_UNIT);
     }
 
@@ -209,19 +214,8 @@ public class AndroidDeviceBridgeTool implements ApplicationListener<ContextRefre
      * @date 2021/8/16 19:42
      */
     public static IDevice getIDeviceByUdId(String udId) {
-        IDevice iDevice = null;
-        IDevice[] iDevices = AndroidDeviceBridgeTool.getRealOnLineDevices();
-        if (iDevices == null || iDevices.length == 0) {
-            return null;
-        }
-        for (IDevice device : iDevices) {
-            // 如果设备是在线状态并且序列号相等，则就是这个设备
-            if (device.getState().equals(IDevice.DeviceState.ONLINE)
-                    && device.getSerialNumber().equals(udId)) {
-                iDevice = device;
-                break;
-            }
-        }
+        // 设备表由adb回调维护，不再复制设备数组逐个比较
+        IDevice iDevice = AndroidDeviceRegistry.getOnline(udId);
         if (iDevice == null) {
             log.info("Device 「{}」 has not connected!", udId);
         }
@@ -232,10 +226,14 @@ public class AndroidDeviceBridgeTool implements ApplicationListener<ContextRefre
      * @param iDevice
      * @return java.lang.String
      * @author ZhouYiXun
-     * @des 获取屏幕大小
+     * @des 获取屏幕大小，结果缓存在AndroidDeviceFacts中
      * @date 2021/8/16 19:44
      */
     public static String getScreenSize(IDevice iDevice) {
+        return AndroidDeviceFacts.getScreenSize(iDevice);
+    }
+
+    static String queryScreenSize(IDevice iDevice) {
         String size = "";
         try {
             size = executeCommand(iDevice, "wm size");
@@ -270,15 +268,47 @@ public class AndroidDeviceBridgeTool implements ApplicationListener<ContextRefre
      */
     public static String executeCommand(IDevice iDevice, String command) {
         CollectingOutputReceiver output = new CollectingOutputReceiver();
+        long start = System.nanoTime();
+        String result = "ok";
         try {
+            // 优先通过常驻的shell会话执行，省去每条命令建立shell的开销
+            AdbShellSession.Result pooled = AdbShellPool.of(iDevice).execute(command);
+            if (pooled != null) {
+                if (pooled.getExitCode() < 0) {
+                    result = "error";
+                }
+                return pooled.getOutput();
+            }
+            MetricsRegistry.counter("sonic_agent_adb_shell_oneshot_total",
+                    "adb shell commands run without a pooled session").increment();
             iDevice.executeShellCommand(command, output, 0, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result = "error";
+            log.info("Send shell command {} to device {} interrupted.", command, iDevice.getSerialNumber());
         } catch (Exception e) {
+            result = "error";
             log.info("Send shell command {} to device {} failed.", command, iDevice.getSerialNumber());
             log.error(e.getMessage());
+        } finally {
+            MetricsRegistry.histogram("sonic_agent_adb_shell_seconds", "Time spent in adb shell commands",
+                    "command", commandName(command), "result", result).recordSince(start);
         }
         return output.getOutput();
     }
 
+    /**
+     * 取shell命令的程序名作为统计标签，去掉路径与环境变量，避免参数进入标签
+     */
+    static String commandName(String command) {
+        for (String token : command.trim().split("\\s+")) {
+            if (!token.contains("=")) {
+                return token.substring(token.lastIndexOf('/') + 1);
+            }
+        }
+        return "";
+    }
+
     public static void install(IDevice iDevice, String path) throws InstallException {
         try {
             iDevice.installPackage(path,
@@ -521,6 +551,10 @@ public class AndroidDeviceBridgeTool implements ApplicationListener<ContextRefre
     }
 
     public static int getOrientation(IDevice iDevice) {
+        return AndroidDeviceFacts.getOrientation(iDevice);
+    }
+
+    static int queryOrientation(IDevice iDevice) {
         String inputs = executeCommand(iDevice, "dumpsys input");
         if (inputs.contains("SurfaceOrientation")) {
             String orientationS = inputs.substring(inputs.indexOf("SurfaceOrientation")).trim();
@@ -577,7 +611,7 @@ public class AndroidDeviceBridgeTool implements ApplicationListener<ContextRefre
     }
 
     public static String getCurrentPackage(IDevice iDevice) {
-        int api = Integer.parseInt(iDevice.getProperty(IDevice.PROP_BUILD_API_LEVEL));
+        int api = AndroidDeviceFacts.getApiLevel(iDevice);
         String cmd = AndroidDeviceBridgeTool.executeCommand(iDevice,
                 String.format("dumpsys window %s", api >= 29 ? "displays" : "windows"));
         String result = "";
@@ -599,7 +633,7 @@ public class AndroidDeviceBridgeTool implements ApplicationListener<ContextRefre
     }
 
     public static String getCurrentActivity(IDevice iDevice) {
-        int api = Integer.parseInt(iDevice.getProperty(IDevice.PROP_BUILD_API_LEVEL));
+        int api = AndroidDeviceFacts.getApiLevel(iDevice);
         String cmd = AndroidDeviceBridgeTool.executeCommand(iDevice,
                 String.format("dumpsys window %s", api >= 29 ? "displays" : "windows"));
         String result = "";
@@ -723,6 +757,7 @@ public class AndroidDeviceBridgeTool implements ApplicationListener<ContextRefre
             } catch (InstallException e) {
                 log.info("uninstall sonic Apk err, cause {}", e.getMessage());
             }
+            long start = System.nanoTime();
             try {
                 install(iDevice, "plugins/sonic-android-apk.apk");
                 executeCommand(iDevice, "appops set org.cloud.sonic.android POST_NOTIFICATION allow");
@@ -733,6 +768,9 @@ public class AndroidDeviceBridgeTool implements ApplicationListener<ContextRefre
             } catch (InstallException e) {
                 log.info("Sonic Apk install failed.");
                 return false;
+            } finally {
+                MetricsRegistry.histogram("sonic_agent_operation_seconds",
+                        "Time spent in slow device operations", "operation", "installSonicApk").recordSince(start);
             }
         }
     }
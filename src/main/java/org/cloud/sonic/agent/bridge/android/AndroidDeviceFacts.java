@@ -0,0 +1,162 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.bridge.android;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.cloud.sonic.agent.common.maps.AndroidDeviceManagerMap;
+
+import com.android.ddmlib.IDevice;
+
+/**
+ * 设备的屏幕尺寸、方向、API版本与ABI缓存
+ * <p>
+ * 触控、投屏与步骤处理都要用到这些信息，原来每次都要经过adb执行wm size或dumpsys input。
+ * 屏幕尺寸在第一次用到时加载（设备接入时会提前在后台加载），同一设备同时只查询一次，其余调用等待同一结果；
+ * 查询失败的结果不缓存。Sonic监控服务上报屏幕旋转时刷新方向并让尺寸失效，监控停止后方向改为实时查询。
+ * 设备断开或重新接入后缓存随之丢弃。
+ */
+public class AndroidDeviceFacts {
+
+    private static final Map<String, Facts> factsMap = new ConcurrentHashMap<>();
+
+    // 设备接入时提前加载，多台设备同时接入时并行查询
+    private static final AtomicInteger preloadThreads = new AtomicInteger();
+    private static final ExecutorService preloadExecutor = Executors.newFixedThreadPool(4, r -> {
+        Thread thread = new Thread(r, "android-device-facts-" + preloadThreads.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        AndroidDeviceRegistry.subscribe((previous, current) -> {
+            if (previous != null && (current == null || current.getDevice() != previous.getDevice())) {
+                factsMap.remove(previous.getSerialNumber());
+            }
+        });
+    }
+
+    private static final class Facts {
+        private final IDevice device;
+        private final AtomicReference<CompletableFuture<String>> size = new AtomicReference<>();
+        private volatile int apiLevel = -1;
+        private volatile String abi;
+
+        Facts(IDevice device) {
+            this.device = device;
+        }
+    }
+
+    private static Facts of(IDevice iDevice) {
+        Facts facts = factsMap.get(iDevice.getSerialNumber());
+        if (facts != null && facts.device == iDevice) {
+            return facts;
+        }
+        return factsMap.compute(iDevice.getSerialNumber(),
+                (serial, old) -> old == null || old.device != iDevice ? new Facts(iDevice) : old);
+    }
+
+    /**
+     * 在后台加载屏幕尺寸，已经加载或正在加载时直接返回
+     */
+    public static void preload(IDevice iDevice) {
+        if (of(iDevice).size.get() == null) {
+            preloadExecutor.execute(() -> getScreenSize(iDevice));
+        }
+    }
+
+    /**
+     * @return 形如1080x2340的屏幕尺寸，查询失败时为空字符串或unknown
+     */
+    public static String getScreenSize(IDevice iDevice) {
+        Facts facts = of(iDevice);
+        while (true) {
+            CompletableFuture<String> loading = facts.size.get();
+            if (loading != null) {
+                return loading.join();
+            }
+            CompletableFuture<String> mine = new CompletableFuture<>();
+            if (!facts.size.compareAndSet(null, mine)) {
+                continue;
+            }
+            String size = "";
+            try {
+                size = AndroidDeviceBridgeTool.queryScreenSize(iDevice);
+            } finally {
+                // 刚插上时wm size可能失败，下次重新查询
+                if (size.isEmpty() || size.equals("unknown")) {
+                    facts.size.compareAndSet(mine, null);
+                }
+                mine.complete(size);
+            }
+            return size;
+        }
+    }
+
+    /**
+     * @return 屏幕方向0-3，监控服务运行时直接使用它上报的值
+     */
+    public static int getOrientation(IDevice iDevice) {
+        Integer rotation = AndroidDeviceManagerMap.getRotationMap().get(iDevice.getSerialNumber());
+        if (rotation != null) {
+            return rotation;
+        }
+        return AndroidDeviceBridgeTool.queryOrientation(iDevice);
+    }
+
+    public static int getApiLevel(IDevice iDevice) {
+        Facts facts = of(iDevice);
+        int apiLevel = facts.apiLevel;
+        if (apiLevel < 0) {
+            apiLevel = Integer.parseInt(iDevice.getProperty(IDevice.PROP_BUILD_API_LEVEL));
+            facts.apiLevel = apiLevel;
+        }
+        return apiLevel;
+    }
+
+    public static String getAbi(IDevice iDevice) {
+        Facts facts = of(iDevice);
+        String abi = facts.abi;
+        if (abi == null) {
+            abi = iDevice.getProperty(IDevice.PROP_DEVICE_CPU_ABI);
+            facts.abi = abi;
+        }
+        return abi;
+    }
+
+    /**
+     * 监控服务上报了屏幕旋转，显示区域可能随之变化，尺寸下次使用时重新查询
+     */
+    public static void onRotation(IDevice iDevice, int rotation) {
+        AndroidDeviceManagerMap.getRotationMap().put(iDevice.getSerialNumber(), rotation);
+        of(iDevice).size.set(null);
+    }
+
+    /**
+     * 监控服务停止后不再有旋转上报，方向改为实时查询
+     */
+    public static void onMonitorStopped(IDevice iDevice) {
+        AndroidDeviceManagerMap.getRotationMap().remove(iDevice.getSerialNumber());
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.bridge.android;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.UnaryOperator;
+
+import com.android.ddmlib.IDevice;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 按序列号索引的安卓设备表，由{@link AndroidDeviceStatusListener}的adb回调维护
+ * <p>
+ * 每台设备对应一个不可变的快照（IDevice、状态、已缓存的属性与屏幕尺寸），变化时整体替换。
+ * 按序列号查找只是一次map读取，不必复制adb的设备数组再逐个比较；
+ * 关心设备上下线的地方可以订阅变化，不必轮询。
+ */
+@Slf4j
+public class AndroidDeviceRegistry {
+
+    private static final Map<String, Snapshot> devices = new ConcurrentHashMap<>();
+
+    private static final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    public interface Listener {
+        /**
+         * @param previous 变化前的快照，新接入的设备为null
+         * @param current  变化后的快照，断开的设备为null
+         */
+        void onChanged(Snapshot previous, Snapshot current);
+    }
+
+    public static final class Snapshot {
+        private final IDevice device;
+        private final IDevice.DeviceState state;
+        private final Map<String, String> props;
+        private final String size;
+
+        Snapshot(IDevice device, IDevice.DeviceState state, Map<String, String> props, String size) {
+            this.device = device;
+            this.state = state;
+            this.props = props;
+            this.size = size;
+        }
+
+        public IDevice getDevice() {
+            return device;
+        }
+
+        public String getSerialNumber() {
+            return device.getSerialNumber();
+        }
+
+        public IDevice.DeviceState getState() {
+            return state;
+        }
+
+        public boolean isOnline() {
+            return state == IDevice.DeviceState.ONLINE;
+        }
+
+        /**
+         * @return 设备信息加载前为空
+         */
+        public Map<String, String> getProps() {
+            return props;
+        }
+
+        public String getProperty(String name) {
+            return props.get(name);
+        }
+
+        /**
+         * @return 屏幕尺寸，还没取到时为null
+         */
+        public String getSize() {
+            return size;
+        }
+    }
+
+    public static Snapshot get(String serial) {
+        return serial == null ? null : devices.get(serial);
+    }
+
+    /**
+     * @return 在线的设备，不在线或不存在时为null
+     */
+    public static IDevice getOnline(String serial) {
+        Snapshot snapshot = get(serial);
+        return snapshot != null && snapshot.isOnline() ? snapshot.device : null;
+    }
+
+    public static Collection<Snapshot> getAll() {
+        return Collections.unmodifiableCollection(devices.values());
+    }
+
+    public static int size() {
+        return devices.size();
+    }
+
+    public static void subscribe(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public static void unsubscribe(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * 设备接入或状态变化，同一个IDevice保留已缓存的信息，重新接入的设备从空信息开始
+     */
+    static void update(IDevice device) {
+        IDevice.DeviceState state = device.getState();
+        change(device.getSerialNumber(), old -> {
+            if (old == null || old.device != device) {
+                return new Snapshot(device, state, Map.of(), null);
+            }
+            return old.state == state ? old : new Snapshot(device, state, old.props, old.size);
+        });
+    }
+
+    static void updateFacts(IDevice device, Map<String, String> props, String size) {
+        Map<String, String> copy = Map.copyOf(props);
+        change(device.getSerialNumber(), old -> old == null || old.device != device ? old
+                : new Snapshot(device, old.state, copy, size));
+    }
+
+    /**
+     * 只移除这个IDevice对应的快照，避免断开回调晚于重新接入时误删
+     */
+    static void remove(IDevice device) {
+        change(device.getSerialNumber(), old -> old != null && old.device == device ? null : old);
+    }
+
+    private static void change(String serial, UnaryOperator<Snapshot> operator) {
+        while (true) {
+            Snapshot old = devices.get(serial);
+            Snapshot next = operator.apply(old);
+            if (next == old) {
+                return;
+            }
+            boolean replaced;
+            if (old == null) {
+                replaced = devices.putIfAbsent(serial, next) == null;
+            } else if (next == null) {
+                replaced = devices.remove(serial, old);
+            } else {
+                replaced = devices.replace(serial, old, next);
+            }
+            if (replaced) {
+                notify(old, next);
+                return;
+            }
+        }
+    }
+
+    private static void notify(Snapshot previous, Snapshot current) {
+        for (Listener listener : listeners) {
+            try {
+                listener.onChanged(previous, current);
+            } catch (RuntimeException e) {
+                log.error("device listener failed.", e);
+            }
+        }
+    }
+}
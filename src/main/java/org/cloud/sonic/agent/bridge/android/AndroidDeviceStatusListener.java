@@ -17,10 +17,16 @@
  */
 package org.cloud.sonic.agent.bridge.android;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
 import org.cloud.sonic.agent.common.interfaces.IsHMStatus;
 import org.cloud.sonic.agent.common.interfaces.PlatformType;
 import org.cloud.sonic.agent.common.maps.AndroidDeviceManagerMap;
 import org.cloud.sonic.agent.common.maps.DevicesBatteryMap;
+import org.cloud.sonic.agent.tests.thermal.ThermalManager;
+import org.cloud.sonic.agent.tools.metrics.MetricsRegistry;
 import org.cloud.sonic.agent.transport.TransportWorker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,34 +45,73 @@ import com.android.ddmlib.IDevice;
 public class AndroidDeviceStatusListener implements AndroidDebugBridge.IDeviceChangeListener {
     private final Logger logger = LoggerFactory.getLogger(AndroidDeviceStatusListener.class);
 
+    // 变化停止300ms后发送，持续变化时最多等待2s
+    private static final long QUIET_MILLIS = 300;
+    private static final long MAX_DELAY_MILLIS = 2000;
+    // 设备接入后读取一次并缓存在AndroidDeviceRegistry中的属性
+    private static final String[] CACHED_PROPS = {"ro.product.name", IDevice.PROP_DEVICE_MODEL,
+            IDevice.PROP_BUILD_VERSION, IDevice.PROP_BUILD_API_LEVEL, IDevice.PROP_DEVICE_CPU_ABI,
+            IDevice.PROP_DEVICE_MANUFACTURER, "ro.config.ringtone", "hw_sc.build.platform.version"};
+
+    private final DeviceStatusAggregator<IDevice> aggregator = new DeviceStatusAggregator<>(
+            AndroidDeviceStatusListener::loadFacts,
+            device -> device.getState() == null ? null : device.getState().toString(),
+            TransportWorker::send, Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "android-device-status");
+                thread.setDaemon(true);
+                return thread;
+            }), QUIET_MILLIS, MAX_DELAY_MILLIS);
+
+    public AndroidDeviceStatusListener() {
+        MetricsRegistry.counter("sonic_agent_device_changes_total", "Device change callbacks from adb",
+                aggregator::getChangeCount, "platform", "android");
+        MetricsRegistry.counter("sonic_agent_device_details_total", "deviceDetail messages sent to server",
+                aggregator::getSentCount, "platform", "android");
+        MetricsRegistry.gauge("sonic_agent_devices", "Devices known to the agent",
+                AndroidDeviceRegistry::size, "platform", "android");
+    }
+
     /**
      * @param device
-     * @return void
+     * @return 设备的静态信息，属性或屏幕尺寸还拿不到时返回null
      * @author ZhouYiXun
-     * @des 发送设备状态
+     * @des 查询设备信息，只在第一次发送时调用
      * @date 2021/8/16 19:58
      */
-    private void send(IDevice device) {
+    private static JSONObject loadFacts(IDevice device) {
+        if (device.getState() != IDevice.DeviceState.ONLINE || device.getProperty(IDevice.PROP_DEVICE_MODEL) == null) {
+            return null;
+        }
+        Map<String, String> props = new HashMap<>();
+        for (String name : CACHED_PROPS) {
+            String value = device.getProperty(name);
+            if (value != null) {
+                props.put(name, value);
+            }
+        }
         JSONObject deviceDetail = new JSONObject();
-        deviceDetail.put("msg", "deviceDetail");
-        deviceDetail.put("udId", device.getSerialNumber());
-        deviceDetail.put("name", device.getProperty("ro.product.name"));
-        deviceDetail.put("model", device.getProperty(IDevice.PROP_DEVICE_MODEL));
-        deviceDetail.put("status", device.getState() == null ? null : device.getState().toString());
+        deviceDetail.put("name", props.get("ro.product.name"));
+        deviceDetail.put("model", props.get(IDevice.PROP_DEVICE_MODEL));
         deviceDetail.put("platform", PlatformType.ANDROID);
-        if (device.getProperty("ro.config.ringtone") != null
-                && device.getProperty("ro.config.ringtone").contains("Harmony")) {
-            deviceDetail.put("version", device.getProperty("hw_sc.build.platform.version"));
+        if (props.get("ro.config.ringtone") != null
+                && props.get("ro.config.ringtone").contains("Harmony")) {
+            deviceDetail.put("version", props.get("hw_sc.build.platform.version"));
             deviceDetail.put("isHm", IsHMStatus.IS_HM);
         } else {
-            deviceDetail.put("version", device.getProperty(IDevice.PROP_BUILD_VERSION));
+            deviceDetail.put("version", props.get(IDevice.PROP_BUILD_VERSION));
             deviceDetail.put("isHm", IsHMStatus.IS_ANDROID);
         }
 
-        deviceDetail.put("size", AndroidDeviceBridgeTool.getScreenSize(device));
-        deviceDetail.put("cpu", device.getProperty(IDevice.PROP_DEVICE_CPU_ABI));
-        deviceDetail.put("manufacturer", device.getProperty(IDevice.PROP_DEVICE_MANUFACTURER));
-        TransportWorker.send(deviceDetail);
+        // wm size刚插上时可能失败，拿到后不再查询
+        String size = AndroidDeviceBridgeTool.getScreenSize(device);
+        if (size.isEmpty() || size.equals("unknown")) {
+            return null;
+        }
+        deviceDetail.put("size", size);
+        deviceDetail.put("cpu", props.get(IDevice.PROP_DEVICE_CPU_ABI));
+        deviceDetail.put("manufacturer", props.get(IDevice.PROP_DEVICE_MANUFACTURER));
+        AndroidDeviceRegistry.updateFacts(device, props, size);
+        return deviceDetail;
     }
 
     @Override
@@ -74,7 +119,11 @@ public class AndroidDeviceStatusListener implements AndroidDebugBridge.IDeviceCh
         logger.info("Android device: " + device.getSerialNumber() + " ONLINE！");
         AndroidDeviceManagerMap.getStatusMap().remove(device.getSerialNumber());
         DevicesBatteryMap.getTempMap().remove(device.getSerialNumber());
-        send(device);
+        AndroidDeviceRegistry.update(device);
+        if (device.getState() == IDevice.DeviceState.ONLINE) {
+            AndroidDeviceFacts.preload(device);
+        }
+        aggregator.changed(device.getSerialNumber(), device);
     }
 
     @Override
@@ -82,15 +131,21 @@ public class AndroidDeviceStatusListener implements AndroidDebugBridge.IDeviceCh
         logger.info("Android device: " + device.getSerialNumber() + " OFFLINE！");
         AndroidDeviceManagerMap.getStatusMap().remove(device.getSerialNumber());
         DevicesBatteryMap.getTempMap().remove(device.getSerialNumber());
-        send(device);
+        ThermalManager.remove(device.getSerialNumber());
+        AndroidDeviceRegistry.remove(device);
+        aggregator.removed(device.getSerialNumber(), device);
     }
 
     @Override
     public void deviceChanged(IDevice device, int changeMask) {
+        AndroidDeviceRegistry.update(device);
         IDevice.DeviceState state = device.getState();
         if (state == IDevice.DeviceState.OFFLINE) {
             return;
         }
-        send(device);
+        if (state == IDevice.DeviceState.ONLINE) {
+            AndroidDeviceFacts.preload(device);
+        }
+        aggregator.changed(device.getSerialNumber(), device);
     }
 }
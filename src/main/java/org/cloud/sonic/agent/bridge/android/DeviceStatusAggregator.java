@@ -0,0 +1,208 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.bridge.android;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import com.alibaba.fastjson.JSONObject;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 合并设备状态变化后再发给server
+ * <p>
+ * 设备重启、hub批量上下电时会在短时间内收到大量变化回调，每次都查询属性和屏幕尺寸会占满adb，
+ * 也会给server发大量重复的deviceDetail。这里把变化先记下来，安静一段时间（或最多等待一段时间）后统一处理：
+ * 型号、系统版本、屏幕尺寸等静态信息每个设备只查询一次并缓存，
+ * 每个设备只发送和上次相比变化了的字段，同一批的消息一起交给发送队列合并成一帧。
+ *
+ * @param <D> 设备对象
+ */
+@Slf4j
+public class DeviceStatusAggregator<D> {
+
+    private final Function<D, JSONObject> factsLoader;
+
+    private final Function<D, String> statusReader;
+
+    private final Consumer<JSONObject> sink;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final long quietNanos;
+
+    private final long maxDelayNanos;
+
+    private Map<String, Change<D>> pending = new LinkedHashMap<>();
+
+    private boolean scheduled = false;
+
+    private long firstChangeNanos;
+
+    private long lastChangeNanos;
+
+    /**
+     * 以下只在调度线程中访问
+     */
+    private final Map<String, JSONObject> factsCache = new HashMap<>();
+
+    private final Map<String, JSONObject> lastSent = new HashMap<>();
+
+    private final AtomicLong changeCount = new AtomicLong();
+
+    private final AtomicLong sentCount = new AtomicLong();
+
+    /**
+     * @param factsLoader  查询静态信息，信息还不完整（如刚插上时属性未加载）时返回null，下次变化时重新查询
+     * @param statusReader 当前状态
+     * @param scheduler    单线程调度器，保证同一时刻只有一批在处理
+     * @param quietMillis  最后一次变化后多久没有新变化就发送
+     * @param maxDelayMillis 第一次变化后最多等待多久
+     */
+    public DeviceStatusAggregator(Function<D, JSONObject> factsLoader, Function<D, String> statusReader,
+                                  Consumer<JSONObject> sink, ScheduledExecutorService scheduler,
+                                  long quietMillis, long maxDelayMillis) {
+        this.factsLoader = factsLoader;
+        this.statusReader = statusReader;
+        this.sink = sink;
+        this.scheduler = scheduler;
+        this.quietNanos = TimeUnit.MILLISECONDS.toNanos(quietMillis);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+    }
+
+    /**
+     * 设备上线或属性、状态变化
+     */
+    public void changed(String serial, D device) {
+        submit(serial, new Change<>(device, false));
+    }
+
+    /**
+     * 设备下线，发送状态后清除缓存，再次上线时重新查询静态信息
+     */
+    public void removed(String serial, D device) {
+        submit(serial, new Change<>(device, true));
+    }
+
+    private synchronized void submit(String serial, Change<D> change) {
+        changeCount.incrementAndGet();
+        long now = System.nanoTime();
+        // 同一设备只保留最后一次，下线后又上线时按上线处理
+        pending.put(serial, change);
+        lastChangeNanos = now;
+        if (!scheduled) {
+            scheduled = true;
+            firstChangeNanos = now;
+            scheduler.schedule(this::tick, quietNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void tick() {
+        Map<String, Change<D>> batch;
+        synchronized (this) {
+            long wait = Math.min(lastChangeNanos + quietNanos, firstChangeNanos + maxDelayNanos) - System.nanoTime();
+            if (wait > 0) {
+                scheduler.schedule(this::tick, wait, TimeUnit.NANOSECONDS);
+                return;
+            }
+            batch = pending;
+            pending = new LinkedHashMap<>();
+            scheduled = false;
+        }
+        for (Map.Entry<String, Change<D>> entry : batch.entrySet()) {
+            try {
+                process(entry.getKey(), entry.getValue());
+            } catch (Exception e) {
+                log.error("send status of {} failed.", entry.getKey(), e);
+            }
+        }
+    }
+
+    private void process(String serial, Change<D> change) {
+        JSONObject current = new JSONObject();
+        if (!change.removed) {
+            JSONObject facts = factsCache.get(serial);
+            if (facts == null) {
+                facts = factsLoader.apply(change.device);
+                if (facts != null) {
+                    factsCache.put(serial, facts);
+                }
+            }
+            if (facts != null) {
+                current.putAll(facts);
+            }
+        }
+        current.put("status", statusReader.apply(change.device));
+
+        JSONObject sent = change.removed ? lastSent.remove(serial) : lastSent.computeIfAbsent(serial, k -> new JSONObject());
+        if (change.removed) {
+            factsCache.remove(serial);
+        }
+        JSONObject delta = new JSONObject();
+        for (Map.Entry<String, Object> field : current.entrySet()) {
+            if (sent == null || !sent.containsKey(field.getKey())
+                    || !Objects.equals(sent.get(field.getKey()), field.getValue())) {
+                delta.put(field.getKey(), field.getValue());
+            }
+        }
+        if (delta.isEmpty()) {
+            return;
+        }
+        if (sent != null && !change.removed) {
+            sent.putAll(delta);
+        }
+        delta.put("msg", "deviceDetail");
+        delta.put("udId", serial);
+        sentCount.incrementAndGet();
+        sink.accept(delta);
+    }
+
+    /**
+     * @return 收到的变化次数
+     */
+    public long getChangeCount() {
+        return changeCount.get();
+    }
+
+    /**
+     * @return 实际发出的deviceDetail条数
+     */
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    private static class Change<D> {
+
+        private final D device;
+
+        private final boolean removed;
+
+        Change(D device, boolean removed) {
+            this.device = device;
+            this.removed = removed;
+        }
+    }
+}
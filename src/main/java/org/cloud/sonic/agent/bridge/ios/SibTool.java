@@ -28,6 +28,8 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
 import java.util.stream.Collectors;
 
@@ -40,6 +42,7 @@ import org.cloud.sonic.agent.common.maps.IOSInfoMap;
 import org.cloud.sonic.agent.common.maps.IOSProcessMap;
 import org.cloud.sonic.agent.tests.LogUtil;
 import org.cloud.sonic.agent.tests.ios.IOSBatteryThread;
+import org.cloud.sonic.agent.tests.thermal.ThermalManager;
 import org.cloud.sonic.agent.tools.BytesTool;
 import org.cloud.sonic.agent.tools.PortTool;
 import org.cloud.sonic.agent.tools.ProcessCommandTool;
@@ -83,6 +86,12 @@ public class SibTool implements ApplicationListener<ContextRefreshedEvent> {
     @Value("${modules.ios.wda-xcode-project-path:default}")
     private String getXcodeProjectPath;
 
+    @Value("${sonic.battery.ios.period:30}")
+    private long batteryPeriod;
+
+    @Value("${sonic.battery.ios.parallelism:4}")
+    private int batteryParallelism;
+
     private static String bundleId;
     private static String xcodeProjectPath;
     private static File sibBinary = new File("plugins" + File.separator + "sonic-ios-bridge");
@@ -92,6 +101,7 @@ public class SibTool implements ApplicationListener<ContextRefreshedEvent> {
     @Autowired
     private RestTemplate restTemplateBean;
     private static Map<String, Integer> webViewMap = new HashMap<>();
+    private static final Set<String> onlineDevices = ConcurrentHashMap.newKeySet();
 
     @PostConstruct
     public void setEnv() {
@@ -166,9 +176,9 @@ public class SibTool implements ApplicationListener<ContextRefreshedEvent> {
         });
 
         ScheduleTool.scheduleAtFixedRate(
-                new IOSBatteryThread(),
-                IOSBatteryThread.DELAY,
-                IOSBatteryThread.DELAY,
+                new IOSBatteryThread(batteryParallelism, batteryPeriod),
+                batteryPeriod,
+                batteryPeriod,
                 IOSBatteryThread.TIME_UNIT);
 
         logger.info("iOS devices listening...");
@@ -189,6 +199,13 @@ public class SibTool implements ApplicationListener<ContextRefreshedEvent> {
         return result;
     }
 
+    /**
+     * @return 按sib上下线通知维护的在线设备
+     */
+    public static Set<String> getOnlineDevices() {
+        return onlineDevices;
+    }
+
     public static void sendDisConnectStatus(JSONObject jsonObject) {
         if (StringUtils.hasText(jsonObject.getString("serialNumber"))) {
             JSONObject deviceStatus = new JSONObject();
@@ -198,8 +215,10 @@ public class SibTool implements ApplicationListener<ContextRefreshedEvent> {
             deviceStatus.put("platform", PlatformType.IOS);
             logger.info("iOS devices: " + jsonObject.getString("serialNumber") + " OFFLINE!");
             TransportWorker.send(deviceStatus);
+            onlineDevices.remove(jsonObject.getString("serialNumber"));
             IOSDeviceManagerMap.getMap().remove(jsonObject.getString("serialNumber"));
             DevicesBatteryMap.getTempMap().remove(jsonObject.getString("serialNumber"));
+            ThermalManager.remove(jsonObject.getString("serialNumber"));
         }
     }
 
@@ -221,6 +240,7 @@ public class SibTool implements ApplicationListener<ContextRefreshedEvent> {
             logger.info("iOS Devices: " + jsonObject.getString("serialNumber") + " ONLINE!");
             TransportWorker.send(deviceStatus);
             IOSInfoMap.getDetailMap().put(jsonObject.getString("serialNumber"), detail);
+            onlineDevices.add(jsonObject.getString("serialNumber"));
             IOSDeviceManagerMap.getMap().remove(jsonObject.getString("serialNumber"));
             DevicesBatteryMap.getTempMap().remove(jsonObject.getString("serialNumber"));
         }
@@ -0,0 +1,17 @@
+package org.cloud.sonic.agent.common.maps;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.cloud.sonic.agent.tests.screen.FrameCaptureStore;
+
+/**
+ * key: udId value: 该设备用例运行期间的画面缓存
+ */
+public class CaptureStoreMap {
+    private static Map<String, FrameCaptureStore> captureStoreMap = new ConcurrentHashMap<>();
+
+    public static Map<String, FrameCaptureStore> getMap() {
+        return captureStoreMap;
+    }
+}
@@ -3,12 +3,15 @@ package org.cloud.sonic.agent.common.maps;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
-import jakarta.websocket.Session;
+import org.cloud.sonic.agent.tests.screen.ScreenBroadcaster;
 
+/**
+ * key: udId value: 该设备的投屏分发
+ */
 public class ScreenMap {
-    private static Map<Session, Thread> miniCapMap = new ConcurrentHashMap<>();
+    private static Map<String, ScreenBroadcaster> broadcasterMap = new ConcurrentHashMap<>();
 
-    public static Map<Session, Thread> getMap() {
-        return miniCapMap;
+    public static Map<String, ScreenBroadcaster> getMap() {
+        return broadcasterMap;
     }
 }
@@ -0,0 +1,32 @@
+package org.cloud.sonic.agent.common.maps;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.alibaba.fastjson.JSONObject;
+
+/**
+ * key: 套件中用例的句柄 value: 用例数据（步骤、设备、全局参数）
+ * <p>
+ * TestNG参数只能是字符串，这里只传句柄，执行类直接拿到解析好的用例，不再序列化后重新解析；
+ * 同一用例分发到多台设备时共享同一份步骤，执行期间只读不改。
+ */
+public class SuiteCaseMap {
+    private static final AtomicLong sequence = new AtomicLong();
+
+    private static Map<String, JSONObject> suiteCaseMap = new ConcurrentHashMap<>();
+
+    public static Map<String, JSONObject> getMap() {
+        return suiteCaseMap;
+    }
+
+    /**
+     * @return 用例的句柄，套件执行完后需要移除
+     */
+    public static String put(JSONObject dataInfo) {
+        String key = "case-" + sequence.incrementAndGet();
+        suiteCaseMap.put(key, dataInfo);
+        return key;
+    }
+}
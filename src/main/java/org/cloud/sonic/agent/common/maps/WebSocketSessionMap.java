@@ -1,11 +1,15 @@
 package org.cloud.sonic.agent.common.maps;
 
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
+import org.cloud.sonic.agent.tools.SessionSender;
 import org.springframework.lang.NonNull;
 import org.springframework.util.Assert;
 
+import com.alibaba.fastjson.JSONObject;
+
 import jakarta.websocket.Session;
 
 /**
@@ -30,6 +34,12 @@ public class WebSocketSessionMap {
 
     public static void removeSession(@NonNull Session session) {
         removeSession(session.getUserProperties().get("id").toString());
+        SessionSender sender = (SessionSender) session.getUserProperties().get(SessionSender.SESSION_KEY);
+        if (sender != null) {
+            // 关闭前尽量把最后的控制消息发出去
+            sender.flush(1000);
+            sender.clear();
+        }
     }
 
     public static void removeSession(String sessionId) {
@@ -37,6 +47,20 @@ public class WebSocketSessionMap {
         sessionMap.remove(sessionId);
     }
 
+    /**
+     * 各session发送队列的积压与耗时
+     */
+    public static Map<String, JSONObject> getSendMetrics() {
+        Map<String, JSONObject> metrics = new HashMap<>();
+        sessionMap.forEach((id, session) -> {
+            SessionSender sender = (SessionSender) session.getUserProperties().get(SessionSender.SESSION_KEY);
+            if (sender != null) {
+                metrics.put(id, sender.getMetrics());
+            }
+        });
+        return metrics;
+    }
+
     public static Session getSession(String sessionId) {
         Assert.hasText(sessionId, "sessionId must not be blank");
         return sessionMap.get(sessionId);
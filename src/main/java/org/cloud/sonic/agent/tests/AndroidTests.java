@@ -25,6 +25,7 @@ import java.util.List;
 
 import org.cloud.sonic.agent.bridge.android.AndroidDeviceBridgeTool;
 import org.cloud.sonic.agent.common.interfaces.DeviceStatus;
+import org.cloud.sonic.agent.common.maps.SuiteCaseMap;
 import org.cloud.sonic.agent.tests.android.AndroidTestTaskBootThread;
 import org.cloud.sonic.agent.tests.handlers.AndroidStepHandler;
 import org.slf4j.Logger;
@@ -33,7 +34,6 @@ import org.testng.ITestContext;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
-import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONObject;
 
 /**
@@ -46,13 +46,15 @@ public class AndroidTests {
 
     @DataProvider(name = "testData", parallel = true)
     public Object[][] getTestData(ITestContext context) {
-        JSONObject dataInfo = JSON.parseObject(context.getCurrentXmlTest().getParameter("dataInfo"));
+        JSONObject dataInfo = SuiteCaseMap.getMap().get(context.getCurrentXmlTest().getParameter("caseKey"));
+        if (dataInfo == null) {
+            return new Object[0][];
+        }
         List<JSONObject> dataProvider = new ArrayList<>();
         for (JSONObject iDevice : dataInfo.getJSONArray("device").toJavaList(JSONObject.class)) {
             String udId = iDevice.getString("udId");
-            if (AndroidDeviceBridgeTool.getIDeviceByUdId(udId) == null
-                    || !AndroidDeviceBridgeTool.getIDeviceByUdId(udId)
-                            .getState().toString().equals("ONLINE")) {
+            // 只返回在线设备
+            if (AndroidDeviceBridgeTool.getIDeviceByUdId(udId) == null) {
                 continue;
             }
             JSONObject deviceTestData = new JSONObject();
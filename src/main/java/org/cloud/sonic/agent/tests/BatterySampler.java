@@ -0,0 +1,234 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.cloud.sonic.agent.common.maps.DevicesBatteryMap;
+import org.cloud.sonic.agent.tests.thermal.ThermalManager;
+import org.cloud.sonic.agent.tools.BytesTool;
+import org.cloud.sonic.agent.tools.metrics.Counter;
+import org.cloud.sonic.agent.tools.metrics.MetricsRegistry;
+import org.cloud.sonic.agent.transport.TransportWorker;
+
+import com.alibaba.fastjson.JSONObject;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 电量与温度的并发采样
+ * <p>
+ * 每轮把在线设备分给固定数量的采样线程，某台设备采到结果后立即单独上报，不再等整轮结束；
+ * 上一轮还没采完的设备本轮跳过，个别慢设备不会让任务越积越多。
+ * Android与iOS各用一个采样器，周期与并发数分别配置。
+ */
+@Slf4j
+public class BatterySampler<T> implements Runnable {
+
+    /**
+     * 采样一台设备，没有可用数据时返回null
+     */
+    public interface Probe<T> {
+        Sample sample(T device) throws Exception;
+    }
+
+    public static class Sample {
+        private final String udId;
+        private final int tem;
+        private final int level;
+        private final int vol;
+
+        /**
+         * @param tem 温度，单位0.1℃
+         */
+        public Sample(String udId, int tem, int level, int vol) {
+            this.udId = udId;
+            this.tem = tem;
+            this.level = level;
+            this.vol = vol;
+        }
+
+        public String getUdId() {
+            return udId;
+        }
+
+        public int getTem() {
+            return tem;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        public int getVol() {
+            return vol;
+        }
+    }
+
+    private final String platform;
+    private final Supplier<Collection<T>> devices;
+    private final Function<T, String> udIdOf;
+    private final Probe<T> probe;
+    private final BiConsumer<T, Sample> sink;
+    private final ExecutorService executor;
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+    private final Counter skipped;
+
+    public BatterySampler(String platform, int parallelism, Supplier<Collection<T>> devices,
+            Function<T, String> udIdOf, Probe<T> probe, BiConsumer<T, Sample> sink) {
+        this.platform = platform;
+        this.devices = devices;
+        this.udIdOf = udIdOf;
+        this.probe = probe;
+        this.sink = sink;
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, parallelism), r -> {
+            Thread thread = new Thread(r, platform + "-battery-sampler-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.skipped = MetricsRegistry.counter("sonic_agent_battery_skipped_total",
+                "Battery samples skipped because the previous one was still running", "platform", platform);
+    }
+
+    @Override
+    public void run() {
+        Collection<T> list;
+        try {
+            list = devices.get();
+        } catch (Exception e) {
+            log.error("List {} devices for battery sampling failed, cause: ", platform, e);
+            return;
+        }
+        if (list == null) {
+            return;
+        }
+        for (T device : list) {
+            String udId = udIdOf.apply(device);
+            if (udId == null) {
+                continue;
+            }
+            if (!inFlight.add(udId)) {
+                skipped.increment();
+                continue;
+            }
+            try {
+                executor.execute(() -> sampleOne(device, udId));
+            } catch (RejectedExecutionException e) {
+                inFlight.remove(udId);
+                return;
+            }
+        }
+    }
+
+    private void sampleOne(T device, String udId) {
+        long start = System.nanoTime();
+        String result = "ok";
+        try {
+            Sample sample = probe.sample(device);
+            if (sample == null) {
+                result = "empty";
+            } else {
+                sink.accept(device, sample);
+            }
+        } catch (Exception e) {
+            result = "error";
+            log.warn("Sample battery of {} failed: {}", udId, e.getMessage());
+        } finally {
+            inFlight.remove(udId);
+            MetricsRegistry.histogram("sonic_agent_battery_sample_seconds", "Time spent sampling one device battery",
+                    "platform", platform, "result", result).recordSince(start);
+        }
+    }
+
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 上报一台设备的电量，温度交给{@link ThermalManager}判断是否降载，
+     * 并按服务端下发的高温阈值告警；持续高温达到服务端下发的时长后关机
+     *
+     * @param periodSeconds 采样周期，用于把高温时长换算成连续采样次数
+     */
+    public static void report(Sample sample, long periodSeconds, Runnable shutdown) {
+        String udId = sample.getUdId();
+        int tem = sample.getTem();
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("udId", udId);
+        jsonObject.put("tem", tem);
+        jsonObject.put("level", sample.getLevel());
+        jsonObject.put("vol", sample.getVol());
+        JSONObject result = new JSONObject();
+        result.put("msg", "battery");
+        result.put("detail", List.of(jsonObject));
+        try {
+            TransportWorker.send(result);
+        } catch (Exception e) {
+            log.error("Send battery msg failed, cause: ", e);
+        }
+        ThermalManager.record(udId, tem);
+        // control
+        if (tem >= BytesTool.highTemp * 10) {
+            int times = DevicesBatteryMap.getTempMap().merge(udId, 1, Integer::sum);
+            if (times == 1) {
+                // Send Error Msg
+                sendErrCall(udId, tem, 1);
+            }
+            if (times >= highTempTimes(BytesTool.highTempTime, periodSeconds)) {
+                // Send shutdown Msg
+                sendErrCall(udId, tem, 2);
+                shutdown.run();
+                DevicesBatteryMap.getTempMap().remove(udId);
+            }
+        } else {
+            DevicesBatteryMap.getTempMap().remove(udId);
+        }
+    }
+
+    /**
+     * @param highTempMinutes 服务端下发的高温持续时长，单位分钟
+     * @return 持续这么久需要的连续高温采样次数，至少为1
+     */
+    static int highTempTimes(int highTempMinutes, long periodSeconds) {
+        return (int) Math.max(1, (highTempMinutes * 60L + periodSeconds - 1) / Math.max(1, periodSeconds));
+    }
+
+    private static void sendErrCall(String udId, int tem, int type) {
+        JSONObject errCall = new JSONObject();
+        errCall.put("msg", "errCall");
+        errCall.put("udId", udId);
+        errCall.put("tem", tem);
+        errCall.put("type", type);
+        TransportWorker.send(errCall);
+    }
+}
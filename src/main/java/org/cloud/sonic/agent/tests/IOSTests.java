@@ -26,6 +26,7 @@ import java.util.concurrent.ConcurrentHashMap;
 
 import org.cloud.sonic.agent.bridge.ios.SibTool;
 import org.cloud.sonic.agent.common.interfaces.DeviceStatus;
+import org.cloud.sonic.agent.common.maps.SuiteCaseMap;
 import org.cloud.sonic.agent.tests.handlers.IOSStepHandler;
 import org.cloud.sonic.agent.tests.ios.IOSTestTaskBootThread;
 import org.slf4j.Logger;
@@ -34,7 +35,6 @@ import org.testng.ITestContext;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
-import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONObject;
 
 /**
@@ -49,7 +49,10 @@ public class IOSTests {
 
     @DataProvider(name = "testData", parallel = true)
     public Object[][] getTestData(ITestContext context) {
-        JSONObject dataInfo = JSON.parseObject(context.getCurrentXmlTest().getParameter("dataInfo"));
+        JSONObject dataInfo = SuiteCaseMap.getMap().get(context.getCurrentXmlTest().getParameter("caseKey"));
+        if (dataInfo == null) {
+            return new Object[0][];
+        }
         List<JSONObject> dataProvider = new ArrayList<>();
         for (JSONObject device : dataInfo.getJSONArray("device").toJavaList(JSONObject.class)) {
             String udId = device.getString("udId");
@@ -17,13 +17,13 @@
  */
 package org.cloud.sonic.agent.tests;
 
-import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
 import org.cloud.sonic.agent.common.interfaces.DeviceStatus;
 import org.cloud.sonic.agent.common.interfaces.StepType;
 import org.cloud.sonic.agent.common.maps.WebSocketSessionMap;
+import org.cloud.sonic.agent.tools.BytesTool;
 import org.cloud.sonic.agent.transport.TransportWorker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -90,14 +90,8 @@ public class LogUtil {
         if (session == null || !session.isOpen()) {
             return;
         }
-        synchronized (session) {
-            try {
-                message.put("time", getDateToString());
-                session.getBasicRemote().sendText(message.toJSONString());
-            } catch (IllegalStateException | IOException e) {
-                logger.error(e.getMessage());
-            }
-        }
+        message.put("time", getDateToString());
+        BytesTool.sendText(session, message.toJSONString());
     }
 
     /**
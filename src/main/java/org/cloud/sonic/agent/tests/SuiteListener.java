@@ -19,11 +19,11 @@ package org.cloud.sonic.agent.tests;
 
 import java.util.concurrent.ConcurrentHashMap;
 
+import org.cloud.sonic.agent.common.maps.SuiteCaseMap;
 import org.springframework.util.CollectionUtils;
 import org.testng.ISuite;
 import org.testng.ISuiteListener;
 
-import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
 
@@ -57,7 +57,10 @@ public class SuiteListener implements ISuiteListener {
     }
 
     private String getRunningTestsMapKey(ISuite suite) {
-        JSONObject dataInfoJson = JSON.parseObject(suite.getParameter("dataInfo"));
+        JSONObject dataInfoJson = SuiteCaseMap.getMap().get(suite.getParameter("caseKey"));
+        if (dataInfoJson == null) {
+            return null;
+        }
         String rid = dataInfoJson.getString("rid");
         JSONArray deviceArray = dataInfoJson.getJSONArray("device");
         if (CollectionUtils.isEmpty(deviceArray)) {
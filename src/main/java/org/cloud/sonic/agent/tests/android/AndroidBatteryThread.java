@@ -22,12 +22,10 @@ import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import org.cloud.sonic.agent.bridge.android.AndroidDeviceBridgeTool;
-import org.cloud.sonic.agent.common.maps.DevicesBatteryMap;
-import org.cloud.sonic.agent.tools.BytesTool;
+import org.cloud.sonic.agent.bridge.android.AndroidDeviceRegistry;
+import org.cloud.sonic.agent.tests.BatterySampler;
 import org.cloud.sonic.agent.transport.TransportWorker;
-import org.springframework.util.StringUtils;
 
-import com.alibaba.fastjson.JSONObject;
 import com.android.ddmlib.IDevice;
 
 import lombok.extern.slf4j.Slf4j;
@@ -38,82 +36,113 @@ import lombok.extern.slf4j.Slf4j;
  */
 @Slf4j
 public class AndroidBatteryThread implements Runnable {
-    /**
-     * second
-     */
-    public static final long DELAY = 30;
-
     public static final String THREAD_NAME = "android-battery-thread";
 
     public static final TimeUnit TIME_UNIT = TimeUnit.SECONDS;
 
+    private final BatterySampler<IDevice> sampler;
+
+    /**
+     * @param period 采样周期，单位为{@link #TIME_UNIT}
+     */
+    public AndroidBatteryThread(int parallelism, long period) {
+        sampler = new BatterySampler<>("android", parallelism, AndroidBatteryThread::onlineDevices,
+                IDevice::getSerialNumber,
+                iDevice -> parse(iDevice.getSerialNumber(),
+                        AndroidDeviceBridgeTool.executeCommand(iDevice, "dumpsys battery")),
+                (iDevice, sample) -> BatterySampler.report(sample, TIME_UNIT.toSeconds(period),
+                        () -> AndroidDeviceBridgeTool.shutdown(iDevice)));
+    }
+
     @Override
     public void run() {
         Thread.currentThread().setName(THREAD_NAME);
         if (TransportWorker.client == null) {
             return;
         }
+        sampler.run();
+    }
 
-        IDevice[] deviceList = AndroidDeviceBridgeTool.getRealOnLineDevices();
-        if (deviceList == null || deviceList.length == 0) {
-            return;
+    private static List<IDevice> onlineDevices() {
+        List<IDevice> devices = new ArrayList<>();
+        for (AndroidDeviceRegistry.Snapshot snapshot : AndroidDeviceRegistry.getAll()) {
+            if (snapshot.getState() == IDevice.DeviceState.ONLINE) {
+                devices.add(snapshot.getDevice());
+            }
         }
-        List<JSONObject> detail = new ArrayList<>();
-        for (IDevice iDevice : deviceList) {
-            JSONObject jsonObject = new JSONObject();
-            String battery = AndroidDeviceBridgeTool
-                    .executeCommand(iDevice, "dumpsys battery").replace("Max charging voltage", "");
-            if (StringUtils.hasText(battery)) {
-                String realTem = battery.substring(battery.indexOf("temperature")).trim();
-                int tem = BytesTool.getInt(realTem.substring(13, realTem.indexOf("\n")));
-                String realLevel = battery.substring(battery.indexOf("level")).trim();
-                int level = BytesTool.getInt(realLevel.substring(7, realLevel.indexOf("\n")));
-                String realVol = battery.substring(battery.indexOf("voltage")).trim();
-                int vol = BytesTool.getInt(realVol.substring(9, realVol.indexOf("\n")));
-                jsonObject.put("udId", iDevice.getSerialNumber());
-                jsonObject.put("tem", tem);
-                jsonObject.put("level", level);
-                jsonObject.put("vol", vol);
-                detail.add(jsonObject);
-                // control
-                if (tem >= BytesTool.highTemp * 10) {
-                    Integer times = DevicesBatteryMap.getTempMap().get(iDevice.getSerialNumber());
-                    if (times == null) {
-                        // Send Error Msg
-                        JSONObject errCall = new JSONObject();
-                        errCall.put("msg", "errCall");
-                        errCall.put("udId", iDevice.getSerialNumber());
-                        errCall.put("tem", tem);
-                        errCall.put("type", 1);
-                        TransportWorker.send(errCall);
-                        DevicesBatteryMap.getTempMap().put(iDevice.getSerialNumber(), 1);
-                    } else {
-                        DevicesBatteryMap.getTempMap().put(iDevice.getSerialNumber(), times + 1);
-                    }
-                    times = DevicesBatteryMap.getTempMap().get(iDevice.getSerialNumber());
-                    if (times >= (BytesTool.highTempTime * 2)) {
-                        // Send shutdown Msg
-                        JSONObject errCall = new JSONObject();
-                        errCall.put("msg", "errCall");
-                        errCall.put("udId", iDevice.getSerialNumber());
-                        errCall.put("tem", tem);
-                        errCall.put("type", 2);
-                        TransportWorker.send(errCall);
-                        AndroidDeviceBridgeTool.shutdown(iDevice);
-                        DevicesBatteryMap.getTempMap().remove(iDevice.getSerialNumber());
-                    }
-                } else {
-                    DevicesBatteryMap.getTempMap().remove(iDevice.getSerialNumber());
+        return devices;
+    }
+
+    /**
+     * 逐行解析dumpsys battery，只取temperature、level、voltage三项，缺少任意一项时返回null
+     * <p>
+     * 按“键: 值”整行比较键名，Max charging voltage之类的相近字段不会误取。
+     */
+    static BatterySampler.Sample parse(String udId, String battery) {
+        if (battery == null) {
+            return null;
+        }
+        int tem = Integer.MIN_VALUE;
+        int level = Integer.MIN_VALUE;
+        int vol = Integer.MIN_VALUE;
+        int length = battery.length();
+        int lineStart = 0;
+        while (lineStart < length) {
+            int lineEnd = battery.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = length;
+            }
+            int keyStart = lineStart;
+            while (keyStart < lineEnd && battery.charAt(keyStart) == ' ') {
+                keyStart++;
+            }
+            int colon = battery.indexOf(':', keyStart);
+            if (colon > keyStart && colon < lineEnd) {
+                int keyLength = colon - keyStart;
+                if (isKey(battery, keyStart, keyLength, "temperature")) {
+                    tem = parseInt(battery, colon + 1, lineEnd);
+                } else if (isKey(battery, keyStart, keyLength, "level")) {
+                    level = parseInt(battery, colon + 1, lineEnd);
+                } else if (isKey(battery, keyStart, keyLength, "voltage")) {
+                    vol = parseInt(battery, colon + 1, lineEnd);
                 }
             }
+            lineStart = lineEnd + 1;
+        }
+        if (tem == Integer.MIN_VALUE || level == Integer.MIN_VALUE || vol == Integer.MIN_VALUE) {
+            return null;
+        }
+        return new BatterySampler.Sample(udId, tem, level, vol);
+    }
+
+    private static boolean isKey(String text, int start, int length, String key) {
+        return length == key.length() && text.regionMatches(start, key, 0, length);
+    }
+
+    /**
+     * @return 跳过前导空格后的整数，没有数字时返回Integer.MIN_VALUE
+     */
+    private static int parseInt(String text, int start, int end) {
+        while (start < end && text.charAt(start) == ' ') {
+            start++;
+        }
+        boolean negative = start < end && text.charAt(start) == '-';
+        if (negative) {
+            start++;
+        }
+        int value = 0;
+        int digits = 0;
+        while (start < end) {
+            char c = text.charAt(start++);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = value * 10 + (c - '0');
+            digits++;
         }
-        JSONObject result = new JSONObject();
-        result.put("msg", "battery");
-        result.put("detail", detail);
-        try {
-            TransportWorker.send(result);
-        } catch (Exception e) {
-            log.error("Send battery msg failed, cause: ", e);
+        if (digits == 0) {
+            return Integer.MIN_VALUE;
         }
+        return negative ? -value : value;
     }
 }
@@ -18,7 +18,9 @@
 package org.cloud.sonic.agent.tests.android;
 
 import org.cloud.sonic.agent.bridge.android.AndroidSupplyTool;
+import org.cloud.sonic.agent.common.interfaces.StepType;
 import org.cloud.sonic.agent.tests.handlers.AndroidStepHandler;
+import org.cloud.sonic.agent.tests.thermal.ThermalManager;
 
 import com.alibaba.fastjson.JSONObject;
 
@@ -60,12 +62,30 @@ public class AndroidPerfDataThread extends Thread {
             AndroidSupplyTool.startPerfmon(udId, "", null,
                     androidStepHandler.getLog(), perf.getInteger("perfInterval"));
             boolean hasTarget = false;
+            boolean paused = false;
             while (!androidTestTaskBootThread.getRunStepThread().isStopped()) {
                 try {
                     Thread.sleep(500);
                 } catch (InterruptedException e) {
                     break;
                 }
+                // 设备降温期间暂停性能采集，减轻设备负载
+                if (ThermalManager.isThrottled(udId)) {
+                    if (!paused) {
+                        AndroidSupplyTool.stopPerfmon(udId);
+                        androidStepHandler.getLog().sendStepLog(StepType.WARN, "设备温度偏高，暂停性能采集", "");
+                        paused = true;
+                    }
+                    continue;
+                }
+                if (paused) {
+                    AndroidSupplyTool.startPerfmon(udId, androidStepHandler.getTargetPackage(), null,
+                            androidStepHandler.getLog(), perf.getInteger("perfInterval"));
+                    androidStepHandler.getLog().sendStepLog(StepType.INFO, "设备已降温，恢复性能采集", "");
+                    hasTarget = androidStepHandler.getTargetPackage().length() != 0;
+                    paused = false;
+                    continue;
+                }
                 if (androidStepHandler.getTargetPackage().length() != 0 && !hasTarget) {
                     AndroidSupplyTool.startPerfmon(udId, androidStepHandler.getTargetPackage(), null,
                             androidStepHandler.getLog(), perf.getInteger("perfInterval"));
@@ -17,11 +17,27 @@
  */
 package org.cloud.sonic.agent.tests.android;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.cloud.sonic.agent.bridge.android.AndroidDeviceBridgeTool;
+import org.cloud.sonic.agent.common.interfaces.ResultDetailStatus;
+import org.cloud.sonic.agent.common.interfaces.StepType;
+import org.cloud.sonic.agent.common.maps.CaptureStoreMap;
+import org.cloud.sonic.agent.tests.android.scrcpy.ScrcpyServerUtil;
+import org.cloud.sonic.agent.tests.handlers.AndroidStepHandler;
+import org.cloud.sonic.agent.tests.screen.FrameCaptureStore;
+import org.cloud.sonic.agent.tests.screen.ScreenBroadcaster;
+import org.cloud.sonic.agent.tools.SpringTool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * android 录像线程
+ * <p>
+ * 通过sonic.record.android开启，默认关闭。录像使用不带控制通道的scrcpy，不改变测试的触控方式；
+ * 用例第一次失败时由本线程导出并上传失败前的录像，每个用例最多上传一段，不占用步骤线程。
  *
  * @author Eason(main) JayWenStar(until e1a877b7)
  * @date 2021/12/2 12:29 上午
@@ -35,6 +51,13 @@ public class AndroidRecordThread extends Thread {
      */
     public final static String ANDROID_RECORD_TASK_PRE = "android-record-task-%s-%s-%s";
 
+    /**
+     * 只保留失败前最近的录像
+     */
+    private static final long KEEP_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private static final int CAPTURE_CAPACITY = 64 * 1024 * 1024;
+
     private final AndroidTestTaskBootThread androidTestTaskBootThread;
 
     public AndroidRecordThread(AndroidTestTaskBootThread androidTestTaskBootThread) {
@@ -48,84 +71,66 @@ public class AndroidRecordThread extends Thread {
         return androidTestTaskBootThread;
     }
 
+    private static boolean isEnabled() {
+        return Boolean.parseBoolean(SpringTool.getPropertiesValue("sonic.record.android:false"));
+    }
+
     @Override
     public void run() {
-        // AndroidStepHandler androidStepHandler =
-        // androidTestTaskBootThread.getAndroidStepHandler();
-        // AndroidRunStepThread runStepThread =
-        // androidTestTaskBootThread.getRunStepThread();
-        // String udId = androidTestTaskBootThread.getUdId();
-        //
-        // Boolean isSupportRecord = true;
-        // String manufacturer =
-        // AndroidDeviceBridgeTool.getIDeviceByUdId(udId).getProperty(IDevice.PROP_DEVICE_MANUFACTURER);
-        // if (manufacturer.equals("HUAWEI") || manufacturer.equals("OPPO") ||
-        // manufacturer.equals("vivo")) {
-        // isSupportRecord = false;
-        // }
-        //
-        // while (runStepThread.isAlive()) {
-        // if (androidStepHandler.getAndroidDriver() == null) {
-        // try {
-        // Thread.sleep(500);
-        // } catch (InterruptedException e) {
-        // log.error(e.getMessage());
-        // }
-        // continue;
-        // }
-        // Thread miniCapPro = null;
-        // AtomicReference<List<byte[]>> imgList = new AtomicReference<>(new
-        // ArrayList<>());
-        // AtomicReference<String[]> banner = new AtomicReference<>(new String[24]);
-        // if (isSupportRecord) {
-        // try {
-        // androidStepHandler.startRecord();
-        // } catch (Exception e) {
-        // log.error(e.getMessage());
-        // isSupportRecord = false;
-        // }
-        // } else {
-        // MiniCapUtil miniCapUtil = new MiniCapUtil();
-        // miniCapPro = miniCapUtil.start(udId, banner, imgList, "high", -1, null,
-        // androidTestTaskBootThread);
-        // }
-        // int w = 0;
-        // while (w < 10 && (runStepThread.isAlive())) {
-        // try {
-        // Thread.sleep(10000);
-        // } catch (InterruptedException e) {
-        // log.error(e.getMessage());
-        // }
-        // w++;
-        // }
-        // //处理录像
-        // if (isSupportRecord) {
-        // if (androidStepHandler.getStatus() == 3) {
-        // androidStepHandler.stopRecord();
-        // return;
-        // } else {
-        // androidStepHandler.getAndroidDriver().stopRecordingScreen();
-        // }
-        // } else {
-        // miniCapPro.interrupt();
-        // if (androidStepHandler.getStatus() == 3) {
-        // File recordByRmvb = new File("test-output/record");
-        // if (!recordByRmvb.exists()) {
-        // recordByRmvb.mkdirs();
-        // }
-        // long timeMillis = Calendar.getInstance().getTimeInMillis();
-        // String fileName = timeMillis + "_" + udId.substring(0, 4) + ".mp4";
-        // File uploadFile = new File(recordByRmvb + File.separator + fileName);
-        // try {
-        // androidStepHandler.log.sendRecordLog(true, fileName,
-        // RecordHandler.record(uploadFile, imgList.get()
-        // , Integer.parseInt(banner.get()[9]), Integer.parseInt(banner.get()[13])));
-        // } catch (FrameRecorder.Exception e) {
-        // e.printStackTrace();
-        // }
-        // return;
-        // }
-        // }
-        // }
+        AndroidStepHandler androidStepHandler = androidTestTaskBootThread.getAndroidStepHandler();
+        AndroidRunStepThread runStepThread = androidTestTaskBootThread.getRunStepThread();
+        String udId = androidTestTaskBootThread.getUdId();
+        if (!isEnabled() || AndroidDeviceBridgeTool.getIDeviceByUdId(udId) == null) {
+            return;
+        }
+        ScreenBroadcaster broadcaster = ScreenBroadcaster.of(udId);
+        if (broadcaster.isCapturing("minicap")) {
+            // 有人正在用minicap远控，没有h264可录
+            log.info("{} is using minicap, skip record.", udId);
+            androidStepHandler.log.sendStepLog(StepType.WARN, "设备正在使用minicap投屏，本次用例不录像", "");
+            return;
+        }
+        File segmentFile = new File("test-output/record" + File.separator + udId + ".seg");
+        FrameCaptureStore store;
+        try {
+            store = new FrameCaptureStore(segmentFile, CAPTURE_CAPACITY, KEEP_NANOS);
+        } catch (IOException e) {
+            log.error("create capture store failed: {}", e.getMessage());
+            return;
+        }
+        CaptureStoreMap.getMap().put(udId, store);
+        // 与远控共用同一路scrcpy，h264直接封装成mp4，不解码也不重新编码；
+        // 由录像启动时不开控制通道，触控仍走配置的方式
+        broadcaster.startCaptureIfAbsent("scrcpy", () -> new ScrcpyServerUtil().start(
+                udId, -1, broadcaster, androidTestTaskBootThread, false));
+        broadcaster.addRecorder(store);
+        boolean uploaded = false;
+        try {
+            while (runStepThread.isAlive()) {
+                if (androidStepHandler.getStatus() == ResultDetailStatus.FAIL) {
+                    // 第一次失败时上传，之后不再需要录像
+                    androidStepHandler.errorRecord();
+                    uploaded = true;
+                    break;
+                }
+                Thread.sleep(1000);
+            }
+        } catch (InterruptedException e) {
+            log.info("record interrupted.");
+        } finally {
+            broadcaster.removeRecorder(store);
+            if (!broadcaster.hasSubscribers() && !broadcaster.hasRecorders()) {
+                broadcaster.close();
+            }
+            if (!uploaded && androidStepHandler.getStatus() == ResultDetailStatus.FAIL) {
+                androidStepHandler.errorRecord();
+            }
+            CaptureStoreMap.getMap().remove(udId, store);
+            try {
+                store.close();
+            } catch (IOException e) {
+                log.error(e.getMessage());
+            }
+        }
     }
 }
@@ -26,6 +26,7 @@ import org.cloud.sonic.agent.tests.TaskManager;
 import org.cloud.sonic.agent.tests.handlers.AndroidMonitorHandler;
 import org.cloud.sonic.agent.tests.handlers.AndroidStepHandler;
 import org.cloud.sonic.agent.tests.handlers.AndroidTouchHandler;
+import org.cloud.sonic.agent.tests.thermal.ThermalManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -54,6 +55,11 @@ public class AndroidTestTaskBootThread extends Thread {
 
     private Boolean forceStop = false;
 
+    /**
+     * 等待设备降温的最多次数，每次10秒
+     */
+    private static final int MAX_COOLING_WAIT = 30;
+
     /**
      * 一些任务信息
      */
@@ -188,6 +194,14 @@ public class AndroidTestTaskBootThread extends Thread {
         AndroidMonitorHandler androidMonitorHandler = new AndroidMonitorHandler();
 
         try {
+            // 设备温度逼近高温阈值时先等待降温，超时后照常开始，由高温告警兜底
+            int cooling = 0;
+            while (ThermalManager.isThrottled(udId) && cooling < MAX_COOLING_WAIT) {
+                cooling++;
+                androidStepHandler.waitCooling(cooling);
+                Thread.sleep(10000);
+            }
+
             int wait = 0;
             while (!AndroidDeviceLocalStatus.startTest(udId)) {
                 wait++;
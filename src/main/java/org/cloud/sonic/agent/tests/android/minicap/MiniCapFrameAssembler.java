@@ -0,0 +1,194 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.android.minicap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.cloud.sonic.agent.tools.ByteBufferPool;
+
+/**
+ * minicap协议解析
+ * <p>
+ * socket数据直接读入可复用的直接内存，banner与4字节帧长度在原地解析，
+ * 帧体从读缓冲批量拷贝（或直接从socket读）到池化的帧buffer中，不再逐块拼接byte[]。
+ * 完整帧以ByteBuffer交给{@link FrameListener}，使用完毕后需归还到{@link #getFramePool()}。
+ */
+public class MiniCapFrameAssembler {
+
+    public interface FrameListener {
+        void onBanner(String[] banner);
+
+        void onFrame(ByteBuffer frame);
+    }
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * 一般一帧jpeg在几十到几百KB，池里的buffer会按需扩容
+     */
+    private static final int FRAME_INITIAL_CAPACITY = 256 * 1024;
+
+    /**
+     * 帧长度的上限，按banner中的分辨率每像素4字节估算，不超过16MB；
+     * 长度头损坏或错位时不会按它申请超大的直接内存
+     */
+    private static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    private final ByteBufferPool framePool;
+
+    private final AtomicReference<String[]> banner;
+
+    private final FrameListener listener;
+
+    private boolean bannerReady = false;
+
+    private int maxFrameLength = MAX_FRAME_LENGTH;
+
+    private ByteBuffer frame;
+
+    public MiniCapFrameAssembler(AtomicReference<String[]> banner, int poolSize, FrameListener listener) {
+        this.banner = banner;
+        this.listener = listener;
+        this.framePool = new ByteBufferPool(poolSize, FRAME_INITIAL_CAPACITY);
+    }
+
+    public ByteBufferPool getFramePool() {
+        return framePool;
+    }
+
+    /**
+     * 从channel读取一次并解析
+     *
+     * @return false: 流已结束、帧长度异常或不是jpeg数据
+     */
+    public boolean read(ReadableByteChannel channel) throws IOException {
+        if (frame != null && readBuffer.position() == 0) {
+            // 读缓冲已空，剩余帧体直接从socket读进帧buffer
+            if (channel.read(frame) < 0) {
+                return false;
+            }
+            return frame.hasRemaining() || emitFrame();
+        }
+        if (channel.read(readBuffer) < 0) {
+            return false;
+        }
+        readBuffer.flip();
+        try {
+            return parse();
+        } finally {
+            readBuffer.compact();
+        }
+    }
+
+    private boolean parse() {
+        while (readBuffer.hasRemaining()) {
+            if (!bannerReady) {
+                // 第一次进来读取头部信息
+                if (readBuffer.remaining() < 2) {
+                    return true;
+                }
+                int bannerLength = readBuffer.get(readBuffer.position() + 1) & 0xff;
+                if (readBuffer.remaining() < bannerLength) {
+                    return true;
+                }
+                parseBanner(readBuffer.position(), bannerLength);
+                readBuffer.position(readBuffer.position() + bannerLength);
+                bannerReady = true;
+                listener.onBanner(banner.get());
+                continue;
+            }
+            if (frame == null) {
+                // 读取并设置图片的大小
+                if (readBuffer.remaining() < 4) {
+                    return true;
+                }
+                int frameBodyLength = readBuffer.getInt();
+                if (frameBodyLength < 2 || frameBodyLength > maxFrameLength) {
+                    return false;
+                }
+                frame = framePool.acquire(frameBodyLength);
+                frame.limit(frameBodyLength);
+            }
+            int n = Math.min(frame.remaining(), readBuffer.remaining());
+            ByteBuffer body = readBuffer.duplicate();
+            body.limit(body.position() + n);
+            frame.put(body);
+            readBuffer.position(readBuffer.position() + n);
+            if (!frame.hasRemaining() && !emitFrame()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean emitFrame() {
+        ByteBuffer complete = frame;
+        frame = null;
+        complete.flip();
+        if (complete.remaining() < 2 || complete.get(0) != (byte) 0xFF || complete.get(1) != (byte) 0xD8) {
+            framePool.release(complete);
+            return false;
+        }
+        listener.onFrame(complete);
+        return true;
+    }
+
+    private void parseBanner(int offset, int bannerLength) {
+        String[] b = banner.get();
+        // version
+        b[0] = String.valueOf(readBuffer.get(offset));
+        // length
+        b[1] = String.valueOf(bannerLength);
+        // pid
+        b[5] = String.valueOf(unsignedInt(offset + 2));
+        // real width & height
+        b[9] = String.valueOf(unsignedInt(offset + 6));
+        b[13] = String.valueOf(unsignedInt(offset + 10));
+        // virtual width & height
+        b[17] = String.valueOf(unsignedInt(offset + 14));
+        b[21] = String.valueOf(unsignedInt(offset + 18));
+        // orientation
+        b[22] = String.valueOf(readBuffer.get(offset + 22) * 90);
+        // quirks
+        b[23] = String.valueOf(readBuffer.get(offset + 23));
+        long pixels = unsignedInt(offset + 6) * unsignedInt(offset + 10);
+        if (pixels > 0) {
+            maxFrameLength = (int) Math.min(MAX_FRAME_LENGTH, pixels * 4);
+        }
+    }
+
+    private long unsignedInt(int index) {
+        return readBuffer.getInt(index) & 0xffffffffL;
+    }
+
+    /**
+     * 归还未完成的帧
+     */
+    public void release() {
+        if (frame != null) {
+            framePool.release(frame);
+            frame = null;
+        }
+    }
+}
@@ -17,27 +17,29 @@
  */
 package org.cloud.sonic.agent.tests.android.minicap;
 
-import static org.cloud.sonic.agent.tools.BytesTool.subByteArray;
-
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import org.cloud.sonic.agent.bridge.android.AndroidDeviceBridgeTool;
-import org.cloud.sonic.agent.common.maps.ScreenMap;
 import org.cloud.sonic.agent.tests.android.AndroidTestTaskBootThread;
+import org.cloud.sonic.agent.tests.screen.ScreenBroadcaster;
+import org.cloud.sonic.agent.tools.ByteBufferPool;
 import org.cloud.sonic.agent.tools.PortTool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.alibaba.fastjson.JSONObject;
 import com.android.ddmlib.IDevice;
 
-import jakarta.websocket.Session;
-
 /**
  * minicap socket线程
- * 通过端口转发，将设备视频流转发到此Socket
+ * 通过端口转发，将设备视频流转发到此Socket，解析出的完整帧放入dataQueue
  *
  * @author Eason(main) JayWenStar(until e1a877b7)
  * @date 2021/12/02 00:52 下午
@@ -53,35 +55,81 @@ public class MiniCapInputSocketThread extends Thread {
 
     private IDevice iDevice;
 
-    private BlockingQueue<byte[]> dataQueue;
+    /**
+     * 解析中、待发送、各session发送中各占用若干帧，另外保留最新一帧补发给后加入的session
+     */
+    private static final int FRAME_POOL_SIZE = 6;
+
+    private BlockingQueue<ByteBuffer> dataQueue;
+
+    private AtomicReference<String[]> banner;
+
+    private MiniCapFrameAssembler assembler;
 
     private MiniCapLocalThread miniCapPro;
 
     private AndroidTestTaskBootThread androidTestTaskBootThread;
 
-    private Session session;
+    private ScreenBroadcaster broadcaster;
 
-    public MiniCapInputSocketThread(IDevice iDevice, BlockingQueue<byte[]> dataQueue, MiniCapLocalThread miniCapPro,
-            Session session) {
+    /**
+     * 按帧率上限，下一帧最早读取的时间
+     */
+    private long nextFrameNanos;
+
+    public MiniCapInputSocketThread(IDevice iDevice, BlockingQueue<ByteBuffer> dataQueue,
+            AtomicReference<String[]> banner, MiniCapLocalThread miniCapPro, ScreenBroadcaster broadcaster) {
         this.iDevice = iDevice;
         this.dataQueue = dataQueue;
+        this.banner = banner;
         this.miniCapPro = miniCapPro;
-        this.session = session;
+        this.broadcaster = broadcaster;
         this.androidTestTaskBootThread = miniCapPro.getAndroidTestTaskBootThread();
 
         // 让资源合理关闭
         this.setDaemon(false);
         this.setName(androidTestTaskBootThread.formatThreadName(ANDROID_INPUT_SOCKET_PRE));
+        this.assembler = new MiniCapFrameAssembler(banner, FRAME_POOL_SIZE,
+                new MiniCapFrameAssembler.FrameListener() {
+                    @Override
+                    public void onBanner(String[] b) {
+                        log.info("banner读取已就绪");
+                        if (broadcaster != null) {
+                            JSONObject size = new JSONObject();
+                            size.put("msg", "size");
+                            size.put("width", b[9]);
+                            size.put("height", b[13]);
+                            broadcaster.sendText(size);
+                        }
+                    }
+
+                    @Override
+                    public void onFrame(ByteBuffer frame) {
+                        offerFrame(frame);
+                        int fpsCap = broadcaster == null ? Integer.MAX_VALUE : broadcaster.getFpsCap();
+                        if (fpsCap != Integer.MAX_VALUE) {
+                            nextFrameNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(1) / fpsCap;
+                        }
+                    }
+                });
     }
 
     public IDevice getiDevice() {
         return iDevice;
     }
 
-    public BlockingQueue<byte[]> getDataQueue() {
+    public BlockingQueue<ByteBuffer> getDataQueue() {
         return dataQueue;
     }
 
+    public AtomicReference<String[]> getBanner() {
+        return banner;
+    }
+
+    public ByteBufferPool getFramePool() {
+        return assembler.getFramePool();
+    }
+
     public MiniCapLocalThread getMiniCapPro() {
         return miniCapPro;
     }
@@ -90,8 +138,8 @@ public class MiniCapInputSocketThread extends Thread {
         return androidTestTaskBootThread;
     }
 
-    public Session getSession() {
-        return session;
+    public ScreenBroadcaster getBroadcaster() {
+        return broadcaster;
     }
 
     @Override
@@ -99,21 +147,19 @@ public class MiniCapInputSocketThread extends Thread {
 
         int finalMiniCapPort = PortTool.getPort();
         AndroidDeviceBridgeTool.forward(iDevice, finalMiniCapPort, "minicap");
-        Socket capSocket = null;
-        InputStream inputStream = null;
+        SocketChannel capChannel = null;
         try {
-            capSocket = new Socket("localhost", finalMiniCapPort);
-            inputStream = capSocket.getInputStream();
-            int len = 1024;
+            capChannel = SocketChannel.open(new InetSocketAddress("localhost", finalMiniCapPort));
+            nextFrameNanos = System.nanoTime();
             while (miniCapPro.isAlive()) {
-                byte[] buffer = new byte[len];
-                int realLen;
-                realLen = inputStream.read(buffer);
-                if (buffer.length != realLen && realLen >= 0) {
-                    buffer = subByteArray(buffer, 0, realLen);
+                // 降载时暂缓读取，minicap写不出去就不会截取编码下一帧，设备端帧率随之降低
+                long wait = nextFrameNanos - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                    continue;
                 }
-                if (realLen >= 0) {
-                    dataQueue.offer(buffer);
+                if (!assembler.read(capChannel)) {
+                    break;
                 }
             }
         } catch (IOException e) {
@@ -123,26 +169,31 @@ public class MiniCapInputSocketThread extends Thread {
                 miniCapPro.interrupt();
                 log.info("miniCap thread closed.");
             }
-            if (capSocket != null && capSocket.isConnected()) {
+            if (capChannel != null) {
                 try {
-                    capSocket.close();
+                    capChannel.close();
                     log.info("miniCap socket closed.");
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
             }
-            if (inputStream != null) {
-                try {
-                    inputStream.close();
-                    log.info("miniCap input stream closed.");
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+            assembler.release();
         }
         AndroidDeviceBridgeTool.removeForward(iDevice, finalMiniCapPort, "minicap");
-        if (session != null) {
-            ScreenMap.getMap().remove(session);
+        if (broadcaster != null) {
+            broadcaster.captureStopped(miniCapPro);
+        }
+    }
+
+    /**
+     * 输出线程跟不上时丢弃最旧的一帧，保证读socket的线程不被阻塞
+     */
+    private void offerFrame(ByteBuffer frame) {
+        if (!dataQueue.offer(frame)) {
+            getFramePool().release(dataQueue.poll());
+            if (!dataQueue.offer(frame)) {
+                getFramePool().release(frame);
+            }
         }
     }
 }
@@ -23,8 +23,9 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.cloud.sonic.agent.bridge.android.AndroidDeviceBridgeTool;
+import org.cloud.sonic.agent.bridge.android.AndroidDeviceFacts;
 import org.cloud.sonic.agent.tests.android.AndroidTestTaskBootThread;
-import org.cloud.sonic.agent.tools.BytesTool;
+import org.cloud.sonic.agent.tests.screen.ScreenBroadcaster;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,8 +33,6 @@ import com.alibaba.fastjson.JSONObject;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.IShellOutputReceiver;
 
-import jakarta.websocket.Session;
-
 /**
  * 启动minicap等服务的线程
  *
@@ -55,7 +54,7 @@ public class MiniCapLocalThread extends Thread {
 
     private int finalC;
 
-    private Session session;
+    private ScreenBroadcaster broadcaster;
 
     private String udId;
 
@@ -63,12 +62,12 @@ public class MiniCapLocalThread extends Thread {
 
     private Semaphore isFinish = new Semaphore(0);
 
-    public MiniCapLocalThread(IDevice iDevice, String pic, int finalC, Session session,
+    public MiniCapLocalThread(IDevice iDevice, String pic, int finalC, ScreenBroadcaster broadcaster,
             AndroidTestTaskBootThread androidTestTaskBootThread) {
         this.iDevice = iDevice;
         this.pic = pic;
         this.finalC = finalC;
-        this.session = session;
+        this.broadcaster = broadcaster;
         this.udId = iDevice.getSerialNumber();
         this.androidTestTaskBootThread = androidTestTaskBootThread;
 
@@ -88,8 +87,8 @@ public class MiniCapLocalThread extends Thread {
         return finalC;
     }
 
-    public Session getSession() {
-        return session;
+    public ScreenBroadcaster getBroadcaster() {
+        return broadcaster;
     }
 
     public String getUdId() {
@@ -109,9 +108,9 @@ public class MiniCapLocalThread extends Thread {
         // 先删除原有路径下的文件，防止上次出错后停止，再次打开会报错的情况
         AndroidDeviceBridgeTool.executeCommand(iDevice, "rm -rf /data/local/tmp/minicap*");
         // 获取cpu信息
-        String cpuAbi = AndroidDeviceBridgeTool.getProperties(iDevice, "ro.product.cpu.abi");
+        String cpuAbi = AndroidDeviceFacts.getAbi(iDevice);
         // 获取安卓sdk版本
-        String androidSdkVersion = AndroidDeviceBridgeTool.getProperties(iDevice, "ro.build.version.sdk");
+        String androidSdkVersion = String.valueOf(AndroidDeviceFacts.getApiLevel(iDevice));
         // 查找对应文件并推送
         String miniCapFileName = AndroidDeviceBridgeTool.matchMiniCapFile(androidSdkVersion);
         File miniCapFile = new File("mini" + File.separator + cpuAbi + File.separator + miniCapFileName);
@@ -131,9 +130,13 @@ public class MiniCapLocalThread extends Thread {
         String size = AndroidDeviceBridgeTool.getScreenSize(iDevice);
         String vSize;
         int q = 80;
+        if (broadcaster != null) {
+            q = broadcaster.resolveQuality(q);
+            broadcaster.setCaptureQuality(q);
+        }
         if (pic.equals("fixed")) {
             vSize = size;
-            q = 40;
+            q = Math.min(q, 40);
         } else {
             vSize = "800x800";
         }
@@ -197,11 +200,11 @@ public class MiniCapLocalThread extends Thread {
         if (!suc && iDevice != null && man.equals("LGE")) {
             suc = runMiniCap("LGE");
         }
-        if (session != null && (!suc)) {
+        if (broadcaster != null && (!suc)) {
             JSONObject support = new JSONObject();
             support.put("msg", "support");
             support.put("text", "该设备不兼容MiniCap投屏！");
-            BytesTool.sendText(session, support.toJSONString());
+            broadcaster.sendText(support);
         }
     }
 
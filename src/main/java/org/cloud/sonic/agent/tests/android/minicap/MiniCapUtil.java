@@ -19,20 +19,18 @@ package org.cloud.sonic.agent.tests.android.minicap;
 
 import static org.cloud.sonic.agent.tests.android.AndroidTestTaskBootThread.ANDROID_TEST_TASK_BOOT_PRE;
 
-import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.cloud.sonic.agent.bridge.android.AndroidDeviceBridgeTool;
 import org.cloud.sonic.agent.tests.TaskManager;
 import org.cloud.sonic.agent.tests.android.AndroidTestTaskBootThread;
+import org.cloud.sonic.agent.tests.screen.ScreenBroadcaster;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.android.ddmlib.IDevice;
 
-import jakarta.websocket.Session;
-
 /**
  * @author ZhouYiXun
  * @des
@@ -41,35 +39,38 @@ import jakarta.websocket.Session;
 public class MiniCapUtil {
     private final Logger logger = LoggerFactory.getLogger(MiniCapUtil.class);
 
+    /**
+     * 待发送的帧最多保留两帧，多出来的旧帧会被丢弃
+     */
+    private static final int FRAME_QUEUE_SIZE = 2;
+
     public Thread start(
             String udId,
             AtomicReference<String[]> banner,
-            AtomicReference<List<byte[]>> imgList,
             String pic,
             int tor,
-            Session session) {
+            ScreenBroadcaster broadcaster) {
         // 这里的AndroidTestTaskBootThread仅作为data bean使用，不会启动
-        return start(udId, banner, imgList, pic, tor, session, new AndroidTestTaskBootThread().setUdId(udId));
+        return start(udId, banner, pic, tor, broadcaster, new AndroidTestTaskBootThread().setUdId(udId));
     }
 
     public Thread start(
             String udId,
             AtomicReference<String[]> banner,
-            AtomicReference<List<byte[]>> imgList,
             String pic,
             int tor,
-            Session session,
+            ScreenBroadcaster broadcaster,
             AndroidTestTaskBootThread androidTestTaskBootThread) {
         IDevice iDevice = AndroidDeviceBridgeTool.getIDeviceByUdId(udId);
         String key = androidTestTaskBootThread.formatThreadName(ANDROID_TEST_TASK_BOOT_PRE);
         int s;
         if (tor == -1) {
-            s = AndroidDeviceBridgeTool.getScreen(AndroidDeviceBridgeTool.getIDeviceByUdId(udId));
+            s = AndroidDeviceBridgeTool.getScreen(iDevice);
         } else {
             s = tor;
         }
         // 启动minicap服务
-        MiniCapLocalThread miniCapPro = new MiniCapLocalThread(iDevice, pic, s * 90, session,
+        MiniCapLocalThread miniCapPro = new MiniCapLocalThread(iDevice, pic, s * 90, broadcaster,
                 androidTestTaskBootThread);
         TaskManager.startChildThread(key, miniCapPro);
 
@@ -90,10 +91,10 @@ public class MiniCapUtil {
 
         // 启动输入流
         MiniCapInputSocketThread sendImg = new MiniCapInputSocketThread(
-                iDevice, new LinkedBlockingQueue<>(), miniCapPro, session);
+                iDevice, new ArrayBlockingQueue<>(FRAME_QUEUE_SIZE), banner, miniCapPro, broadcaster);
         // 启动输出流
         MiniCapOutputSocketThread miniCapOutputSocketThread = new MiniCapOutputSocketThread(
-                sendImg, banner, imgList, session, pic);
+                sendImg, banner, broadcaster);
 
         TaskManager.startChildThread(key, sendImg, miniCapOutputSocketThread);
 
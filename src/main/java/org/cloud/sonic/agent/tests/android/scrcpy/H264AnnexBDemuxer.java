@@ -0,0 +1,231 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.android.scrcpy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.cloud.sonic.agent.tools.ByteBufferPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * H.264 Annex-B流解析，按访问单元（一帧画面及其前面的SPS、PPS、SEI等）输出
+ * <p>
+ * socket数据读入环形缓冲，记录扫描位置和末尾连续0的个数，每个字节只扫描一次。
+ * 遇到新访问单元的第一个NAL时把上一个访问单元拷贝到池化的buffer中交给{@link AccessUnitListener}，
+ * 使用完毕后需归还到{@link #getPool()}。
+ */
+public class H264AnnexBDemuxer {
+
+    public interface AccessUnitListener {
+        /**
+         * @param accessUnit 含起始码的完整访问单元
+         * @param keyFrame   是否包含IDR帧
+         */
+        void onAccessUnit(ByteBuffer accessUnit, boolean keyFrame);
+    }
+
+    private final Logger log = LoggerFactory.getLogger(H264AnnexBDemuxer.class);
+
+    private static final int INITIAL_CAPACITY = 1024 * 1024;
+
+    /**
+     * 单个访问单元超过该大小时认为流已错乱，丢弃后重新同步
+     */
+    private static final int MAX_CAPACITY = 16 * 1024 * 1024;
+
+    private static final int NAL_SLICE = 1;
+
+    private static final int NAL_IDR = 5;
+
+    private final ByteBufferPool pool;
+
+    private final AccessUnitListener listener;
+
+    private byte[] ring = new byte[INITIAL_CAPACITY];
+
+    private int mask = INITIAL_CAPACITY - 1;
+
+    /**
+     * 以下位置均为流中的绝对偏移，取下标时与mask按位与
+     */
+    private long readPos = 0;
+
+    private long writePos = 0;
+
+    private long scanPos = 0;
+
+    private int zeros = 0;
+
+    /**
+     * 已找到起始码、等待NAL头的起始码位置，-1表示在扫描起始码
+     */
+    private long startCodePos = -1;
+
+    private long auStart = -1;
+
+    private boolean auHasVcl = false;
+
+    private boolean auKeyFrame = false;
+
+    public H264AnnexBDemuxer(int poolSize, AccessUnitListener listener) {
+        this.pool = new ByteBufferPool(poolSize, 64 * 1024);
+        this.listener = listener;
+    }
+
+    public ByteBufferPool getPool() {
+        return pool;
+    }
+
+    /**
+     * 从输入流读取一次并解析
+     *
+     * @return 读取的字节数，-1表示流已结束
+     */
+    public int read(InputStream inputStream) throws IOException {
+        if (writePos - readPos == ring.length) {
+            if (ring.length < MAX_CAPACITY) {
+                grow();
+            } else {
+                log.warn("h264 access unit larger than {} bytes, resync.", MAX_CAPACITY);
+                auStart = -1;
+                auHasVcl = false;
+                auKeyFrame = false;
+                startCodePos = -1;
+                zeros = 0;
+                readPos = scanPos = writePos;
+            }
+        }
+        int index = (int) (writePos & mask);
+        int free = ring.length - (int) (writePos - readPos);
+        int n = inputStream.read(ring, index, Math.min(free, ring.length - index));
+        if (n < 0) {
+            return -1;
+        }
+        writePos += n;
+        scan();
+        return n;
+    }
+
+    private void scan() {
+        while (true) {
+            if (startCodePos >= 0) {
+                // NAL头和slice头第一个字节都到了才能判断是否是新的一帧
+                long header = scanPos;
+                if (writePos < header + 2) {
+                    return;
+                }
+                onNal(ring[(int) (header & mask)] & 0x1f, ring[(int) ((header + 1) & mask)]);
+                startCodePos = -1;
+                scanPos = header + 1;
+                zeros = 0;
+            }
+            if (!findStartCode()) {
+                if (auStart < 0) {
+                    // 还没找到第一个起始码，之前的数据可以丢掉
+                    readPos = scanPos - zeros;
+                }
+                return;
+            }
+        }
+    }
+
+    private boolean findStartCode() {
+        byte[] buf = ring;
+        int m = mask;
+        long pos = scanPos;
+        long end = writePos;
+        int z = zeros;
+        while (pos < end) {
+            byte b = buf[(int) (pos & m)];
+            pos++;
+            if (b == 0) {
+                z++;
+            } else if (b == 1 && z >= 2) {
+                startCodePos = pos - 1 - Math.min(z, 3);
+                scanPos = pos;
+                zeros = 0;
+                return true;
+            } else {
+                z = 0;
+            }
+        }
+        scanPos = pos;
+        zeros = z;
+        return false;
+    }
+
+    private void onNal(int type, byte firstSliceByte) {
+        boolean vcl = type == NAL_SLICE || type == NAL_IDR;
+        if (auStart < 0) {
+            auStart = startCodePos;
+            readPos = auStart;
+        } else if (auHasVcl && startsAccessUnit(type, firstSliceByte)) {
+            emit(startCodePos);
+        }
+        auHasVcl |= vcl;
+        auKeyFrame |= type == NAL_IDR;
+    }
+
+    /**
+     * SEI、SPS、PPS、AUD及保留类型，或first_mb_in_slice为0的slice，表示新访问单元开始
+     */
+    static boolean startsAccessUnit(int type, byte firstSliceByte) {
+        if (type == NAL_SLICE || type == NAL_IDR) {
+            // first_mb_in_slice为ue(v)编码，值为0时第一位是1
+            return (firstSliceByte & 0x80) != 0;
+        }
+        return (type >= 6 && type <= 9) || (type >= 14 && type <= 18);
+    }
+
+    private void emit(long end) {
+        int length = (int) (end - auStart);
+        ByteBuffer accessUnit = pool.acquire(length);
+        long pos = auStart;
+        while (pos < end) {
+            int index = (int) (pos & mask);
+            int n = (int) Math.min(end - pos, ring.length - index);
+            accessUnit.put(ring, index, n);
+            pos += n;
+        }
+        accessUnit.flip();
+        boolean keyFrame = auKeyFrame;
+        auStart = end;
+        readPos = end;
+        auHasVcl = false;
+        auKeyFrame = false;
+        listener.onAccessUnit(accessUnit, keyFrame);
+    }
+
+    private void grow() {
+        byte[] grown = new byte[ring.length << 1];
+        int grownMask = grown.length - 1;
+        long pos = readPos;
+        while (pos < writePos) {
+            int from = (int) (pos & mask);
+            int to = (int) (pos & grownMask);
+            int n = (int) Math.min(writePos - pos, Math.min(ring.length - from, grown.length - to));
+            System.arraycopy(ring, from, grown, to, n);
+            pos += n;
+        }
+        ring = grown;
+        mask = grownMask;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.android.scrcpy;
+
+import java.util.Arrays;
+
+/**
+ * 从H.264 SPS中读出画面宽高（已减去裁剪区域）
+ */
+public class H264SpsReader {
+
+    private final byte[] data;
+
+    private int bit = 0;
+
+    private H264SpsReader(byte[] data) {
+        this.data = data;
+    }
+
+    /**
+     * @param sps 含NAL头的SPS，不含起始码
+     * @return {宽, 高}
+     */
+    public static int[] readSize(byte[] sps) {
+        H264SpsReader reader = new H264SpsReader(unescape(sps));
+        // NAL头
+        reader.skip(8);
+        int profile = reader.bits(8);
+        reader.skip(16);
+        reader.ue();
+        int chromaFormat = 1;
+        if (profile == 100 || profile == 110 || profile == 122 || profile == 244 || profile == 44
+                || profile == 83 || profile == 86 || profile == 118 || profile == 128
+                || profile == 138 || profile == 139 || profile == 134 || profile == 135) {
+            chromaFormat = reader.ue();
+            if (chromaFormat == 3) {
+                reader.skip(1);
+            }
+            reader.ue();
+            reader.ue();
+            reader.skip(1);
+            if (reader.bits(1) == 1) {
+                for (int i = 0; i < (chromaFormat == 3 ? 12 : 8); i++) {
+                    if (reader.bits(1) == 1) {
+                        reader.skipScalingList(i < 6 ? 16 : 64);
+                    }
+                }
+            }
+        }
+        reader.ue();
+        int pocType = reader.ue();
+        if (pocType == 0) {
+            reader.ue();
+        } else if (pocType == 1) {
+            reader.skip(1);
+            reader.se();
+            reader.se();
+            int cycle = reader.ue();
+            for (int i = 0; i < cycle; i++) {
+                reader.se();
+            }
+        }
+        reader.ue();
+        reader.skip(1);
+        int widthInMbs = reader.ue() + 1;
+        int heightInMapUnits = reader.ue() + 1;
+        int frameMbsOnly = reader.bits(1);
+        if (frameMbsOnly == 0) {
+            reader.skip(1);
+        }
+        reader.skip(1);
+        int width = widthInMbs * 16;
+        int height = (2 - frameMbsOnly) * heightInMapUnits * 16;
+        if (reader.bits(1) == 1) {
+            int left = reader.ue();
+            int right = reader.ue();
+            int top = reader.ue();
+            int bottom = reader.ue();
+            int cropX = chromaFormat == 1 || chromaFormat == 2 ? 2 : 1;
+            int cropY = (chromaFormat == 1 ? 2 : 1) * (2 - frameMbsOnly);
+            width -= (left + right) * cropX;
+            height -= (top + bottom) * cropY;
+        }
+        return new int[]{width, height};
+    }
+
+    /**
+     * 去掉防竞争字节00 00 03中的03
+     */
+    private static byte[] unescape(byte[] nal) {
+        byte[] out = new byte[nal.length];
+        int length = 0;
+        int zeros = 0;
+        for (byte b : nal) {
+            if (zeros >= 2 && b == 3) {
+                zeros = 0;
+                continue;
+            }
+            zeros = b == 0 ? zeros + 1 : 0;
+            out[length++] = b;
+        }
+        return Arrays.copyOf(out, length);
+    }
+
+    private void skipScalingList(int size) {
+        int last = 8;
+        int next = 8;
+        for (int i = 0; i < size; i++) {
+            if (next != 0) {
+                next = (last + se() + 256) % 256;
+            }
+            last = next == 0 ? last : next;
+        }
+    }
+
+    private void skip(int n) {
+        bit += n;
+    }
+
+    private int bits(int n) {
+        int value = 0;
+        for (int i = 0; i < n; i++) {
+            int index = bit >> 3;
+            if (index >= data.length) {
+                throw new IllegalArgumentException("sps truncated");
+            }
+            value = (value << 1) | ((data[index] >> (7 - (bit & 7))) & 1);
+            bit++;
+        }
+        return value;
+    }
+
+    private int ue() {
+        int zeros = 0;
+        while (bits(1) == 0) {
+            if (++zeros > 31) {
+                throw new IllegalArgumentException("invalid exp-golomb code");
+            }
+        }
+        return (1 << zeros) - 1 + bits(zeros);
+    }
+
+    private int se() {
+        int value = ue();
+        return (value & 1) == 1 ? (value + 1) / 2 : -(value / 2);
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.android.scrcpy;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 把scrcpy的H.264访问单元封装成fragmented MP4，不重新编码
+ * <p>
+ * 从关键帧中取SPS、PPS生成初始化段（ftyp+moov），之后每个访问单元生成一个moof+mdat片段，
+ * 可以直接追加给浏览器的MSE，也可以依次写入文件得到可播放的mp4。
+ * scrcpy没有发送帧时间戳，解码时间取访问单元到达agent的时间，时长沿用上一帧的间隔。
+ * SPS、PPS同时保留在关键帧的数据中，投屏重启分辨率变化后解码器也能跟上。
+ */
+public class Mp4Muxer {
+
+    private static final int TIMESCALE = 90000;
+
+    private static final int TRACK_ID = 1;
+
+    static final int NAL_SPS = 7;
+
+    private static final int NAL_PPS = 8;
+
+    private static final int NAL_AUD = 9;
+
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private static final int[] MATRIX = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+
+    private byte[] sps;
+
+    private byte[] pps;
+
+    private ByteBuffer initSegment;
+
+    private boolean waitingKeyFrame = true;
+
+    private int sequence = 0;
+
+    private long startNanos = -1;
+
+    private long lastNanos = -1;
+
+    private int lastDuration = TIMESCALE / 60;
+
+    /**
+     * @return 当前的初始化段（只读，使用时需duplicate），还没有收到SPS、PPS时为null；
+     * SPS、PPS变化后会生成新的对象，可以按引用判断是否需要重发
+     */
+    public ByteBuffer getInitSegment() {
+        return initSegment;
+    }
+
+    public static boolean isInitSegment(ByteBuffer segment) {
+        int p = segment.position();
+        return segment.remaining() >= 8 && segment.get(p + 4) == 'f' && segment.get(p + 5) == 't'
+                && segment.get(p + 6) == 'y' && segment.get(p + 7) == 'p';
+    }
+
+    /**
+     * @param fragment {@link #mux(ByteBuffer, boolean, long)}输出的片段
+     * @return 是否从关键帧开始，可以单独解码
+     */
+    public static boolean isSyncFragment(ByteBuffer fragment) {
+        // 片段结构固定，trun的sample_flags位于moof起始第96字节
+        int offset = fragment.position() + 96;
+        return fragment.limit() > offset + 4 && fragment.getInt(offset) == SAMPLE_FLAGS_SYNC;
+    }
+
+    /**
+     * 投屏重启后等待新的SPS、PPS和关键帧，时间轴继续累加，保证MSE中的时间不回退
+     */
+    public void reset() {
+        sps = null;
+        pps = null;
+        initSegment = null;
+        waitingKeyFrame = true;
+        lastNanos = -1;
+    }
+
+    /**
+     * @param accessUnit Annex-B格式的访问单元，不会改变其position
+     * @param nanos      System.nanoTime()
+     * @return moof+mdat片段，初始化段未就绪或还在等关键帧时返回null
+     */
+    public ByteBuffer mux(ByteBuffer accessUnit, boolean keyFrame, long nanos) {
+        int[] nals = splitNals(accessUnit);
+        int sampleSize = 0;
+        for (int i = 0; i < nals.length; i += 2) {
+            int type = accessUnit.get(nals[i]) & 0x1f;
+            if (type == NAL_SPS) {
+                updateSps(copy(accessUnit, nals[i], nals[i + 1]));
+            } else if (type == NAL_PPS) {
+                byte[] p = copy(accessUnit, nals[i], nals[i + 1]);
+                if (!Arrays.equals(p, pps)) {
+                    pps = p;
+                    initSegment = null;
+                }
+            }
+            if (type != NAL_AUD) {
+                sampleSize += 4 + nals[i + 1];
+            }
+        }
+        if (sps == null || pps == null) {
+            return null;
+        }
+        if (initSegment == null) {
+            initSegment = buildInitSegment();
+        }
+        if (waitingKeyFrame && !keyFrame) {
+            return null;
+        }
+        waitingKeyFrame = false;
+        if (startNanos < 0) {
+            startNanos = nanos;
+        }
+        if (lastNanos >= 0 && nanos > lastNanos) {
+            // 帧间隔限制在1ms到1s之间，避免卡顿后出现异常的时长
+            lastDuration = (int) Math.max(TIMESCALE / 1000,
+                    Math.min(TIMESCALE, (nanos - lastNanos) * TIMESCALE / 1_000_000_000L));
+        }
+        lastNanos = nanos;
+        long decodeTime = (nanos - startNanos) * TIMESCALE / 1_000_000_000L;
+        return buildFragment(accessUnit, nals, sampleSize, keyFrame, decodeTime);
+    }
+
+    private void updateSps(byte[] s) {
+        if (!Arrays.equals(s, sps)) {
+            sps = s;
+            initSegment = null;
+        }
+    }
+
+    /**
+     * @return 依次为每个NAL（不含起始码）的起始位置和长度
+     */
+    static int[] splitNals(ByteBuffer accessUnit) {
+        int start = accessUnit.position();
+        int end = accessUnit.limit();
+        int[] nals = new int[16];
+        int count = 0;
+        int nalStart = -1;
+        int zeros = 0;
+        for (int i = start; i < end; i++) {
+            byte b = accessUnit.get(i);
+            if (b == 0) {
+                zeros++;
+                continue;
+            }
+            if (b == 1 && zeros >= 2) {
+                if (nalStart >= 0) {
+                    if (count + 2 > nals.length) {
+                        nals = Arrays.copyOf(nals, nals.length * 2);
+                    }
+                    nals[count++] = nalStart;
+                    nals[count++] = i - Math.min(zeros, 3) - nalStart;
+                }
+                nalStart = i + 1;
+            }
+            zeros = 0;
+        }
+        if (nalStart >= 0 && nalStart < end) {
+            if (count + 2 > nals.length) {
+                nals = Arrays.copyOf(nals, nals.length + 2);
+            }
+            nals[count++] = nalStart;
+            nals[count++] = end - nalStart;
+        }
+        return Arrays.copyOf(nals, count);
+    }
+
+    private static byte[] copy(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        buffer.duplicate().position(offset).get(bytes);
+        return bytes;
+    }
+
+    private ByteBuffer buildFragment(ByteBuffer accessUnit, int[] nals, int sampleSize, boolean keyFrame,
+            long decodeTime) {
+        int moofSize = 8 + 16 + (8 + 16 + 20 + 32);
+        ByteBuffer out = ByteBuffer.allocate(moofSize + 8 + sampleSize);
+        int moof = begin(out, "moof");
+        int mfhd = fullBox(out, "mfhd", 0, 0);
+        out.putInt(++sequence);
+        end(out, mfhd);
+        int traf = begin(out, "traf");
+        // default-base-is-moof
+        int tfhd = fullBox(out, "tfhd", 0, 0x020000);
+        out.putInt(TRACK_ID);
+        end(out, tfhd);
+        int tfdt = fullBox(out, "tfdt", 1, 0);
+        out.putLong(decodeTime);
+        end(out, tfdt);
+        // data-offset、sample-duration、sample-size、sample-flags
+        int trun = fullBox(out, "trun", 0, 0x000701);
+        out.putInt(1);
+        out.putInt(moofSize + 8);
+        out.putInt(lastDuration);
+        out.putInt(sampleSize);
+        out.putInt(keyFrame ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+        end(out, trun);
+        end(out, traf);
+        end(out, moof);
+        int mdat = begin(out, "mdat");
+        for (int i = 0; i < nals.length; i += 2) {
+            if ((accessUnit.get(nals[i]) & 0x1f) == NAL_AUD) {
+                continue;
+            }
+            // Annex-B起始码换成4字节长度
+            out.putInt(nals[i + 1]);
+            ByteBuffer nal = accessUnit.duplicate();
+            nal.limit(nals[i] + nals[i + 1]).position(nals[i]);
+            out.put(nal);
+        }
+        end(out, mdat);
+        out.flip();
+        return out;
+    }
+
+    private ByteBuffer buildInitSegment() {
+        int[] size = H264SpsReader.readSize(sps);
+        int width = size[0];
+        int height = size[1];
+        ByteBuffer out = ByteBuffer.allocate(1024 + sps.length + pps.length);
+        int ftyp = begin(out, "ftyp");
+        out.put(ascii("isom"));
+        out.putInt(0x200);
+        out.put(ascii("isomiso6avc1mp41"));
+        end(out, ftyp);
+
+        int moov = begin(out, "moov");
+        int mvhd = fullBox(out, "mvhd", 0, 0);
+        out.putInt(0).putInt(0).putInt(1000).putInt(0);
+        out.putInt(0x00010000).putShort((short) 0x0100).putShort((short) 0).putLong(0);
+        putMatrix(out);
+        out.put(new byte[24]);
+        out.putInt(TRACK_ID + 1);
+        end(out, mvhd);
+
+        int trak = begin(out, "trak");
+        // track_enabled、track_in_movie
+        int tkhd = fullBox(out, "tkhd", 0, 0x000003);
+        out.putInt(0).putInt(0).putInt(TRACK_ID).putInt(0).putInt(0);
+        out.putLong(0).putInt(0).putShort((short) 0).putShort((short) 0);
+        putMatrix(out);
+        out.putInt(width << 16).putInt(height << 16);
+        end(out, tkhd);
+
+        int mdia = begin(out, "mdia");
+        int mdhd = fullBox(out, "mdhd", 0, 0);
+        // language: und
+        out.putInt(0).putInt(0).putInt(TIMESCALE).putInt(0).putShort((short) 0x55c4).putShort((short) 0);
+        end(out, mdhd);
+        int hdlr = fullBox(out, "hdlr", 0, 0);
+        out.putInt(0).put(ascii("vide")).put(new byte[12]).put(ascii("VideoHandler")).put((byte) 0);
+        end(out, hdlr);
+
+        int minf = begin(out, "minf");
+        int vmhd = fullBox(out, "vmhd", 0, 1);
+        out.putLong(0);
+        end(out, vmhd);
+        int dinf = begin(out, "dinf");
+        int dref = fullBox(out, "dref", 0, 0);
+        out.putInt(1);
+        // 媒体数据在同一文件中
+        int url = fullBox(out, "url ", 0, 1);
+        end(out, url);
+        end(out, dref);
+        end(out, dinf);
+
+        int stbl = begin(out, "stbl");
+        int stsd = fullBox(out, "stsd", 0, 0);
+        out.putInt(1);
+        int avc1 = begin(out, "avc1");
+        out.put(new byte[6]).putShort((short) 1);
+        out.put(new byte[16]);
+        out.putShort((short) width).putShort((short) height);
+        out.putInt(0x00480000).putInt(0x00480000).putInt(0).putShort((short) 1);
+        out.put(new byte[32]);
+        out.putShort((short) 0x0018).putShort((short) -1);
+        int avcC = begin(out, "avcC");
+        out.put((byte) 1).put(sps[1]).put(sps[2]).put(sps[3]);
+        // 4字节长度前缀，1个SPS，1个PPS
+        out.put((byte) 0xFF).put((byte) 0xE1);
+        out.putShort((short) sps.length).put(sps);
+        out.put((byte) 1).putShort((short) pps.length).put(pps);
+        end(out, avcC);
+        end(out, avc1);
+        end(out, stsd);
+        for (String empty : new String[]{"stts", "stsc", "stco"}) {
+            int box = fullBox(out, empty, 0, 0);
+            out.putInt(0);
+            end(out, box);
+        }
+        int stsz = fullBox(out, "stsz", 0, 0);
+        out.putInt(0).putInt(0);
+        end(out, stsz);
+        end(out, stbl);
+        end(out, minf);
+        end(out, mdia);
+        end(out, trak);
+
+        int mvex = begin(out, "mvex");
+        int trex = fullBox(out, "trex", 0, 0);
+        out.putInt(TRACK_ID).putInt(1).putInt(0).putInt(0).putInt(0);
+        end(out, trex);
+        end(out, mvex);
+        end(out, moov);
+        out.flip();
+        return out.asReadOnlyBuffer();
+    }
+
+    private static void putMatrix(ByteBuffer out) {
+        for (int value : MATRIX) {
+            out.putInt(value);
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static int begin(ByteBuffer out, String type) {
+        int start = out.position();
+        out.putInt(0).put(ascii(type));
+        return start;
+    }
+
+    private static int fullBox(ByteBuffer out, String type, int version, int flags) {
+        int start = begin(out, type);
+        out.putInt((version << 24) | flags);
+        return start;
+    }
+
+    private static void end(ByteBuffer out, int start) {
+        out.putInt(start, out.position() - start);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.android.scrcpy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+import org.cloud.sonic.agent.tests.handlers.TouchGesture;
+
+/**
+ * scrcpy控制socket，以二进制消息注入触摸事件
+ * <p>
+ * 每条触摸消息固定28字节：类型、动作、指针id、坐标、画面宽高、压力、按键。
+ * 坐标以当前视频画面为准，画面宽高必须与设备端一致，否则事件会被scrcpy丢弃，
+ * 因此旋转后需要根据新的SPS更新尺寸。
+ */
+public class ScrcpyControlChannel implements Closeable {
+
+    static final int TYPE_INJECT_TOUCH_EVENT = 2;
+
+    static final int TOUCH_MESSAGE_SIZE = 28;
+
+    private static final long POINTER_ID = 0;
+
+    private static final int PRESSURE_MAX = 0xffff;
+
+    private static final int BATCH_SIZE = 64 * TouchGesture.MAX_EVENT_BYTES;
+
+    private final WritableByteChannel channel;
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BATCH_SIZE);
+
+    private volatile int width;
+
+    private volatile int height;
+
+    private byte[] sps;
+
+    public ScrcpyControlChannel(WritableByteChannel channel, int width, int height) {
+        this.channel = channel;
+        this.width = width;
+        this.height = height;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * 关键帧中的SPS变化时（如屏幕旋转）更新画面尺寸
+     */
+    public void updateScreenSize(ByteBuffer accessUnit) {
+        int[] nals = Mp4Muxer.splitNals(accessUnit);
+        for (int i = 0; i < nals.length; i += 2) {
+            if ((accessUnit.get(nals[i]) & 0x1f) != Mp4Muxer.NAL_SPS) {
+                continue;
+            }
+            byte[] s = new byte[nals[i + 1]];
+            accessUnit.duplicate().position(nals[i]).get(s);
+            if (!Arrays.equals(s, sps)) {
+                sps = s;
+                int[] size = H264SpsReader.readSize(s);
+                width = size[0];
+                height = size[1];
+            }
+            return;
+        }
+    }
+
+    void encodeTouch(ByteBuffer out, int action, int x, int y) {
+        out.put((byte) TYPE_INJECT_TOUCH_EVENT)
+                .put((byte) action)
+                .putLong(POINTER_ID)
+                .putInt(x)
+                .putInt(y)
+                .putShort((short) width)
+                .putShort((short) height)
+                .putShort((short) (action == TouchGesture.ACTION_UP ? 0 : PRESSURE_MAX))
+                .putInt(0);
+    }
+
+    private void writeFully(ByteBuffer batch) throws IOException {
+        while (batch.hasRemaining()) {
+            channel.write(batch);
+        }
+    }
+
+    public synchronized void touch(int action, int x, int y) throws IOException {
+        buffer.clear();
+        encodeTouch(buffer, action, x, y);
+        buffer.flip();
+        writeFully(buffer);
+    }
+
+    /**
+     * @return 每个事件实际写出的时间，相对手势开始
+     */
+    public synchronized long[] perform(TouchGesture gesture) throws IOException {
+        return gesture.play(buffer, this::encodeTouch, this::writeFully);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
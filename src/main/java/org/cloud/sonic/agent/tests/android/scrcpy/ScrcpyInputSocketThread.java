@@ -17,16 +17,19 @@
  */
 package org.cloud.sonic.agent.tests.android.scrcpy;
 
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.concurrent.BlockingQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 
 import org.cloud.sonic.agent.bridge.android.AndroidDeviceBridgeTool;
-import org.cloud.sonic.agent.common.maps.ScreenMap;
 import org.cloud.sonic.agent.tests.android.AndroidTestTaskBootThread;
-import org.cloud.sonic.agent.tools.BytesTool;
+import org.cloud.sonic.agent.tests.handlers.AndroidTouchHandler;
+import org.cloud.sonic.agent.tests.screen.ScreenBroadcaster;
+import org.cloud.sonic.agent.tools.ByteBufferPool;
 import org.cloud.sonic.agent.tools.PortTool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,11 +37,10 @@ import org.slf4j.LoggerFactory;
 import com.alibaba.fastjson.JSONObject;
 import com.android.ddmlib.IDevice;
 
-import jakarta.websocket.Session;
-
 /**
  * scrcpy socket线程
- * 通过端口转发，将设备视频流转发到此Socket
+ * 通过端口转发，将设备视频流转发到此Socket，按访问单元拆分后交给投屏分发。
+ * 开启控制通道时，视频socket之后再连接控制socket，投屏期间触摸事件经控制socket注入
  */
 public class ScrcpyInputSocketThread extends Thread {
 
@@ -46,22 +48,34 @@ public class ScrcpyInputSocketThread extends Thread {
 
     public final static String ANDROID_INPUT_SOCKET_PRE = "android-scrcpy-input-socket-task-%s-%s-%s";
 
+    /**
+     * 发送中的访问单元之外，还要容纳投屏分发缓存的GOP（每个缓冲至少64KB）
+     */
+    private static final int AU_POOL_SIZE = 16 + ScreenBroadcaster.GOP_CACHE_LIMIT / (64 * 1024);
+
+    /**
+     * 连接检测字节 + 设备名64字节 + 宽高各2字节
+     */
+    private static final int DEVICE_META_SIZE = 1 + 64 + 2 + 2;
+
     private IDevice iDevice;
 
-    private BlockingQueue<byte[]> dataQueue;
+    private final H264AnnexBDemuxer demuxer;
 
     private ScrcpyLocalThread scrcpyLocalThread;
 
     private AndroidTestTaskBootThread androidTestTaskBootThread;
 
-    private Session session;
+    private ScreenBroadcaster broadcaster;
+
+    private volatile ScrcpyControlChannel control;
 
-    public ScrcpyInputSocketThread(IDevice iDevice, BlockingQueue<byte[]> dataQueue,
-            ScrcpyLocalThread scrcpyLocalThread, Session session) {
+    public ScrcpyInputSocketThread(IDevice iDevice, ScrcpyLocalThread scrcpyLocalThread,
+            ScreenBroadcaster broadcaster) {
         this.iDevice = iDevice;
-        this.dataQueue = dataQueue;
         this.scrcpyLocalThread = scrcpyLocalThread;
-        this.session = session;
+        this.broadcaster = broadcaster;
+        this.demuxer = new H264AnnexBDemuxer(AU_POOL_SIZE, this::onAccessUnit);
         this.androidTestTaskBootThread = scrcpyLocalThread.getAndroidTestTaskBootThread();
         this.setDaemon(false);
         this.setName(androidTestTaskBootThread.formatThreadName(ANDROID_INPUT_SOCKET_PRE));
@@ -71,8 +85,8 @@ public class ScrcpyInputSocketThread extends Thread {
         return iDevice;
     }
 
-    public BlockingQueue<byte[]> getDataQueue() {
-        return dataQueue;
+    public ByteBufferPool getPool() {
+        return demuxer.getPool();
     }
 
     public ScrcpyLocalThread getScrcpyLocalThread() {
@@ -83,12 +97,21 @@ public class ScrcpyInputSocketThread extends Thread {
         return androidTestTaskBootThread;
     }
 
-    public Session getSession() {
-        return session;
+    public ScreenBroadcaster getBroadcaster() {
+        return broadcaster;
     }
 
-    private static final int BUFFER_SIZE = 1024 * 1024 * 10;
-    private static final int READ_BUFFER_SIZE = 1024 * 5;
+    private void onAccessUnit(ByteBuffer accessUnit, boolean keyFrame) {
+        if (keyFrame && control != null) {
+            control.updateScreenSize(accessUnit);
+        }
+        if (broadcaster == null) {
+            demuxer.getPool().release(accessUnit);
+            return;
+        }
+        // 各session发送完成后归还到缓冲池
+        broadcaster.publishAccessUnit(accessUnit, keyFrame, demuxer.getPool()::release);
+    }
 
     @Override
     public void run() {
@@ -96,44 +119,51 @@ public class ScrcpyInputSocketThread extends Thread {
         AndroidDeviceBridgeTool.forward(iDevice, scrcpyPort, "scrcpy");
         Socket videoSocket = new Socket();
         InputStream inputStream = null;
+        SocketChannel controlSocket = null;
+        String udId = iDevice.getSerialNumber();
         try {
             videoSocket.connect(new InetSocketAddress("localhost", scrcpyPort));
             inputStream = videoSocket.getInputStream();
+            // 服务端接受视频连接后等待控制连接，之后才发送设备信息
+            if (scrcpyLocalThread.isControl()) {
+                controlSocket = SocketChannel.open(new InetSocketAddress("localhost", scrcpyPort));
+            }
+            byte[] meta = new byte[DEVICE_META_SIZE];
+            new DataInputStream(inputStream).readFully(meta);
+            if (controlSocket != null) {
+                control = new ScrcpyControlChannel(controlSocket, ((meta[65] & 0xff) << 8) | (meta[66] & 0xff),
+                        ((meta[67] & 0xff) << 8) | (meta[68] & 0xff));
+                AndroidTouchHandler.attachScrcpyControl(udId, control);
+            }
             if (videoSocket.isConnected()) {
                 String sizeTotal = AndroidDeviceBridgeTool.getScreenSize(iDevice);
                 JSONObject size = new JSONObject();
                 size.put("msg", "size");
                 size.put("width", sizeTotal.split("x")[0]);
                 size.put("height", sizeTotal.split("x")[1]);
-                BytesTool.sendText(session, size.toJSONString());
+                if (broadcaster != null) {
+                    broadcaster.sendText(size);
+                }
             }
-            int readLength;
-            int naLuIndex;
-            int bufferLength = 0;
-            byte[] buffer = new byte[BUFFER_SIZE];
             while (scrcpyLocalThread.isAlive()) {
-                readLength = inputStream.read(buffer, bufferLength, READ_BUFFER_SIZE);
-                if (readLength > 0) {
-                    bufferLength += readLength;
-                    for (int i = 5; i < bufferLength - 4; i++) {
-                        if (buffer[i] == 0x00 &&
-                                buffer[i + 1] == 0x00 &&
-                                buffer[i + 2] == 0x00 &&
-                                buffer[i + 3] == 0x01) {
-                            naLuIndex = i;
-                            byte[] naluBuffer = new byte[naLuIndex];
-                            System.arraycopy(buffer, 0, naluBuffer, 0, naLuIndex);
-                            dataQueue.add(naluBuffer);
-                            bufferLength -= naLuIndex;
-                            System.arraycopy(buffer, naLuIndex, buffer, 0, bufferLength);
-                            i = 5;
-                        }
-                    }
+                if (demuxer.read(inputStream) < 0) {
+                    break;
                 }
             }
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
+            if (control != null) {
+                AndroidTouchHandler.detachScrcpyControl(udId, control);
+            }
+            if (controlSocket != null) {
+                try {
+                    controlSocket.close();
+                    log.info("scrcpy control socket closed.");
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
             if (scrcpyLocalThread.isAlive()) {
                 scrcpyLocalThread.interrupt();
                 log.info("scrcpy thread closed.");
@@ -156,8 +186,8 @@ public class ScrcpyInputSocketThread extends Thread {
             }
         }
         AndroidDeviceBridgeTool.removeForward(iDevice, scrcpyPort, "scrcpy");
-        if (session != null) {
-            ScreenMap.getMap().remove(session);
+        if (broadcaster != null) {
+            broadcaster.captureStopped(scrcpyLocalThread);
         }
     }
 }
@@ -17,14 +17,13 @@
  */
 package org.cloud.sonic.agent.tests.android.scrcpy;
 
-import static org.cloud.sonic.agent.tools.BytesTool.sendText;
-
 import java.io.File;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.cloud.sonic.agent.tests.android.AndroidTestTaskBootThread;
+import org.cloud.sonic.agent.tests.screen.ScreenBroadcaster;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,8 +31,6 @@ import com.alibaba.fastjson.JSONObject;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.IShellOutputReceiver;
 
-import jakarta.websocket.Session;
-
 /**
  * 启动scrcpy等服务的线程
  */
@@ -47,7 +44,7 @@ public class ScrcpyLocalThread extends Thread {
 
     private int finalC;
 
-    private Session session;
+    private ScreenBroadcaster broadcaster;
 
     private String udId;
 
@@ -55,11 +52,24 @@ public class ScrcpyLocalThread extends Thread {
 
     private Semaphore isFinish = new Semaphore(0);
 
-    public ScrcpyLocalThread(IDevice iDevice, int finalC, Session session,
+    private final boolean control;
+
+    /**
+     * 没有降载时的帧率上限
+     */
+    private static final int MAX_FPS = 60;
+
+    public ScrcpyLocalThread(IDevice iDevice, int finalC, ScreenBroadcaster broadcaster,
             AndroidTestTaskBootThread androidTestTaskBootThread) {
+        this(iDevice, finalC, broadcaster, androidTestTaskBootThread, true);
+    }
+
+    public ScrcpyLocalThread(IDevice iDevice, int finalC, ScreenBroadcaster broadcaster,
+            AndroidTestTaskBootThread androidTestTaskBootThread, boolean control) {
         this.iDevice = iDevice;
+        this.control = control;
         this.finalC = finalC;
-        this.session = session;
+        this.broadcaster = broadcaster;
         this.udId = iDevice.getSerialNumber();
         this.androidTestTaskBootThread = androidTestTaskBootThread;
 
@@ -75,8 +85,8 @@ public class ScrcpyLocalThread extends Thread {
         return finalC;
     }
 
-    public Session getSession() {
-        return session;
+    public ScreenBroadcaster getBroadcaster() {
+        return broadcaster;
     }
 
     public String getUdId() {
@@ -91,6 +101,10 @@ public class ScrcpyLocalThread extends Thread {
         return isFinish;
     }
 
+    public boolean isControl() {
+        return control;
+    }
+
     @Override
     public void run() {
         File scrcpyServerFile = new File("plugins/sonic-android-scrcpy.jar");
@@ -100,9 +114,11 @@ public class ScrcpyLocalThread extends Thread {
             e.printStackTrace();
         }
         AtomicBoolean isRetry = new AtomicBoolean(false);
+        // 设备降载时在编码端限制帧率，上限变化后由投屏分发重启
+        int maxFps = broadcaster == null ? MAX_FPS : Math.min(MAX_FPS, broadcaster.getFpsCap());
         try {
             iDevice.executeShellCommand(
-                    "CLASSPATH=/data/local/tmp/sonic-android-scrcpy.jar app_process / com.genymobile.scrcpy.Server 1.23 log_level=info max_size=0 max_fps=60 tunnel_forward=true send_frame_meta=false control=false show_touches=false stay_awake=false power_off_on_close=false clipboard_autosync=false",
+                    "CLASSPATH=/data/local/tmp/sonic-android-scrcpy.jar app_process / com.genymobile.scrcpy.Server 1.23 log_level=info max_size=0 max_fps=" + maxFps + " tunnel_forward=true send_frame_meta=false control=" + control + " show_touches=false stay_awake=false power_off_on_close=false clipboard_autosync=false",
                     new IShellOutputReceiver() {
                         @Override
                         public void addOutput(byte[] bytes, int i, int i1) {
@@ -116,7 +132,9 @@ public class ScrcpyLocalThread extends Thread {
                                 JSONObject support = new JSONObject();
                                 support.put("msg", "support");
                                 support.put("text", "scrcpy服务启动失败！");
-                                sendText(session, support.toJSONString());
+                                if (broadcaster != null) {
+                                    broadcaster.sendText(support);
+                                }
                             }
                         }
 
@@ -19,43 +19,53 @@ package org.cloud.sonic.agent.tests.android.scrcpy;
 
 import static org.cloud.sonic.agent.tests.android.AndroidTestTaskBootThread.ANDROID_TEST_TASK_BOOT_PRE;
 
-import java.util.concurrent.LinkedBlockingQueue;
-
 import org.cloud.sonic.agent.bridge.android.AndroidDeviceBridgeTool;
 import org.cloud.sonic.agent.tests.TaskManager;
 import org.cloud.sonic.agent.tests.android.AndroidTestTaskBootThread;
+import org.cloud.sonic.agent.tests.screen.ScreenBroadcaster;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.android.ddmlib.IDevice;
 
-import jakarta.websocket.Session;
-
 public class ScrcpyServerUtil {
     private final Logger logger = LoggerFactory.getLogger(ScrcpyServerUtil.class);
 
     public Thread start(
             String udId,
             int tor,
-            Session session) {
-        return start(udId, tor, session, new AndroidTestTaskBootThread().setUdId(udId));
+            ScreenBroadcaster broadcaster) {
+        return start(udId, tor, broadcaster, new AndroidTestTaskBootThread().setUdId(udId));
     }
 
     public Thread start(
             String udId,
             int tor,
-            Session session,
+            ScreenBroadcaster broadcaster,
             AndroidTestTaskBootThread androidTestTaskBootThread) {
+        return start(udId, tor, broadcaster, androidTestTaskBootThread, true);
+    }
+
+    /**
+     * @param control 是否开启控制通道，开启后触摸事件经scrcpy注入
+     */
+    public Thread start(
+            String udId,
+            int tor,
+            ScreenBroadcaster broadcaster,
+            AndroidTestTaskBootThread androidTestTaskBootThread,
+            boolean control) {
         IDevice iDevice = AndroidDeviceBridgeTool.getIDeviceByUdId(udId);
         String key = androidTestTaskBootThread.formatThreadName(ANDROID_TEST_TASK_BOOT_PRE);
         int s;
         if (tor == -1) {
-            s = AndroidDeviceBridgeTool.getScreen(AndroidDeviceBridgeTool.getIDeviceByUdId(udId));
+            s = AndroidDeviceBridgeTool.getScreen(iDevice);
         } else {
             s = tor;
         }
         // 启动scrcpy服务
-        ScrcpyLocalThread scrcpyThread = new ScrcpyLocalThread(iDevice, s, session, androidTestTaskBootThread);
+        ScrcpyLocalThread scrcpyThread = new ScrcpyLocalThread(iDevice, s, broadcaster, androidTestTaskBootThread,
+                control);
         TaskManager.startChildThread(key, scrcpyThread);
 
         // 等待启动
@@ -72,13 +82,10 @@ public class ScrcpyServerUtil {
                 break;
             }
         }
-        // 启动输入流
+        // 启动输入流，访问单元直接交给投屏分发异步发送
         ScrcpyInputSocketThread scrcpyInputSocketThread = new ScrcpyInputSocketThread(iDevice,
-                new LinkedBlockingQueue<>(), scrcpyThread, session);
-        // 启动输出流
-        ScrcpyOutputSocketThread scrcpyOutputSocketThread = new ScrcpyOutputSocketThread(scrcpyInputSocketThread,
-                session);
-        TaskManager.startChildThread(key, scrcpyInputSocketThread, scrcpyOutputSocketThread);
+                scrcpyThread, broadcaster);
+        TaskManager.startChildThread(key, scrcpyInputSocketThread);
         return scrcpyThread; // server线程
     }
 
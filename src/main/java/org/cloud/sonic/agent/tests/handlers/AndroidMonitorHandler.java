@@ -22,7 +22,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 import org.cloud.sonic.agent.bridge.android.AndroidDeviceBridgeTool;
-import org.cloud.sonic.agent.common.maps.AndroidDeviceManagerMap;
+import org.cloud.sonic.agent.bridge.android.AndroidDeviceFacts;
 
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.IShellOutputReceiver;
@@ -52,7 +52,7 @@ public class AndroidMonitorHandler {
             String res = new String(data, offset, length).replaceAll("\n", "").replaceAll("\r", "");
             if (res.length() > 0) {
                 log.info(iDevice.getSerialNumber() + " rotation: " + res);
-                AndroidDeviceManagerMap.getRotationMap().put(iDevice.getSerialNumber(), Integer.parseInt(res));
+                AndroidDeviceFacts.onRotation(iDevice, Integer.parseInt(res));
                 receiver.output(res);
             }
         }
@@ -99,5 +99,6 @@ public class AndroidMonitorHandler {
             rotationMap.get(iDevice.getSerialNumber()).interrupt();
         }
         rotationMap.remove(iDevice.getSerialNumber());
+        AndroidDeviceFacts.onMonitorStopped(iDevice);
     }
 }
@@ -23,6 +23,7 @@ import static org.testng.Assert.assertNotEquals;
 import static org.testng.Assert.assertTrue;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
@@ -43,12 +44,13 @@ import org.cloud.sonic.agent.common.enums.SonicEnum;
 import org.cloud.sonic.agent.common.interfaces.ErrorType;
 import org.cloud.sonic.agent.common.interfaces.ResultDetailStatus;
 import org.cloud.sonic.agent.common.interfaces.StepType;
-import org.cloud.sonic.agent.common.maps.AndroidDeviceManagerMap;
 import org.cloud.sonic.agent.common.maps.AndroidThreadMap;
+import org.cloud.sonic.agent.common.maps.CaptureStoreMap;
 import org.cloud.sonic.agent.common.maps.ChromeDriverMap;
 import org.cloud.sonic.agent.common.models.HandleContext;
 import org.cloud.sonic.agent.tests.LogUtil;
 import org.cloud.sonic.agent.tests.RunStepThread;
+import org.cloud.sonic.agent.tests.screen.FrameCaptureStore;
 import org.cloud.sonic.agent.tests.script.GroovyScriptImpl;
 import org.cloud.sonic.agent.tests.script.PythonScriptImpl;
 import org.cloud.sonic.agent.tests.script.ScriptRunner;
@@ -57,6 +59,7 @@ import org.cloud.sonic.agent.tools.PortTool;
 import org.cloud.sonic.agent.tools.SpringTool;
 import org.cloud.sonic.agent.tools.file.DownloadTool;
 import org.cloud.sonic.agent.tools.file.UploadTools;
+import org.cloud.sonic.agent.tools.metrics.MetricsRegistry;
 import org.cloud.sonic.driver.android.AndroidDriver;
 import org.cloud.sonic.driver.android.enmus.AndroidSelector;
 import org.cloud.sonic.driver.android.service.AndroidElement;
@@ -234,6 +237,10 @@ public class AndroidStepHandler {
         log.sendStepLog(StepType.INFO, "设备非空闲状态！第" + waitCount + "次等待连接...", "");
     }
 
+    public void waitCooling(int waitCount) {
+        log.sendStepLog(StepType.WARN, "设备温度偏高！第" + waitCount + "次等待降温...", "");
+    }
+
     public void waitDeviceTimeOut() {
         log.sendStepLog(StepType.ERROR, "等待设备超时！测试跳过！", "");
         // 测试标记为异常
@@ -1359,6 +1366,25 @@ public class AndroidStepHandler {
         }
     }
 
+    /**
+     * 上传失败前最近一段录像，没有在录像时忽略；由录像线程调用，每个用例最多一次
+     */
+    public void errorRecord() {
+        FrameCaptureStore store = CaptureStoreMap.getMap().get(log.udId);
+        if (store == null) {
+            return;
+        }
+        String fileName = Calendar.getInstance().getTimeInMillis() + "_" + log.udId.substring(0, 4) + ".mp4";
+        File clip = new File("test-output/record" + File.separator + fileName);
+        try {
+            if (store.writeClip(clip)) {
+                log.sendRecordLog(true, fileName, UploadTools.uploadPatchRecord(clip));
+            }
+        } catch (IOException e) {
+            log.sendStepLog(StepType.ERROR, "导出录像失败", e.getMessage());
+        }
+    }
+
     public void stepScreen(HandleContext handleContext) {
         handleContext.setStepDes("获取截图");
         handleContext.setDetail("");
@@ -1984,10 +2010,7 @@ public class AndroidStepHandler {
 
     public int[] getTheRealCoordinatesOfPoco(double pocoX, double pocoY) {
         int[] pos = new int[2];
-        Integer screenOrientation = AndroidDeviceManagerMap.getRotationMap().get(iDevice.getSerialNumber());
-        if (screenOrientation == null) {
-            screenOrientation = AndroidDeviceBridgeTool.getOrientation(iDevice);
-        }
+        int screenOrientation = AndroidDeviceBridgeTool.getOrientation(iDevice);
 
         int width = screenWindowPosition[2], height = screenWindowPosition[3];
 
@@ -2436,10 +2459,7 @@ public class AndroidStepHandler {
 
     private int[] computedPoint(double x, double y) {
         if (x <= 1 && y <= 1) {
-            Integer screenOrientation = AndroidDeviceManagerMap.getRotationMap().get(iDevice.getSerialNumber());
-            if (screenOrientation == null) {
-                screenOrientation = AndroidDeviceBridgeTool.getOrientation(iDevice);
-            }
+            int screenOrientation = AndroidDeviceBridgeTool.getOrientation(iDevice);
             String size = AndroidDeviceBridgeTool.getScreenSize(iDevice);
             String[] winSize = size.split("x");
             if (screenOrientation == 1 || screenOrientation == 3) {
@@ -2534,8 +2554,22 @@ public class AndroidStepHandler {
         if (CollectionUtils.isEmpty(step)) {
             step = stepJSON;
         }
-        JSONArray eleList = step.getJSONArray("elements");
         Thread.sleep(holdTime);
+        long start = System.nanoTime();
+        String result = "fail";
+        try {
+            runStepByType(step, handleContext);
+            if (handleContext.getE() == null) {
+                result = "pass";
+            }
+        } finally {
+            MetricsRegistry.histogram("sonic_agent_step_seconds", "Time spent running test steps",
+                    "platform", "android", "step", step.getString("stepType"), "result", result).recordSince(start);
+        }
+    }
+
+    private void runStepByType(JSONObject step, HandleContext handleContext) throws Throwable {
+        JSONArray eleList = step.getJSONArray("elements");
         switch (step.getString("stepType")) {
             case "switchTouchMode" -> switchTouchMode(handleContext, step.getString("content"));
             case "appReset" -> appReset(handleContext, step.getString("text"));
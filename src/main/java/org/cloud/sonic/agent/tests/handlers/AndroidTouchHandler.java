@@ -20,18 +20,18 @@ package org.cloud.sonic.agent.tests.handlers;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
-import java.util.function.BiFunction;
 
 import org.cloud.sonic.agent.bridge.android.AndroidDeviceBridgeTool;
 import org.cloud.sonic.agent.common.enums.AndroidKey;
 import org.cloud.sonic.agent.common.maps.AndroidDeviceManagerMap;
 import org.cloud.sonic.agent.common.maps.HandlerMap;
+import org.cloud.sonic.agent.tests.android.scrcpy.ScrcpyControlChannel;
 import org.cloud.sonic.agent.tools.PortTool;
 import org.cloud.sonic.driver.common.tool.SonicRespException;
 
@@ -45,9 +45,13 @@ public class AndroidTouchHandler {
     private static final Map<String, OutputStream> outputMap = new ConcurrentHashMap<>();
     private static final Map<String, Thread> touchMap = new ConcurrentHashMap<>();
     private static final Map<String, TouchMode> touchModeMap = new ConcurrentHashMap<>();
-    private static final Map<String, int[]> sizeMap = new ConcurrentHashMap<>();
+    private static final Map<String, ScrcpyControlChannel> controlMap = new ConcurrentHashMap<>();
     // 默认的滑动操作完成时间，单位为毫秒
     private static final int DEFAULT_SWIPE_DURATION = 500;
+    private static final int APK_BATCH_SIZE = 64 * TouchGesture.MAX_EVENT_BYTES;
+    private static final byte[] APK_DOWN = "down ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] APK_MOVE = "move ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] APK_UP = "up\n".getBytes(StandardCharsets.US_ASCII);
 
     public enum TouchMode {
         SONIC_APK,
@@ -65,16 +69,13 @@ public class AndroidTouchHandler {
     }
 
     public static void tap(IDevice iDevice, int x, int y) throws SonicRespException {
+        if (injectByScrcpy(iDevice, TouchGesture.press(x, y, 0))) {
+            return;
+        }
         switch (getTouchMode(iDevice)) {
             case SONIC_APK -> {
                 int[] re = transferWithRotation(iDevice, x, y);
-                writeToOutputStream(iDevice, String.format("down %d %d\n", re[0], re[1]));
-                try {
-                    Thread.sleep(300);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                writeToOutputStream(iDevice, "up\n");
+                playOnApk(iDevice, TouchGesture.press(re[0], re[1], 300));
             }
             case ADB -> AndroidDeviceBridgeTool.executeCommand(iDevice, String.format("input tap %d %d", x, y));
             case APPIUM_UIAUTOMATOR2_SERVER -> {
@@ -88,16 +89,13 @@ public class AndroidTouchHandler {
     }
 
     public static void longPress(IDevice iDevice, int x, int y, int time) throws SonicRespException {
+        if (injectByScrcpy(iDevice, TouchGesture.press(x, y, time))) {
+            return;
+        }
         switch (getTouchMode(iDevice)) {
             case SONIC_APK -> {
                 int[] re = transferWithRotation(iDevice, x, y);
-                writeToOutputStream(iDevice, String.format("down %d %d\n", re[0], re[1]));
-                try {
-                    Thread.sleep(time);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                writeToOutputStream(iDevice, "up\n");
+                playOnApk(iDevice, TouchGesture.press(re[0], re[1], time));
             }
             case ADB -> AndroidDeviceBridgeTool.executeCommand(iDevice,
                     String.format("input swipe %d %d %d %d %d", x, y, x, y, time));
@@ -117,48 +115,15 @@ public class AndroidTouchHandler {
 
     public static void swipe(IDevice iDevice, int x1, int y1, int x2, int y2, int swipeDuration)
             throws SonicRespException {
+        // 与input swipe一致，按下后立即移动
+        if (injectByScrcpy(iDevice, TouchGesture.swipe(x1, y1, x2, y2, 0, swipeDuration, 0))) {
+            return;
+        }
         switch (getTouchMode(iDevice)) {
             case SONIC_APK -> {
                 int[] re1 = transferWithRotation(iDevice, x1, y1);
                 int[] re2 = transferWithRotation(iDevice, x2, y2);
-                writeToOutputStream(iDevice, String.format("down %d %d\n", re1[0], re1[1]));
-                try {
-                    Thread.sleep(300);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                long startTime = System.currentTimeMillis();
-                while (true) {
-                    // 当前时间
-                    long currentTime = System.currentTimeMillis();
-                    // 计算时间进度
-                    float timeProgress = (currentTime - startTime) / (float) swipeDuration;
-                    if (timeProgress >= 1.0f) {
-                        // 已经过渡到结束值，停止过渡
-                        writeToOutputStream(iDevice, String.format("move %d %d\n", re2[0], re2[1]));
-                        break;
-                    }
-                    BiFunction<Integer, Integer, Integer> transitionX = (start,
-                            end) -> (int) (start + (end - start) * timeProgress);
-                    BiFunction<Integer, Integer, Integer> transitionY = (start,
-                            end) -> (int) (start + (end - start) * timeProgress);
-
-                    int currentX = transitionX.apply(re1[0], re2[0]);
-                    int currentY = transitionY.apply(re1[1], re2[1]);
-                    // 使用当前坐标进行操作
-                    writeToOutputStream(iDevice, String.format("move %d %d\n", currentX, currentY));
-                    try {
-                        Thread.sleep(5);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-                try {
-                    Thread.sleep(200);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                writeToOutputStream(iDevice, "up\n");
+                playOnApk(iDevice, TouchGesture.swipe(re1[0], re1[1], re2[0], re2[1], 300, swipeDuration, 200));
             }
             case ADB -> AndroidDeviceBridgeTool.executeCommand(iDevice, String.format("input swipe %d %d %d %d %d",
                     x1, y1, x2, y2, swipeDuration));
@@ -178,6 +143,10 @@ public class AndroidTouchHandler {
 
     public static void drag(IDevice iDevice, int x1, int y1, int x2, int y2, int swipeDuration)
             throws SonicRespException {
+        // 拖拽需要先长按选中再移动
+        if (injectByScrcpy(iDevice, TouchGesture.swipe(x1, y1, x2, y2, 1000, swipeDuration, 200))) {
+            return;
+        }
         switch (getTouchMode(iDevice)) {
             case ADB ->
                 AndroidDeviceBridgeTool.executeCommand(iDevice,
@@ -194,50 +163,16 @@ public class AndroidTouchHandler {
                 // 但是swipe的效果应该是在屏幕滑动，而不是在第一个坐标按下时存在延迟，所以放在drag方法里面更加符合
                 int[] re1 = transferWithRotation(iDevice, x1, y1);
                 int[] re2 = transferWithRotation(iDevice, x2, y2);
-                writeToOutputStream(iDevice, String.format("down %d %d\n", re1[0], re1[1]));
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                long startTime = System.currentTimeMillis();
-                while (true) {
-                    // 当前时间
-                    long currentTime = System.currentTimeMillis();
-                    // 计算时间进度
-                    float timeProgress = (currentTime - startTime) / (float) swipeDuration;
-                    if (timeProgress >= 1.0f) {
-                        // 已经过渡到结束值，停止过渡
-                        writeToOutputStream(iDevice, String.format("move %d %d\n", re2[0], re2[1]));
-                        break;
-                    }
-                    BiFunction<Integer, Integer, Integer> transitionX = (start,
-                            end) -> (int) (start + (end - start) * timeProgress);
-                    BiFunction<Integer, Integer, Integer> transitionY = (start,
-                            end) -> (int) (start + (end - start) * timeProgress);
-
-                    int currentX = transitionX.apply(re1[0], re2[0]);
-                    int currentY = transitionY.apply(re1[1], re2[1]);
-                    // 使用当前坐标进行操作
-                    writeToOutputStream(iDevice, String.format("move %d %d\n", currentX, currentY));
-                    try {
-                        Thread.sleep(5);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-                try {
-                    Thread.sleep(200);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                writeToOutputStream(iDevice, "up\n");
+                playOnApk(iDevice, TouchGesture.swipe(re1[0], re1[1], re2[0], re2[1], 1000, swipeDuration, 200));
             }
 
         }
     }
 
     public static void motionEvent(IDevice iDevice, String motionEventType, int x1, int y1) throws SonicRespException {
+        if (injectByScrcpy(iDevice, motionEventType, x1, y1)) {
+            return;
+        }
         switch (getTouchMode(iDevice)) {
             case ADB ->
                 AndroidDeviceBridgeTool.executeCommand(iDevice,
@@ -256,6 +191,131 @@ public class AndroidTouchHandler {
         }
     }
 
+    public static void attachScrcpyControl(String udId, ScrcpyControlChannel control) {
+        controlMap.put(udId, control);
+    }
+
+    public static void detachScrcpyControl(String udId, ScrcpyControlChannel control) {
+        controlMap.remove(udId, control);
+    }
+
+    /**
+     * 投屏中的设备优先经scrcpy控制socket注入，坐标与input命令相同，无需旋转换算。
+     * 写入失败时回退到当前的触摸模式
+     */
+    private static boolean injectByScrcpy(IDevice iDevice, TouchGesture gesture) {
+        ScrcpyControlChannel control = getScrcpyControl(iDevice);
+        if (control == null) {
+            return false;
+        }
+        try {
+            long[] injected = control.perform(gesture);
+            log.debug("{} injected {} touch events by scrcpy in {} ms, max lag {} ms.", iDevice.getSerialNumber(),
+                    gesture.size(), injected[injected.length - 1] / 1_000_000, gesture.maxLagNanos(injected) / 1_000_000);
+            return true;
+        } catch (IOException e) {
+            onScrcpyControlFailed(iDevice, control, e);
+            return false;
+        }
+    }
+
+    private static boolean injectByScrcpy(IDevice iDevice, String motionEventType, int x, int y) {
+        int action;
+        switch (motionEventType.toUpperCase()) {
+            case "DOWN" -> action = TouchGesture.ACTION_DOWN;
+            case "MOVE" -> action = TouchGesture.ACTION_MOVE;
+            case "UP" -> action = TouchGesture.ACTION_UP;
+            default -> {
+                return false;
+            }
+        }
+        ScrcpyControlChannel control = getScrcpyControl(iDevice);
+        if (control == null) {
+            return false;
+        }
+        try {
+            control.touch(action, x, y);
+            return true;
+        } catch (IOException e) {
+            onScrcpyControlFailed(iDevice, control, e);
+            return false;
+        }
+    }
+
+    private static ScrcpyControlChannel getScrcpyControl(IDevice iDevice) {
+        if (getTouchMode(iDevice) == TouchMode.APPIUM_UIAUTOMATOR2_SERVER) {
+            return null;
+        }
+        ScrcpyControlChannel control = controlMap.get(iDevice.getSerialNumber());
+        return control != null && control.isOpen() ? control : null;
+    }
+
+    private static void onScrcpyControlFailed(IDevice iDevice, ScrcpyControlChannel control, IOException e) {
+        log.info("write to scrcpy control failed cause by: {}, fallback to {} touch mode...", e.getMessage(),
+                getTouchMode(iDevice));
+        controlMap.remove(iDevice.getSerialNumber(), control);
+    }
+
+    /**
+     * 按计划时间把手势写给Sonic APK，已到期的多条命令合并为一次写入
+     */
+    private static void playOnApk(IDevice iDevice, TouchGesture gesture) {
+        OutputStream outputStream = outputMap.get(iDevice.getSerialNumber());
+        if (outputStream == null) {
+            log.info("{} write output stream is null.", iDevice.getSerialNumber());
+            return;
+        }
+        try {
+            long[] injected;
+            synchronized (outputStream) {
+                injected = gesture.play(ByteBuffer.allocate(APK_BATCH_SIZE), AndroidTouchHandler::encodeApkCommand,
+                        batch -> {
+                            outputStream.write(batch.array(), batch.arrayOffset() + batch.position(),
+                                    batch.remaining());
+                            outputStream.flush();
+                        });
+            }
+            log.debug("{} injected {} touch events by apk in {} ms, max lag {} ms.", iDevice.getSerialNumber(),
+                    gesture.size(), injected[injected.length - 1] / 1_000_000, gesture.maxLagNanos(injected) / 1_000_000);
+        } catch (IOException e) {
+            log.info("write to apk failed cause by: {}, auto switch to adb touch mode...", e.getMessage());
+            switchTouchMode(iDevice, TouchMode.ADB);
+        }
+    }
+
+    /**
+     * 编码为Sonic APK的文本命令，如"move 100 200\n"，不经过String.format
+     */
+    static void encodeApkCommand(ByteBuffer out, int action, int x, int y) {
+        switch (action) {
+            case TouchGesture.ACTION_DOWN -> out.put(APK_DOWN);
+            case TouchGesture.ACTION_MOVE -> out.put(APK_MOVE);
+            default -> {
+                out.put(APK_UP);
+                return;
+            }
+        }
+        putDecimal(out, x);
+        out.put((byte) ' ');
+        putDecimal(out, y);
+        out.put((byte) '\n');
+    }
+
+    private static void putDecimal(ByteBuffer out, int value) {
+        long v = value;
+        if (v < 0) {
+            out.put((byte) '-');
+            v = -v;
+        }
+        long div = 1;
+        while (div * 10 <= v) {
+            div *= 10;
+        }
+        for (; div > 0; div /= 10) {
+            out.put((byte) ('0' + v / div % 10));
+        }
+    }
+
     private static int[] transferWithRotation(IDevice iDevice, int x, int y) {
         Integer directionStatus = AndroidDeviceManagerMap.getRotationMap().get(iDevice.getSerialNumber());
         if (directionStatus == null) {
@@ -263,16 +323,11 @@ public class AndroidTouchHandler {
         }
         int _x;
         int _y;
-        int width;
-        int height;
-        if (sizeMap.get(iDevice.getSerialNumber()) != null) {
-            width = sizeMap.get(iDevice.getSerialNumber())[0];
-            height = sizeMap.get(iDevice.getSerialNumber())[1];
-        } else {
-            String size = AndroidDeviceBridgeTool.getScreenSize(iDevice);
-            width = Integer.parseInt(size.split("x")[0]);
-            height = Integer.parseInt(size.split("x")[1]);
-        }
+        // 尺寸已缓存，不再经过adb查询
+        String size = AndroidDeviceBridgeTool.getScreenSize(iDevice);
+        int split = size.indexOf('x');
+        int width = Integer.parseInt(size, 0, split, 10);
+        int height = Integer.parseInt(size, split + 1, size.length(), 10);
         if (directionStatus == 1 || directionStatus == 3) {
             _x = directionStatus == 1 ? width - y : y - width * 3;
             _y = directionStatus == 1 ? x : -x;
@@ -300,8 +355,6 @@ public class AndroidTouchHandler {
 
     public static void startTouch(IDevice iDevice) {
         stopTouch(iDevice);
-        String size = AndroidDeviceBridgeTool.getScreenSize(iDevice);
-        sizeMap.put(iDevice.getSerialNumber(), Arrays.stream(size.split("x")).mapToInt(Integer::parseInt).toArray());
         if (AndroidDeviceBridgeTool.getOrientation(iDevice) != 0) {
             AndroidDeviceBridgeTool.pressKey(iDevice, AndroidKey.HOME);
         }
@@ -398,7 +451,6 @@ public class AndroidTouchHandler {
             }
             outputMap.remove(udId);
             AndroidDeviceBridgeTool.removeForward(iDevice, finalTouchPort, "sonictouchservice");
-            sizeMap.remove(udId);
         });
         touchSocketThread.start();
         int w = 0;
@@ -51,6 +51,7 @@ import org.cloud.sonic.agent.tools.PortTool;
 import org.cloud.sonic.agent.tools.SpringTool;
 import org.cloud.sonic.agent.tools.file.DownloadTool;
 import org.cloud.sonic.agent.tools.file.UploadTools;
+import org.cloud.sonic.agent.tools.metrics.MetricsRegistry;
 import org.cloud.sonic.driver.common.enums.PasteboardType;
 import org.cloud.sonic.driver.common.models.BaseElement;
 import org.cloud.sonic.driver.common.models.WindowSize;
@@ -197,6 +198,10 @@ public class IOSStepHandler {
         log.sendStepLog(StepType.INFO, "设备非空闲状态！第" + waitCount + "次等待连接...", "");
     }
 
+    public void waitCooling(int waitCount) {
+        log.sendStepLog(StepType.WARN, "设备温度偏高！第" + waitCount + "次等待降温...", "");
+    }
+
     public void waitDeviceTimeOut() {
         log.sendStepLog(StepType.ERROR, "等待设备超时！测试跳过！", "");
         // 测试标记为异常
@@ -1820,8 +1825,22 @@ public class IOSStepHandler {
         if (CollectionUtils.isEmpty(step)) {
             step = stepJSON;
         }
-        JSONArray eleList = step.getJSONArray("elements");
         Thread.sleep(holdTime);
+        long start = System.nanoTime();
+        String result = "fail";
+        try {
+            runStepByType(step, handleContext);
+            if (handleContext.getE() == null) {
+                result = "pass";
+            }
+        } finally {
+            MetricsRegistry.histogram("sonic_agent_step_seconds", "Time spent running test steps",
+                    "platform", "ios", "step", step.getString("stepType"), "result", result).recordSince(start);
+        }
+    }
+
+    private void runStepByType(JSONObject step, HandleContext handleContext) throws Throwable {
+        JSONArray eleList = step.getJSONArray("elements");
         switch (step.getString("stepType")) {
             case "stepHold" -> stepHold(handleContext, step.getInteger("content"));
             case "siriCommand" -> siriCommand(handleContext, step.getString("content"));
@@ -0,0 +1,214 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.handlers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 单指手势的事件序列，坐标插值在生成时完成，回放时按计划时间批量写入
+ * <p>
+ * 回放线程按绝对时间唤醒，醒来时把所有已到期的事件编码进同一个缓冲区一次写出，
+ * 调度延迟时不会逐个补发，也不会累积误差。每个事件实际写出的时间会返回给调用方。
+ */
+public class TouchGesture {
+
+    public static final int ACTION_DOWN = 0;
+
+    public static final int ACTION_UP = 1;
+
+    public static final int ACTION_MOVE = 2;
+
+    /**
+     * 滑动时每秒的移动事件数
+     */
+    public static final int DEFAULT_RATE = 120;
+
+    /**
+     * 单个事件编码后的最大字节数
+     */
+    public static final int MAX_EVENT_BYTES = 32;
+
+    private static final long MILLIS = 1_000_000L;
+
+    public interface Encoder {
+        void encode(ByteBuffer out, int action, int x, int y);
+    }
+
+    public interface Sink {
+        /**
+         * @param batch 一次写出的若干个事件
+         */
+        void write(ByteBuffer batch) throws IOException;
+    }
+
+    private final int rate;
+
+    private int[] actions = new int[16];
+
+    private int[] xs = new int[16];
+
+    private int[] ys = new int[16];
+
+    private long[] offsets = new long[16];
+
+    private int size = 0;
+
+    private long cursor = 0;
+
+    private int lastX;
+
+    private int lastY;
+
+    public TouchGesture() {
+        this(DEFAULT_RATE);
+    }
+
+    public TouchGesture(int rate) {
+        this.rate = rate;
+    }
+
+    public static TouchGesture press(int x, int y, int holdMillis) {
+        return new TouchGesture().down(x, y).hold(holdMillis).up();
+    }
+
+    /**
+     * 按下后停顿beforeMillis再移动，到达终点后停顿afterMillis再抬起
+     */
+    public static TouchGesture swipe(int x1, int y1, int x2, int y2, int beforeMillis, int durationMillis,
+                                     int afterMillis) {
+        return new TouchGesture().down(x1, y1).hold(beforeMillis).moveTo(x2, y2, durationMillis)
+                .hold(afterMillis).up();
+    }
+
+    public TouchGesture down(int x, int y) {
+        return add(ACTION_DOWN, x, y);
+    }
+
+    public TouchGesture up() {
+        return add(ACTION_UP, lastX, lastY);
+    }
+
+    public TouchGesture hold(int millis) {
+        cursor += Math.max(0, millis) * MILLIS;
+        return this;
+    }
+
+    /**
+     * 在durationMillis内匀速移动到(x, y)，最后一个点正好落在终点
+     */
+    public TouchGesture moveTo(int x, int y, int durationMillis) {
+        long duration = Math.max(0, durationMillis) * MILLIS;
+        int steps = (int) Math.max(1, (long) durationMillis * rate / 1000);
+        int startX = lastX;
+        int startY = lastY;
+        long start = cursor;
+        for (int i = 1; i <= steps; i++) {
+            cursor = start + duration * i / steps;
+            add(ACTION_MOVE, startX + (int) ((long) (x - startX) * i / steps),
+                    startY + (int) ((long) (y - startY) * i / steps));
+        }
+        return this;
+    }
+
+    private TouchGesture add(int action, int x, int y) {
+        if (size == actions.length) {
+            int capacity = size * 2;
+            actions = Arrays.copyOf(actions, capacity);
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+        }
+        actions[size] = action;
+        xs[size] = x;
+        ys[size] = y;
+        offsets[size] = cursor;
+        size++;
+        lastX = x;
+        lastY = y;
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getAction(int i) {
+        return actions[i];
+    }
+
+    public int getX(int i) {
+        return xs[i];
+    }
+
+    public int getY(int i) {
+        return ys[i];
+    }
+
+    /**
+     * @return 第i个事件相对手势开始的计划时间
+     */
+    public long getOffsetNanos(int i) {
+        return offsets[i];
+    }
+
+    /**
+     * 按计划时间回放，线程被中断时立即写出剩余事件，保证手指能抬起
+     *
+     * @param buffer 编码用的缓冲区，容量至少为{@link #MAX_EVENT_BYTES}
+     * @return 每个事件实际写出完成的时间，相对手势开始
+     */
+    public long[] play(ByteBuffer buffer, Encoder encoder, Sink sink) throws IOException {
+        long[] injected = new long[size];
+        long start = System.nanoTime();
+        int i = 0;
+        while (i < size) {
+            long now = System.nanoTime();
+            long wait = start + offsets[i] - now;
+            if (wait > 0 && !Thread.currentThread().isInterrupted()) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            int first = i;
+            buffer.clear();
+            while (i < size && buffer.remaining() >= MAX_EVENT_BYTES
+                    && (start + offsets[i] <= now || Thread.currentThread().isInterrupted())) {
+                encoder.encode(buffer, actions[i], xs[i], ys[i]);
+                i++;
+            }
+            buffer.flip();
+            sink.write(buffer);
+            long written = System.nanoTime() - start;
+            Arrays.fill(injected, first, i, written);
+        }
+        return injected;
+    }
+
+    /**
+     * @return 实际写出时间相对计划时间的最大延迟
+     */
+    public long maxLagNanos(long[] injected) {
+        long lag = 0;
+        for (int i = 0; i < size; i++) {
+            lag = Math.max(lag, injected[i] - offsets[i]);
+        }
+        return lag;
+    }
+}
@@ -17,13 +17,10 @@
  */
 package org.cloud.sonic.agent.tests.ios;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import org.cloud.sonic.agent.bridge.ios.SibTool;
-import org.cloud.sonic.agent.common.maps.DevicesBatteryMap;
-import org.cloud.sonic.agent.tools.BytesTool;
+import org.cloud.sonic.agent.tests.BatterySampler;
 import org.cloud.sonic.agent.transport.TransportWorker;
 
 import com.alibaba.fastjson.JSONObject;
@@ -37,81 +34,38 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class IOSBatteryThread implements Runnable {
 
-    /**
-     * second
-     */
-    public static final long DELAY = 30;
-
     public static final String THREAD_NAME = "ios-battery-thread";
 
     public static final TimeUnit TIME_UNIT = TimeUnit.SECONDS;
 
+    private final BatterySampler<String> sampler;
+
+    /**
+     * 设备列表取自sib上下线通知维护的在线设备，每轮不再执行sib devices
+     *
+     * @param period 采样周期，单位为{@link #TIME_UNIT}
+     */
+    public IOSBatteryThread(int parallelism, long period) {
+        sampler = new BatterySampler<>("ios", parallelism, SibTool::getOnlineDevices, udId -> udId,
+                udId -> parse(udId, SibTool.getBattery(udId)),
+                (udId, sample) -> BatterySampler.report(sample, TIME_UNIT.toSeconds(period),
+                        () -> SibTool.shutdown(udId)));
+    }
+
     @Override
     public void run() {
         Thread.currentThread().setName(THREAD_NAME);
         if (TransportWorker.client == null) {
             return;
         }
+        sampler.run();
+    }
 
-        List<String> deviceList = SibTool.getDeviceList();
-        if (deviceList.size() == 0) {
-            return;
-        }
-
-        List<JSONObject> detail = new ArrayList<>();
-        JSONObject devicesBattery;
-        for (String udId : deviceList) {
-            try {
-                devicesBattery = SibTool.getBattery(udId);
-            } catch (Exception e) {
-                e.printStackTrace();
-                continue;
-            }
-            JSONObject jsonObject = new JSONObject();
-            jsonObject.put("udId", udId);
-            jsonObject.put("vol", devicesBattery.getInteger("Voltage"));
-            int tem = devicesBattery.getInteger("Temperature") / 10;
-            jsonObject.put("tem", tem);
-            jsonObject.put("level", devicesBattery.getInteger("CurrentCapacity"));
-            detail.add(jsonObject);
-            // control
-            if (tem >= BytesTool.highTemp * 10) {
-                Integer times = DevicesBatteryMap.getTempMap().get(udId);
-                if (times == null) {
-                    // Send Error Msg
-                    JSONObject errCall = new JSONObject();
-                    errCall.put("msg", "errCall");
-                    errCall.put("udId", udId);
-                    errCall.put("tem", tem);
-                    errCall.put("type", 1);
-                    TransportWorker.send(errCall);
-                    DevicesBatteryMap.getTempMap().put(udId, 1);
-                } else {
-                    DevicesBatteryMap.getTempMap().put(udId, times + 1);
-                }
-                times = DevicesBatteryMap.getTempMap().get(udId);
-                if (times >= (BytesTool.highTempTime * 2)) {
-                    // Send shutdown Msg
-                    JSONObject errCall = new JSONObject();
-                    errCall.put("msg", "errCall");
-                    errCall.put("udId", udId);
-                    errCall.put("tem", tem);
-                    errCall.put("type", 2);
-                    TransportWorker.send(errCall);
-                    SibTool.shutdown(udId);
-                    DevicesBatteryMap.getTempMap().remove(udId);
-                }
-            } else {
-                DevicesBatteryMap.getTempMap().remove(udId);
-            }
-        }
-        JSONObject result = new JSONObject();
-        result.put("msg", "battery");
-        result.put("detail", detail);
-        try {
-            TransportWorker.send(result);
-        } catch (Exception e) {
-            log.error("Send battery msg failed, cause: ", e);
+    static BatterySampler.Sample parse(String udId, JSONObject devicesBattery) {
+        if (devicesBattery == null || devicesBattery.getInteger("Temperature") == null) {
+            return null;
         }
+        return new BatterySampler.Sample(udId, devicesBattery.getInteger("Temperature") / 10,
+                devicesBattery.getIntValue("CurrentCapacity"), devicesBattery.getIntValue("Voltage"));
     }
 }
@@ -18,7 +18,9 @@
 package org.cloud.sonic.agent.tests.ios;
 
 import org.cloud.sonic.agent.bridge.ios.SibTool;
+import org.cloud.sonic.agent.common.interfaces.StepType;
 import org.cloud.sonic.agent.tests.handlers.IOSStepHandler;
+import org.cloud.sonic.agent.tests.thermal.ThermalManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -52,12 +54,30 @@ public class IOSPerfDataThread extends Thread {
             SibTool.startPerfmon(udId, "", null,
                     iosStepHandler.getLog(), perf.getInteger("perfInterval"));
             boolean hasTarget = false;
+            boolean paused = false;
             while (!iosTestTaskBootThread.getRunStepThread().isStopped()) {
                 try {
                     Thread.sleep(500);
                 } catch (InterruptedException e) {
                     break;
                 }
+                // 设备降温期间暂停性能采集，减轻设备负载
+                if (ThermalManager.isThrottled(udId)) {
+                    if (!paused) {
+                        SibTool.stopPerfmon(udId);
+                        iosStepHandler.getLog().sendStepLog(StepType.WARN, "设备温度偏高，暂停性能采集", "");
+                        paused = true;
+                    }
+                    continue;
+                }
+                if (paused) {
+                    SibTool.startPerfmon(udId, iosStepHandler.getTargetPackage(), null,
+                            iosStepHandler.getLog(), perf.getInteger("perfInterval"));
+                    iosStepHandler.getLog().sendStepLog(StepType.INFO, "设备已降温，恢复性能采集", "");
+                    hasTarget = iosStepHandler.getTargetPackage().length() != 0;
+                    paused = false;
+                    continue;
+                }
                 if (iosStepHandler.getTargetPackage().length() != 0 && !hasTarget) {
                     SibTool.startPerfmon(udId, iosStepHandler.getTargetPackage(), null,
                             iosStepHandler.getLog(), perf.getInteger("perfInterval"));
@@ -24,6 +24,7 @@ import org.cloud.sonic.agent.bridge.ios.SibTool;
 import org.cloud.sonic.agent.common.interfaces.ResultDetailStatus;
 import org.cloud.sonic.agent.tests.TaskManager;
 import org.cloud.sonic.agent.tests.handlers.IOSStepHandler;
+import org.cloud.sonic.agent.tests.thermal.ThermalManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -45,6 +46,11 @@ public class IOSTestTaskBootThread extends Thread {
 
     private Boolean forceStop = false;
 
+    /**
+     * 等待设备降温的最多次数，每次10秒
+     */
+    private static final int MAX_COOLING_WAIT = 30;
+
     /**
      * 一些任务信息
      */
@@ -164,6 +170,14 @@ public class IOSTestTaskBootThread extends Thread {
         boolean startTestSuccess = false;
 
         try {
+            // 设备温度逼近高温阈值时先等待降温，超时后照常开始，由高温告警兜底
+            int cooling = 0;
+            while (ThermalManager.isThrottled(udId) && cooling < MAX_COOLING_WAIT) {
+                cooling++;
+                iosStepHandler.waitCooling(cooling);
+                Thread.sleep(10000);
+            }
+
             int wait = 0;
             while (!IOSDeviceLocalStatus.startTest(udId)) {
                 wait++;
@@ -0,0 +1,254 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.ios.mjpeg;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.cloud.sonic.agent.tools.ByteBufferPool;
+
+/**
+ * wda mjpeg（multipart/x-mixed-replace）流解析
+ * <p>
+ * 从channel读入可复用的直接内存，HTTP响应头和每段的头按字节用状态机解析，只识别Content-Length，
+ * 不创建String和Reader。帧体批量拷贝到池化buffer，没有Content-Length时按jpeg结束标记0xFFD9切分。
+ * 帧超过{@link #MAX_FRAME_LENGTH}视为协议错误，Content-Length为0的空段跳过。
+ * {@link #readFrame(ReadableByteChannel)}返回的buffer使用完毕后需归还到{@link #getPool()}。
+ */
+public class MjpegFrameDecoder {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static final int FRAME_INITIAL_CAPACITY = 256 * 1024;
+
+    /**
+     * 单帧上限，长度头异常时不会按它申请超大的直接内存
+     */
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    private static final byte[] CONTENT_LENGTH = "content-length:".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int STATE_HTTP_HEADER = 0;
+
+    private static final int STATE_PART_HEADER = 1;
+
+    private static final int STATE_BODY = 2;
+
+    /**
+     * 没有Content-Length，一直读到0xFFD9
+     */
+    private static final int STATE_BODY_SCAN = 3;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    private final ByteBufferPool pool;
+
+    private int state = STATE_HTTP_HEADER;
+
+    private int lineLength = 0;
+
+    private int matched = 0;
+
+    private int headerLines = 0;
+
+    private int contentLength = -1;
+
+    private boolean lastFF = false;
+
+    private ByteBuffer frame;
+
+    public MjpegFrameDecoder(int poolSize) {
+        this.pool = new ByteBufferPool(poolSize, FRAME_INITIAL_CAPACITY);
+        readBuffer.flip();
+    }
+
+    public ByteBufferPool getPool() {
+        return pool;
+    }
+
+    /**
+     * 连接wda的mjpeg端口并发出请求
+     */
+    public static SocketChannel connect(int port) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+        ByteBuffer request = ByteBuffer.wrap(
+                ("GET / HTTP/1.1\r\nHost: localhost:" + port + "\r\nConnection: keep-alive\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+        while (request.hasRemaining()) {
+            channel.write(request);
+        }
+        return channel;
+    }
+
+    /**
+     * 读取下一帧
+     *
+     * @return 完整的jpeg帧，流结束时返回null
+     */
+    public ByteBuffer readFrame(ReadableByteChannel channel) throws IOException {
+        while (true) {
+            ByteBuffer complete = parse();
+            if (complete != null) {
+                return complete;
+            }
+            if (state == STATE_BODY && !readBuffer.hasRemaining()) {
+                // 读缓冲已空，剩余帧体直接从socket读进帧buffer
+                if (channel.read(frame) < 0) {
+                    return null;
+                }
+                if (!frame.hasRemaining()) {
+                    return emitFrame();
+                }
+                continue;
+            }
+            readBuffer.compact();
+            int n = channel.read(readBuffer);
+            readBuffer.flip();
+            if (n < 0) {
+                return null;
+            }
+        }
+    }
+
+    private ByteBuffer parse() throws ProtocolException {
+        while (readBuffer.hasRemaining()) {
+            switch (state) {
+                case STATE_HTTP_HEADER, STATE_PART_HEADER -> {
+                    if (headerByte(readBuffer.get())) {
+                        startBody();
+                    }
+                }
+                case STATE_BODY -> {
+                    int n = Math.min(frame.remaining(), readBuffer.remaining());
+                    ByteBuffer body = readBuffer.duplicate();
+                    body.limit(body.position() + n);
+                    frame.put(body);
+                    readBuffer.position(readBuffer.position() + n);
+                    if (!frame.hasRemaining()) {
+                        return emitFrame();
+                    }
+                }
+                default -> {
+                    byte b = readBuffer.get();
+                    if (!frame.hasRemaining()) {
+                        if (frame.capacity() >= MAX_FRAME_LENGTH) {
+                            throw new ProtocolException("mjpeg frame exceeds " + MAX_FRAME_LENGTH + " bytes");
+                        }
+                        ByteBuffer grown = pool.acquire(Math.min(frame.capacity() << 1, MAX_FRAME_LENGTH));
+                        frame.flip();
+                        grown.put(frame);
+                        pool.release(frame);
+                        frame = grown;
+                    }
+                    frame.put(b);
+                    if (lastFF && b == (byte) 0xD9) {
+                        return emitFrame();
+                    }
+                    lastFF = b == (byte) 0xFF;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true: 头部已结束（在至少一行非空内容之后遇到空行）
+     */
+    private boolean headerByte(byte b) {
+        if (b == '\r') {
+            return false;
+        }
+        if (b == '\n') {
+            boolean blank = lineLength == 0;
+            lineLength = 0;
+            matched = 0;
+            if (!blank) {
+                headerLines++;
+                return false;
+            }
+            // 帧之间多余的空行忽略
+            return headerLines > 0;
+        }
+        if (matched == CONTENT_LENGTH.length) {
+            if (b >= '0' && b <= '9') {
+                // 超过上限后不再累加，避免溢出成负数
+                if (contentLength <= MAX_FRAME_LENGTH) {
+                    contentLength = (contentLength < 0 ? 0 : contentLength * 10) + (b - '0');
+                }
+            }
+        } else if (lineLength == matched) {
+            byte lower = b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+            if (lower == CONTENT_LENGTH[matched]) {
+                matched++;
+            }
+        }
+        lineLength++;
+        return false;
+    }
+
+    private void startBody() throws ProtocolException {
+        headerLines = 0;
+        if (state == STATE_HTTP_HEADER) {
+            // HTTP响应头的Content-Length不是帧长度
+            state = STATE_PART_HEADER;
+            contentLength = -1;
+            return;
+        }
+        if (contentLength > MAX_FRAME_LENGTH) {
+            throw new ProtocolException("mjpeg part Content-Length exceeds " + MAX_FRAME_LENGTH + " bytes");
+        }
+        if (contentLength == 0) {
+            // 空段没有帧，继续读下一段的头
+            contentLength = -1;
+            return;
+        }
+        if (contentLength > 0) {
+            frame = pool.acquire(contentLength);
+            frame.limit(contentLength);
+            state = STATE_BODY;
+        } else {
+            frame = pool.acquire(FRAME_INITIAL_CAPACITY);
+            lastFF = false;
+            state = STATE_BODY_SCAN;
+        }
+        contentLength = -1;
+    }
+
+    private ByteBuffer emitFrame() {
+        ByteBuffer complete = frame;
+        frame = null;
+        state = STATE_PART_HEADER;
+        complete.flip();
+        return complete;
+    }
+
+    /**
+     * 归还未完成的帧
+     */
+    public void release() {
+        if (frame != null) {
+            pool.release(frame);
+            frame = null;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.screen;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * 只丢弃与上一帧字节完全相同的帧，只比较hash，不保留上一帧的拷贝
+ */
+public class Crc32cChangeDetector implements FrameChangeDetector {
+
+    private final CRC32C crc = new CRC32C();
+
+    private long lastHash = -1;
+
+    @Override
+    public boolean changed(ByteBuffer frame, long nanos) {
+        crc.reset();
+        crc.update(frame.duplicate());
+        long hash = crc.getValue();
+        if (hash == lastHash) {
+            return false;
+        }
+        lastHash = hash;
+        return true;
+    }
+}
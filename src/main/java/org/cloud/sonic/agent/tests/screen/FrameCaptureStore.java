@@ -0,0 +1,261 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.screen;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.function.Consumer;
+
+import org.cloud.sonic.agent.tests.android.scrcpy.Mp4Muxer;
+import org.cloud.sonic.agent.tools.file.FileTool;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 用例运行期间的画面缓存，帧数据循环写入固定大小的内存映射文件，不占用堆内存
+ * <p>
+ * 内存中只保存每帧的时间、偏移和长度，空间不够时覆盖最旧的帧。
+ * 设置保留时长后只保留失败前最近N秒（从该时间点之前最近的关键帧开始），
+ * 需要时把文件头和这些帧导出成一个短视频，代替单张截图作为失败证据。
+ * 作为{@link ScreenBroadcaster}的录像使用时接收fmp4初始化段与片段。
+ */
+@Slf4j
+public class FrameCaptureStore implements Consumer<ByteBuffer>, Closeable {
+
+    private final File segmentFile;
+
+    private final FileChannel channel;
+
+    private final MappedByteBuffer segment;
+
+    private final long keepNanos;
+
+    private final ArrayDeque<FrameIndex> index = new ArrayDeque<>();
+
+    /**
+     * index中的关键帧，按时间顺序
+     */
+    private final ArrayDeque<FrameIndex> keyFrames = new ArrayDeque<>();
+
+    private int tail = 0;
+
+    private byte[] header;
+
+    private boolean closed = false;
+
+    private int clipCount = 0;
+
+    /**
+     * @param capacity  内存映射文件大小，也是缓存的上限
+     * @param keepNanos 只保留最近多久的帧，0表示直到空间用完
+     */
+    public FrameCaptureStore(File segmentFile, int capacity, long keepNanos) throws IOException {
+        File parent = segmentFile.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        this.segmentFile = segmentFile;
+        this.keepNanos = keepNanos;
+        this.channel = FileChannel.open(segmentFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    /**
+     * 导出时写在最前面的数据，如fmp4初始化段
+     */
+    public synchronized void setHeader(ByteBuffer header) {
+        this.header = new byte[header.remaining()];
+        header.duplicate().get(this.header);
+    }
+
+    @Override
+    public void accept(ByteBuffer data) {
+        if (Mp4Muxer.isInitSegment(data)) {
+            // 投屏重启后使用新的初始化段，旧片段中带有SPS，仍可解码
+            setHeader(data);
+        } else {
+            append(data, Mp4Muxer.isSyncFragment(data), System.nanoTime());
+        }
+    }
+
+    /**
+     * @param keyFrame 能否从这一帧开始播放
+     * @return 帧超过整个缓存大小或已关闭时返回false
+     */
+    public synchronized boolean append(ByteBuffer frame, boolean keyFrame, long nanos) {
+        int length = frame.remaining();
+        if (closed || length > segment.capacity()) {
+            return false;
+        }
+        if (index.isEmpty()) {
+            tail = 0;
+        }
+        int offset = tail;
+        if (offset + length > segment.capacity()) {
+            // 尾部放不下，回到开头；尾部之后的都是最旧的帧
+            while (!index.isEmpty() && index.peekFirst().offset >= tail) {
+                evict();
+            }
+            offset = 0;
+        }
+        while (!index.isEmpty() && overlaps(index.peekFirst(), offset, length)) {
+            evict();
+        }
+        ByteBuffer target = segment.duplicate();
+        target.position(offset);
+        target.put(frame.duplicate());
+        FrameIndex entry = new FrameIndex(nanos, offset, length);
+        index.addLast(entry);
+        if (keyFrame) {
+            keyFrames.addLast(entry);
+        }
+        tail = offset + length;
+        if (keepNanos > 0) {
+            trim(nanos - keepNanos);
+        }
+        return true;
+    }
+
+    private static boolean overlaps(FrameIndex entry, int offset, int length) {
+        return entry.offset < offset + length && offset < entry.offset + entry.length;
+    }
+
+    private void evict() {
+        if (index.pollFirst() == keyFrames.peekFirst()) {
+            keyFrames.pollFirst();
+        }
+    }
+
+    /**
+     * 丢弃cutoff之前的帧，但保留cutoff之前最近的关键帧，导出时从它开始解码
+     */
+    private void trim(long cutoff) {
+        while (keyFrames.size() > 1) {
+            Iterator<FrameIndex> it = keyFrames.iterator();
+            it.next();
+            FrameIndex second = it.next();
+            if (second.nanos > cutoff) {
+                break;
+            }
+            while (index.peekFirst() != second) {
+                evict();
+            }
+        }
+        // 没有关键帧的开头无法解码
+        while (!keyFrames.isEmpty() && index.peekFirst() != keyFrames.peekFirst()) {
+            evict();
+        }
+    }
+
+    /**
+     * @return 缓存中的帧数
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * @return 最早的可导出帧的时间，没有时为-1
+     */
+    public synchronized long getFirstNanos() {
+        return keyFrames.isEmpty() ? -1 : keyFrames.peekFirst().nanos;
+    }
+
+    public synchronized int getClipCount() {
+        return clipCount;
+    }
+
+    /**
+     * 把文件头和从最早的关键帧起的所有帧写入文件
+     *
+     * @return 没有可播放的帧时返回false，不创建文件
+     */
+    public synchronized boolean writeClip(File output) throws IOException {
+        if (closed || keyFrames.isEmpty()) {
+            return false;
+        }
+        File parent = output.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        try (FileChannel out = FileChannel.open(output.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            if (header != null) {
+                write(out, ByteBuffer.wrap(header));
+            }
+            boolean started = false;
+            for (FrameIndex entry : index) {
+                started |= entry == keyFrames.peekFirst();
+                if (started) {
+                    ByteBuffer frame = segment.duplicate();
+                    frame.limit(entry.offset + entry.length).position(entry.offset);
+                    write(out, frame);
+                }
+            }
+        }
+        clipCount++;
+        return true;
+    }
+
+    private static void write(FileChannel out, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            out.write(data);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        index.clear();
+        keyFrames.clear();
+        if (!FileTool.unmap(segment)) {
+            log.warn("unmap capture segment {} failed.", segmentFile.getName());
+        }
+        channel.close();
+        if (!segmentFile.delete()) {
+            log.info("delete {} failed, will retry on exit.", segmentFile.getName());
+            segmentFile.deleteOnExit();
+        }
+    }
+
+    private static class FrameIndex {
+
+        private final long nanos;
+
+        private final int offset;
+
+        private final int length;
+
+        FrameIndex(long nanos, int offset, int length) {
+            this.nanos = nanos;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.screen;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 投屏链路中判断一帧是否需要分发，画面没有变化的帧直接丢弃以节省带宽
+ */
+public interface FrameChangeDetector {
+
+    /**
+     * @param frame 一帧jpeg，不会改变其position
+     * @param nanos System.nanoTime()
+     * @return 是否需要分发
+     */
+    boolean changed(ByteBuffer frame, long nanos);
+
+    /**
+     * 最近丢弃的帧与已分发的画面仍有细小差别，且距上次分发超过保活间隔时返回true。
+     * 画面静止后采集端不再出帧，调用方需要在空闲时检查，补发保留的最后一帧，
+     * 否则观看者会一直停在变化之前的画面
+     *
+     * @param nanos System.nanoTime()
+     */
+    default boolean flushDue(long nanos) {
+        return false;
+    }
+
+    /**
+     * 调用方补发了最近丢弃的帧
+     */
+    default void flushed(long nanos) {
+    }
+}
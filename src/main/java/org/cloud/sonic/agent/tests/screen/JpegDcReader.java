@@ -0,0 +1,475 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.screen;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 只解出baseline jpeg中亮度分量的DC系数，得到缩小后的亮度网格
+ * <p>
+ * 每个8x8块的DC系数就是该块的平均亮度，只做霍夫曼解码，不做反量化AC和IDCT，
+ * 比完整解码快得多。不支持的格式（渐进式、算术编码、12位等）返回false，由调用方回退。
+ * 非线程安全，每条采集链路使用自己的实例，霍夫曼表等状态跨帧复用。
+ */
+public class JpegDcReader {
+
+    private final HuffmanTable[] dcTables = new HuffmanTable[4];
+
+    private final HuffmanTable[] acTables = new HuffmanTable[4];
+
+    private final int[] quant = new int[4];
+
+    private final int[] componentIds = new int[4];
+
+    private final int[] h = new int[4];
+
+    private final int[] v = new int[4];
+
+    private final int[] tq = new int[4];
+
+    private final int[] scanDc = new int[4];
+
+    private final int[] scanAc = new int[4];
+
+    private final int[] preds = new int[4];
+
+    private int components;
+
+    private int width;
+
+    private int height;
+
+    private int restartInterval;
+
+    private long[] sums = new long[0];
+
+    private int[] counts = new int[0];
+
+    private int[] cellOfColumn = new int[0];
+
+    private int[] cellOfRow = new int[0];
+
+    private ByteBuffer data;
+
+    private int pos;
+
+    private int end;
+
+    private long acc;
+
+    private int accBits;
+
+    private boolean marker;
+
+    /**
+     * @param grid 输出，gridSize*gridSize个格子的平均亮度（-128~127）
+     * @return 格式不支持或数据损坏时返回false
+     */
+    public boolean read(ByteBuffer jpeg, float[] grid, int gridSize) {
+        data = jpeg;
+        pos = jpeg.position();
+        end = jpeg.limit();
+        components = 0;
+        restartInterval = 0;
+        try {
+            return parse(grid, gridSize);
+        } catch (IndexOutOfBoundsException | IllegalStateException e) {
+            return false;
+        } finally {
+            data = null;
+        }
+    }
+
+    private int u8(int i) {
+        return data.get(i) & 0xff;
+    }
+
+    private int u16(int i) {
+        return (u8(i) << 8) | u8(i + 1);
+    }
+
+    private boolean parse(float[] grid, int gridSize) {
+        if (u16(pos) != 0xFFD8) {
+            return false;
+        }
+        pos += 2;
+        while (pos + 4 <= end) {
+            if (u8(pos) != 0xff) {
+                return false;
+            }
+            int m = u8(pos + 1);
+            if (m == 0xff) {
+                // 填充字节
+                pos++;
+                continue;
+            }
+            pos += 2;
+            if (m == 0x01 || (m >= 0xD0 && m <= 0xD7)) {
+                continue;
+            }
+            if (m == 0xD9) {
+                return false;
+            }
+            int length = u16(pos);
+            int segment = pos + 2;
+            int next = pos + length;
+            switch (m) {
+                case 0xC0, 0xC1 -> {
+                    if (!readFrameHeader(segment)) {
+                        return false;
+                    }
+                }
+                case 0xC4 -> readHuffmanTables(segment, next);
+                case 0xDB -> readQuantTables(segment, next);
+                case 0xDD -> restartInterval = u16(segment);
+                case 0xDA -> {
+                    return readScan(segment, next, grid, gridSize);
+                }
+                default -> {
+                    // 其他SOF（渐进式、无损、算术编码）不支持，APPn、COM等跳过
+                    if (m >= 0xC2 && m <= 0xCF && m != 0xC4 && m != 0xC8 && m != 0xCC) {
+                        return false;
+                    }
+                }
+            }
+            pos = next;
+        }
+        return false;
+    }
+
+    private boolean readFrameHeader(int p) {
+        if (u8(p) != 8) {
+            return false;
+        }
+        height = u16(p + 1);
+        width = u16(p + 3);
+        components = u8(p + 5);
+        if (components < 1 || components > 4 || width == 0 || height == 0) {
+            return false;
+        }
+        for (int i = 0; i < components; i++) {
+            int c = p + 6 + i * 3;
+            componentIds[i] = u8(c);
+            h[i] = u8(c + 1) >> 4;
+            v[i] = u8(c + 1) & 15;
+            tq[i] = u8(c + 2) & 3;
+            if (h[i] == 0 || v[i] == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void readHuffmanTables(int p, int end) {
+        while (p < end) {
+            int info = u8(p);
+            int[] bits = new int[17];
+            int total = 0;
+            for (int l = 1; l <= 16; l++) {
+                bits[l] = u8(p + l);
+                total += bits[l];
+            }
+            byte[] values = new byte[total];
+            for (int i = 0; i < total; i++) {
+                values[i] = data.get(p + 17 + i);
+            }
+            HuffmanTable table = new HuffmanTable(bits, values);
+            if ((info >> 4) == 0) {
+                dcTables[info & 3] = table;
+            } else {
+                acTables[info & 3] = table;
+            }
+            p += 17 + total;
+        }
+    }
+
+    private void readQuantTables(int p, int end) {
+        while (p < end) {
+            int info = u8(p);
+            boolean sixteenBits = (info >> 4) != 0;
+            // 只需要DC的量化值，位于zigzag第一个
+            quant[info & 3] = sixteenBits ? u16(p + 1) : u8(p + 1);
+            p += 1 + (sixteenBits ? 128 : 64);
+        }
+    }
+
+    private boolean readScan(int p, int entropyStart, float[] grid, int gridSize) {
+        int ns = u8(p);
+        if (components == 0 || ns < 1 || ns > components) {
+            return false;
+        }
+        int[] order = new int[ns];
+        for (int i = 0; i < ns; i++) {
+            int id = u8(p + 1 + i * 2);
+            int tables = u8(p + 2 + i * 2);
+            order[i] = -1;
+            for (int c = 0; c < components; c++) {
+                if (componentIds[c] == id) {
+                    order[i] = c;
+                }
+            }
+            if (order[i] < 0) {
+                return false;
+            }
+            scanDc[i] = tables >> 4;
+            scanAc[i] = tables & 15;
+            if (dcTables[scanDc[i] & 3] == null || acTables[scanAc[i] & 3] == null) {
+                return false;
+            }
+        }
+        // 第一个分量不是亮度的扫描（如只有色度的单独扫描）得不到亮度
+        if (order[0] != 0) {
+            return false;
+        }
+        int hMax = 1;
+        int vMax = 1;
+        for (int c = 0; c < components; c++) {
+            hMax = Math.max(hMax, h[c]);
+            vMax = Math.max(vMax, v[c]);
+        }
+        int lumaWidth = (width * h[0] + hMax - 1) / hMax;
+        int lumaHeight = (height * v[0] + vMax - 1) / vMax;
+        int mcusX;
+        int mcusY;
+        int lumaH;
+        int lumaV;
+        if (ns == 1) {
+            // 非交错扫描，每个MCU只有一个块
+            mcusX = (lumaWidth + 7) / 8;
+            mcusY = (lumaHeight + 7) / 8;
+            lumaH = 1;
+            lumaV = 1;
+        } else {
+            mcusX = (width + 8 * hMax - 1) / (8 * hMax);
+            mcusY = (height + 8 * vMax - 1) / (8 * vMax);
+            lumaH = h[0];
+            lumaV = v[0];
+        }
+        prepareCells(mcusX * lumaH, mcusY * lumaV, lumaWidth, lumaHeight, gridSize);
+
+        pos = entropyStart;
+        acc = 0;
+        accBits = 0;
+        marker = false;
+        Arrays.fill(preds, 0);
+        int restarts = 0;
+        int total = mcusX * mcusY;
+        for (int mcu = 0; mcu < total; mcu++) {
+            if (restartInterval > 0 && mcu > 0 && mcu % restartInterval == 0) {
+                restart();
+                restarts++;
+            }
+            int mx = mcu % mcusX;
+            int my = mcu / mcusX;
+            for (int i = 0; i < ns; i++) {
+                int c = order[i];
+                int blocksH = ns == 1 ? 1 : h[c];
+                int blocksV = ns == 1 ? 1 : v[c];
+                HuffmanTable dc = dcTables[scanDc[i] & 3];
+                HuffmanTable ac = acTables[scanAc[i] & 3];
+                for (int by = 0; by < blocksV; by++) {
+                    for (int bx = 0; bx < blocksH; bx++) {
+                        preds[i] += receiveExtend(decode(dc));
+                        skipAc(ac);
+                        if (c == 0) {
+                            accumulate(mx * blocksH + bx, my * blocksV + by, preds[i]);
+                        }
+                    }
+                }
+            }
+        }
+        float scale = quant[tq[0]] / 8f;
+        for (int i = 0; i < gridSize * gridSize; i++) {
+            grid[i] = counts[i] == 0 ? 0 : sums[i] * scale / counts[i];
+        }
+        return true;
+    }
+
+    private void prepareCells(int blocksX, int blocksY, int lumaWidth, int lumaHeight, int gridSize) {
+        int cells = gridSize * gridSize;
+        if (sums.length != cells) {
+            sums = new long[cells];
+            counts = new int[cells];
+        } else {
+            Arrays.fill(sums, 0);
+            Arrays.fill(counts, 0);
+        }
+        cellOfColumn = cellIndex(cellOfColumn, blocksX, lumaWidth, gridSize, 1);
+        cellOfRow = cellIndex(cellOfRow, blocksY, lumaHeight, gridSize, gridSize);
+    }
+
+    /**
+     * @return 每列（行）块所在的格子偏移，超出图像的填充块为-1
+     */
+    private static int[] cellIndex(int[] reuse, int blocks, int pixels, int gridSize, int stride) {
+        int[] index = reuse.length == blocks ? reuse : new int[blocks];
+        for (int b = 0; b < blocks; b++) {
+            int pixel = b * 8;
+            index[b] = pixel >= pixels ? -1 : (int) ((long) pixel * gridSize / pixels) * stride;
+        }
+        return index;
+    }
+
+    private void accumulate(int blockX, int blockY, int dc) {
+        if (blockX >= cellOfColumn.length || blockY >= cellOfRow.length) {
+            return;
+        }
+        int cx = cellOfColumn[blockX];
+        int cy = cellOfRow[blockY];
+        if (cx < 0 || cy < 0) {
+            return;
+        }
+        sums[cx + cy] += dc;
+        counts[cx + cy]++;
+    }
+
+    private void restart() {
+        acc = 0;
+        accBits = 0;
+        marker = false;
+        Arrays.fill(preds, 0);
+        while (pos + 1 < end) {
+            if (u8(pos) == 0xff && u8(pos + 1) >= 0xD0 && u8(pos + 1) <= 0xD7) {
+                pos += 2;
+                return;
+            }
+            pos++;
+        }
+        throw new IllegalStateException("restart marker missing");
+    }
+
+    private void fill() {
+        while (accBits <= 56) {
+            int b = 0;
+            if (!marker && pos < end) {
+                b = u8(pos);
+                if (b == 0xff) {
+                    int next = pos + 1 < end ? u8(pos + 1) : 0xD9;
+                    if (next == 0) {
+                        pos += 2;
+                    } else {
+                        // 遇到标记后补0，由restart或结束处理
+                        marker = true;
+                        b = 0;
+                    }
+                } else {
+                    pos++;
+                }
+            }
+            acc |= ((long) b) << (56 - accBits);
+            accBits += 8;
+        }
+    }
+
+    private int peek(int n) {
+        return (int) (acc >>> (64 - n));
+    }
+
+    private void consume(int n) {
+        acc <<= n;
+        accBits -= n;
+    }
+
+    private int decode(HuffmanTable table) {
+        fill();
+        int entry = table.lookup[peek(HuffmanTable.LOOKUP_BITS)];
+        if (entry != 0) {
+            consume(entry >> 8);
+            return entry & 0xff;
+        }
+        int length = HuffmanTable.LOOKUP_BITS + 1;
+        int code = peek(length);
+        while (code > table.maxCode[length]) {
+            if (++length > 16) {
+                throw new IllegalStateException("bad huffman code");
+            }
+            code = peek(length);
+        }
+        consume(length);
+        return table.values[table.valuePointer[length] + code - table.minCode[length]] & 0xff;
+    }
+
+    private int receiveExtend(int size) {
+        if (size == 0) {
+            return 0;
+        }
+        if (size > 16) {
+            throw new IllegalStateException("bad dc size");
+        }
+        int value = peek(size);
+        consume(size);
+        return value < (1 << (size - 1)) ? value - (1 << size) + 1 : value;
+    }
+
+    private void skipAc(HuffmanTable table) {
+        for (int k = 1; k < 64; k++) {
+            int rs = decode(table);
+            int run = rs >> 4;
+            int size = rs & 15;
+            if (size == 0) {
+                if (run != 15) {
+                    return;
+                }
+                k += 15;
+            } else {
+                k += run;
+                consume(size);
+            }
+        }
+    }
+
+    private static class HuffmanTable {
+
+        private static final int LOOKUP_BITS = 8;
+
+        /**
+         * 码长不超过8位的直接查表，值为(码长<<8)|符号，0表示需要逐位查找
+         */
+        private final int[] lookup = new int[1 << LOOKUP_BITS];
+
+        private final int[] maxCode = new int[18];
+
+        private final int[] minCode = new int[17];
+
+        private final int[] valuePointer = new int[17];
+
+        private final byte[] values;
+
+        HuffmanTable(int[] bits, byte[] values) {
+            this.values = values;
+            int code = 0;
+            int k = 0;
+            for (int l = 1; l <= 16; l++) {
+                valuePointer[l] = k;
+                minCode[l] = code;
+                for (int i = 0; i < bits[l]; i++, k++, code++) {
+                    if (l <= LOOKUP_BITS) {
+                        int shift = LOOKUP_BITS - l;
+                        for (int fill = 0; fill < (1 << shift); fill++) {
+                            lookup[(code << shift) | fill] = (l << 8) | (values[k] & 0xff);
+                        }
+                    }
+                }
+                maxCode[l] = bits[l] > 0 ? code - 1 : -1;
+                code <<= 1;
+            }
+            maxCode[17] = Integer.MAX_VALUE;
+        }
+    }
+}
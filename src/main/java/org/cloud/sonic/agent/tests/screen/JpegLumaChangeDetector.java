@@ -0,0 +1,147 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.screen;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按缩小后的亮度网格判断画面是否变化
+ * <p>
+ * jpeg重新编码的噪声、轻微的亮度变化不会让任何格子的平均亮度变化超过阈值，这些帧被丢弃；
+ * 与上一次分发的帧比较，缓慢的累积变化最终也会被发出。连续丢弃超过保活间隔后强制分发一帧，
+ * 保证细小的动画也能以低帧率更新。连续变化中最后几帧的细小差别（输入一个字符、光标移动）被丢弃后，
+ * 画面静止时采集端不再出帧，由调用方在保活间隔后通过{@link #flushDue(long)}补发。
+ * 无法解析的jpeg回退为字节完全相同才丢弃。
+ */
+public class JpegLumaChangeDetector implements FrameChangeDetector {
+
+    public static final int DEFAULT_GRID_SIZE = 32;
+
+    /**
+     * 格子平均亮度的变化阈值（0~255）
+     */
+    public static final float DEFAULT_THRESHOLD = 3f;
+
+    public static final long DEFAULT_KEEP_ALIVE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final JpegDcReader reader = new JpegDcReader();
+
+    private final Crc32cChangeDetector exact = new Crc32cChangeDetector();
+
+    private final int gridSize;
+
+    private final float threshold;
+
+    private final long keepAliveNanos;
+
+    private float[] current;
+
+    private float[] sent;
+
+    /**
+     * 最近丢弃的、与已分发画面有细小差别的帧
+     */
+    private float[] dropped;
+
+    private boolean dirty = false;
+
+    private boolean hasSent = false;
+
+    private long lastSentNanos;
+
+    private long sentCount = 0;
+
+    private long skippedCount = 0;
+
+    public JpegLumaChangeDetector() {
+        this(DEFAULT_GRID_SIZE, DEFAULT_THRESHOLD, DEFAULT_KEEP_ALIVE_NANOS);
+    }
+
+    public JpegLumaChangeDetector(int gridSize, float threshold, long keepAliveNanos) {
+        this.gridSize = gridSize;
+        this.threshold = threshold;
+        this.keepAliveNanos = keepAliveNanos;
+        this.current = new float[gridSize * gridSize];
+        this.sent = new float[gridSize * gridSize];
+        this.dropped = new float[gridSize * gridSize];
+    }
+
+    @Override
+    public boolean changed(ByteBuffer frame, long nanos) {
+        boolean parsed = reader.read(frame, current, gridSize);
+        float diff = parsed && hasSent ? maxDiff(current, sent) : Float.MAX_VALUE;
+        boolean changed = parsed ? diff >= threshold : exact.changed(frame, nanos);
+        if (!changed && nanos - lastSentNanos < keepAliveNanos) {
+            skippedCount++;
+            // 只记住最新丢弃的一帧，它与已分发的画面完全一致时不用补发
+            dirty = parsed && diff > 0;
+            if (dirty) {
+                float[] swap = dropped;
+                dropped = current;
+                current = swap;
+            }
+            return false;
+        }
+        if (parsed) {
+            float[] swap = sent;
+            sent = current;
+            current = swap;
+        }
+        hasSent = parsed;
+        dirty = false;
+        lastSentNanos = nanos;
+        sentCount++;
+        return true;
+    }
+
+    @Override
+    public boolean flushDue(long nanos) {
+        return dirty && nanos - lastSentNanos >= keepAliveNanos;
+    }
+
+    @Override
+    public void flushed(long nanos) {
+        if (!dirty) {
+            return;
+        }
+        float[] swap = sent;
+        sent = dropped;
+        dropped = swap;
+        dirty = false;
+        lastSentNanos = nanos;
+        sentCount++;
+        skippedCount--;
+    }
+
+    private static float maxDiff(float[] a, float[] b) {
+        float max = 0;
+        for (int i = 0; i < a.length; i++) {
+            max = Math.max(max, Math.abs(a[i] - b[i]));
+        }
+        return max;
+    }
+
+    public long getSentCount() {
+        return sentCount;
+    }
+
+    public long getSkippedCount() {
+        return skippedCount;
+    }
+}
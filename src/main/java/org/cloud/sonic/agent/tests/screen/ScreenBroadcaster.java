@@ -0,0 +1,660 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.screen;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.cloud.sonic.agent.common.maps.ScreenMap;
+import org.cloud.sonic.agent.tests.android.scrcpy.Mp4Muxer;
+import org.cloud.sonic.agent.tests.thermal.ThermalManager;
+import org.cloud.sonic.agent.tools.BytesTool;
+import org.cloud.sonic.agent.tools.SessionSender;
+import org.cloud.sonic.agent.tools.metrics.Counter;
+import org.cloud.sonic.agent.tools.metrics.LatencyHistogram;
+import org.cloud.sonic.agent.tools.metrics.MetricsRegistry;
+
+import com.alibaba.fastjson.JSONObject;
+
+import jakarta.websocket.Session;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 同一设备的投屏只跑一条采集链路（minicap、scrcpy或wda mjpeg），画面分发给所有订阅的session
+ * <p>
+ * 保存最近的size、rotation消息，以及最近一帧jpeg或最近一个关键帧起的h264访问单元，
+ * 后加入的session订阅时立即补发，不必等待下一帧或重启采集。
+ * 帧buffer按引用计数共享，所有session发送完成且不再被缓存后才归还给采集线程的缓冲池，
+ * 缓存的GOP同样只持有引用，下一个关键帧到来或缓存清空时归还。
+ * 有session要求fmp4或有录像时，h264另外经{@link Mp4Muxer}封装一份，所有使用者共用同一个封装器。
+ */
+@Slf4j
+public class ScreenBroadcaster {
+
+    /**
+     * 补发给后加入session的h264数据上限，按缓存占用的缓冲容量计算，超过后只能等下一个关键帧
+     */
+    public static final int GOP_CACHE_LIMIT = 8 * 1024 * 1024;
+
+    private static final long STOP_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * session的userProperties中记录画面格式的key
+     */
+    public static final String FORMAT_KEY = "screenFormat";
+
+    public static final String FORMAT_FMP4 = "fmp4";
+
+    /**
+     * 在启动参数中限制帧率的采集方式，帧率上限变化后按新的上限重启；
+     * minicap在读取端按上限放慢，mjpeg的帧率由wda决定，都不需要重启
+     */
+    private static final Set<String> FPS_CAPPED_AT_START = Set.of("scrcpy");
+
+    private final String udId;
+
+    private final Set<Session> subscribers = new CopyOnWriteArraySet<>();
+
+    /**
+     * 需要补发的控制消息，key为msg类型
+     */
+    private final Map<String, String> lastMessages = new ConcurrentHashMap<>();
+
+    private SharedFrame lastFrame;
+
+    private final GopCache gop = new GopCache();
+
+    /**
+     * 没有fmp4使用者时为null
+     */
+    private Mp4Muxer muxer;
+
+    private ByteBuffer mp4Init;
+
+    private final GopCache mp4Gop = new GopCache();
+
+    private final Set<Consumer<ByteBuffer>> recorders = new CopyOnWriteArraySet<>();
+
+    private Thread capture;
+
+    private String type;
+
+    /**
+     * 当前采集链路的启动方式，帧率上限变化后用它重启
+     */
+    private Supplier<Thread> starter;
+
+    private volatile int captureQuality = -1;
+
+    /**
+     * 设备降温期间的帧率上限，同时作用于采集源与各session
+     */
+    private volatile int fpsCap;
+
+    private final Counter jpegFrames;
+
+    private final Counter h264Frames;
+
+    private final Counter frameBytes;
+
+    private final Counter throttledFrames;
+
+    private final LatencyHistogram publishTime;
+
+    private ScreenBroadcaster(String udId) {
+        this.udId = udId;
+        this.fpsCap = ThermalManager.getFpsCap(udId);
+        jpegFrames = MetricsRegistry.counter("sonic_agent_screen_frames_total", "Frames captured from device screen",
+                "udId", udId, "format", "jpeg");
+        h264Frames = MetricsRegistry.counter("sonic_agent_screen_frames_total", "Frames captured from device screen",
+                "udId", udId, "format", "h264");
+        frameBytes = MetricsRegistry.counter("sonic_agent_screen_bytes_total", "Bytes captured from device screen",
+                "udId", udId);
+        throttledFrames = MetricsRegistry.counter("sonic_agent_screen_throttled_total",
+                "Frames not sent to a session because of its frame rate limit", "udId", udId);
+        publishTime = MetricsRegistry.histogram("sonic_agent_screen_publish_seconds",
+                "Time spent handing a frame to all subscribers", "udId", udId);
+    }
+
+    public static ScreenBroadcaster of(String udId) {
+        return ScreenMap.getMap().computeIfAbsent(udId, ScreenBroadcaster::new);
+    }
+
+    public static ScreenBroadcaster get(String udId) {
+        return ScreenMap.getMap().get(udId);
+    }
+
+    public String getUdId() {
+        return udId;
+    }
+
+    public Set<Session> getSubscribers() {
+        return subscribers;
+    }
+
+    public boolean hasSubscribers() {
+        return !subscribers.isEmpty();
+    }
+
+    /**
+     * 订阅并补发最近的控制消息与画面
+     */
+    public void subscribe(Session session) {
+        synchronized (this) {
+            if (!subscribers.add(session)) {
+                return;
+            }
+            log.info("{} screen subscribers: {}", udId, subscribers.size());
+            ScreenFrameGovernor governor = ScreenFrameGovernor.get(session);
+            if (governor != null) {
+                governor.setFpsCap(fpsCap);
+            }
+            lastMessages.values().forEach(message -> BytesTool.sendText(session, message));
+            if (isFmp4(session)) {
+                ensureMuxer();
+                if (mp4Init != null) {
+                    BytesTool.sendByte(session, mp4Init.duplicate());
+                }
+                mp4Gop.forEach(entry -> sendCached(session, entry));
+                return;
+            }
+            if (lastFrame != null) {
+                lastFrame.retain();
+                BytesTool.sendFrame(session, lastFrame.buffer.duplicate(), lastFrame);
+            }
+            gop.forEach(entry -> sendCached(session, entry));
+        }
+    }
+
+    /**
+     * @return 剩余订阅数
+     */
+    public int unsubscribe(Session session) {
+        subscribers.remove(session);
+        releaseMuxerIfUnused();
+        return subscribers.size();
+    }
+
+    /**
+     * 录像订阅fmp4数据，先收到初始化段和最近一个关键帧起的片段
+     */
+    public synchronized void addRecorder(Consumer<ByteBuffer> recorder) {
+        ensureMuxer();
+        recorders.add(recorder);
+        if (mp4Init != null) {
+            recorder.accept(mp4Init.duplicate());
+        }
+        mp4Gop.forEach(entry -> recorder.accept(entry.data.duplicate()));
+    }
+
+    public void removeRecorder(Consumer<ByteBuffer> recorder) {
+        recorders.remove(recorder);
+        releaseMuxerIfUnused();
+    }
+
+    /**
+     * 设置帧率上限，之后订阅的session同样生效；只限制发送的话设备仍按原帧率采集编码，
+     * 所以采集源也要降下来：scrcpy按新的max_fps重启，minicap读取时按上限放慢
+     */
+    public void setFpsCap(int fpsCap) {
+        int old = this.fpsCap;
+        this.fpsCap = fpsCap;
+        for (Session session : subscribers) {
+            ScreenFrameGovernor governor = ScreenFrameGovernor.get(session);
+            if (governor != null) {
+                governor.setFpsCap(fpsCap);
+            }
+        }
+        if (old != fpsCap) {
+            restartCappedCapture();
+        }
+    }
+
+    /**
+     * @return 帧率上限，没有降载时为Integer.MAX_VALUE
+     */
+    public int getFpsCap() {
+        return fpsCap;
+    }
+
+    /**
+     * 重启要等旧链路释放资源，不占用调用方（电量采样）的线程
+     */
+    private void restartCappedCapture() {
+        synchronized (this) {
+            if (capture == null || !FPS_CAPPED_AT_START.contains(type)) {
+                return;
+            }
+        }
+        Thread thread = new Thread(() -> {
+            synchronized (this) {
+                // 期间采集已被停止或换成其他方式时不再重启
+                if (capture != null && FPS_CAPPED_AT_START.contains(type) && starter != null) {
+                    log.info("{} screen fps cap change to {}, restarting {}...", udId, fpsCap, type);
+                    startCapture(type, starter);
+                }
+            }
+        }, "screen-fps-restart");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public boolean hasRecorders() {
+        return !recorders.isEmpty();
+    }
+
+    private static boolean isFmp4(Session session) {
+        return FORMAT_FMP4.equals(session.getUserProperties().get(FORMAT_KEY));
+    }
+
+    /**
+     * 关闭所有订阅的session，各session的onClose中自行退订
+     */
+    public void closeSubscribers() {
+        for (Session session : subscribers) {
+            try {
+                session.close();
+            } catch (IOException e) {
+                log.info(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 发给所有订阅者，size、rotation会保存下来补发给后加入的session
+     */
+    public void sendText(JSONObject message) {
+        String text = message.toJSONString();
+        String msg = message.getString("msg");
+        if ("size".equals(msg) || "rotation".equals(msg)) {
+            lastMessages.put(msg, text);
+        }
+        for (Session session : subscribers) {
+            BytesTool.sendText(session, text);
+        }
+    }
+
+    /**
+     * 分发一帧jpeg，各session按自己的{@link ScreenFrameGovernor}控制帧率，只保留最新帧
+     *
+     * @param release 所有session发送完成后归还帧buffer，可为null
+     */
+    public void publishFrame(ByteBuffer frame, Consumer<ByteBuffer> release) {
+        jpegFrames.increment();
+        frameBytes.add(frame.remaining());
+        SharedFrame shared = new SharedFrame(frame, release);
+        // 缓存另持有一个引用，分发期间被clearCache释放也不会归还
+        shared.retain();
+        SharedFrame old;
+        synchronized (this) {
+            old = lastFrame;
+            lastFrame = shared;
+        }
+        long now = System.nanoTime();
+        for (Session session : subscribers) {
+            ScreenFrameGovernor governor = ScreenFrameGovernor.get(session);
+            if (governor != null) {
+                if (!governor.tryAcquire(now)) {
+                    throttledFrames.increment();
+                    continue;
+                }
+                // 上一帧还没发出去说明前端消费不过来
+                SessionSender sender = SessionSender.of(session);
+                governor.onSent(sender.getLastSendNanos(), sender.hasPendingFrame() ? 1 : 0, now);
+            }
+            shared.retain();
+            BytesTool.sendFrame(session, frame.duplicate(), shared);
+        }
+        shared.accept(null);
+        if (old != null) {
+            old.accept(null);
+        }
+        publishTime.recordSince(now);
+    }
+
+    /**
+     * 按顺序分发一个h264访问单元，关键帧起的访问单元会缓存下来补发给后加入的session
+     *
+     * @param release 所有session发送完成后归还buffer
+     */
+    public void publishAccessUnit(ByteBuffer accessUnit, boolean keyFrame, Consumer<ByteBuffer> release) {
+        h264Frames.increment();
+        frameBytes.add(accessUnit.remaining());
+        SharedFrame shared = new SharedFrame(accessUnit, release);
+        long now = System.nanoTime();
+        synchronized (this) {
+            gop.add(accessUnit, shared, keyFrame, now);
+            for (Session session : subscribers) {
+                if (!isFmp4(session)) {
+                    shared.retain();
+                    BytesTool.sendByte(session, accessUnit.duplicate(), shared);
+                }
+            }
+            if (muxer != null) {
+                muxFragment(accessUnit, keyFrame, now, true);
+            }
+        }
+        shared.accept(null);
+        publishTime.recordSince(now);
+    }
+
+    /**
+     * 第一个fmp4使用者出现时创建封装器，用缓存的GOP预先封装，不必等下一个关键帧
+     */
+    private synchronized void ensureMuxer() {
+        if (muxer == null) {
+            muxer = new Mp4Muxer();
+            for (GopEntry entry : gop.entries()) {
+                muxFragment(entry.data.duplicate(), entry.keyFrame, entry.nanos, false);
+            }
+        }
+    }
+
+    private synchronized void releaseMuxerIfUnused() {
+        if (muxer == null || !recorders.isEmpty()) {
+            return;
+        }
+        for (Session session : subscribers) {
+            if (isFmp4(session)) {
+                return;
+            }
+        }
+        muxer = null;
+        mp4Init = null;
+        mp4Gop.clear();
+    }
+
+    /**
+     * @param dispatch 是否发给当前的fmp4 session和录像，预先封装时只缓存
+     */
+    private void muxFragment(ByteBuffer accessUnit, boolean keyFrame, long nanos, boolean dispatch) {
+        ByteBuffer fragment = muxer.mux(accessUnit, keyFrame, nanos);
+        if (fragment == null) {
+            return;
+        }
+        ByteBuffer init = muxer.getInitSegment();
+        if (init != mp4Init) {
+            // SPS变化（如投屏重启）后需要先发新的初始化段
+            mp4Init = init;
+            if (dispatch) {
+                dispatchMp4(init);
+            }
+        }
+        // 片段本身就是新分配的堆内存，不必再拷贝
+        mp4Gop.add(fragment, null, keyFrame, nanos);
+        if (dispatch) {
+            dispatchMp4(fragment);
+        }
+    }
+
+    private void dispatchMp4(ByteBuffer segment) {
+        for (Session session : subscribers) {
+            if (isFmp4(session)) {
+                BytesTool.sendByte(session, segment.duplicate());
+            }
+        }
+        for (Consumer<ByteBuffer> recorder : recorders) {
+            recorder.accept(segment.duplicate());
+        }
+    }
+
+    /**
+     * minicap只能用一个质量启动，取所有订阅者中最高的质量，避免个别慢的观看者拖累其他人
+     */
+    public int resolveQuality(int defaultQuality) {
+        int quality = -1;
+        for (Session session : subscribers) {
+            ScreenFrameGovernor governor = ScreenFrameGovernor.get(session);
+            if (governor != null) {
+                quality = Math.max(quality, governor.getQuality());
+            }
+        }
+        return quality < 0 ? defaultQuality : quality;
+    }
+
+    public int getCaptureQuality() {
+        return captureQuality;
+    }
+
+    public void setCaptureQuality(int captureQuality) {
+        this.captureQuality = captureQuality;
+    }
+
+    public synchronized boolean isCapturing(String type) {
+        return capture != null && type.equals(this.type);
+    }
+
+    /**
+     * 停止当前采集（如有）后启动新的采集
+     *
+     * @param starter 返回采集链路的主线程，链路结束时需调用{@link #captureStopped(Thread)}
+     */
+    public synchronized void startCapture(String type, Supplier<Thread> starter) {
+        stopCapture(true);
+        this.type = type;
+        this.starter = starter;
+        capture = starter.get();
+    }
+
+    /**
+     * 已在以该方式采集时直接复用，否则启动
+     *
+     * @return 是否新启动了采集
+     */
+    public synchronized boolean startCaptureIfAbsent(String type, Supplier<Thread> starter) {
+        if (isCapturing(type)) {
+            return false;
+        }
+        startCapture(type, starter);
+        return true;
+    }
+
+    /**
+     * @param await 是否等待采集链路释放端口转发等资源
+     */
+    public synchronized void stopCapture(boolean await) {
+        Thread old = capture;
+        if (old != null) {
+            old.interrupt();
+        }
+        long deadline = System.currentTimeMillis() + STOP_TIMEOUT;
+        while (await && old != null && capture == old) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                log.warn("{} wait screen capture stop timeout.", udId);
+                break;
+            }
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        capture = null;
+        type = null;
+        starter = null;
+        captureQuality = -1;
+        clearCache();
+    }
+
+    /**
+     * 采集链路退出时调用，已被新链路替换的旧线程调用时忽略
+     */
+    public synchronized void captureStopped(Thread thread) {
+        if (capture == thread) {
+            capture = null;
+            type = null;
+            starter = null;
+            captureQuality = -1;
+            clearCache();
+        }
+        notifyAll();
+    }
+
+    /**
+     * 最后一个订阅者退出后停止采集并移除
+     */
+    public void close() {
+        stopCapture(false);
+        lastMessages.clear();
+        ScreenMap.getMap().remove(udId, this);
+    }
+
+    private synchronized void clearCache() {
+        if (lastFrame != null) {
+            lastFrame.accept(null);
+            lastFrame = null;
+        }
+        gop.clear();
+        mp4Gop.clear();
+        mp4Init = null;
+        if (muxer != null) {
+            // 时间轴保持连续，已在播放的MSE不用重新创建
+            muxer.reset();
+        }
+    }
+
+    private static void sendCached(Session session, GopEntry entry) {
+        if (entry.ref == null) {
+            BytesTool.sendByte(session, entry.data.duplicate());
+            return;
+        }
+        entry.ref.retain();
+        BytesTool.sendByte(session, entry.data.duplicate(), entry.ref);
+    }
+
+    /**
+     * 最近一个关键帧起的数据
+     */
+    private static class GopCache {
+
+        private final List<GopEntry> entries = new ArrayList<>();
+
+        private int bytes = 0;
+
+        private boolean full = false;
+
+        /**
+         * @param ref 池化buffer的引用，缓存时持有一个引用；堆内存数据为null
+         */
+        void add(ByteBuffer data, SharedFrame ref, boolean keyFrame, long nanos) {
+            if (keyFrame) {
+                clear();
+            }
+            // 还没遇到过关键帧或超过上限后不再缓存，直到下一个关键帧
+            if (full || (!keyFrame && entries.isEmpty())) {
+                return;
+            }
+            // 池化buffer整个被占住，按容量计算
+            int length = ref == null ? data.remaining() : data.capacity();
+            if (bytes + length > GOP_CACHE_LIMIT) {
+                // 不完整的GOP补发了也无法解码
+                clear();
+                full = true;
+                return;
+            }
+            if (ref != null) {
+                ref.retain();
+            }
+            entries.add(new GopEntry(data, ref, keyFrame, nanos));
+            bytes += length;
+        }
+
+        void forEach(Consumer<GopEntry> action) {
+            entries.forEach(action);
+        }
+
+        List<GopEntry> entries() {
+            return entries;
+        }
+
+        void clear() {
+            for (GopEntry entry : entries) {
+                if (entry.ref != null) {
+                    entry.ref.accept(null);
+                }
+            }
+            entries.clear();
+            bytes = 0;
+            full = false;
+        }
+    }
+
+    private static class GopEntry {
+
+        private final ByteBuffer data;
+
+        private final SharedFrame ref;
+
+        private final boolean keyFrame;
+
+        /**
+         * 到达时间，预先封装fmp4时作为解码时间
+         */
+        private final long nanos;
+
+        GopEntry(ByteBuffer data, SharedFrame ref, boolean keyFrame, long nanos) {
+            this.data = data;
+            this.ref = ref;
+            this.keyFrame = keyFrame;
+            this.nanos = nanos;
+        }
+    }
+
+    /**
+     * 多个session共用的帧buffer，作为发送完成回调时每次调用减少一个引用
+     */
+    private static class SharedFrame implements Consumer<ByteBuffer> {
+
+        private final ByteBuffer buffer;
+
+        private final Consumer<ByteBuffer> release;
+
+        /**
+         * 初始引用由发布方持有，分发完后释放
+         */
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        SharedFrame(ByteBuffer buffer, Consumer<ByteBuffer> release) {
+            this.buffer = buffer;
+            this.release = release;
+        }
+
+        void retain() {
+            refs.incrementAndGet();
+        }
+
+        @Override
+        public void accept(ByteBuffer ignored) {
+            if (refs.decrementAndGet() == 0 && release != null) {
+                release.accept(buffer);
+            }
+        }
+    }
+}
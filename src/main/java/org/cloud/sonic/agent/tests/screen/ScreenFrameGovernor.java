@@ -0,0 +1,230 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.screen;
+
+import java.util.concurrent.TimeUnit;
+
+import jakarta.websocket.Session;
+
+/**
+ * 投屏帧率与画质调节
+ * <p>
+ * 每个投屏Session一个实例，保存在session的userProperties中。发送线程每帧先调用{@link #tryAcquire(long)}
+ * 判断是否到了发送时间，发送后用{@link #onSent(long, int, long)}上报耗时与积压帧数。
+ * 根据发送耗时占帧间隔的比例升降目标帧率（加性增、乘性减），帧率长时间压在低位时降低jpeg质量，
+ * 长时间满帧且很空闲时再恢复质量，质量变化通过{@link QualityListener}通知投屏服务重启或下发设置。
+ * 设备降温期间另有帧率封顶（{@link #setFpsCap(int)}），与前端选择的上限取较小值。
+ */
+public class ScreenFrameGovernor {
+
+    public interface QualityListener {
+        void onQualityChange(int quality);
+    }
+
+    public static final String SESSION_KEY = "frameGovernor";
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * 每隔多久根据统计调整一次帧率
+     */
+    private static final long ADJUST_PERIOD = SECOND;
+
+    /**
+     * 画质需要持续多久满足条件才切换，避免频繁重启投屏
+     */
+    private static final long QUALITY_HOLD = 10 * SECOND;
+
+    private static final int MIN_FPS = 5;
+
+    private static final double BUSY_RATIO = 0.8;
+
+    private static final double IDLE_RATIO = 0.5;
+
+    private static final double QUALITY_UP_RATIO = 0.3;
+
+    private final int[] qualityLevels;
+
+    private final QualityListener qualityListener;
+
+    private volatile int maxFps;
+
+    private volatile int fps;
+
+    private volatile int fpsCap = Integer.MAX_VALUE;
+
+    private volatile int qualityIndex = 0;
+
+    private long lastSendAt = Long.MIN_VALUE;
+
+    private double avgSendNanos = 0;
+
+    private int maxBacklog = 0;
+
+    private long lastAdjustAt = 0;
+
+    private long lowSince = 0;
+
+    private long idleSince = 0;
+
+    /**
+     * @param maxFps          帧率上限
+     * @param qualityLevels   由高到低的jpeg质量档位
+     * @param qualityListener 质量变化回调，在发送线程中调用，耗时操作需自行异步
+     */
+    public ScreenFrameGovernor(int maxFps, int[] qualityLevels, QualityListener qualityListener) {
+        this.maxFps = maxFps;
+        this.fps = maxFps;
+        this.qualityLevels = qualityLevels;
+        this.qualityListener = qualityListener;
+    }
+
+    public static ScreenFrameGovernor get(Session session) {
+        if (session == null) {
+            return null;
+        }
+        return (ScreenFrameGovernor) session.getUserProperties().get(SESSION_KEY);
+    }
+
+    public static void put(Session session, ScreenFrameGovernor governor) {
+        session.getUserProperties().put(SESSION_KEY, governor);
+    }
+
+    /**
+     * 前端的low、middle、high档位作为帧率上限
+     */
+    public static int maxFpsOf(String pic) {
+        if (pic == null) {
+            return 60;
+        }
+        return switch (pic) {
+            case "low" -> 15;
+            case "middle", "fixed" -> 30;
+            default -> 60;
+        };
+    }
+
+    public int getFps() {
+        return fps;
+    }
+
+    public int getMaxFps() {
+        return maxFps;
+    }
+
+    public synchronized void setMaxFps(int maxFps) {
+        this.maxFps = maxFps;
+        this.fps = limit();
+        this.lowSince = 0;
+        this.idleSince = 0;
+    }
+
+    /**
+     * @param fpsCap 额外的帧率上限，Integer.MAX_VALUE表示不限制
+     */
+    public synchronized void setFpsCap(int fpsCap) {
+        if (this.fpsCap == fpsCap) {
+            return;
+        }
+        this.fpsCap = fpsCap;
+        this.fps = limit();
+        this.lowSince = 0;
+        this.idleSince = 0;
+    }
+
+    public int getFpsCap() {
+        return fpsCap;
+    }
+
+    private int limit() {
+        return Math.max(1, Math.min(maxFps, fpsCap));
+    }
+
+    public int getQuality() {
+        return qualityLevels[qualityIndex];
+    }
+
+    /**
+     * @param now System.nanoTime()
+     * @return true: 该帧需要发送
+     */
+    public synchronized boolean tryAcquire(long now) {
+        if (lastSendAt != Long.MIN_VALUE && now - lastSendAt < SECOND / fps) {
+            return false;
+        }
+        lastSendAt = now;
+        return true;
+    }
+
+    /**
+     * @param sendNanos 本帧发送耗时
+     * @param backlog   发送完后还在排队的帧数
+     * @param now       System.nanoTime()
+     */
+    public void onSent(long sendNanos, int backlog, long now) {
+        int changed = -1;
+        synchronized (this) {
+            avgSendNanos = avgSendNanos == 0 ? sendNanos : avgSendNanos * 0.8 + sendNanos * 0.2;
+            maxBacklog = Math.max(maxBacklog, backlog);
+            if (lastAdjustAt == 0) {
+                lastAdjustAt = now;
+            }
+            if (now - lastAdjustAt >= ADJUST_PERIOD) {
+                lastAdjustAt = now;
+                double ratio = avgSendNanos * fps / SECOND;
+                if (ratio > BUSY_RATIO || maxBacklog > 0) {
+                    fps = Math.min(limit(), Math.max(MIN_FPS, (int) (fps * 0.7)));
+                } else if (ratio < IDLE_RATIO) {
+                    fps = Math.min(limit(), fps + 2);
+                }
+                maxBacklog = 0;
+                changed = adjustQuality(ratio, now);
+            }
+        }
+        if (changed >= 0 && qualityListener != null) {
+            qualityListener.onQualityChange(changed);
+        }
+    }
+
+    private int adjustQuality(double ratio, long now) {
+        int limit = limit();
+        if (fps <= limit / 2 && qualityIndex < qualityLevels.length - 1) {
+            idleSince = 0;
+            if (lowSince == 0) {
+                lowSince = now;
+            } else if (now - lowSince >= QUALITY_HOLD) {
+                lowSince = 0;
+                qualityIndex++;
+                return qualityLevels[qualityIndex];
+            }
+        } else if (fps == limit && ratio < QUALITY_UP_RATIO && qualityIndex > 0) {
+            lowSince = 0;
+            if (idleSince == 0) {
+                idleSince = now;
+            } else if (now - idleSince >= QUALITY_HOLD) {
+                idleSince = 0;
+                qualityIndex--;
+                return qualityLevels[qualityIndex];
+            }
+        } else {
+            lowSince = 0;
+            idleSince = 0;
+        }
+        return -1;
+    }
+}
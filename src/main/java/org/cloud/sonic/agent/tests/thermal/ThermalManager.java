@@ -0,0 +1,149 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.thermal;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.cloud.sonic.agent.tests.screen.ScreenBroadcaster;
+import org.cloud.sonic.agent.tools.BytesTool;
+import org.cloud.sonic.agent.tools.metrics.Counter;
+import org.cloud.sonic.agent.tools.metrics.MetricsRegistry;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 设备温度趋势与主动降载
+ * <p>
+ * 电量采样每次上报温度时记录到设备的{@link ThermalSeries}，当前温度接近服务端下发的高温阈值，
+ * 或按上升趋势推算几分钟后会超过阈值时，设备进入降载状态：投屏帧率封顶、测试中的性能采集暂停、
+ * 新的测试任务等待降温后再开始。温度回落到阈值以下足够多之后才解除，避免在阈值附近反复切换。
+ * 降载只是尽量避免触发高温关机，原有的持续高温告警与关机仍然保留。
+ */
+@Slf4j
+public class ThermalManager {
+
+    /**
+     * 降载期间投屏的帧率上限
+     */
+    public static final int THROTTLED_FPS = 10;
+
+    private static final int CAPACITY = 32;
+
+    private static final long WINDOW = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * 按趋势往后推算多久
+     */
+    private static final long HORIZON = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * 当前温度距阈值不足2℃时开始降载，低于阈值4℃以上且趋势不再逼近阈值时解除，单位0.1℃
+     */
+    private static final int MARGIN = 20;
+
+    private static final int RELEASE_MARGIN = 40;
+
+    private static final Map<String, ThermalSeries> seriesMap = new ConcurrentHashMap<>();
+
+    private static final Set<String> throttled = ConcurrentHashMap.newKeySet();
+
+    private static final Counter throttleTotal = MetricsRegistry.counter("sonic_agent_thermal_throttle_total",
+            "Times a device entered thermal throttling");
+
+    static {
+        MetricsRegistry.gauge("sonic_agent_thermal_throttled_devices", "Devices currently thermally throttled",
+                throttled::size);
+    }
+
+    /**
+     * @param tem 温度，单位0.1℃
+     */
+    public static void record(String udId, int tem) {
+        record(udId, tem, System.currentTimeMillis(), BytesTool.highTemp * 10);
+    }
+
+    /**
+     * @param limit 高温阈值，单位0.1℃，不大于0时表示服务端还没有下发，不做降载
+     * @return 记录后是否处于降载状态
+     */
+    static boolean record(String udId, int tem, long now, int limit) {
+        ThermalSeries series = seriesMap.computeIfAbsent(udId, k -> new ThermalSeries(CAPACITY, WINDOW));
+        series.add(now, tem);
+        if (limit <= 0) {
+            setThrottled(udId, false, tem);
+            return false;
+        }
+        int current = series.predict(0);
+        int predicted = series.predict(HORIZON);
+        boolean hot;
+        if (throttled.contains(udId)) {
+            hot = current >= limit - RELEASE_MARGIN || predicted >= limit - MARGIN;
+        } else {
+            hot = current >= limit - MARGIN || predicted >= limit;
+        }
+        if (hot && !throttled.contains(udId)) {
+            log.info("{} temperature {} rising {}/min, predicted {} against limit {}, throttling.", udId, tem,
+                    String.format("%.1f", series.slopePerMinute()), predicted, limit);
+        }
+        setThrottled(udId, hot, tem);
+        return hot;
+    }
+
+    public static boolean isThrottled(String udId) {
+        return udId != null && throttled.contains(udId);
+    }
+
+    /**
+     * @return 投屏帧率上限，没有降载时为Integer.MAX_VALUE
+     */
+    public static int getFpsCap(String udId) {
+        return isThrottled(udId) ? THROTTLED_FPS : Integer.MAX_VALUE;
+    }
+
+    /**
+     * 设备断开或重新接入时丢弃之前的温度序列
+     */
+    public static void remove(String udId) {
+        seriesMap.remove(udId);
+        if (throttled.remove(udId)) {
+            applyFpsCap(udId);
+        }
+    }
+
+    private static void setThrottled(String udId, boolean hot, int tem) {
+        if (hot) {
+            if (throttled.add(udId)) {
+                throttleTotal.increment();
+                applyFpsCap(udId);
+            }
+        } else if (throttled.remove(udId)) {
+            log.info("{} temperature {} cooled down, throttling released.", udId, tem);
+            applyFpsCap(udId);
+        }
+    }
+
+    private static void applyFpsCap(String udId) {
+        ScreenBroadcaster broadcaster = ScreenBroadcaster.get(udId);
+        if (broadcaster != null) {
+            broadcaster.setFpsCap(getFpsCap(udId));
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.thermal;
+
+/**
+ * 单台设备最近一段时间的温度序列
+ * <p>
+ * 定长环形缓冲，只保留窗口内的采样；用最小二乘拟合温度随时间的变化，
+ * 以拟合线在最新时刻的值代替单次读数，减少电池温度跳动带来的误判。
+ */
+public class ThermalSeries {
+
+    private final long[] times;
+    private final int[] temps;
+    private final long window;
+    private int head = 0;
+    private int size = 0;
+
+    /**
+     * @param capacity 最多保留的采样数
+     * @param window   只用最近多少毫秒内的采样
+     */
+    public ThermalSeries(int capacity, long window) {
+        this.times = new long[capacity];
+        this.temps = new int[capacity];
+        this.window = window;
+    }
+
+    /**
+     * @param time 采样时间，毫秒
+     * @param tem  温度，单位0.1℃
+     */
+    public synchronized void add(long time, int tem) {
+        if (size > 0 && time < times[(head + size - 1) % times.length]) {
+            // 时间倒退（例如系统时间被调整）时之前的序列失去意义
+            size = 0;
+        }
+        int index = (head + size) % times.length;
+        times[index] = time;
+        temps[index] = tem;
+        if (size < times.length) {
+            size++;
+        } else {
+            head = (head + 1) % times.length;
+        }
+        while (size > 1 && time - times[head] > window) {
+            head = (head + 1) % times.length;
+            size--;
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return 最新一次采样的温度，没有采样时返回Integer.MIN_VALUE
+     */
+    public synchronized int latest() {
+        return size == 0 ? Integer.MIN_VALUE : temps[(head + size - 1) % times.length];
+    }
+
+    /**
+     * @return 每分钟温度变化，单位0.1℃；少于3个采样时返回0
+     */
+    public synchronized double slopePerMinute() {
+        if (size < 3) {
+            return 0;
+        }
+        return fit()[0] * 60_000;
+    }
+
+    /**
+     * 按当前趋势推算一段时间后的温度，温度在下降时不外推
+     *
+     * @param horizon 毫秒
+     * @return 单位0.1℃；没有采样时返回Integer.MIN_VALUE
+     */
+    public synchronized int predict(long horizon) {
+        if (size == 0) {
+            return Integer.MIN_VALUE;
+        }
+        if (size < 3) {
+            return latest();
+        }
+        double[] line = fit();
+        double slope = Math.max(0, line[0]);
+        return (int) Math.round(line[1] + slope * horizon);
+    }
+
+    /**
+     * @return {斜率（每毫秒）, 拟合线在最新时刻的值}
+     */
+    private double[] fit() {
+        long last = times[(head + size - 1) % times.length];
+        double sumX = 0;
+        double sumY = 0;
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) % times.length;
+            sumX += times[index] - last;
+            sumY += temps[index];
+        }
+        double meanX = sumX / size;
+        double meanY = sumY / size;
+        double sxx = 0;
+        double sxy = 0;
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) % times.length;
+            double dx = times[index] - last - meanX;
+            sxx += dx * dx;
+            sxy += dx * (temps[index] - meanY);
+        }
+        if (sxx == 0) {
+            return new double[] { 0, meanY };
+        }
+        double slope = sxy / sxx;
+        // x以最新时刻为0，截距即拟合线在最新时刻的值
+        return new double[] { slope, meanY - slope * meanX };
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tools;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 直接内存缓冲池，用于投屏等高频大块数据，避免每帧都分配新的byte[]
+ * <p>
+ * acquire得到的buffer在使用完后必须release归还，归还后调用方不能再持有引用。
+ * 池中buffer容量不足时会按2的幂扩容后替换旧buffer。
+ */
+public class ByteBufferPool {
+
+    private final BlockingQueue<ByteBuffer> free;
+
+    private final int initialCapacity;
+
+    public ByteBufferPool(int size, int initialCapacity) {
+        this.free = new ArrayBlockingQueue<>(size);
+        this.initialCapacity = initialCapacity;
+    }
+
+    /**
+     * @param capacity 至少需要的容量
+     * @return 已clear的buffer，容量可能大于capacity
+     */
+    public ByteBuffer acquire(int capacity) {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null || buffer.capacity() < capacity) {
+            buffer = ByteBuffer.allocateDirect(roundUp(Math.max(capacity, initialCapacity)));
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer != null && buffer.isDirect()) {
+            // 池满时直接丢弃，交给GC回收
+            free.offer(buffer);
+        }
+    }
+
+    public int available() {
+        return free.size();
+    }
+
+    private static int roundUp(int capacity) {
+        int highest = Integer.highestOneBit(capacity);
+        return highest == capacity ? capacity : highest << 1;
+    }
+}
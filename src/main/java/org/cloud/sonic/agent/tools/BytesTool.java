@@ -17,9 +17,9 @@
  */
 package org.cloud.sonic.agent.tools;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -81,42 +81,49 @@ public class BytesTool {
     }
 
     public static void sendByte(Session session, byte[] message) {
+        sendByte(session, ByteBuffer.wrap(message));
+    }
+
+    public static void sendByte(Session session, ByteBuffer message) {
         if (session == null || !session.isOpen()) {
             return;
         }
-        synchronized (session) {
-            try {
-                session.getBasicRemote().sendBinary(ByteBuffer.wrap(message));
-            } catch (IllegalStateException | IOException e) {
-                log.error("WebSocket send msg error...connection has been closed.");
-            }
-        }
+        SessionSender.of(session).sendBinary(message);
     }
 
-    public static void sendByte(Session session, ByteBuffer message) {
+    /**
+     * 按顺序发送池化的二进制消息
+     *
+     * @param release 发送完成或被丢弃后归还缓冲
+     */
+    public static void sendByte(Session session, ByteBuffer message, Consumer<ByteBuffer> release) {
         if (session == null || !session.isOpen()) {
+            release.accept(message);
             return;
         }
-        synchronized (session) {
-            try {
-                session.getBasicRemote().sendBinary(message);
-            } catch (IllegalStateException | IOException e) {
-                log.error("WebSocket send msg error...connection has been closed.");
+        SessionSender.of(session).sendBinary(message, release);
+    }
+
+    /**
+     * 发送投屏画面帧，发送不及时的旧帧会被新帧替换
+     *
+     * @param release 帧发送完成或被丢弃后归还缓冲，可为null
+     */
+    public static void sendFrame(Session session, ByteBuffer frame, Consumer<ByteBuffer> release) {
+        if (session == null || !session.isOpen()) {
+            if (release != null) {
+                release.accept(frame);
             }
+            return;
         }
+        SessionSender.of(session).sendFrame(frame, release);
     }
 
     public static void sendText(Session session, String message) {
         if (session == null || !session.isOpen()) {
             return;
         }
-        synchronized (session) {
-            try {
-                session.getBasicRemote().sendText(message);
-            } catch (IllegalStateException | IOException e) {
-                log.error("WebSocket send msg error...connection has been closed.");
-            }
-        }
+        SessionSender.of(session).sendText(message);
     }
 
     public static boolean isInt(String s) {
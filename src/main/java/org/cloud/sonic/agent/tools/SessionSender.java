@@ -0,0 +1,374 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.function.Consumer;
+
+import com.alibaba.fastjson.JSONObject;
+
+import jakarta.websocket.CloseReason;
+import jakarta.websocket.SendHandler;
+import jakarta.websocket.SendResult;
+import jakarta.websocket.Session;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 每个WebSocket Session一个发送队列，通过getAsyncRemote异步发出，生产线程不会被慢速的浏览器阻塞
+ * <p>
+ * 文本与普通二进制消息（scrcpy、音频等）按顺序发送。文本消息（rotation、pic等控制消息）从不丢弃；
+ * 二进制消息是连续的流，中间丢掉一个h264访问单元解码器要到下一个关键帧才能恢复，
+ * 因此积压超过上限时不再逐条丢弃，而是关闭这个跟不上的session，由前端重连后从缓存的关键帧重新开始。
+ * 投屏jpeg帧只保留最新的一帧，新帧到来时替换尚未发送的旧帧。
+ * 控制消息优先于画面帧发送。
+ */
+@Slf4j
+public class SessionSender implements SendHandler {
+
+    public static final String SESSION_KEY = "sender";
+
+    /**
+     * 顺序二进制消息最大积压条数
+     */
+    private static final int MAX_BACKLOG = 2048;
+
+    private static final Consumer<ByteBuffer> NO_RELEASE = buffer -> {
+    };
+
+    private final Session session;
+
+    private final Queue<Object> ordered = new ArrayDeque<>();
+
+    /**
+     * 与ordered中的二进制消息一一对应的归还回调，普通消息为null
+     */
+    private final Queue<Consumer<ByteBuffer>> orderedRelease = new ArrayDeque<>();
+
+    private int orderedBinaries = 0;
+
+    /**
+     * 积压超过上限，session正在关闭，之后的二进制消息直接丢弃
+     */
+    private boolean lagging = false;
+
+    private ByteBuffer pendingFrame;
+
+    private Consumer<ByteBuffer> pendingFrameRelease;
+
+    private Object inFlight;
+
+    private Consumer<ByteBuffer> inFlightRelease;
+
+    private long inFlightAt;
+
+    private Thread drainThread;
+
+    private long sent = 0;
+
+    private long droppedFrames = 0;
+
+    private long droppedMessages = 0;
+
+    private long lastSendNanos = 0;
+
+    private double avgSendNanos = 0;
+
+    public SessionSender(Session session) {
+        this.session = session;
+    }
+
+    public static SessionSender of(Session session) {
+        Object sender = session.getUserProperties().get(SESSION_KEY);
+        if (sender == null) {
+            synchronized (session) {
+                sender = session.getUserProperties().get(SESSION_KEY);
+                if (sender == null) {
+                    sender = new SessionSender(session);
+                    session.getUserProperties().put(SESSION_KEY, sender);
+                }
+            }
+        }
+        return (SessionSender) sender;
+    }
+
+    public void sendText(String message) {
+        enqueue(message, null);
+    }
+
+    public void sendBinary(ByteBuffer message) {
+        enqueue(message, null);
+    }
+
+    /**
+     * 按顺序发送池化的二进制消息
+     *
+     * @param release 发送完成或被丢弃后回调，用于归还缓冲
+     */
+    public void sendBinary(ByteBuffer message, Consumer<ByteBuffer> release) {
+        enqueue(message, release);
+    }
+
+    /**
+     * 发送画面帧，只保留最新一帧
+     *
+     * @param release 帧发送完成或被丢弃后回调，用于归还缓冲，可为null
+     */
+    public void sendFrame(ByteBuffer frame, Consumer<ByteBuffer> release) {
+        ByteBuffer dropped;
+        Consumer<ByteBuffer> droppedRelease;
+        synchronized (this) {
+            dropped = pendingFrame;
+            droppedRelease = pendingFrameRelease;
+            if (dropped != null) {
+                droppedFrames++;
+            }
+            pendingFrame = frame;
+            pendingFrameRelease = release;
+        }
+        release(dropped, droppedRelease);
+        drain();
+    }
+
+    private void enqueue(Object message, Consumer<ByteBuffer> release) {
+        boolean binary = message instanceof ByteBuffer;
+        boolean overflow = false;
+        synchronized (this) {
+            if (!binary) {
+                ordered.offer(message);
+                orderedRelease.offer(NO_RELEASE);
+            } else if (lagging) {
+                droppedMessages++;
+            } else if (orderedBinaries < MAX_BACKLOG) {
+                ordered.offer(message);
+                orderedRelease.offer(release == null ? NO_RELEASE : release);
+                orderedBinaries++;
+                release = null;
+            } else {
+                droppedMessages++;
+                lagging = true;
+                overflow = true;
+            }
+        }
+        if (binary) {
+            release((ByteBuffer) message, release);
+        }
+        if (overflow) {
+            closeLagging();
+            return;
+        }
+        drain();
+    }
+
+    /**
+     * 丢弃积压并关闭session；关闭时要发送关闭帧，可能阻塞，不占用生产线程
+     */
+    private void closeLagging() {
+        log.warn("{} send backlog is full, close the lagging session.", session.getUserProperties().get("id"));
+        clear();
+        Thread closer = new Thread(() -> {
+            try {
+                session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, "send backlog is full"));
+            } catch (IOException e) {
+                log.info("close lagging session failed: {}", e.getMessage());
+            }
+        }, "session-sender-close");
+        closer.setDaemon(true);
+        closer.start();
+    }
+
+    /**
+     * 同一时间只有一个线程在循环发送；异步发送在当前线程内直接完成时，
+     * 回调只清除inFlight，由外层循环继续发送，避免递归
+     */
+    private void drain() {
+        synchronized (this) {
+            if (drainThread != null || inFlight != null) {
+                return;
+            }
+            drainThread = Thread.currentThread();
+        }
+        while (true) {
+            Object next;
+            synchronized (this) {
+                if (inFlight != null) {
+                    drainThread = null;
+                    return;
+                }
+                Consumer<ByteBuffer> release = null;
+                next = ordered.poll();
+                if (next != null) {
+                    release = orderedRelease.poll();
+                    if (next instanceof ByteBuffer) {
+                        orderedBinaries--;
+                    }
+                } else if (pendingFrame != null) {
+                    next = pendingFrame;
+                    release = pendingFrameRelease;
+                    pendingFrame = null;
+                    pendingFrameRelease = null;
+                }
+                if (next == null) {
+                    drainThread = null;
+                    return;
+                }
+                inFlight = next;
+                inFlightRelease = release;
+                inFlightAt = System.nanoTime();
+            }
+            if (!session.isOpen()) {
+                clear();
+                return;
+            }
+            try {
+                if (next instanceof String) {
+                    session.getAsyncRemote().sendText((String) next, this);
+                } else {
+                    session.getAsyncRemote().sendBinary((ByteBuffer) next, this);
+                }
+            } catch (IllegalStateException e) {
+                onResult(new SendResult(e));
+            }
+        }
+    }
+
+    @Override
+    public void onResult(SendResult result) {
+        Object done;
+        Consumer<ByteBuffer> doneRelease;
+        synchronized (this) {
+            done = inFlight;
+            doneRelease = inFlightRelease;
+            inFlight = null;
+            inFlightRelease = null;
+            if (result.isOK()) {
+                sent++;
+                lastSendNanos = System.nanoTime() - inFlightAt;
+                avgSendNanos = avgSendNanos == 0 ? lastSendNanos : avgSendNanos * 0.9 + lastSendNanos * 0.1;
+            }
+            notifyAll();
+        }
+        if (done instanceof ByteBuffer) {
+            release((ByteBuffer) done, doneRelease);
+        }
+        if (!result.isOK()) {
+            log.error("WebSocket send msg error...connection has been closed.");
+        }
+        drain();
+    }
+
+    /**
+     * 丢弃未发送的画面帧，等待顺序消息发完，用于关闭session前把最后的控制消息送出去
+     */
+    public void flush(long timeoutMillis) {
+        ByteBuffer frame;
+        Consumer<ByteBuffer> frameRelease;
+        synchronized (this) {
+            frame = pendingFrame;
+            frameRelease = pendingFrameRelease;
+            pendingFrame = null;
+            pendingFrameRelease = null;
+        }
+        release(frame, frameRelease);
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (this) {
+            while ((inFlight != null || !ordered.isEmpty()) && session.isOpen()) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    break;
+                }
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * session关闭后丢弃所有积压并归还缓冲
+     */
+    @SuppressWarnings("unchecked")
+    public void clear() {
+        ByteBuffer frame;
+        Consumer<ByteBuffer> frameRelease;
+        Object current;
+        Consumer<ByteBuffer> currentRelease;
+        Object[] queued;
+        Object[] queuedRelease;
+        synchronized (this) {
+            queued = ordered.toArray();
+            queuedRelease = orderedRelease.toArray();
+            ordered.clear();
+            orderedRelease.clear();
+            orderedBinaries = 0;
+            frame = pendingFrame;
+            frameRelease = pendingFrameRelease;
+            pendingFrame = null;
+            pendingFrameRelease = null;
+            current = inFlight;
+            currentRelease = inFlightRelease;
+            inFlight = null;
+            inFlightRelease = null;
+            drainThread = null;
+        }
+        release(frame, frameRelease);
+        if (current instanceof ByteBuffer) {
+            release((ByteBuffer) current, currentRelease);
+        }
+        for (int i = 0; i < queued.length; i++) {
+            if (queued[i] instanceof ByteBuffer) {
+                release((ByteBuffer) queued[i], (Consumer<ByteBuffer>) queuedRelease[i]);
+            }
+        }
+    }
+
+    private void release(ByteBuffer buffer, Consumer<ByteBuffer> release) {
+        if (buffer != null && release != null && release != NO_RELEASE) {
+            release.accept(buffer);
+        }
+    }
+
+    public synchronized int getQueueDepth() {
+        return ordered.size() + (pendingFrame == null ? 0 : 1);
+    }
+
+    public synchronized boolean hasPendingFrame() {
+        return pendingFrame != null;
+    }
+
+    public synchronized long getLastSendNanos() {
+        return lastSendNanos;
+    }
+
+    public synchronized JSONObject getMetrics() {
+        JSONObject metrics = new JSONObject();
+        metrics.put("queueDepth", getQueueDepth());
+        metrics.put("inFlight", inFlight != null);
+        metrics.put("sent", sent);
+        metrics.put("droppedFrames", droppedFrames);
+        metrics.put("droppedMessages", droppedMessages);
+        metrics.put("lastSendMillis", lastSendNanos / 1_000_000.0);
+        metrics.put("avgSendMillis", avgSendNanos / 1_000_000.0);
+        return metrics;
+    }
+}
@@ -23,6 +23,9 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.util.Enumeration;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -34,6 +37,25 @@ import java.util.zip.ZipOutputStream;
  * @date 2022/3/29 23:38
  */
 public class FileTool {
+
+    /**
+     * 立即解除内存映射，不等GC回收；Windows下映射未解除时文件删不掉，也无法截断重新打开。
+     * 解除后不能再访问这个buffer
+     *
+     * @return 是否解除成功
+     */
+    public static boolean unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(field.get(null), buffer);
+            return true;
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
     public static void zip(File result, File inputFile) throws IOException {
         ZipOutputStream out = new ZipOutputStream(new FileOutputStream(
                 result.getAbsoluteFile()));
@@ -21,9 +21,17 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.Calendar;
 import java.util.UUID;
 
+import org.cloud.sonic.agent.tools.metrics.MetricsRegistry;
+import org.cloud.sonic.agent.transport.MuxChannel;
+import org.cloud.sonic.agent.transport.MuxSession;
+import org.cloud.sonic.agent.transport.TransportWorker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -35,6 +43,7 @@ import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.client.RestTemplate;
 
+import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONObject;
 
 import net.coobird.thumbnailator.Thumbnails;
@@ -62,6 +71,16 @@ public class UploadTools {
     }
 
     public static String upload(File uploadFile, String type) {
+        long start = System.nanoTime();
+        try {
+            return doUpload(uploadFile, type);
+        } finally {
+            MetricsRegistry.histogram("sonic_agent_upload_seconds", "Time spent uploading files to server",
+                    "type", type).recordSince(start);
+        }
+    }
+
+    private static String doUpload(File uploadFile, String type) {
         File folder = new File("test-output");
         if (!folder.exists()) {// 判断文件目录是否存在
             folder.mkdirs();
@@ -80,13 +99,17 @@ public class UploadTools {
         } else {
             transfer = uploadFile;
         }
-        FileSystemResource resource = new FileSystemResource(transfer);
-        MultiValueMap<String, Object> param = new LinkedMultiValueMap<>();
-        param.add("file", resource);
-        param.add("type", type);
-        ResponseEntity<JSONObject> responseEntity = restTemplate.postForEntity(baseUrl + "/upload/v2", param,
-                JSONObject.class);
-        if (responseEntity.getBody().getInteger("code") == 2000) {
+        JSONObject body = uploadByChannel(transfer, type);
+        if (body == null) {
+            FileSystemResource resource = new FileSystemResource(transfer);
+            MultiValueMap<String, Object> param = new LinkedMultiValueMap<>();
+            param.add("file", resource);
+            param.add("type", type);
+            ResponseEntity<JSONObject> responseEntity = restTemplate.postForEntity(baseUrl + "/upload/v2", param,
+                    JSONObject.class);
+            body = responseEntity.getBody();
+        }
+        if (body.getInteger("code") == 2000) {
             if (uploadFile.exists()) {
                 uploadFile.delete();
             }
@@ -94,9 +117,41 @@ public class UploadTools {
                 transfer.delete();
             }
         } else {
-            logger.info("发送失败！" + responseEntity.getBody());
+            logger.info("发送失败！" + body);
+        }
+        return baseUrl + "/" + body.getString("data");
+    }
+
+    /**
+     * 服务端支持多通道时通过控制连接上传，不必另外建立HTTP连接，响应与HTTP接口相同
+     * <p>
+     * 通道名为"upload:类型:文件名"，agent写完文件后关闭发送方向，服务端回复一个JSON后关闭。
+     *
+     * @return 不支持或上传失败时返回null，由调用方改用HTTP
+     */
+    private static JSONObject uploadByChannel(File file, String type) {
+        MuxSession mux = TransportWorker.getMux();
+        if (mux == null) {
+            return null;
+        }
+        MuxChannel channel = null;
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            channel = mux.open("upload:" + type + ":" + file.getName());
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                channel.write(buffer);
+                buffer.clear();
+            }
+            channel.close();
+            return JSON.parseObject(new String(channel.readFully(), StandardCharsets.UTF_8));
+        } catch (IOException | RuntimeException e) {
+            logger.info("upload {} by channel failed: {}, retry with http.", file.getName(), e.getMessage());
+            if (channel != null) {
+                channel.reset("upload failed");
+            }
+            return null;
         }
-        return baseUrl + "/" + responseEntity.getBody().getString("data");
     }
 
     public static String uploadPatchRecord(File uploadFile) {
@@ -104,6 +159,12 @@ public class UploadTools {
             uploadFile.delete();
             return null;
         }
+        // 整个文件在一个通道中按额度流式发送，不必切成临时文件并逐片等待
+        JSONObject body = uploadByChannel(uploadFile, "recordFiles");
+        if (body != null && body.getInteger("code") == 2000) {
+            uploadFile.delete();
+            return body.getString("data");
+        }
         String url = "";
         long size = 1024 * 1024;
         int num = (int) (Math.ceil(uploadFile.length() * 1.0 / size));
@@ -0,0 +1,205 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tools.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Agent内的计数与耗时统计，按Prometheus文本格式导出
+ * <p>
+ * 指标按名称与标签取一次后可以保存引用，之后的记录只有原子操作。
+ * 标签为key、value交替的数组；标签组合的总数有上限，
+ * 超过后新的组合不再导出，避免把命令参数之类的取值当成标签撑爆内存。
+ */
+@Slf4j
+public class MetricsRegistry {
+
+    private static final int MAX_SERIES = 4096;
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private static final Map<String, Family> families = new ConcurrentHashMap<>();
+
+    private static final AtomicInteger seriesCount = new AtomicInteger();
+
+    private static final AtomicBoolean overflowLogged = new AtomicBoolean();
+
+    private enum Type {
+        COUNTER, GAUGE, SUMMARY
+    }
+
+    public static Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, Type.COUNTER).get(labels(labels), Counter::new);
+    }
+
+    /**
+     * 由其他组件自己维护的累计值，导出时读取
+     */
+    public static void counter(String name, String help, LongSupplier supplier, String... labels) {
+        family(name, help, Type.COUNTER).put(labels(labels), supplier);
+    }
+
+    /**
+     * 导出时读取的瞬时值，同名同标签重复注册时以最后一次为准
+     */
+    public static void gauge(String name, String help, LongSupplier supplier, String... labels) {
+        family(name, help, Type.GAUGE).put(labels(labels), supplier);
+    }
+
+    /**
+     * @param name 以_seconds结尾，导出时换算成秒
+     */
+    public static LatencyHistogram histogram(String name, String help, String... labels) {
+        return (LatencyHistogram) family(name, help, Type.SUMMARY).get(labels(labels), LatencyHistogram::new);
+    }
+
+    private static Family family(String name, String help, Type type) {
+        Family family = families.computeIfAbsent(name, k -> new Family(name, help, type));
+        if (family.type != type) {
+            throw new IllegalArgumentException(name + " is already registered as " + family.type);
+        }
+        return family;
+    }
+
+    static String labels(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("labels must be key-value pairs");
+        }
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                text.append(',');
+            }
+            text.append(labels[i]).append("=\"");
+            String value = labels[i + 1] == null ? "" : labels[i + 1];
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                switch (c) {
+                    case '\\' -> text.append("\\\\");
+                    case '"' -> text.append("\\\"");
+                    case '\n' -> text.append("\\n");
+                    default -> text.append(c);
+                }
+            }
+            text.append('"');
+        }
+        return text.toString();
+    }
+
+    /**
+     * @return Prometheus文本格式（0.0.4）的所有指标
+     */
+    public static String scrape() {
+        StringBuilder out = new StringBuilder();
+        for (Family family : new TreeMap<>(families).values()) {
+            family.write(out);
+        }
+        return out.toString();
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    private static class Family {
+
+        private final String name;
+
+        private final String help;
+
+        private final Type type;
+
+        private final Map<String, Object> series = new ConcurrentHashMap<>();
+
+        Family(String name, String help, Type type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+
+        Object get(String labels, Supplier<Object> factory) {
+            Object metric = series.get(labels);
+            if (metric != null) {
+                return metric;
+            }
+            if (seriesCount.get() >= MAX_SERIES) {
+                if (overflowLogged.compareAndSet(false, true)) {
+                    log.warn("Too many metric series, {}{{}} and later ones will not be exported.", name, labels);
+                }
+                return factory.get();
+            }
+            return series.computeIfAbsent(labels, k -> {
+                seriesCount.incrementAndGet();
+                return factory.get();
+            });
+        }
+
+        void put(String labels, LongSupplier supplier) {
+            if (series.put(labels, supplier) == null) {
+                seriesCount.incrementAndGet();
+            }
+        }
+
+        void write(StringBuilder out) {
+            if (series.isEmpty()) {
+                return;
+            }
+            Map<String, Object> sorted = new TreeMap<>(series);
+            header(out, name, help, type == Type.SUMMARY ? "summary" : type.name().toLowerCase());
+            if (type != Type.SUMMARY) {
+                sorted.forEach((labels, metric) ->
+                        sample(out, name, labels, Long.toString(((LongSupplier) metric).getAsLong())));
+                return;
+            }
+            sorted.forEach((labels, metric) -> {
+                LatencyHistogram histogram = (LatencyHistogram) metric;
+                String prefix = labels.isEmpty() ? "" : labels + ",";
+                for (double quantile : QUANTILES) {
+                    sample(out, name, prefix + "quantile=\"" + quantile + "\"",
+                            seconds(histogram.getValueAtQuantile(quantile)));
+                }
+                sample(out, name + "_sum", labels, seconds(histogram.getSum()));
+                sample(out, name + "_count", labels, Long.toString(histogram.getCount()));
+            });
+            header(out, name + "_max", help + " (max)", "gauge");
+            sorted.forEach((labels, metric) ->
+                    sample(out, name + "_max", labels, seconds(((LatencyHistogram) metric).getMax())));
+        }
+
+        private static void header(StringBuilder out, String name, String help, String type) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+
+        private static void sample(StringBuilder out, String name, String labels, String value) {
+            out.append(name);
+            if (!labels.isEmpty()) {
+                out.append('{').append(labels).append('}');
+            }
+            out.append(' ').append(value).append('\n');
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.transport;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.cloud.sonic.agent.tools.metrics.LatencyHistogram;
+import org.cloud.sonic.agent.tools.metrics.MetricsRegistry;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 服务端下发命令的分发器
+ * <p>
+ * 带设备标识的命令按udId进入各自的邮箱，同一设备的命令严格按到达顺序逐条执行，
+ * 避免occupy、release等并发修改同一设备的锁与占用状态；不同设备之间并行。
+ * 所有命令共用一个固定大小的线程池，每个设备邮箱一次只占用一个线程，
+ * 执行完一条后重新排队，长时间的命令不会饿死其他设备。
+ * 不带设备标识的控制消息（heartBeat、auth、settings等）在单独的控制线程上按顺序执行，
+ * 设备线程全部被长时间的occupy占满时也不会延误。
+ * <p>
+ * 套件这类要执行很久的命令在单独的有界线程池上运行，不占用设备邮箱；
+ * 分发时在涉及的每个设备邮箱里排一个占位，等这些设备之前的命令都执行完才开始，
+ * 保证先到的occupy、release先生效。
+ */
+@Slf4j
+public class CommandDispatcher {
+
+    private final ExecutorService executor;
+
+    private final Lane control;
+
+    private final ExecutorService longExecutor;
+
+    private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+
+    private final Map<String, CommandStats> stats = new ConcurrentHashMap<>();
+
+    public CommandDispatcher(int threads, int longThreads) {
+        this(newPool(threads, "transport-dispatch-"), newPool(1, "transport-control-"),
+                newPool(longThreads, "transport-long-"));
+    }
+
+    /**
+     * @param executor        设备命令的线程池
+     * @param controlExecutor 控制消息的线程池，不要与executor共用
+     * @param longExecutor    长时间命令的线程池，线程数即同时执行的上限
+     */
+    public CommandDispatcher(ExecutorService executor, ExecutorService controlExecutor, ExecutorService longExecutor) {
+        this.executor = executor;
+        this.control = new Lane(controlExecutor);
+        this.longExecutor = longExecutor;
+    }
+
+    private static ExecutorService newPool(int threads, String prefix) {
+        AtomicInteger index = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, prefix + index.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * @param type 命令类型，用于统计
+     * @param key  需要串行执行的设备标识，为null时进入控制线程
+     */
+    public void dispatch(String type, String key, Runnable command) {
+        CommandStats commandStats = stats.computeIfAbsent(type, CommandStats::new);
+        commandStats.pending.incrementAndGet();
+        Task task = new Task(command, commandStats, System.nanoTime());
+        if (key == null) {
+            control.offer(task);
+        } else {
+            lanes.computeIfAbsent(key, k -> new Lane(executor)).offer(task);
+        }
+    }
+
+    /**
+     * 分发长时间执行的命令，在这些设备之前的命令都执行完后进入长命令线程池
+     *
+     * @param type 命令类型，用于统计
+     * @param keys 命令涉及的设备标识，为空时直接进入长命令线程池
+     */
+    public void dispatchLong(String type, Collection<String> keys, Runnable command) {
+        CommandStats commandStats = stats.computeIfAbsent(type, CommandStats::new);
+        commandStats.pending.incrementAndGet();
+        Task task = new Task(command, commandStats, System.nanoTime());
+        if (keys.isEmpty()) {
+            longExecutor.execute(task);
+            return;
+        }
+        AtomicInteger remaining = new AtomicInteger(keys.size());
+        Runnable barrier = () -> {
+            if (remaining.decrementAndGet() == 0) {
+                longExecutor.execute(task);
+            }
+        };
+        for (String key : keys) {
+            lanes.computeIfAbsent(key, k -> new Lane(executor)).offer(barrier);
+        }
+    }
+
+    /**
+     * @return 设备邮箱中等待与正在执行的命令数
+     */
+    public int getQueueDepth(String key) {
+        Lane lane = lanes.get(key);
+        return lane == null ? 0 : lane.size.get();
+    }
+
+    public Collection<CommandStats> getStats() {
+        return stats.values();
+    }
+
+    public CommandStats getStats(String type) {
+        return stats.get(type);
+    }
+
+    private static class Lane implements Runnable {
+
+        private final ExecutorService executor;
+
+        private final ConcurrentLinkedQueue<Runnable> mailbox = new ConcurrentLinkedQueue<>();
+
+        private final AtomicInteger size = new AtomicInteger();
+
+        Lane(ExecutorService executor) {
+            this.executor = executor;
+        }
+
+        void offer(Runnable task) {
+            mailbox.offer(task);
+            // 由0变为1时才提交，保证同一时刻只有一个线程在执行这个邮箱
+            if (size.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                mailbox.poll().run();
+            } finally {
+                // 无论命令如何结束都要重新排队，否则邮箱永远停住
+                if (size.decrementAndGet() > 0) {
+                    executor.execute(this);
+                }
+            }
+        }
+    }
+
+    private static class Task implements Runnable {
+
+        private final Runnable command;
+
+        private final CommandStats stats;
+
+        private final long enqueuedNanos;
+
+        Task(Runnable command, CommandStats stats, long enqueuedNanos) {
+            this.command = command;
+            this.stats = stats;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            stats.pending.decrementAndGet();
+            try {
+                command.run();
+            } catch (Throwable e) {
+                stats.failed.increment();
+                log.error("{} command failed.", stats.type, e);
+            } finally {
+                stats.record(start - enqueuedNanos, System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * 单个命令类型的排队数与耗时
+     */
+    public static class CommandStats {
+
+        private final String type;
+
+        private final AtomicInteger pending = new AtomicInteger();
+
+        private final LongAdder count = new LongAdder();
+
+        private final LongAdder failed = new LongAdder();
+
+        private final LongAdder waitNanos = new LongAdder();
+
+        private final LongAdder runNanos = new LongAdder();
+
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+
+        private final AtomicLong maxRunNanos = new AtomicLong();
+
+        private final LatencyHistogram waitHistogram;
+
+        private final LatencyHistogram runHistogram;
+
+        CommandStats(String type) {
+            this.type = type;
+            waitHistogram = MetricsRegistry.histogram("sonic_agent_command_wait_seconds",
+                    "Time server commands wait before running", "command", type);
+            runHistogram = MetricsRegistry.histogram("sonic_agent_command_run_seconds",
+                    "Time spent running server commands", "command", type);
+            MetricsRegistry.gauge("sonic_agent_command_pending",
+                    "Server commands dispatched but not started", pending::get, "command", type);
+            MetricsRegistry.counter("sonic_agent_command_failures_total",
+                    "Server commands that threw", failed::sum, "command", type);
+        }
+
+        void record(long wait, long run) {
+            waitHistogram.record(wait);
+            runHistogram.record(run);
+            count.increment();
+            waitNanos.add(wait);
+            runNanos.add(run);
+            maxWaitNanos.accumulateAndGet(wait, Math::max);
+            maxRunNanos.accumulateAndGet(run, Math::max);
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        /**
+         * @return 已分发但还没开始执行的命令数
+         */
+        public int getPending() {
+            return pending.get();
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getFailed() {
+            return failed.sum();
+        }
+
+        public long getWaitNanos() {
+            return waitNanos.sum();
+        }
+
+        public long getRunNanos() {
+            return runNanos.sum();
+        }
+
+        public long getMaxWaitNanos() {
+            return maxWaitNanos.get();
+        }
+
+        public long getMaxRunNanos() {
+            return maxRunNanos.get();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.alibaba.fastjson.JSONObject;
+
+/**
+ * 最近一次发给server的各设备状态
+ * <p>
+ * 所有deviceDetail都经过{@link TransportWorker#send}，在这里顺带记录其中的status。
+ * 重连后server没有恢复原会话时，按快照重新发送各设备状态，
+ * 不必再遍历adb设备或启动sib进程查询iOS设备列表。
+ */
+public class DeviceStateSnapshot {
+
+    private final Map<String, String> states = new ConcurrentHashMap<>();
+
+    public void record(JSONObject message) {
+        if (!"deviceDetail".equals(message.getString("msg")) || !message.containsKey("status")) {
+            return;
+        }
+        String udId = message.getString("udId");
+        if (udId == null) {
+            return;
+        }
+        String status = message.getString("status");
+        if (status == null) {
+            // adb断开时没有状态，server会按离线处理
+            states.remove(udId);
+        } else {
+            states.put(udId, status);
+        }
+    }
+
+    public String get(String udId) {
+        return states.get(udId);
+    }
+
+    public int size() {
+        return states.size();
+    }
+
+    /**
+     * @return 重新同步时需要发送的deviceDetail
+     */
+    public List<JSONObject> resyncMessages() {
+        List<JSONObject> messages = new ArrayList<>(states.size());
+        states.forEach((udId, status) -> {
+            JSONObject deviceDetail = new JSONObject();
+            deviceDetail.put("msg", "deviceDetail");
+            deviceDetail.put("udId", udId);
+            deviceDetail.put("status", status);
+            messages.add(deviceDetail);
+        });
+        return messages;
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link MuxSession}中的一个逻辑通道，两个方向各自独立关闭
+ * <p>
+ * 写入时按对端给的额度和会话的发送预算切片发送，任一用完后等待对端归还；
+ * 收到的数据排队等待读取，读走一半窗口或读空时归还额度。
+ */
+public class MuxChannel implements Closeable {
+
+    private final MuxSession session;
+
+    private final int id;
+
+    private final String name;
+
+    private final int window;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition creditAvailable = lock.newCondition();
+
+    private final Condition dataAvailable = lock.newCondition();
+
+    private final ArrayDeque<ByteBuffer> inbound = new ArrayDeque<>();
+
+    private long sendCredit;
+
+    /**
+     * 已发出但对端还没归还额度的字节数，占用着会话的发送预算
+     */
+    private long unacked;
+
+    /**
+     * 对端还能发送的字节数，超出说明对端没有遵守额度
+     */
+    private long receiveCredit;
+
+    private int consumed = 0;
+
+    private boolean localClosed = false;
+
+    private boolean remoteClosed = false;
+
+    private IOException error;
+
+    MuxChannel(MuxSession session, int id, String name, int sendCredit, int window) {
+        this.session = session;
+        this.id = id;
+        this.name = name;
+        this.sendCredit = sendCredit;
+        this.window = window;
+        this.receiveCredit = window;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void write(byte[] data) throws IOException {
+        write(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * 写完全部数据后返回，通道额度或会话预算不足时等待
+     */
+    public void write(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            int length;
+            lock.lock();
+            try {
+                long nanos = TimeUnit.MILLISECONDS.toNanos(session.getTimeoutMillis());
+                while (sendCredit == 0 && error == null && !localClosed) {
+                    if (nanos <= 0) {
+                        throw new IOException("wait for credit of channel " + name + " timeout");
+                    }
+                    nanos = creditAvailable.awaitNanos(nanos);
+                }
+                check();
+                if (localClosed) {
+                    throw new IOException("channel " + name + " is closed");
+                }
+                length = (int) Math.min(Math.min(sendCredit, MuxSession.MAX_CHUNK), data.remaining());
+                sendCredit -= length;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while writing channel " + name);
+            } finally {
+                lock.unlock();
+            }
+            // 等待会话预算时不持有通道锁，取不满时把多出的通道额度还回去
+            int granted;
+            try {
+                granted = session.acquireBudget(length, name);
+            } catch (IOException e) {
+                lock.lock();
+                try {
+                    sendCredit += length;
+                } finally {
+                    lock.unlock();
+                }
+                throw e;
+            }
+            lock.lock();
+            try {
+                sendCredit += length - granted;
+                if (error != null || localClosed) {
+                    session.releaseBudget(granted);
+                    check();
+                    throw new IOException("channel " + name + " is closed");
+                }
+                unacked += granted;
+            } finally {
+                lock.unlock();
+            }
+            length = granted;
+            ByteBuffer chunk = data.slice();
+            chunk.limit(length);
+            data.position(data.position() + length);
+            session.sendData(id, chunk);
+        }
+    }
+
+    /**
+     * @return 下一段数据，对端关闭后返回null
+     */
+    public ByteBuffer read() throws IOException {
+        ByteBuffer data;
+        int grant = 0;
+        lock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(session.getTimeoutMillis());
+            while (inbound.isEmpty() && !remoteClosed && error == null) {
+                if (nanos <= 0) {
+                    throw new IOException("wait for data of channel " + name + " timeout");
+                }
+                nanos = dataAvailable.awaitNanos(nanos);
+            }
+            check();
+            data = inbound.poll();
+            if (data == null) {
+                return null;
+            }
+            consumed += data.remaining();
+            // 读空时也归还，避免空闲通道长期占着对端的会话预算
+            if (consumed >= window / 2 || inbound.isEmpty()) {
+                grant = consumed;
+                receiveCredit += grant;
+                consumed = 0;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while reading channel " + name);
+        } finally {
+            lock.unlock();
+        }
+        // 对端关闭发送后仍要归还，对端靠它补回会话预算
+        if (grant > 0) {
+            session.sendCredit(id, grant);
+        }
+        return data;
+    }
+
+    /**
+     * 读取直到对端关闭
+     */
+    public byte[] readFully() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer data;
+        while ((data = read()) != null) {
+            out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 本端不再发送，仍可继续读取
+     */
+    @Override
+    public void close() throws IOException {
+        boolean finished;
+        lock.lock();
+        try {
+            if (localClosed || error != null) {
+                return;
+            }
+            localClosed = true;
+            finished = remoteClosed;
+            creditAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        session.sendClose(id);
+        if (finished) {
+            session.remove(this);
+        }
+    }
+
+    /**
+     * 异常终止，两个方向都不再可用
+     */
+    public void reset(String reason) {
+        fail(new IOException("channel " + name + " reset: " + reason));
+        session.sendReset(id, reason);
+    }
+
+    private void check() throws IOException {
+        if (error != null) {
+            throw new IOException(error.getMessage(), error);
+        }
+    }
+
+    void onData(ByteBuffer data) {
+        boolean violated;
+        lock.lock();
+        try {
+            receiveCredit -= data.remaining();
+            violated = receiveCredit < 0;
+            if (!violated && error == null) {
+                // 帧的buffer由连接持有，需要拷贝
+                ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+                copy.put(data).flip();
+                inbound.offer(copy);
+                dataAvailable.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (violated) {
+            reset("flow control violated");
+        }
+    }
+
+    void onCredit(int credit) {
+        long acked;
+        lock.lock();
+        try {
+            sendCredit += credit;
+            // 建立通道时的初始额度不对应已发出的数据
+            acked = Math.min(credit, unacked);
+            unacked -= acked;
+            creditAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        session.releaseBudget(acked);
+    }
+
+    long takeUnacked() {
+        lock.lock();
+        try {
+            long bytes = unacked;
+            unacked = 0;
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void onRemoteClose() {
+        lock.lock();
+        try {
+            remoteClosed = true;
+            // 先移除再唤醒，读到结束时通道已经不在会话中
+            if (localClosed) {
+                session.remove(this);
+            }
+            dataAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void onReset(String reason) {
+        fail(new IOException("channel " + name + " reset by peer: " + reason));
+    }
+
+    void fail(IOException e) {
+        lock.lock();
+        try {
+            if (error == null) {
+                error = e;
+            }
+            inbound.clear();
+            creditAvailable.signalAll();
+            dataAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        session.remove(this);
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.transport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 在一条WebSocket连接上承载多个逻辑通道，用于上传文件等大块数据，不再为每次上传单独建立HTTP连接
+ * <p>
+ * 每个通道有独立的发送额度：对端先给出窗口大小，发送方最多发出这么多字节，
+ * 对端读走数据后再归还额度。此外会话内所有通道共用一份发送预算，已发出但对端还没归还额度的数据
+ * 总量不超过预算，同时上传多个文件时连接写队列中也最多只有一份预算的数据，控制消息最多排在这些数据后面。
+ * 大文件按16KB切片。两端使用同一个实现，客户端使用奇数通道号，服务端使用偶数。
+ * <p>
+ * 帧格式（二进制帧）："SM"、版本1、帧类型、通道号（4字节），之后按类型：
+ * OPEN为窗口大小（4字节）和UTF-8通道名；DATA为数据；CREDIT为归还的字节数（4字节）；
+ * CLOSE没有内容，表示本端不再发送；RESET为UTF-8原因，表示通道异常终止。
+ */
+@Slf4j
+public class MuxSession {
+
+    /**
+     * 握手时声明，服务端在auth中回复同样的值后启用
+     */
+    public static final String PROTOCOL = "sonic-mux-1";
+
+    private static final byte VERSION = 1;
+
+    static final byte OPEN = 1;
+
+    static final byte DATA = 2;
+
+    static final byte CREDIT = 3;
+
+    static final byte CLOSE = 4;
+
+    static final byte RESET = 5;
+
+    static final int HEADER_SIZE = 8;
+
+    static final int MAX_CHUNK = 16 * 1024;
+
+    private final Consumer<ByteBuffer> writer;
+
+    private final int window;
+
+    private final long timeoutMillis;
+
+    private final Consumer<MuxChannel> acceptor;
+
+    private final Map<Integer, MuxChannel> channels = new ConcurrentHashMap<>();
+
+    private final AtomicInteger nextId;
+
+    private final ReentrantLock budgetLock = new ReentrantLock();
+
+    private final Condition budgetAvailable = budgetLock.newCondition();
+
+    /**
+     * 所有通道还能发出的字节数，对端归还额度或通道结束后补回
+     */
+    private long sendBudget;
+
+    private volatile boolean closed = false;
+
+    public MuxSession(Consumer<ByteBuffer> writer, boolean client, int window, long timeoutMillis,
+                      Consumer<MuxChannel> acceptor) {
+        this(writer, client, window, window, timeoutMillis, acceptor);
+    }
+
+    /**
+     * @param writer        发送一个二进制帧，需要线程安全
+     * @param client        决定本端新建通道的编号
+     * @param window        每个通道的接收窗口
+     * @param sendBudget    所有通道共用的发送预算
+     * @param timeoutMillis 等待额度或数据的最长时间
+     * @param acceptor      对端新建的通道，在读线程中回调，处理逻辑需要交给其他线程
+     */
+    public MuxSession(Consumer<ByteBuffer> writer, boolean client, int window, int sendBudget, long timeoutMillis,
+                      Consumer<MuxChannel> acceptor) {
+        this.writer = writer;
+        this.window = window;
+        this.sendBudget = sendBudget;
+        this.timeoutMillis = timeoutMillis;
+        this.acceptor = acceptor;
+        this.nextId = new AtomicInteger(client ? 1 : 2);
+    }
+
+    public static boolean isMuxFrame(ByteBuffer frame) {
+        return frame.remaining() >= HEADER_SIZE && frame.get(frame.position()) == 'S'
+                && frame.get(frame.position() + 1) == 'M' && frame.get(frame.position() + 2) == VERSION;
+    }
+
+    /**
+     * 新建通道，对端确认（给出窗口）前写入会等待
+     */
+    public MuxChannel open(String name) throws IOException {
+        if (closed) {
+            throw new IOException("mux session closed");
+        }
+        MuxChannel channel = new MuxChannel(this, nextId.getAndAdd(2), name, 0, window);
+        channels.put(channel.getId(), channel);
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(4 + bytes.length).putInt(window).put(bytes);
+        send(OPEN, channel.getId(), payload.flip());
+        return channel;
+    }
+
+    /**
+     * 处理对端发来的帧，调用方保证同一时刻只有一个线程调用
+     */
+    public void receive(ByteBuffer frame) {
+        if (!isMuxFrame(frame)) {
+            return;
+        }
+        ByteBuffer in = frame.slice();
+        byte type = in.get(3);
+        int id = in.getInt(4);
+        in.position(HEADER_SIZE);
+        if (type == OPEN) {
+            accept(id, in);
+            return;
+        }
+        MuxChannel channel = channels.get(id);
+        if (channel == null) {
+            // 本端已经关闭的通道，对端还在途中的帧直接丢弃
+            return;
+        }
+        switch (type) {
+            case DATA -> channel.onData(in);
+            case CREDIT -> channel.onCredit(in.getInt());
+            case CLOSE -> channel.onRemoteClose();
+            case RESET -> channel.onReset(StandardCharsets.UTF_8.decode(in).toString());
+            default -> log.info("unknown mux frame type {} on channel {}", type, id);
+        }
+    }
+
+    private void accept(int id, ByteBuffer in) {
+        int sendWindow = in.getInt();
+        String name = StandardCharsets.UTF_8.decode(in).toString();
+        MuxChannel channel = new MuxChannel(this, id, name, sendWindow, window);
+        if (closed || acceptor == null || channels.putIfAbsent(id, channel) != null) {
+            sendReset(id, "channel rejected");
+            return;
+        }
+        sendCredit(id, window);
+        acceptor.accept(channel);
+    }
+
+    long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * 从会话预算中取出最多wanted字节，预算用完时等待
+     *
+     * @return 实际取得的字节数，大于0
+     */
+    int acquireBudget(int wanted, String name) throws IOException {
+        budgetLock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (sendBudget == 0 && !closed) {
+                if (nanos <= 0) {
+                    throw new IOException("wait for send budget of channel " + name + " timeout");
+                }
+                nanos = budgetAvailable.awaitNanos(nanos);
+            }
+            if (closed) {
+                throw new IOException("mux session closed");
+            }
+            int granted = (int) Math.min(sendBudget, wanted);
+            sendBudget -= granted;
+            return granted;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while writing channel " + name);
+        } finally {
+            budgetLock.unlock();
+        }
+    }
+
+    void releaseBudget(long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        budgetLock.lock();
+        try {
+            sendBudget += bytes;
+            budgetAvailable.signalAll();
+        } finally {
+            budgetLock.unlock();
+        }
+    }
+
+    void sendData(int id, ByteBuffer data) throws IOException {
+        send(DATA, id, data);
+    }
+
+    void sendCredit(int id, int credit) {
+        try {
+            send(CREDIT, id, ByteBuffer.allocate(4).putInt(0, credit));
+        } catch (IOException e) {
+            log.info("send credit of channel {} failed: {}", id, e.getMessage());
+        }
+    }
+
+    void sendClose(int id) throws IOException {
+        send(CLOSE, id, ByteBuffer.allocate(0));
+    }
+
+    void sendReset(int id, String reason) {
+        try {
+            send(RESET, id, ByteBuffer.wrap(reason.getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            log.info("reset channel {} failed: {}", id, e.getMessage());
+        }
+    }
+
+    private void send(byte type, int id, ByteBuffer payload) throws IOException {
+        if (closed) {
+            throw new IOException("mux session closed");
+        }
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payload.remaining());
+        frame.put((byte) 'S').put((byte) 'M').put(VERSION).put(type).putInt(id).put(payload.duplicate()).flip();
+        try {
+            writer.accept(frame);
+        } catch (RuntimeException e) {
+            throw new IOException("send mux frame failed: " + e.getMessage(), e);
+        }
+    }
+
+    void remove(MuxChannel channel) {
+        channels.remove(channel.getId(), channel);
+        // 通道结束后对端不会再归还额度，未归还的部分直接补回预算
+        releaseBudget(channel.takeUnacked());
+    }
+
+    public int getChannelCount() {
+        return channels.size();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * 连接断开后调用，所有通道上等待中的读写立即失败
+     */
+    public void close() {
+        closed = true;
+        budgetLock.lock();
+        try {
+            budgetAvailable.signalAll();
+        } finally {
+            budgetLock.unlock();
+        }
+        for (MuxChannel channel : new ArrayList<>(channels.values())) {
+            channel.fail(new IOException("mux session closed"));
+        }
+        channels.clear();
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.transport;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+import org.cloud.sonic.agent.tools.file.FileTool;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 发往服务端消息的磁盘日志，断线期间消息写入这里而不是堆内存
+ * <p>
+ * 由若干内存映射的分段文件组成，只追加写。每条记录为：长度(4) + 序号(8) + 校验(4) + 内容，
+ * 长度为0表示分段结束。读游标独立于写位置，确认到某个序号后写入ack文件，
+ * 全部已确认的分段直接删除。进程重启后从ack之后的第一条继续读，已写入页缓存的记录不会丢失。
+ * 同一时刻只映射正在写和正在读的两个分段，堆内存占用与积压量无关。
+ * 不再使用的分段立即解除映射，不等GC，Windows下才能删除已确认的分段文件。
+ */
+@Slf4j
+public class OutboxJournal implements Closeable {
+
+    private static final int RECORD_HEADER = 4 + 8 + 4;
+
+    private static final String SUFFIX = ".seg";
+
+    private final File dir;
+
+    private final int segmentSize;
+
+    private final int maxSegments;
+
+    private final FileChannel ackChannel;
+
+    private final MappedByteBuffer ackBuffer;
+
+    /**
+     * 按序号排列的分段，最后一个是写分段
+     */
+    private final List<Segment> segments = new ArrayList<>();
+
+    private final CRC32C crc = new CRC32C();
+
+    private long nextSeq;
+
+    private long ackedSeq;
+
+    private Segment readSegment;
+
+    private MappedByteBuffer readBuffer;
+
+    private int readOffset;
+
+    /**
+     * 下一条要读的序号
+     */
+    private long readSeq;
+
+    private long droppedCount = 0;
+
+    /**
+     * 关闭后映射已解除，不能再访问任何分段
+     */
+    private boolean closed = false;
+
+    /**
+     * @param segmentSize 每个分段文件的大小
+     * @param maxSegments 最多保留的分段数，超过后丢弃最旧的分段
+     */
+    public OutboxJournal(File dir, int segmentSize, int maxSegments) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("create outbox directory " + dir.getAbsolutePath() + " failed.");
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSegments = Math.max(2, maxSegments);
+        this.ackChannel = FileChannel.open(new File(dir, "outbox.ack").toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.ackBuffer = ackChannel.map(FileChannel.MapMode.READ_WRITE, 0, 8);
+        this.ackedSeq = ackBuffer.getLong(0);
+        recover();
+        rewind();
+    }
+
+    private void recover() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                Segment segment = new Segment(file, Long.parseLong(file.getName().replace(SUFFIX, "")));
+                MappedByteBuffer buffer = segment.map();
+                int offset = 0;
+                long expected = segment.firstSeq;
+                while (true) {
+                    long seq = validRecordSeq(buffer, offset);
+                    if (seq != expected) {
+                        break;
+                    }
+                    offset += RECORD_HEADER + buffer.getInt(offset);
+                    expected++;
+                }
+                FileTool.unmap(buffer);
+                segment.end = offset;
+                segment.lastSeq = expected - 1;
+                if (segment.lastSeq <= ackedSeq || (!segments.isEmpty()
+                        && segment.firstSeq != segments.get(segments.size() - 1).lastSeq + 1)) {
+                    // 已确认或与前面不连续，不再需要
+                    segment.delete();
+                } else {
+                    segments.add(segment);
+                }
+            }
+        }
+        nextSeq = segments.isEmpty() ? ackedSeq + 1 : segments.get(segments.size() - 1).lastSeq + 1;
+        if (!segments.isEmpty()) {
+            Segment last = segments.get(segments.size() - 1);
+            last.buffer = last.map();
+        }
+    }
+
+    /**
+     * @return 校验通过时返回记录的序号，否则返回-1
+     */
+    private long validRecordSeq(MappedByteBuffer buffer, int offset) {
+        if (offset + RECORD_HEADER > buffer.capacity()) {
+            return -1;
+        }
+        int length = buffer.getInt(offset);
+        if (length <= 0 || offset + RECORD_HEADER + length > buffer.capacity()) {
+            return -1;
+        }
+        crc.reset();
+        crc.update(buffer.duplicate().limit(offset + RECORD_HEADER + length).position(offset + RECORD_HEADER));
+        return (int) crc.getValue() == buffer.getInt(offset + 12) ? buffer.getLong(offset + 4) : -1;
+    }
+
+    /**
+     * @return 记录的序号
+     */
+    public synchronized long append(byte[] payload) throws IOException {
+        ensureOpen();
+        int size = RECORD_HEADER + payload.length;
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        // 留出结束标记的位置
+        if (segment == null || segment.end + size + 4 > segment.buffer.capacity()) {
+            segment = roll(size + 4);
+        }
+        long seq = nextSeq++;
+        crc.reset();
+        crc.update(payload);
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = segment.end;
+        buffer.putLong(offset + 4, seq);
+        buffer.putInt(offset + 12, (int) crc.getValue());
+        buffer.put(offset + RECORD_HEADER, payload);
+        buffer.putInt(offset + RECORD_HEADER + payload.length, 0);
+        // 长度最后写入，读到长度时内容已完整
+        buffer.putInt(offset, payload.length);
+        segment.end = offset + size;
+        segment.lastSeq = seq;
+        return seq;
+    }
+
+    private Segment roll(int minSize) throws IOException {
+        if (!segments.isEmpty()) {
+            Segment last = segments.get(segments.size() - 1);
+            if (last != readSegment) {
+                last.unmap();
+            }
+        }
+        while (segments.size() >= maxSegments) {
+            Segment oldest = segments.get(0);
+            droppedCount += oldest.lastSeq - Math.max(ackedSeq, oldest.firstSeq - 1);
+            log.warn("outbox is full, drop messages {} to {}.", oldest.firstSeq, oldest.lastSeq);
+            acknowledge(oldest.lastSeq);
+        }
+        Segment segment = new Segment(new File(dir, String.format("%020d%s", nextSeq, SUFFIX)), nextSeq);
+        segment.lastSeq = nextSeq - 1;
+        segment.buffer = segment.map(Math.max(segmentSize, minSize));
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * 读取下一条未发送的记录，没有时返回null
+     */
+    public synchronized Entry read() throws IOException {
+        ensureOpen();
+        // 被丢弃的记录直接跳过
+        readSeq = Math.max(readSeq, ackedSeq + 1);
+        if (readSeq >= nextSeq) {
+            return null;
+        }
+        if (readSegment == null || readSeq < readSegment.firstSeq || readSeq > readSegment.lastSeq) {
+            seek(readSeq);
+        }
+        int length = readBuffer.getInt(readOffset);
+        byte[] payload = new byte[length];
+        readBuffer.get(readOffset + RECORD_HEADER, payload);
+        readOffset += RECORD_HEADER + length;
+        return new Entry(readSeq++, payload);
+    }
+
+    private void seek(long seq) throws IOException {
+        for (Segment segment : segments) {
+            if (segment.firstSeq <= seq && seq <= segment.lastSeq) {
+                if (readSegment != null && readSegment != segment
+                        && readSegment != segments.get(segments.size() - 1)) {
+                    readSegment.unmap();
+                }
+                readSegment = segment;
+                if (segment.buffer == null) {
+                    segment.buffer = segment.map();
+                }
+                readBuffer = segment.buffer;
+                readOffset = 0;
+                for (long s = segment.firstSeq; s < seq; s++) {
+                    readOffset += RECORD_HEADER + readBuffer.getInt(readOffset);
+                }
+                return;
+            }
+        }
+        throw new IOException("seq " + seq + " not found in outbox.");
+    }
+
+    /**
+     * 读游标回到第一条未确认的记录，连接断开后重发
+     */
+    public synchronized void rewind() {
+        readSeq = ackedSeq + 1;
+        if (readSegment != null && readSegment != segments.get(segments.size() - 1)) {
+            readSegment.unmap();
+        }
+        readSegment = null;
+        readBuffer = null;
+    }
+
+    /**
+     * 确认seq及之前的记录，删除其中已全部确认的分段
+     */
+    public synchronized void acknowledge(long seq) {
+        if (closed || seq <= ackedSeq) {
+            return;
+        }
+        ackedSeq = Math.min(seq, nextSeq - 1);
+        ackBuffer.putLong(0, ackedSeq);
+        while (segments.size() > 1 && segments.get(0).lastSeq <= ackedSeq) {
+            Segment segment = segments.remove(0);
+            if (segment == readSegment) {
+                readSegment = null;
+                readBuffer = null;
+            }
+            segment.delete();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("outbox is closed.");
+        }
+    }
+
+    public synchronized long getAckedSeq() {
+        return ackedSeq;
+    }
+
+    /**
+     * @return 未确认的记录数
+     */
+    public synchronized long size() {
+        return nextSeq - 1 - ackedSeq;
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        readSegment = null;
+        readBuffer = null;
+        for (Segment segment : segments) {
+            segment.unmap();
+        }
+        FileTool.unmap(ackBuffer);
+        ackChannel.close();
+    }
+
+    public static class Entry {
+
+        private final long seq;
+
+        private final byte[] payload;
+
+        Entry(long seq, byte[] payload) {
+            this.seq = seq;
+            this.payload = payload;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+
+    private static class Segment {
+
+        private final File file;
+
+        private final long firstSeq;
+
+        private long lastSeq;
+
+        private int end;
+
+        private MappedByteBuffer buffer;
+
+        Segment(File file, long firstSeq) {
+            this.file = file;
+            this.firstSeq = firstSeq;
+        }
+
+        MappedByteBuffer map() throws IOException {
+            return map(0);
+        }
+
+        /**
+         * @param size 0表示按现有文件大小映射
+         */
+        MappedByteBuffer map(int size) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, size > 0 ? size : channel.size());
+            }
+        }
+
+        void unmap() {
+            if (buffer != null) {
+                FileTool.unmap(buffer);
+                buffer = null;
+            }
+        }
+
+        void delete() {
+            unmap();
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+}
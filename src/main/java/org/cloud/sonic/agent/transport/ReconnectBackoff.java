@@ -0,0 +1,62 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.transport;
+
+import java.util.Random;
+
+/**
+ * 断线重连的等待时间，指数增长并加入随机抖动
+ * <p>
+ * server重启时所有agent同时断开，固定间隔重连会让它们在同一时刻一起涌入。
+ * 第n次重连的上限为base*2^n（不超过cap），实际等待在上限的一半到上限之间随机，
+ * 既保证间隔逐步拉长，又把同一批断开的agent打散到整个区间内。连接认证成功后重置。
+ */
+public class ReconnectBackoff {
+
+    private final long baseMillis;
+
+    private final long capMillis;
+
+    private final Random random;
+
+    private int attempts = 0;
+
+    public ReconnectBackoff(long baseMillis, long capMillis, Random random) {
+        this.baseMillis = baseMillis;
+        this.capMillis = capMillis;
+        this.random = random;
+    }
+
+    /**
+     * @return 下一次重连前等待的毫秒数
+     */
+    public synchronized long nextDelayMillis() {
+        // 左移会溢出时直接取上限
+        long ceiling = attempts >= Long.numberOfLeadingZeros(baseMillis) - 1 ? capMillis
+                : Math.min(capMillis, baseMillis << attempts);
+        if (ceiling < capMillis) {
+            attempts++;
+        }
+        long half = ceiling / 2;
+        return half + (long) (random.nextDouble() * (ceiling - half));
+    }
+
+    public synchronized void reset() {
+        attempts = 0;
+    }
+}
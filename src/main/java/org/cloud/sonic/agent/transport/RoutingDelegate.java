@@ -2,20 +2,22 @@ package org.cloud.sonic.agent.transport;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
-import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.Collections;
-import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.HttpMethod;
+import org.cloud.sonic.agent.tools.metrics.MetricsRegistry;
 import org.springframework.http.HttpStatus;
-import org.springframework.http.RequestEntity;
-import org.springframework.http.ResponseEntity;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
-import org.springframework.util.MultiValueMap;
-import org.springframework.util.StreamUtils;
-import org.springframework.web.client.RestTemplate;
 
 import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONObject;
@@ -25,31 +27,53 @@ import jakarta.servlet.http.HttpServletResponse;
 
 /**
  * see https://www.cnblogs.com/xiaoqi/p/spring-boot-route.html
+ * <p>
+ * 所有目标共用一个HttpClient，由它按目标（uia2或wda的转发端口）保持连接，空闲连接超时后自行关闭；
+ * 每次occupy转发端口都会变化，不再为每个端口创建客户端。请求体与响应体都直接流式转发，
+ * 截图等二进制响应不经过字符串转换，也不在内存中整块缓存。
  */
 @Service
 public class RoutingDelegate {
 
-    public ResponseEntity<String> redirect(HttpServletRequest request, HttpServletResponse response, String routeUrl,
+    // 逐跳的头部，以及HttpClient不允许设置、由它自己生成的头部
+    private static final Set<String> HOP_HEADERS = Set.of("connection", "keep-alive", "proxy-connection",
+            "transfer-encoding", "te", "trailer", "upgrade", "host", "content-length", "expect", "http2-settings");
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(CONNECT_TIMEOUT)
+            .build();
+
+    public void redirect(HttpServletRequest request, HttpServletResponse response, String routeUrl,
             String prefix) {
+        long start = System.nanoTime();
+        String result = "ok";
         try {
-            String redirectUrl = createPredictUrl(request, routeUrl, prefix);
-            RequestEntity requestEntity = createRequestEntity(request, redirectUrl);
-            return route(requestEntity);
-        } catch (Exception e) {
-            if (e.getMessage().contains("{") && e.getMessage().contains("}")) {
-                return new ResponseEntity(JSON.parseObject(
-                        e.getMessage().substring(e.getMessage().indexOf("{"), e.getMessage().lastIndexOf("}") + 1))
-                        .toJSONString(), HttpStatus.INTERNAL_SERVER_ERROR);
-            } else {
-                JSONObject err = new JSONObject();
-                err.put("error", "-1");
-                err.put("message", "REDIRECT ERROR");
-                err.put("traceback", "REDIRECT ERROR");
-                JSONObject base = new JSONObject();
-                base.put("value", err);
-                base.put("sessionId", "");
-                return new ResponseEntity(base.toJSONString(), HttpStatus.INTERNAL_SERVER_ERROR);
+            URI uri = new URI(createPredictUrl(request, routeUrl, prefix));
+            HttpResponse<InputStream> upstream = client.send(createRequest(request, uri),
+                    HttpResponse.BodyHandlers.ofInputStream());
+            response.setStatus(upstream.statusCode());
+            upstream.headers().map().forEach((name, values) -> {
+                if (!HOP_HEADERS.contains(name.toLowerCase(Locale.ROOT))) {
+                    values.forEach(value -> response.addHeader(name, value));
+                }
+            });
+            try (InputStream body = upstream.body()) {
+                OutputStream out = response.getOutputStream();
+                body.transferTo(out);
+                out.flush();
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result = "error";
+            writeError(response, e);
+        } catch (Exception e) {
+            result = "error";
+            writeError(response, e);
+        } finally {
+            MetricsRegistry.histogram("sonic_agent_proxy_seconds", "Time spent proxying WebDriver requests",
+                    "result", result).recordSince(start);
         }
     }
 
@@ -59,34 +83,66 @@ public class RoutingDelegate {
                 (queryString != null ? "?" + queryString : "");
     }
 
-    private RequestEntity createRequestEntity(HttpServletRequest request, String url)
-            throws URISyntaxException, IOException {
-        String method = request.getMethod();
-        HttpMethod httpMethod = HttpMethod.valueOf(method);
-        MultiValueMap<String, String> headers = parseRequestHeader(request);
-        byte[] body = parseRequestBody(request);
-        return new RequestEntity<>(body, headers, httpMethod, new URI(url));
-    }
-
-    private ResponseEntity<String> route(RequestEntity requestEntity) {
-        RestTemplate restTemplate = new RestTemplate();
-        return restTemplate.exchange(requestEntity, String.class);
+    private HttpRequest createRequest(HttpServletRequest request, URI uri) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+                .method(request.getMethod(), createBodyPublisher(request));
+        for (String headerName : Collections.list(request.getHeaderNames())) {
+            if (HOP_HEADERS.contains(headerName.toLowerCase(Locale.ROOT))) {
+                continue;
+            }
+            for (String headerValue : Collections.list(request.getHeaders(headerName))) {
+                builder.header(headerName, headerValue);
+            }
+        }
+        return builder.build();
     }
 
-    private byte[] parseRequestBody(HttpServletRequest request) throws IOException {
-        InputStream inputStream = request.getInputStream();
-        return StreamUtils.copyToByteArray(inputStream);
+    /**
+     * 长度已知时带上Content-Length，wda不一定支持分块传输的请求体
+     */
+    private HttpRequest.BodyPublisher createBodyPublisher(HttpServletRequest request) {
+        long length = request.getContentLengthLong();
+        boolean chunked = "chunked".equalsIgnoreCase(request.getHeader("Transfer-Encoding"));
+        if (length == 0 || (length < 0 && !chunked)) {
+            return HttpRequest.BodyPublishers.noBody();
+        }
+        HttpRequest.BodyPublisher publisher = HttpRequest.BodyPublishers.ofInputStream(() -> {
+            try {
+                return request.getInputStream();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return length > 0 ? HttpRequest.BodyPublishers.fromPublisher(publisher, length) : publisher;
     }
 
-    private MultiValueMap<String, String> parseRequestHeader(HttpServletRequest request) {
-        HttpHeaders headers = new HttpHeaders();
-        List<String> headerNames = Collections.list(request.getHeaderNames());
-        for (String headerName : headerNames) {
-            List<String> headerValues = Collections.list(request.getHeaders(headerName));
-            for (String headerValue : headerValues) {
-                headers.add(headerName, headerValue);
-            }
+    private void writeError(HttpServletResponse response, Exception e) {
+        if (response.isCommitted()) {
+            // 响应已经开始发送，无法再改为错误响应
+            return;
+        }
+        String message = e.getMessage() == null ? "" : e.getMessage();
+        String body;
+        if (message.contains("{") && message.contains("}")) {
+            body = JSON.parseObject(message.substring(message.indexOf("{"), message.lastIndexOf("}") + 1))
+                    .toJSONString();
+        } else {
+            JSONObject err = new JSONObject();
+            err.put("error", "-1");
+            err.put("message", "REDIRECT ERROR");
+            err.put("traceback", "REDIRECT ERROR");
+            JSONObject base = new JSONObject();
+            base.put("value", err);
+            base.put("sessionId", "");
+            body = base.toJSONString();
+        }
+        response.reset();
+        response.setStatus(HttpStatus.INTERNAL_SERVER_ERROR.value());
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        try {
+            response.getOutputStream().write(body.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ignored) {
+            // 调用方已断开
         }
-        return headers;
     }
 }
@@ -0,0 +1,368 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.transport;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+
+/**
+ * 发往服务端消息的编码，认证时服务端声明支持{@link #BINARY_ENCODING}后改用二进制帧，否则保持JSON
+ * <p>
+ * 二进制消息以0x08开头，字段名与常见的msg取值查固定字典，只写一个字节的序号；
+ * 整数用zigzag变长编码，字符串按长度加UTF-8写出。fastjson中无法直接表示的值（日期、实体类等）
+ * 写成JSON文本，解码后与JSON模式一致。
+ * 一个二进制帧包含一批消息：魔数"SB"、版本、条数，每条为长度加内容，
+ * 内容以'{'开头时是JSON文本，用于转发断线前按JSON写入磁盘日志的消息。
+ * 字典只能在末尾追加，服务端按相同顺序解码。
+ */
+public class TelemetryCodec {
+
+    public static final String BINARY_ENCODING = "sonic-binary-1";
+
+    private static final byte[] FRAME_MAGIC = {'S', 'B', 1};
+
+    private static final byte NULL = 0x00;
+
+    private static final byte FALSE = 0x01;
+
+    private static final byte TRUE = 0x02;
+
+    private static final byte INTEGER = 0x03;
+
+    private static final byte DOUBLE = 0x04;
+
+    private static final byte STRING = 0x05;
+
+    private static final byte DICT_STRING = 0x06;
+
+    private static final byte OBJECT = 0x08;
+
+    private static final byte ARRAY = 0x09;
+
+    private static final byte DECIMAL = 0x0A;
+
+    private static final byte JSON_VALUE = 0x0C;
+
+    private static final String[] KEYS = {
+            "msg", "agentId", "udId", "cid", "rid", "time", "des", "status", "log", "detail",
+            "pf", "ver", "run", "tem", "level", "vol", "type", "name", "url", "size"
+    };
+
+    private static final String[] VALUES = {
+            "", "step", "perform", "battery", "status", "record", "elapsed", "log", "errCall",
+            "heartBeat", "ping", "deviceDetail", "findSteps", "debugUser", "agentInfo"
+    };
+
+    private static final Map<String, Integer> KEY_INDEX = index(KEYS);
+
+    private static final Map<String, Integer> VALUE_INDEX = index(VALUES);
+
+    private static final ThreadLocal<Output> OUTPUT = ThreadLocal.withInitial(Output::new);
+
+    private static Map<String, Integer> index(String[] dictionary) {
+        Map<String, Integer> index = new HashMap<>();
+        for (int i = 0; i < dictionary.length; i++) {
+            index.put(dictionary[i], i);
+        }
+        return index;
+    }
+
+    /**
+     * 与原来的toJSONString一致，JSON.toJSONBytes对日期的格式不同
+     */
+    public static byte[] encodeJson(JSONObject message) {
+        return message.toJSONString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static byte[] encodeBinary(JSONObject message) {
+        Output out = OUTPUT.get();
+        out.size = 0;
+        writeObject(out, message);
+        return Arrays.copyOf(out.bytes, out.size);
+    }
+
+    public static boolean isBinary(byte[] message) {
+        return message.length > 0 && message[0] == OBJECT;
+    }
+
+    /**
+     * 转为指定的编码，已经是该编码时原样返回
+     */
+    public static byte[] convert(byte[] message, boolean binary) {
+        if (isBinary(message) == binary) {
+            return message;
+        }
+        return binary ? encodeBinary(decode(message)) : encodeJson(decode(message));
+    }
+
+    public static JSONObject decode(byte[] message) {
+        if (!isBinary(message)) {
+            return JSON.parseObject(new String(message, StandardCharsets.UTF_8));
+        }
+        return (JSONObject) readValue(ByteBuffer.wrap(message));
+    }
+
+    /**
+     * 把一批消息拼成一个二进制帧
+     */
+    public static ByteBuffer frame(List<byte[]> messages) {
+        int size = FRAME_MAGIC.length + 5;
+        for (byte[] message : messages) {
+            size += 5 + message.length;
+        }
+        Output out = new Output(size);
+        out.put(FRAME_MAGIC, 0, FRAME_MAGIC.length);
+        out.putVarint(messages.size());
+        for (byte[] message : messages) {
+            out.putVarint(message.length);
+            out.put(message, 0, message.length);
+        }
+        return ByteBuffer.wrap(out.bytes, 0, out.size);
+    }
+
+    public static JSONArray unframe(ByteBuffer frame) {
+        for (byte b : FRAME_MAGIC) {
+            if (frame.get() != b) {
+                throw new IllegalArgumentException("not a telemetry frame");
+            }
+        }
+        int count = (int) readVarint(frame);
+        JSONArray messages = new JSONArray(count);
+        for (int i = 0; i < count; i++) {
+            byte[] message = new byte[(int) readVarint(frame)];
+            frame.get(message);
+            messages.add(decode(message));
+        }
+        return messages;
+    }
+
+    /**
+     * 与JSON编码一致，值为null的字段不写出
+     */
+    private static void writeObject(Output out, Map<?, ?> map) {
+        int count = 0;
+        for (Object value : map.values()) {
+            if (value != null) {
+                count++;
+            }
+        }
+        out.put(OBJECT);
+        out.putVarint(count);
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            if (entry.getValue() == null) {
+                continue;
+            }
+            String key = String.valueOf(entry.getKey());
+            Integer id = KEY_INDEX.get(key);
+            if (id != null) {
+                out.putVarint(id + 1);
+            } else {
+                out.putVarint(0);
+                out.putString(key);
+            }
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    private static void writeValue(Output out, Object value) {
+        if (value == null) {
+            out.put(NULL);
+        } else if (value instanceof String s) {
+            Integer id = VALUE_INDEX.get(s);
+            if (id != null) {
+                out.put(DICT_STRING);
+                out.putVarint(id);
+            } else {
+                out.put(STRING);
+                out.putString(s);
+            }
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short
+                || value instanceof Byte) {
+            long v = ((Number) value).longValue();
+            out.put(INTEGER);
+            out.putVarint((v << 1) ^ (v >> 63));
+        } else if (value instanceof Boolean b) {
+            out.put(b ? TRUE : FALSE);
+        } else if (value instanceof Double || value instanceof Float) {
+            out.put(DOUBLE);
+            out.putLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+        } else if (value instanceof BigDecimal || value instanceof BigInteger) {
+            out.put(DECIMAL);
+            out.putString(value.toString());
+        } else if (value instanceof Map<?, ?> map) {
+            writeObject(out, map);
+        } else if (value instanceof List<?> list) {
+            out.put(ARRAY);
+            out.putVarint(list.size());
+            for (Object item : list) {
+                writeValue(out, item);
+            }
+        } else {
+            // 放在数组中序列化，格式与在JSONObject中时相同
+            JSONArray wrapper = new JSONArray(1);
+            wrapper.add(value);
+            out.put(JSON_VALUE);
+            out.putString(wrapper.toJSONString());
+        }
+    }
+
+    private static Object readValue(ByteBuffer in) {
+        byte type = in.get();
+        switch (type) {
+            case NULL:
+                return null;
+            case FALSE:
+                return false;
+            case TRUE:
+                return true;
+            case INTEGER: {
+                long z = readVarint(in);
+                long v = (z >>> 1) ^ -(z & 1);
+                return v == (int) v ? (Object) (int) v : (Object) v;
+            }
+            case DOUBLE:
+                return Double.longBitsToDouble(in.getLong());
+            case STRING:
+                return readString(in);
+            case DICT_STRING:
+                return VALUES[(int) readVarint(in)];
+            case DECIMAL:
+                return new BigDecimal(readString(in));
+            case OBJECT: {
+                int count = (int) readVarint(in);
+                JSONObject object = new JSONObject(count);
+                for (int i = 0; i < count; i++) {
+                    int key = (int) readVarint(in);
+                    object.put(key > 0 ? KEYS[key - 1] : readString(in), readValue(in));
+                }
+                return object;
+            }
+            case ARRAY: {
+                int count = (int) readVarint(in);
+                JSONArray array = new JSONArray(count);
+                for (int i = 0; i < count; i++) {
+                    array.add(readValue(in));
+                }
+                return array;
+            }
+            case JSON_VALUE:
+                return JSON.parseArray(readString(in)).get(0);
+            default:
+                throw new IllegalArgumentException("unknown type " + type);
+        }
+    }
+
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = (int) readVarint(in);
+        String s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+
+    private static class Output {
+
+        private byte[] bytes;
+
+        private int size = 0;
+
+        Output() {
+            this(256);
+        }
+
+        Output(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        private void ensure(int more) {
+            if (size + more > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + more));
+            }
+        }
+
+        void put(byte b) {
+            ensure(1);
+            bytes[size++] = b;
+        }
+
+        void put(byte[] b, int offset, int length) {
+            ensure(length);
+            System.arraycopy(b, offset, bytes, size, length);
+            size += length;
+        }
+
+        void putVarint(long v) {
+            ensure(10);
+            while ((v & ~0x7fL) != 0) {
+                bytes[size++] = (byte) ((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            bytes[size++] = (byte) v;
+        }
+
+        void putLong(long v) {
+            ensure(8);
+            for (int i = 7; i >= 0; i--) {
+                bytes[size++] = (byte) (v >>> (i * 8));
+            }
+        }
+
+        /**
+         * ASCII直接写入，含其他字符时再整体转UTF-8
+         */
+        void putString(String s) {
+            int length = s.length();
+            ensure(5 + length);
+            int start = size;
+            putVarint(length);
+            int offset = size;
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+                if (c >= 0x80) {
+                    size = start;
+                    byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+                    putVarint(utf8.length);
+                    put(utf8, 0, utf8.length);
+                    return;
+                }
+                bytes[offset + i] = (byte) c;
+            }
+            size = offset + length;
+        }
+    }
+}
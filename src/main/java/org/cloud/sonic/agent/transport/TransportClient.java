@@ -19,11 +19,14 @@ package org.cloud.sonic.agent.transport;
 
 import java.io.IOException;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
@@ -33,16 +36,14 @@ import org.cloud.sonic.agent.bridge.android.AndroidSupplyTool;
 import org.cloud.sonic.agent.bridge.ios.IOSDeviceLocalStatus;
 import org.cloud.sonic.agent.bridge.ios.SibTool;
 import org.cloud.sonic.agent.common.enums.AndroidKey;
-import org.cloud.sonic.agent.common.interfaces.DeviceStatus;
 import org.cloud.sonic.agent.common.interfaces.PlatformType;
-import org.cloud.sonic.agent.common.maps.AndroidDeviceManagerMap;
 import org.cloud.sonic.agent.common.maps.AndroidPasswordMap;
 import org.cloud.sonic.agent.common.maps.AndroidThreadMap;
 import org.cloud.sonic.agent.common.maps.DevicesLockMap;
 import org.cloud.sonic.agent.common.maps.HandlerMap;
-import org.cloud.sonic.agent.common.maps.IOSDeviceManagerMap;
 import org.cloud.sonic.agent.common.maps.IOSProcessMap;
 import org.cloud.sonic.agent.common.maps.OccupyMap;
+import org.cloud.sonic.agent.common.maps.SuiteCaseMap;
 import org.cloud.sonic.agent.common.maps.WebSocketSessionMap;
 import org.cloud.sonic.agent.tests.AndroidTests;
 import org.cloud.sonic.agent.tests.IOSTests;
@@ -54,11 +55,13 @@ import org.cloud.sonic.agent.tests.handlers.AndroidStepHandler;
 import org.cloud.sonic.agent.tests.handlers.IOSStepHandler;
 import org.cloud.sonic.agent.tests.ios.IOSRunStepThread;
 import org.cloud.sonic.agent.tests.ios.IOSTestTaskBootThread;
+import org.cloud.sonic.agent.tests.screen.ScreenBroadcaster;
 import org.cloud.sonic.agent.tools.AgentManagerTool;
 import org.cloud.sonic.agent.tools.BytesTool;
 import org.cloud.sonic.agent.tools.PHCTool;
 import org.cloud.sonic.agent.tools.ScheduleTool;
 import org.cloud.sonic.agent.tools.SpringTool;
+import org.cloud.sonic.agent.tools.metrics.MetricsRegistry;
 import org.cloud.sonic.driver.common.tool.SonicRespException;
 import org.java_websocket.client.WebSocketClient;
 import org.java_websocket.handshake.ServerHandshake;
@@ -81,9 +84,27 @@ public class TransportClient extends WebSocketClient {
     String host = String.valueOf(SpringTool.getPropertiesValue("sonic.agent.host"));
     String version = String.valueOf(SpringTool.getPropertiesValue("spring.version"));
     Integer port = Integer.valueOf(SpringTool.getPropertiesValue("sonic.agent.port"));
+    // 这些命令会修改设备的占用状态，同一设备按到达顺序执行
+    private static final Set<String> deviceCommands = Set.of(
+            "occupy", "release", "stopDebug", "reboot", "runStep", "debugStep");
+    // 服务端支持多通道时不为null
+    private volatile MuxSession mux;
 
     public TransportClient(URI serverUri) {
         super(serverUri);
+        // 握手时声明支持的编码与多通道协议，服务端在auth中回复选用的值
+        addHeader("Sonic-Encodings", TelemetryCodec.BINARY_ENCODING);
+        addHeader("Sonic-Channels", MuxSession.PROTOCOL);
+        // 上次会话的标识，server仍保留该会话时可以直接恢复
+        String session = TransportWorker.getSessionToken();
+        if (session != null) {
+            addHeader("Sonic-Session", session);
+        }
+    }
+
+    public MuxSession getMux() {
+        MuxSession m = mux;
+        return m == null || m.isClosed() ? null : m;
     }
 
     @Override
@@ -97,9 +118,17 @@ public class TransportClient extends WebSocketClient {
         if (jsonObject.getString("msg").equals("pong")) {
             return;
         }
-        log.info("Agent <- Server message: {}", jsonObject);
-        TransportWorker.cachedThreadPool.execute(() -> {
-            switch (jsonObject.getString("msg")) {
+        String msg = jsonObject.getString("msg");
+        if (msg.equals("suite")) {
+            // 套件中的步骤可能很多，不再整体转成字符串打印
+            log.info("Agent <- Server message: suite with {} cases", jsonObject.getJSONArray("cases").size());
+        } else {
+            log.info("Agent <- Server message: {}", jsonObject);
+        }
+        MetricsRegistry.counter("sonic_agent_server_messages_total", "Messages received from server", "msg", msg)
+                .increment();
+        Runnable command = () -> {
+            switch (msg) {
                 case "occupy" -> {
                     String udId = jsonObject.getString("udId");
                     String token = jsonObject.getString("token");
@@ -135,10 +164,15 @@ public class TransportClient extends WebSocketClient {
                             }
 
                             if (uiaPort != 0) {
+                                long start = System.nanoTime();
                                 try {
                                     AndroidDeviceBridgeTool.startUiaServer(iDevice, uiaPort);
                                 } catch (InstallException e) {
                                     log.error(e.getMessage());
+                                } finally {
+                                    MetricsRegistry.histogram("sonic_agent_operation_seconds",
+                                            "Time spent in slow device operations", "operation", "startUiaServer")
+                                            .recordSince(start);
                                 }
                             }
 
@@ -240,6 +274,11 @@ public class TransportClient extends WebSocketClient {
                             log.info("{}-{} closed.", ss, udId);
                         }
                     }
+                    // 其他一起观看投屏的session
+                    ScreenBroadcaster broadcaster = ScreenBroadcaster.get(udId);
+                    if (broadcaster != null) {
+                        broadcaster.closeSubscribers();
+                    }
                 }
                 case "settings" -> {
                     if (jsonObject.getInteger("id") != null) {
@@ -264,34 +303,31 @@ public class TransportClient extends WebSocketClient {
                         BytesTool.remoteTimeout = jsonObject.getInteger("remoteTimeout");
                         BytesTool.agentHost = host;
                         TransportWorker.client = this;
-                        JSONObject agentInfo = new JSONObject();
-                        agentInfo.put("msg", "agentInfo");
-                        agentInfo.put("agentId", BytesTool.agentId);
-                        agentInfo.put("port", port);
-                        agentInfo.put("version", "v" + version);
-                        agentInfo.put("systemType", System.getProperty("os.name"));
-                        agentInfo.put("host", host);
-                        agentInfo.put("hasHub", PHCTool.isSupport() ? 1 : 0);
-                        TransportWorker.client.send(agentInfo.toJSONString());
-                        IDevice[] iDevices = AndroidDeviceBridgeTool.getRealOnLineDevices();
-                        for (IDevice d : iDevices) {
-                            String status = AndroidDeviceManagerMap.getStatusMap().get(d.getSerialNumber());
-                            if (status != null) {
-                                AndroidDeviceLocalStatus.send(d.getSerialNumber(), status);
-                            } else {
-                                AndroidDeviceLocalStatus.send(d.getSerialNumber(),
-                                        d.getState() == null ? null : d.getState().toString());
-                            }
+                        TransportWorker.setSessionToken(jsonObject.getString("session"));
+                        boolean resumed = Boolean.TRUE.equals(jsonObject.getBoolean("resumed"));
+                        if (!resumed) {
+                            JSONObject agentInfo = new JSONObject();
+                            agentInfo.put("msg", "agentInfo");
+                            agentInfo.put("agentId", BytesTool.agentId);
+                            agentInfo.put("port", port);
+                            agentInfo.put("version", "v" + version);
+                            agentInfo.put("systemType", System.getProperty("os.name"));
+                            agentInfo.put("host", host);
+                            agentInfo.put("hasHub", PHCTool.isSupport() ? 1 : 0);
+                            TransportWorker.client.send(agentInfo.toJSONString());
                         }
-                        List<String> udIds = SibTool.getDeviceList();
-                        for (String u : udIds) {
-                            String status = IOSDeviceManagerMap.getMap().get(u);
-                            if (status != null) {
-                                IOSDeviceLocalStatus.send(u, status);
-                            } else {
-                                IOSDeviceLocalStatus.send(u, DeviceStatus.ONLINE);
-                            }
+                        TransportWorker.setEncoding(jsonObject.getString("encoding"));
+                        if (MuxSession.PROTOCOL.equals(jsonObject.getString("channels"))) {
+                            // 上传等通道都由agent发起，不接受服务端新建的通道
+                            mux = new MuxSession(this::send, true, TransportWorker.MUX_WINDOW,
+                                    TransportWorker.MUX_SEND_BUDGET, TransportWorker.MUX_TIMEOUT_MILLIS, channel -> channel.reset("not supported"));
+                        }
+                        // 会话已恢复时，断线期间的状态变化都在积压的消息里；否则按快照重新同步
+                        if (!resumed) {
+                            TransportWorker.resync();
                         }
+                        TransportWorker.wakeUp();
+                        TransportConnectionThread.onAuthenticated();
                     } else {
                         TransportWorker.isKeyAuth = false;
                         log.info("server auth failed!");
@@ -335,16 +371,20 @@ public class TransportClient extends WebSocketClient {
                     }
                 }
                 case "suite" -> {
-                    List<JSONObject> cases = jsonObject.getJSONArray("cases").toJavaList(JSONObject.class);
+                    JSONArray cases = jsonObject.getJSONArray("cases");
                     TestNG tng = new TestNG();
                     List<XmlSuite> suiteList = new ArrayList<>();
                     XmlSuite xmlSuite = new XmlSuite();
+                    List<String> caseKeys = new ArrayList<>();
                     // bug?
-                    for (JSONObject dataInfo : cases) {
+                    for (int i = 0; i < cases.size(); i++) {
                         XmlTest xmlTest = new XmlTest(xmlSuite);
                         Map<String, String> parameters = new HashMap<>();
-                        parameters.put("dataInfo", dataInfo.toJSONString());
-                        if (xmlSuite.getParameter("dataInfo") == null) {
+                        // 只传句柄，用例数据直接交给执行类
+                        String caseKey = SuiteCaseMap.put(cases.getJSONObject(i));
+                        caseKeys.add(caseKey);
+                        parameters.put("caseKey", caseKey);
+                        if (xmlSuite.getParameter("caseKey") == null) {
                             xmlSuite.setParameters(parameters);
                         }
                         xmlTest.setParameters(parameters);
@@ -360,7 +400,11 @@ public class TransportClient extends WebSocketClient {
                     suiteList.add(xmlSuite);
                     tng.setXmlSuites(suiteList);
                     tng.addListener(new SuiteListener());
-                    tng.run();
+                    try {
+                        tng.run();
+                    } finally {
+                        caseKeys.forEach(SuiteCaseMap.getMap()::remove);
+                    }
                 }
                 case "forceStopSuite" -> {
                     List<JSONObject> caseList = jsonObject.getJSONArray("cases").toJavaList(JSONObject.class);
@@ -376,16 +420,55 @@ public class TransportClient extends WebSocketClient {
                     }
                 }
             }
-        });
+        };
+        if (msg.equals("suite")) {
+            // 整个套件执行完才返回，不占用设备邮箱，但要排在这些设备之前的occupy、release之后
+            TransportWorker.dispatchLong(msg, getSuiteDevices(jsonObject), command);
+        } else {
+            TransportWorker.dispatch(msg, deviceCommands.contains(msg) ? jsonObject.getString("udId") : null, command);
+        }
+    }
+
+    static Set<String> getSuiteDevices(JSONObject suite) {
+        Set<String> udIds = new LinkedHashSet<>();
+        JSONArray cases = suite.getJSONArray("cases");
+        for (int i = 0; i < cases.size(); i++) {
+            JSONArray devices = cases.getJSONObject(i).getJSONArray("device");
+            if (devices == null) {
+                continue;
+            }
+            for (int j = 0; j < devices.size(); j++) {
+                String udId = devices.getJSONObject(j).getString("udId");
+                if (udId != null) {
+                    udIds.add(udId);
+                }
+            }
+        }
+        return udIds;
+    }
+
+    @Override
+    public void onMessage(ByteBuffer bytes) {
+        MuxSession m = mux;
+        if (m != null) {
+            m.receive(bytes);
+        }
     }
 
     @Override
     public void onClose(int i, String s, boolean b) {
-        if (TransportWorker.isKeyAuth) {
-            log.info("Server disconnected. Retry in 10s...");
+        MuxSession m = mux;
+        if (m != null) {
+            m.close();
         }
         if (TransportWorker.client == this) {
             TransportWorker.client = null;
+        } else if (TransportWorker.client != null) {
+            return;
+        }
+        long delay = TransportConnectionThread.onDisconnected();
+        if (delay >= 0) {
+            log.info("Server disconnected. Retry in {} ms...", delay);
         }
     }
 
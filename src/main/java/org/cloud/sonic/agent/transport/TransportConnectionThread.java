@@ -18,8 +18,11 @@
 package org.cloud.sonic.agent.transport;
 
 import java.net.URI;
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.cloud.sonic.agent.tools.ScheduleTool;
 import org.cloud.sonic.agent.tools.SpringTool;
 
 import com.alibaba.fastjson.JSONObject;
@@ -28,6 +31,7 @@ import lombok.extern.slf4j.Slf4j;
 
 /**
  * @author Eason
+ * @des 定时发送ping；断线后按退避时间重连，这里的定时任务只在没有安排重连时兜底
  * @date 2022/6/12 02:45
  */
 @Slf4j
@@ -45,22 +49,65 @@ public class TransportConnectionThread implements Runnable {
     Integer serverPort = Integer.valueOf(SpringTool.getPropertiesValue("sonic.server.port"));
     String key = String.valueOf(SpringTool.getPropertiesValue("sonic.agent.key"));
 
+    // 重连等待从1s开始翻倍，最长60s
+    private static final ReconnectBackoff backoff = new ReconnectBackoff(1000, 60_000, new Random());
+    // 正在连接或已经安排了重连
+    private static final AtomicBoolean connecting = new AtomicBoolean();
+    private static volatile URI serverUri;
+
     @Override
     public void run() {
         Thread.currentThread().setName(THREAD_NAME);
         if (TransportWorker.client == null) {
-            if (!TransportWorker.isKeyAuth) {
+            if (!TransportWorker.isKeyAuth || !connecting.compareAndSet(false, true)) {
                 return;
             }
             String url = String.format("ws://%s:%d/server/websockets/agent/%s",
                     serverHost, serverPort, key).replace(":80/", "/");
-            URI uri = URI.create(url);
-            TransportClient transportClient = new TransportClient(uri);
-            transportClient.connect();
+            serverUri = URI.create(url);
+            connect();
         } else {
             JSONObject ping = new JSONObject();
             ping.put("msg", "ping");
             TransportWorker.send(ping);
         }
     }
+
+    private static void connect() {
+        if (!TransportWorker.isKeyAuth) {
+            connecting.set(false);
+            return;
+        }
+        try {
+            TransportClient transportClient = new TransportClient(serverUri);
+            transportClient.connect();
+        } catch (RuntimeException e) {
+            log.info("connect to server failed: {}", e.getMessage());
+            onDisconnected();
+        }
+    }
+
+    /**
+     * 认证通过，下次断线重新从最短的等待开始
+     */
+    public static void onAuthenticated() {
+        backoff.reset();
+        connecting.set(false);
+    }
+
+    /**
+     * 连接失败或断开时调用，按退避时间安排下一次重连
+     *
+     * @return 重连前等待的毫秒数，不再重连时返回-1
+     */
+    public static long onDisconnected() {
+        if (!TransportWorker.isKeyAuth || serverUri == null) {
+            connecting.set(false);
+            return -1;
+        }
+        connecting.set(true);
+        long delay = backoff.nextDelayMillis();
+        ScheduleTool.schedule(TransportConnectionThread::connect, delay, TimeUnit.MILLISECONDS);
+        return delay;
+    }
 }
@@ -2,7 +2,6 @@ package org.cloud.sonic.agent.transport;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RestController;
@@ -21,9 +20,8 @@ public class TransportController {
 
     @RequestMapping(value = "/**", method = { RequestMethod.GET, RequestMethod.POST, RequestMethod.PUT,
             RequestMethod.DELETE }, produces = MediaType.ALL_VALUE)
-    public ResponseEntity catchAll(HttpServletRequest request, HttpServletResponse response) {
-        System.out.println(request.getRequestURI());
-        return routingDelegate.redirect(request, response,
+    public void catchAll(HttpServletRequest request, HttpServletResponse response) {
+        routingDelegate.redirect(request, response,
                 "http://localhost:" + request.getRequestURI().replace(DELEGATE_PREFIX + "/", ""),
                 request.getRequestURI());
     }
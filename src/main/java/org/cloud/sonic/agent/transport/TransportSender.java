@@ -0,0 +1,452 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.transport;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import com.alibaba.fastjson.JSONObject;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 发往服务端的消息发送器
+ * <p>
+ * 发送线程阻塞等待队列，有消息立即唤醒；取到一条后在延迟预算内继续收集，
+ * 按条数与字节数上限合并成一批交给连接一次发出。队列按优先级出队，
+ * 状态与心跳类消息排在步骤日志、性能数据之前，批次中出现控制类消息时不再等待。
+ * <p>
+ * 配置了{@link OutboxJournal}时，BULK消息在调用线程编码后写入磁盘日志，不在堆中积压，
+ * 连接把数据写出后确认，断线重连后从第一条未确认的记录开始重发。
+ * 没有磁盘日志时BULK消息留在内存队列，积压过多时生产者会被短暂阻塞。
+ * 服务端支持时以{@link TelemetryCodec}的二进制编码发送，一批消息合成一个帧。
+ */
+@Slf4j
+public class TransportSender {
+
+    public enum Priority {
+        /**
+         * 心跳、设备状态等，不等待合并
+         */
+        CONTROL,
+        NORMAL,
+        /**
+         * 步骤日志、性能数据等，受积压上限约束
+         */
+        BULK
+    }
+
+    public interface FrameSink {
+        boolean isOpen();
+
+        /**
+         * 按顺序发出一批消息，抛出异常时整批稍后重发
+         *
+         * @param binary 为true时每条都是{@link TelemetryCodec}的二进制消息，否则是JSON文本
+         */
+        void send(List<byte[]> messages, boolean binary) throws Exception;
+
+        /**
+         * @return 已交给连接的数据是否都已写出
+         */
+        default boolean isFlushed() {
+            return true;
+        }
+
+        /**
+         * @return 当前连接，变化说明重连过，未确认的消息需要重发
+         */
+        default Object getSession() {
+            return this;
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition available = lock.newCondition();
+
+    private final PriorityQueue<Envelope> queue = new PriorityQueue<>();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final Object connectLock = new Object();
+
+    private final FrameSink sink;
+
+    private final Consumer<JSONObject> decorator;
+
+    private final OutboxJournal journal;
+
+    private final int maxBatchSize;
+
+    private final int maxBatchBytes;
+
+    private final long lingerNanos;
+
+    private final Semaphore bulkPermits;
+
+    private final long bulkBlockMillis;
+
+    private final AtomicLong sentCount = new AtomicLong();
+
+    private final AtomicLong batchCount = new AtomicLong();
+
+    private final AtomicLong overflowCount = new AtomicLong();
+
+    private volatile boolean binary = false;
+
+    /**
+     * 已发出但未确认的最大日志序号，只在发送线程访问
+     */
+    private long inflightSeq = -1;
+
+    private Object inflightSession;
+
+    public TransportSender(FrameSink sink, Consumer<JSONObject> decorator, int maxBatchSize,
+                           int maxBatchBytes, long lingerMillis, int bulkCapacity, long bulkBlockMillis) {
+        this(sink, decorator, null, maxBatchSize, maxBatchBytes, lingerMillis, bulkCapacity, bulkBlockMillis);
+    }
+
+    /**
+     * @param decorator       编码前补充公共字段
+     * @param journal         BULK消息的磁盘日志，为null时留在内存
+     * @param lingerMillis    第一条消息最多等待多久凑批
+     * @param bulkCapacity    内存中BULK消息最多积压的条数
+     * @param bulkBlockMillis 积压满时生产者最多阻塞多久，超时后仍然入队，不丢日志
+     */
+    public TransportSender(FrameSink sink, Consumer<JSONObject> decorator, OutboxJournal journal,
+                           int maxBatchSize, int maxBatchBytes, long lingerMillis, int bulkCapacity,
+                           long bulkBlockMillis) {
+        this.sink = sink;
+        this.decorator = decorator;
+        this.journal = journal;
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchBytes = maxBatchBytes;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.bulkPermits = new Semaphore(bulkCapacity);
+        this.bulkBlockMillis = bulkBlockMillis;
+    }
+
+    public void send(JSONObject message, Priority priority) {
+        if (priority == Priority.BULK && journal != null) {
+            try {
+                journal.append(encode(message));
+                signal();
+                return;
+            } catch (IOException e) {
+                log.info("write to outbox failed cause by: {}, keep in memory...", e.getMessage());
+            }
+        }
+        boolean permit = false;
+        if (priority == Priority.BULK) {
+            try {
+                permit = bulkPermits.tryAcquire(bulkBlockMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!permit && overflowCount.getAndIncrement() % 1000 == 0) {
+                log.warn("transport queue is full, {} messages waiting.", size());
+            }
+        }
+        Envelope envelope = new Envelope(message, priority, sequence.getAndIncrement(), System.nanoTime(), permit);
+        lock.lock();
+        try {
+            queue.offer(envelope);
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 切换二进制编码，磁盘日志中旧编码的消息在发送时转换
+     */
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    private byte[] encode(JSONObject message) {
+        decorator.accept(message);
+        return binary ? TelemetryCodec.encodeBinary(message) : TelemetryCodec.encodeJson(message);
+    }
+
+    private void signal() {
+        lock.lock();
+        try {
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 连接可用时调用，让等待连接的发送线程立即继续
+     */
+    public void wakeUp() {
+        synchronized (connectLock) {
+            connectLock.notifyAll();
+        }
+    }
+
+    /**
+     * @return 内存队列中的消息数加上磁盘日志中未确认的消息数
+     */
+    public long size() {
+        lock.lock();
+        try {
+            return queue.size() + (journal == null ? 0 : journal.size());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    public long getOverflowCount() {
+        return overflowCount.get();
+    }
+
+    /**
+     * 发送循环，active返回false后退出
+     */
+    public void run(BooleanSupplier active) {
+        List<Envelope> batch = new ArrayList<>(maxBatchSize);
+        List<byte[]> frames = new ArrayList<>(maxBatchSize);
+        while (active.getAsBoolean()) {
+            try {
+                acknowledge();
+                Envelope first = next(TimeUnit.SECONDS.toNanos(1));
+                if (first == null) {
+                    continue;
+                }
+                collect(first, batch, frames);
+                boolean delivered = deliver(batch, frames);
+                while (!delivered && !batch.isEmpty()) {
+                    if (!active.getAsBoolean()) {
+                        return;
+                    }
+                    delivered = deliver(batch, frames);
+                }
+                if (!delivered) {
+                    continue;
+                }
+                for (Envelope envelope : batch) {
+                    if (envelope.permit) {
+                        bulkPermits.release();
+                    }
+                    inflightSeq = Math.max(inflightSeq, envelope.journalSeq);
+                }
+                if (!frames.isEmpty()) {
+                    sentCount.addAndGet(frames.size());
+                    batchCount.incrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                log.info("read outbox failed cause by: {}", e.getMessage());
+            } finally {
+                batch.clear();
+                frames.clear();
+            }
+        }
+    }
+
+    /**
+     * 连接写完后确认磁盘日志，连接变化时回到未确认处重发
+     */
+    private void acknowledge() {
+        if (journal == null || inflightSeq < 0) {
+            return;
+        }
+        if (sink.getSession() != inflightSession) {
+            journal.rewind();
+            inflightSeq = -1;
+        } else if (sink.isFlushed()) {
+            journal.acknowledge(inflightSeq);
+            inflightSeq = -1;
+        }
+    }
+
+    /**
+     * 先取内存队列中优先级最高的，没有时再读磁盘日志
+     */
+    private Envelope next(long waitNanos) throws InterruptedException, IOException {
+        lock.lock();
+        try {
+            long remaining = waitNanos;
+            while (true) {
+                Envelope envelope = queue.poll();
+                if (envelope != null) {
+                    return envelope;
+                }
+                if (journal != null) {
+                    OutboxJournal.Entry entry = journal.read();
+                    if (entry != null) {
+                        return new Envelope(entry);
+                    }
+                }
+                if (remaining <= 0) {
+                    return null;
+                }
+                remaining = available.awaitNanos(remaining);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void collect(Envelope first, List<Envelope> batch, List<byte[]> frames)
+            throws InterruptedException, IOException {
+        long deadline = first.nanos + lingerNanos;
+        boolean urgent = false;
+        int bytes = 0;
+        Envelope next = first;
+        while (true) {
+            byte[] frame = next.frame != null ? TelemetryCodec.convert(next.frame, binary) : encode(next.message);
+            batch.add(next);
+            frames.add(frame);
+            bytes += frame.length;
+            urgent |= next.priority == Priority.CONTROL;
+            if (batch.size() >= maxBatchSize || bytes >= maxBatchBytes) {
+                return;
+            }
+            long wait = urgent ? 0 : deadline - System.nanoTime();
+            next = next(Math.max(0, wait));
+            if (next == null) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return 连接不可用或发送失败时等待后返回false，由调用方重试
+     */
+    private boolean deliver(List<Envelope> batch, List<byte[]> frames) throws InterruptedException {
+        if (sink.isOpen()) {
+            try {
+                Object session = sink.getSession();
+                if (inflightSeq >= 0 && session != inflightSession) {
+                    // 上一个连接未确认的消息需要先重发
+                    replay(batch, frames);
+                }
+                if (!batch.isEmpty()) {
+                    sink.send(frames, binary);
+                    inflightSession = session;
+                }
+                return true;
+            } catch (Exception e) {
+                log.info("send to server failed cause by: {}, retry later...", e.getMessage());
+            }
+        }
+        replay(batch, frames);
+        synchronized (connectLock) {
+            connectLock.wait(1000);
+        }
+        return false;
+    }
+
+    /**
+     * 磁盘日志中的消息回到未确认处重读，内存中的消息留在批次里
+     */
+    private void replay(List<Envelope> batch, List<byte[]> frames) {
+        if (journal == null) {
+            return;
+        }
+        dropJournalEntries(batch, frames);
+        journal.rewind();
+        inflightSeq = -1;
+    }
+
+    private static void dropJournalEntries(List<Envelope> batch, List<byte[]> frames) {
+        Iterator<Envelope> envelopes = batch.iterator();
+        Iterator<byte[]> it = frames.iterator();
+        while (envelopes.hasNext()) {
+            it.next();
+            if (envelopes.next().journalSeq >= 0) {
+                envelopes.remove();
+                it.remove();
+            }
+        }
+    }
+
+    private static class Envelope implements Comparable<Envelope> {
+
+        private final JSONObject message;
+
+        private final byte[] frame;
+
+        private final Priority priority;
+
+        private final long sequence;
+
+        private final long nanos;
+
+        private final boolean permit;
+
+        /**
+         * 来自磁盘日志时为记录序号，否则为-1
+         */
+        private final long journalSeq;
+
+        Envelope(JSONObject message, Priority priority, long sequence, long nanos, boolean permit) {
+            this.message = message;
+            this.frame = null;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.nanos = nanos;
+            this.permit = permit;
+            this.journalSeq = -1;
+        }
+
+        Envelope(OutboxJournal.Entry entry) {
+            this.message = null;
+            this.frame = entry.getPayload();
+            this.priority = Priority.BULK;
+            this.sequence = -1;
+            this.nanos = System.nanoTime();
+            this.permit = false;
+            this.journalSeq = entry.getSeq();
+        }
+
+        @Override
+        public int compareTo(Envelope o) {
+            int c = priority.compareTo(o.priority);
+            return c != 0 ? c : Long.compare(sequence, o.sequence);
+        }
+    }
+}
@@ -17,11 +17,23 @@
  */
 package org.cloud.sonic.agent.transport;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
 
+import org.cloud.sonic.agent.AgentApplication;
 import org.cloud.sonic.agent.tools.BytesTool;
+import org.cloud.sonic.agent.tools.metrics.MetricsRegistry;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.framing.TextFrame;
+import org.springframework.boot.system.ApplicationHome;
 import org.springframework.context.annotation.Configuration;
 
 import com.alibaba.fastjson.JSONObject;
@@ -31,34 +43,196 @@ import lombok.extern.slf4j.Slf4j;
 @Configuration
 @Slf4j
 public class TransportWorker {
-    private static LinkedBlockingQueue<JSONObject> dataQueue = new LinkedBlockingQueue<>();
     public static ExecutorService cachedThreadPool = Executors.newCachedThreadPool();
     public static TransportClient client = null;
     public static Boolean isKeyAuth = true;
+    // 凑批最多等待的时间，单位为毫秒
+    private static final long LINGER_MILLIS = 20;
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final int MAX_BATCH_BYTES = 256 * 1024;
+    // 日志类消息最多积压的条数，满了之后生产者最多阻塞的毫秒数
+    private static final int BULK_CAPACITY = 20000;
+    private static final long BULK_BLOCK_MILLIS = 2000;
+    private static final Map<String, TransportSender.Priority> priorityMap = Map.of(
+            "heartBeat", TransportSender.Priority.CONTROL,
+            "ping", TransportSender.Priority.CONTROL,
+            "deviceDetail", TransportSender.Priority.CONTROL,
+            "debugUser", TransportSender.Priority.CONTROL,
+            "errCall", TransportSender.Priority.CONTROL,
+            "battery", TransportSender.Priority.NORMAL,
+            "findSteps", TransportSender.Priority.NORMAL);
+    // 断线期间日志类消息写入磁盘，每个分段8MB，最多保留64个分段；
+    // 目录放在agent所在目录（与plugins同级），不随启动时的工作目录变化
+    private static final String OUTBOX_DIR = "outbox";
+    private static final int OUTBOX_SEGMENT_SIZE = 8 * 1024 * 1024;
+    private static final int OUTBOX_MAX_SEGMENTS = 64;
+    private static final TransportSender sender = new TransportSender(new ClientSink(),
+            m -> m.put("agentId", BytesTool.agentId), openOutbox(), MAX_BATCH_SIZE, MAX_BATCH_BYTES, LINGER_MILLIS, BULK_CAPACITY, BULK_BLOCK_MILLIS);
+
+    // 多通道传输时每个通道的接收窗口、所有通道共用的发送预算，以及等待额度或响应的最长时间
+    static final int MUX_WINDOW = 256 * 1024;
+    static final int MUX_SEND_BUDGET = 256 * 1024;
+    static final long MUX_TIMEOUT_MILLIS = 60_000;
+    // 设备命令的执行线程数，同一设备的命令串行；不带设备标识的控制消息另用一个线程；
+    // 套件最多同时执行的个数，超出的排队等待
+    private static final int DISPATCH_THREADS = 32;
+    private static final int SUITE_THREADS = 16;
+    private static final CommandDispatcher dispatcher = new CommandDispatcher(DISPATCH_THREADS, SUITE_THREADS);
+    // 已发出的设备状态，以及server在auth中下发的会话标识，重连时用于恢复
+    private static final DeviceStateSnapshot snapshot = new DeviceStateSnapshot();
+    private static volatile String sessionToken;
+
+    static {
+        MetricsRegistry.gauge("sonic_agent_transport_queued", "Messages waiting to be sent to server", sender::size);
+        MetricsRegistry.counter("sonic_agent_transport_sent_total", "Messages sent to server", sender::getSentCount);
+        MetricsRegistry.counter("sonic_agent_transport_batches_total", "Frames sent to server", sender::getBatchCount);
+        MetricsRegistry.counter("sonic_agent_transport_overflow_total",
+                "Messages enqueued after waiting for a full queue", sender::getOverflowCount);
+    }
+
+    private static OutboxJournal openOutbox() {
+        File dir = new File(new ApplicationHome(AgentApplication.class).getDir(), OUTBOX_DIR);
+        try {
+            OutboxJournal journal = new OutboxJournal(dir, OUTBOX_SEGMENT_SIZE, OUTBOX_MAX_SEGMENTS);
+            if (journal.size() > 0) {
+                log.info("{} messages in outbox will be resent after auth.", journal.size());
+            }
+            return journal;
+        } catch (IOException | RuntimeException e) {
+            log.error("Open outbox in {} failed, messages will be kept in memory while disconnected, cause: ",
+                    dir.getAbsolutePath(), e);
+            return null;
+        }
+    }
 
     public static void send(JSONObject jsonObject) {
-        dataQueue.offer(jsonObject);
+        snapshot.record(jsonObject);
+        sender.send(jsonObject, getPriority(jsonObject));
+    }
+
+    /**
+     * 用例日志（step、log、perform、status等）同属BULK，保持同一用例内的先后顺序
+     */
+    static TransportSender.Priority getPriority(JSONObject jsonObject) {
+        String msg = jsonObject.getString("msg");
+        return msg == null ? TransportSender.Priority.BULK
+                : priorityMap.getOrDefault(msg, TransportSender.Priority.BULK);
+    }
+
+    /**
+     * 执行服务端下发的命令，key相同的命令按顺序逐条执行
+     */
+    public static void dispatch(String type, String key, Runnable command) {
+        dispatcher.dispatch(type, key, command);
+    }
+
+    /**
+     * 执行要很久才返回的命令（如套件），在涉及设备之前的命令执行完后开始
+     */
+    public static void dispatchLong(String type, Collection<String> keys, Runnable command) {
+        dispatcher.dispatchLong(type, keys, command);
+    }
+
+    public static CommandDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * @return 当前连接上的多通道会话，未连接或服务端不支持时为null
+     */
+    public static MuxSession getMux() {
+        TransportClient c = client;
+        return c == null ? null : c.getMux();
+    }
+
+    public static TransportSender getSender() {
+        return sender;
+    }
+
+    public static String getSessionToken() {
+        return sessionToken;
+    }
+
+    public static void setSessionToken(String token) {
+        sessionToken = token;
+    }
+
+    /**
+     * server没有恢复原会话时调用，按快照重新发送各设备的最新状态
+     */
+    public static void resync() {
+        List<JSONObject> messages = snapshot.resyncMessages();
+        for (JSONObject message : messages) {
+            sender.send(message, TransportSender.Priority.CONTROL);
+        }
+        log.info("resync {} device status to server.", messages.size());
+    }
+
+    /**
+     * 认证通过后调用，积压的消息立即开始发送
+     */
+    public static void wakeUp() {
+        sender.wakeUp();
+    }
+
+    /**
+     * 按认证结果中服务端声明的编码切换，没有声明时使用JSON
+     */
+    public static void setEncoding(String encoding) {
+        boolean binary = TelemetryCodec.BINARY_ENCODING.equals(encoding);
+        if (binary != sender.isBinary()) {
+            log.info("transport encoding: {}", binary ? encoding : "json");
+        }
+        sender.setBinary(binary);
     }
 
     public static void readQueue() {
-        cachedThreadPool.execute(() -> {
-            while (isKeyAuth) {
-                try {
-                    if (client != null && client.isOpen()) {
-                        if (!dataQueue.isEmpty()) {
-                            JSONObject m = dataQueue.poll();
-                            m.put("agentId", BytesTool.agentId);
-                            client.send(m.toJSONString());
-                        } else {
-                            Thread.sleep(1000);
-                        }
-                    } else {
-                        Thread.sleep(5000);
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+        cachedThreadPool.execute(() -> sender.run(() -> isKeyAuth));
+    }
+
+    /**
+     * JSON编码时一批消息仍是各自独立的文本帧，一次交给连接的写线程；二进制编码时合成一个帧
+     */
+    private static class ClientSink implements TransportSender.FrameSink {
+
+        @Override
+        public boolean isOpen() {
+            TransportClient c = client;
+            return c != null && c.isOpen();
+        }
+
+        @Override
+        public void send(List<byte[]> messages, boolean binary) {
+            TransportClient c = client;
+            if (c == null) {
+                throw new WebsocketNotConnectedException();
             }
-        });
+            if (binary) {
+                c.send(TelemetryCodec.frame(messages));
+                return;
+            }
+            List<Framedata> out = new ArrayList<>(messages.size());
+            for (byte[] message : messages) {
+                TextFrame frame = new TextFrame();
+                frame.setPayload(ByteBuffer.wrap(message));
+                frame.setTransferemasked(true);
+                out.add(frame);
+            }
+            c.sendFrame(out);
+        }
+
+        /**
+         * 客户端写队列清空即视为送达，服务端没有消息级的确认
+         */
+        @Override
+        public boolean isFlushed() {
+            TransportClient c = client;
+            return c != null && !c.hasBufferedData();
+        }
+
+        @Override
+        public Object getSession() {
+            return client;
+        }
     }
 }
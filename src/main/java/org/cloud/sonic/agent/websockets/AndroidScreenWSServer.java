@@ -24,14 +24,16 @@ import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.cloud.sonic.agent.bridge.android.AndroidDeviceBridgeTool;
+import org.cloud.sonic.agent.bridge.android.AndroidDeviceThreadPool;
 import org.cloud.sonic.agent.common.config.WsEndpointConfigure;
 import org.cloud.sonic.agent.common.maps.AndroidAPKMap;
 import org.cloud.sonic.agent.common.maps.AndroidDeviceManagerMap;
-import org.cloud.sonic.agent.common.maps.ScreenMap;
 import org.cloud.sonic.agent.common.maps.WebSocketSessionMap;
 import org.cloud.sonic.agent.tests.android.minicap.MiniCapUtil;
 import org.cloud.sonic.agent.tests.android.scrcpy.ScrcpyServerUtil;
 import org.cloud.sonic.agent.tests.handlers.AndroidMonitorHandler;
+import org.cloud.sonic.agent.tests.screen.ScreenBroadcaster;
+import org.cloud.sonic.agent.tests.screen.ScreenFrameGovernor;
 import org.cloud.sonic.agent.tools.BytesTool;
 import org.cloud.sonic.agent.tools.ScheduleTool;
 import org.springframework.beans.factory.annotation.Value;
@@ -58,6 +60,10 @@ public class AndroidScreenWSServer implements IAndroidWSServer {
     private String key;
     private Map<String, String> typeMap = new ConcurrentHashMap<>();
     private Map<String, String> picMap = new ConcurrentHashMap<>();
+    /**
+     * minicap -Q 档位，由高到低
+     */
+    private static final int[] MINICAP_QUALITY_LEVELS = { 80, 60, 40 };
 
     private AndroidMonitorHandler androidMonitorHandler = new AndroidMonitorHandler();
 
@@ -76,9 +82,25 @@ public class AndroidScreenWSServer implements IAndroidWSServer {
         AndroidDeviceBridgeTool.screen(iDevice, "abort");
 
         session.getUserProperties().put("udId", udId);
-        session.getUserProperties().put("id", String.format("%s-%s", this.getClass().getSimpleName(), udId));
+        String id = String.format("%s-%s", this.getClass().getSimpleName(), udId);
+        Session tester = WebSocketSessionMap.getSession(id);
+        if (tester != null && tester.isOpen()) {
+            // 同一设备的其他观看者，共用同一路投屏
+            id = String.format("%s-%s", id, session.getId());
+        }
+        session.getUserProperties().put("id", id);
         WebSocketSessionMap.addSession(session);
         saveUdIdMapAndSet(session, iDevice);
+        ScreenFrameGovernor.put(session, new ScreenFrameGovernor(ScreenFrameGovernor.maxFpsOf("high"),
+                MINICAP_QUALITY_LEVELS, quality -> {
+                    // scrcpy为h264流，只有minicap需要按新的-Q重启，多人观看时取最高质量，没变化就不重启
+                    ScreenBroadcaster broadcaster = ScreenBroadcaster.get(udId);
+                    if (broadcaster != null && broadcaster.isCapturing("minicap")
+                            && broadcaster.resolveQuality(quality) != broadcaster.getCaptureQuality()) {
+                        log.info("{} minicap quality change to {}, restarting...", udId, quality);
+                        AndroidDeviceThreadPool.cachedThreadPool.execute(() -> startScreen(udId));
+                    }
+                }));
 
         int wait = 0;
         boolean isInstall = true;
@@ -128,63 +150,78 @@ public class AndroidScreenWSServer implements IAndroidWSServer {
         String udId = session.getUserProperties().get("udId").toString();
         switch (msg.getString("type")) {
             case "switch" -> {
-                typeMap.put(udId, msg.getString("detail"));
+                String type = msg.getString("detail");
+                typeMap.put(udId, type);
                 IDevice iDevice = udIdMap.get(session);
+                ScreenBroadcaster broadcaster = ScreenBroadcaster.of(udId);
+                // 支持MSE的前端可以要求把scrcpy的h264封装成fmp4
+                if (ScreenBroadcaster.FORMAT_FMP4.equals(msg.getString("format"))) {
+                    session.getUserProperties().put(ScreenBroadcaster.FORMAT_KEY, ScreenBroadcaster.FORMAT_FMP4);
+                }
+                // 订阅时会补发最近的size、rotation和画面
+                broadcaster.subscribe(session);
                 if (!androidMonitorHandler.isMonitorRunning(iDevice)) {
                     androidMonitorHandler.startMonitor(iDevice, res -> {
                         JSONObject rotationJson = new JSONObject();
                         rotationJson.put("msg", "rotation");
                         rotationJson.put("value", Integer.parseInt(res) * 90);
-                        BytesTool.sendText(session, rotationJson.toJSONString());
-                        startScreen(session);
+                        ScreenBroadcaster.of(udId).sendText(rotationJson);
+                        startScreen(udId);
                     });
+                } else if (broadcaster.isCapturing(type)) {
+                    // 已有其他人在看，直接复用
+                    JSONObject picFinish = new JSONObject();
+                    picFinish.put("msg", "picFinish");
+                    BytesTool.sendText(session, picFinish.toJSONString());
                 } else {
-                    startScreen(session);
+                    startScreen(udId);
                 }
             }
             case "pic" -> {
                 picMap.put(udId, msg.getString("detail"));
-                startScreen(session);
+                ScreenFrameGovernor governor = ScreenFrameGovernor.get(session);
+                if (governor != null) {
+                    governor.setMaxFps(ScreenFrameGovernor.maxFpsOf(msg.getString("detail")));
+                }
+                // 档位只影响minicap的启动参数，scrcpy只需调整发送帧率
+                if ("minicap".equals(typeMap.get(udId))) {
+                    startScreen(udId);
+                } else {
+                    JSONObject picFinish = new JSONObject();
+                    picFinish.put("msg", "picFinish");
+                    BytesTool.sendText(session, picFinish.toJSONString());
+                }
             }
         }
     }
 
-    private void startScreen(Session session) {
-        IDevice iDevice = udIdMap.get(session);
+    /**
+     * 同一设备只保留一路投屏，重启后分发给所有订阅的session
+     */
+    private void startScreen(String udId) {
+        IDevice iDevice = AndroidDeviceBridgeTool.getIDeviceByUdId(udId);
         if (iDevice != null) {
-            Thread old = ScreenMap.getMap().get(session);
-            if (old != null) {
-                old.interrupt();
-                do {
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                } while (ScreenMap.getMap().get(session) != null);
-            }
-            typeMap.putIfAbsent(iDevice.getSerialNumber(), "scrcpy");
-            switch (typeMap.get(iDevice.getSerialNumber())) {
+            ScreenBroadcaster broadcaster = ScreenBroadcaster.of(udId);
+            typeMap.putIfAbsent(udId, "scrcpy");
+            String type = typeMap.get(udId);
+            broadcaster.startCapture(type, () -> switch (type) {
                 case "scrcpy" -> {
                     ScrcpyServerUtil scrcpyServerUtil = new ScrcpyServerUtil();
-                    Thread scrcpyThread = scrcpyServerUtil.start(iDevice.getSerialNumber(),
-                            AndroidDeviceManagerMap.getRotationMap().get(iDevice.getSerialNumber()), session);
-                    ScreenMap.getMap().put(session, scrcpyThread);
+                    yield scrcpyServerUtil.start(udId, AndroidDeviceManagerMap.getRotationMap().get(udId), broadcaster);
                 }
                 case "minicap" -> {
                     MiniCapUtil miniCapUtil = new MiniCapUtil();
                     AtomicReference<String[]> banner = new AtomicReference<>(new String[24]);
-                    Thread miniCapThread = miniCapUtil.start(
-                            iDevice.getSerialNumber(), banner, null,
-                            picMap.get(iDevice.getSerialNumber()) == null ? "high"
-                                    : picMap.get(iDevice.getSerialNumber()),
-                            AndroidDeviceManagerMap.getRotationMap().get(iDevice.getSerialNumber()), session);
-                    ScreenMap.getMap().put(session, miniCapThread);
+                    yield miniCapUtil.start(
+                            udId, banner,
+                            picMap.get(udId) == null ? "high" : picMap.get(udId),
+                            AndroidDeviceManagerMap.getRotationMap().get(udId), broadcaster);
                 }
-            }
+                default -> null;
+            });
             JSONObject picFinish = new JSONObject();
             picFinish.put("msg", "picFinish");
-            BytesTool.sendText(session, picFinish.toJSONString());
+            broadcaster.sendText(picFinish);
         }
     }
 
@@ -193,15 +230,23 @@ public class AndroidScreenWSServer implements IAndroidWSServer {
             ScheduledFuture<?> future = (ScheduledFuture<?>) session.getUserProperties().get("schedule");
             future.cancel(true);
             String udId = session.getUserProperties().get("udId").toString();
-            androidMonitorHandler.stopMonitor(udIdMap.get(session));
+            IDevice iDevice = udIdMap.get(session);
             WebSocketSessionMap.removeSession(session);
             removeUdIdMapAndSet(session);
-            AndroidDeviceManagerMap.getRotationMap().remove(udId);
-            if (ScreenMap.getMap().get(session) != null) {
-                ScreenMap.getMap().get(session).interrupt();
+            ScreenBroadcaster broadcaster = ScreenBroadcaster.get(udId);
+            // 最后一个观看者退出时才停止投屏
+            if (broadcaster == null || broadcaster.unsubscribe(session) == 0) {
+                if (iDevice != null) {
+                    androidMonitorHandler.stopMonitor(iDevice);
+                }
+                AndroidDeviceManagerMap.getRotationMap().remove(udId);
+                // 用例录像还在使用时保留采集
+                if (broadcaster != null && !broadcaster.hasRecorders()) {
+                    broadcaster.close();
+                }
+                typeMap.remove(udId);
+                picMap.remove(udId);
             }
-            typeMap.remove(udId);
-            picMap.remove(udId);
             try {
                 session.close();
             } catch (IOException e) {
@@ -17,20 +17,25 @@
  */
 package org.cloud.sonic.agent.websockets;
 
-import static org.cloud.sonic.agent.tools.BytesTool.sendByte;
-
 import java.io.IOException;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.ScheduledFuture;
 
+import org.cloud.sonic.agent.bridge.ios.IOSDeviceThreadPool;
 import org.cloud.sonic.agent.bridge.ios.SibTool;
 import org.cloud.sonic.agent.common.config.WsEndpointConfigure;
+import org.cloud.sonic.agent.common.maps.HandlerMap;
 import org.cloud.sonic.agent.common.maps.WebSocketSessionMap;
-import org.cloud.sonic.agent.tests.ios.mjpeg.MjpegInputStream;
+import org.cloud.sonic.agent.tests.handlers.IOSStepHandler;
+import org.cloud.sonic.agent.tests.ios.mjpeg.MjpegFrameDecoder;
+import org.cloud.sonic.agent.tests.screen.FrameChangeDetector;
+import org.cloud.sonic.agent.tests.screen.JpegLumaChangeDetector;
+import org.cloud.sonic.agent.tests.screen.ScreenBroadcaster;
+import org.cloud.sonic.agent.tests.screen.ScreenFrameGovernor;
 import org.cloud.sonic.agent.tools.BytesTool;
 import org.cloud.sonic.agent.tools.ScheduleTool;
+import org.cloud.sonic.driver.common.tool.SonicRespException;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
@@ -52,6 +57,14 @@ public class IOSScreenWSServer implements IIOSWSServer {
     private String key;
     @Value("${sonic.agent.port}")
     private int port;
+    /**
+     * wda mjpegServerScreenshotQuality 档位，由高到低
+     */
+    private static final int[] MJPEG_QUALITY_LEVELS = { 50, 30, 10 };
+    /**
+     * 解析中、各session发送中以及缓存给后加入session的最新一帧
+     */
+    private static final int MJPEG_POOL_SIZE = 6;
 
     @OnOpen
     public void onOpen(Session session, @PathParam("key") String secretKey,
@@ -67,9 +80,37 @@ public class IOSScreenWSServer implements IIOSWSServer {
         }
 
         session.getUserProperties().put("udId", udId);
-        session.getUserProperties().put("id", String.format("%s-%s", this.getClass().getSimpleName(), udId));
+        String id = String.format("%s-%s", this.getClass().getSimpleName(), udId);
+        Session tester = WebSocketSessionMap.getSession(id);
+        if (tester != null && tester.isOpen()) {
+            // 同一设备的其他观看者，共用同一路mjpeg
+            id = String.format("%s-%s", id, session.getId());
+        }
+        session.getUserProperties().put("id", id);
         WebSocketSessionMap.addSession(session);
         saveUdIdMapAndSet(session, udId);
+        ScreenFrameGovernor.put(session, new ScreenFrameGovernor(60, MJPEG_QUALITY_LEVELS,
+                quality -> IOSDeviceThreadPool.cachedThreadPool.execute(() -> {
+                    IOSStepHandler iosStepHandler = HandlerMap.getIOSMap().get(udId);
+                    ScreenBroadcaster broadcaster = ScreenBroadcaster.get(udId);
+                    if (iosStepHandler == null || broadcaster == null) {
+                        return;
+                    }
+                    // 多人观看时取最高质量
+                    int target = broadcaster.resolveQuality(quality);
+                    if (target == broadcaster.getCaptureQuality()) {
+                        return;
+                    }
+                    log.info("{} mjpeg quality change to {}", udId, target);
+                    JSONObject appiumSettings = new JSONObject();
+                    appiumSettings.put("mjpegServerScreenshotQuality", target);
+                    try {
+                        iosStepHandler.appiumSettings(appiumSettings);
+                        broadcaster.setCaptureQuality(target);
+                    } catch (SonicRespException e) {
+                        log.info(e.getMessage());
+                    }
+                })));
 
         int screenPort = 0;
         int wait = 0;
@@ -85,19 +126,39 @@ public class IOSScreenWSServer implements IIOSWSServer {
         if (screenPort == 0) {
             return;
         }
+        ScreenBroadcaster broadcaster = ScreenBroadcaster.of(udId);
+        broadcaster.subscribe(session);
         int finalScreenPort = screenPort;
-        new Thread(() -> {
-            URL url;
-            try {
-                url = new URL("http://localhost:" + finalScreenPort);
-            } catch (MalformedURLException e) {
-                return;
+        broadcaster.startCaptureIfAbsent("mjpeg", () -> {
+            Thread reader = new Thread(() -> readMjpeg(broadcaster, finalScreenPort));
+            reader.start();
+            return reader;
+        });
+
+        session.getUserProperties().put("schedule", ScheduleTool.schedule(() -> {
+            log.info("time up!");
+            if (session.isOpen()) {
+                JSONObject errMsg = new JSONObject();
+                errMsg.put("msg", "error");
+                BytesTool.sendText(session, errMsg.toJSONString());
+                exit(session);
             }
-            MjpegInputStream mjpegInputStream = null;
+        }, BytesTool.remoteTimeout));
+    }
+
+    /**
+     * 一台设备只读一路mjpeg，分发给所有订阅的session，没有订阅者或被中断时退出
+     */
+    private void readMjpeg(ScreenBroadcaster broadcaster, int screenPort) {
+        MjpegFrameDecoder decoder = new MjpegFrameDecoder(MJPEG_POOL_SIZE);
+        // wda画面静止时也按固定帧率推送，丢弃没有明显变化的帧
+        FrameChangeDetector changeDetector = new JpegLumaChangeDetector();
+        SocketChannel channel = null;
+        try {
             int waitMjpeg = 0;
-            while (mjpegInputStream == null) {
+            while (channel == null) {
                 try {
-                    mjpegInputStream = new MjpegInputStream(url.openStream());
+                    channel = MjpegFrameDecoder.connect(screenPort);
                 } catch (IOException e) {
                     log.info(e.getMessage());
                 }
@@ -113,40 +174,34 @@ public class IOSScreenWSServer implements IIOSWSServer {
                     return;
                 }
             }
-            ByteBuffer bufferedImage;
-            int i = 0;
-            while (true) {
+            ByteBuffer frame;
+            while (!Thread.currentThread().isInterrupted() && broadcaster.hasSubscribers()) {
                 try {
-                    if ((bufferedImage = mjpegInputStream.readFrameForByteBuffer()) == null)
+                    if ((frame = decoder.readFrame(channel)) == null)
                         break;
                 } catch (IOException e) {
                     log.info(e.getMessage());
                     break;
                 }
-                i++;
-                if (i % 3 != 0) {
-                    sendByte(session, bufferedImage);
-                } else {
-                    i = 0;
+                if (!changeDetector.changed(frame, System.nanoTime())) {
+                    decoder.getPool().release(frame);
+                    continue;
                 }
+                // 各session发送完成后归还到缓冲池
+                broadcaster.publishFrame(frame, decoder.getPool()::release);
             }
-            try {
-                mjpegInputStream.close();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+        } finally {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    log.info(e.getMessage());
+                }
             }
+            decoder.release();
+            broadcaster.captureStopped(Thread.currentThread());
             log.info("screen done.");
-        }).start();
-
-        session.getUserProperties().put("schedule", ScheduleTool.schedule(() -> {
-            log.info("time up!");
-            if (session.isOpen()) {
-                JSONObject errMsg = new JSONObject();
-                errMsg.put("msg", "error");
-                BytesTool.sendText(session, errMsg.toJSONString());
-                exit(session);
-            }
-        }, BytesTool.remoteTimeout));
+        }
     }
 
     @OnClose
@@ -165,6 +220,12 @@ public class IOSScreenWSServer implements IIOSWSServer {
             future.cancel(true);
             WebSocketSessionMap.removeSession(session);
             removeUdIdMapAndSet(session);
+            String udId = session.getUserProperties().get("udId").toString();
+            ScreenBroadcaster broadcaster = ScreenBroadcaster.get(udId);
+            // 最后一个观看者退出时才停止读取mjpeg
+            if (broadcaster != null && broadcaster.unsubscribe(session) == 0) {
+                broadcaster.close();
+            }
             try {
                 session.close();
             } catch (IOException e) {
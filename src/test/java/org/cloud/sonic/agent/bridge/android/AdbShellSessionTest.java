@@ -0,0 +1,317 @@
+package org.cloud.sonic.agent.bridge.android;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+public class AdbShellSessionTest {
+
+    private ServerSocket server;
+
+    private InetSocketAddress address;
+
+    private volatile int shellOpens = 0;
+
+    /**
+     * 模拟adb server：exec:sh接到本机的sh，shell:命令用sh -c执行一次后关闭，与逐条建立shell的方式相同
+     */
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket(0, 50, java.net.InetAddress.getLoopbackAddress());
+        address = new InetSocketAddress(server.getInetAddress(), server.getLocalPort());
+        Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    Thread handler = new Thread(() -> serve(socket));
+                    handler.setDaemon(true);
+                    handler.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    private static String readRequest(InputStream in) throws IOException {
+        int length = Integer.parseInt(new String(in.readNBytes(4), StandardCharsets.US_ASCII), 16);
+        return new String(in.readNBytes(length), StandardCharsets.UTF_8);
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            String transport = readRequest(in);
+            if (!transport.equals("host:transport:emulator-5554")) {
+                byte[] reason = "device not found".getBytes(StandardCharsets.UTF_8);
+                out.write(("FAIL" + String.format("%04x", reason.length)).getBytes(StandardCharsets.US_ASCII));
+                out.write(reason);
+                return;
+            }
+            out.write("OKAY".getBytes(StandardCharsets.US_ASCII));
+            String service = readRequest(in);
+            out.write("OKAY".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            Process process;
+            if (service.equals("exec:sh")) {
+                shellOpens++;
+                process = new ProcessBuilder("sh").redirectErrorStream(true).start();
+                Thread pump = new Thread(() -> {
+                    // 每次读到数据就立即写给sh，和adbd一样不等缓冲填满
+                    try (OutputStream stdin = process.getOutputStream()) {
+                        byte[] buffer = new byte[8192];
+                        int n;
+                        while ((n = in.read(buffer)) != -1) {
+                            stdin.write(buffer, 0, n);
+                            stdin.flush();
+                        }
+                    } catch (IOException ignored) {
+                    } finally {
+                        process.destroy();
+                    }
+                });
+                pump.setDaemon(true);
+                pump.start();
+                byte[] buffer = new byte[8192];
+                int n;
+                InputStream stdout = process.getInputStream();
+                while ((n = stdout.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                    out.flush();
+                }
+            } else {
+                process = new ProcessBuilder("sh", "-c", service.substring("shell:".length()))
+                        .redirectErrorStream(true).start();
+                process.getInputStream().transferTo(out);
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * 逐条建立shell的执行方式，相当于原来的executeShellCommand
+     */
+    private String oneShot(String command) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.setTcpNoDelay(true);
+            socket.connect(address);
+            AdbShellSession.request(socket, "host:transport:emulator-5554");
+            AdbShellSession.request(socket, "shell:" + command);
+            return new String(socket.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void testOutputAndExitCodeAreSplitPerCommand() throws Exception {
+        try (AdbShellSession session = AdbShellSession.open(address, "emulator-5554")) {
+            CompletableFuture<AdbShellSession.Result> a = session.submit("echo first; echo line2");
+            CompletableFuture<AdbShellSession.Result> b = session.submit("printf 'no newline'");
+            CompletableFuture<AdbShellSession.Result> c = session.submit("echo 'it'\"'\"'s' >&2; exit 3");
+            CompletableFuture<AdbShellSession.Result> d = session.submit("echo unbalanced 'quote");
+            CompletableFuture<AdbShellSession.Result> e = session.submit("cat");
+            Assert.assertEquals("first\nline2\n", a.get(5, TimeUnit.SECONDS).getOutput());
+            Assert.assertEquals("no newline", b.get(5, TimeUnit.SECONDS).getOutput());
+            AdbShellSession.Result result = c.get(5, TimeUnit.SECONDS);
+            Assert.assertEquals("it's\n", result.getOutput());
+            Assert.assertEquals(3, result.getExitCode());
+            // 命令自身的语法错误与读取标准输入都不影响后面的命令
+            Assert.assertNotEquals(0, d.get(5, TimeUnit.SECONDS).getExitCode());
+            Assert.assertEquals("", e.get(5, TimeUnit.SECONDS).getOutput());
+            Assert.assertEquals("ok\n", session.submit("echo ok").get(5, TimeUnit.SECONDS).getOutput());
+            Assert.assertEquals(0, session.getInFlight());
+        }
+    }
+
+    @Test
+    public void testLargeOutput() throws Exception {
+        try (AdbShellSession session = AdbShellSession.open(address, "emulator-5554")) {
+            String output = session.submit("i=0; while [ $i -lt 20000 ]; do echo line$i; i=$((i+1)); done")
+                    .get(10, TimeUnit.SECONDS).getOutput();
+            String[] lines = output.split("\n");
+            Assert.assertEquals(20000, lines.length);
+            Assert.assertEquals("line19999", lines[19999]);
+        }
+    }
+
+    @Test
+    public void testBrokenSessionReturnsPartialOutput() throws Exception {
+        AdbShellSession session = AdbShellSession.open(address, "emulator-5554");
+        CompletableFuture<AdbShellSession.Result> running = session.submit("echo started; sleep 5");
+        CompletableFuture<AdbShellSession.Result> queued = session.submit("echo never");
+        Thread.sleep(300);
+        session.close();
+        Assert.assertEquals(-1, running.get(5, TimeUnit.SECONDS).getExitCode());
+        Assert.assertEquals(-1, queued.get(5, TimeUnit.SECONDS).getExitCode());
+        Assert.assertTrue(session.isClosed());
+        Assert.assertThrows(IOException.class, () -> session.submit("echo"));
+    }
+
+    @Test
+    public void testPoolFallsBackWhenUnavailable() throws Exception {
+        AdbShellPool pool = new AdbShellPool(address, "missing", 2, 60_000);
+        Assert.assertNull(pool.execute("echo hi"));
+        Assert.assertEquals(0, pool.getSessionCount());
+    }
+
+    @Test
+    public void testPoolSkipsBusySessions() throws Exception {
+        AdbShellPool pool = new AdbShellPool(address, "emulator-5554", 2, 60_000);
+        try {
+            Assert.assertEquals("hi\n", pool.execute("echo hi").getOutput());
+            Assert.assertEquals(1, pool.getSessionCount());
+            // 两个会话都在执行命令时，新命令交给调用方单独执行
+            List<Thread> blockers = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                Thread blocker = new Thread(() -> {
+                    try {
+                        pool.execute("sleep 2");
+                    } catch (InterruptedException ignored) {
+                    }
+                });
+                blocker.setDaemon(true);
+                blocker.start();
+                blockers.add(blocker);
+                Thread.sleep(50);
+            }
+            Thread.sleep(200);
+            Assert.assertEquals(2, pool.getSessionCount());
+            Assert.assertNull(pool.execute("echo busy"));
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testPoolNeverQueuesBehindRunningCommand() throws Exception {
+        AdbShellPool pool = new AdbShellPool(address, "emulator-5554", 1, 60_000);
+        try {
+            Thread blocker = new Thread(() -> {
+                try {
+                    pool.execute("sleep 1");
+                } catch (InterruptedException ignored) {
+                }
+            });
+            blocker.setDaemon(true);
+            blocker.start();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (pool.getSessionCount() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(50);
+            // 唯一的会话刚开始执行命令，新命令不等它，直接交给调用方
+            long start = System.nanoTime();
+            Assert.assertNull(pool.execute("echo hi"));
+            Assert.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+            blocker.join();
+            Assert.assertEquals("hi\n", pool.execute("echo hi").getOutput());
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testPoolOpensSecondSessionWhenBusy() throws Exception {
+        AdbShellPool pool = new AdbShellPool(address, "emulator-5554", 2, 60_000);
+        try {
+            Thread blocker = new Thread(() -> {
+                try {
+                    pool.execute("sleep 1");
+                } catch (InterruptedException ignored) {
+                }
+            });
+            blocker.setDaemon(true);
+            blocker.start();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (pool.getSessionCount() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            // 第一个会话的命令刚开始执行，新命令不排在它后面
+            long start = System.nanoTime();
+            Assert.assertEquals("hi\n", pool.execute("echo hi").getOutput());
+            Assert.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(800));
+            Assert.assertEquals(2, pool.getSessionCount());
+            blocker.join();
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testSerialCommandsShareOneSession() throws Exception {
+        int opens = shellOpens;
+        AdbShellPool pool = new AdbShellPool(address, "emulator-5554", 2, 60_000);
+        try {
+            for (int i = 0; i < 20; i++) {
+                Assert.assertEquals("hello\n", pool.execute("echo hello").getOutput());
+            }
+            // 串行执行只需要一个会话
+            Assert.assertEquals(1, shellOpens - opens);
+            Assert.assertEquals(1, pool.getSessionCount());
+        } finally {
+            pool.close();
+        }
+    }
+
+    /**
+     * 同一批命令分别逐条建立shell与通过常驻会话执行，对比每条命令的耗时
+     */
+    @Ignore
+    @Test
+    public void benchmarkLatencyAgainstOneShot() throws Exception {
+        int rounds = 50;
+        String command = "echo hello";
+        // 预热
+        for (int i = 0; i < 5; i++) {
+            oneShot(command);
+        }
+        long[] oneShot = new long[rounds];
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            Assert.assertEquals("hello\n", oneShot(command));
+            oneShot[i] = System.nanoTime() - start;
+        }
+        AdbShellPool pool = new AdbShellPool(address, "emulator-5554", 2, 60_000);
+        try {
+            for (int i = 0; i < 5; i++) {
+                pool.execute(command);
+            }
+            long[] pooled = new long[rounds];
+            for (int i = 0; i < rounds; i++) {
+                long start = System.nanoTime();
+                Assert.assertEquals("hello\n", pool.execute(command).getOutput());
+                pooled[i] = System.nanoTime() - start;
+            }
+            Arrays.sort(oneShot);
+            Arrays.sort(pooled);
+            System.out.printf("adb shell latency p50/p90 (us): one-shot %d/%d, pooled %d/%d%n",
+                    oneShot[rounds / 2] / 1000, oneShot[rounds * 9 / 10] / 1000,
+                    pooled[rounds / 2] / 1000, pooled[rounds * 9 / 10] / 1000);
+        } finally {
+            pool.close();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package org.cloud.sonic.agent.bridge.android;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+
+public class AndroidDeviceFactsTest {
+
+    private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+
+    private final CountDownLatch shellGate = new CountDownLatch(1);
+
+    private int count(String name) {
+        AtomicInteger n = calls.get(name);
+        return n == null ? 0 : n.get();
+    }
+
+    /**
+     * 记录调用次数的IDevice，shell命令要等shellGate打开后才返回
+     */
+    private IDevice device(String serial) {
+        return (IDevice) Proxy.newProxyInstance(IDevice.class.getClassLoader(), new Class<?>[] { IDevice.class },
+                (proxy, method, args) -> {
+                    calls.computeIfAbsent(method.getName(), k -> new AtomicInteger()).incrementAndGet();
+                    return switch (method.getName()) {
+                        case "getSerialNumber" -> serial;
+                        case "getState" -> IDevice.DeviceState.ONLINE;
+                        case "getProperty" -> IDevice.PROP_BUILD_API_LEVEL.equals(args[0]) ? "30" : "arm64-v8a";
+                        case "executeShellCommand" -> {
+                            shellGate.await(5, TimeUnit.SECONDS);
+                            byte[] out = "Physical size: 1080x2340\n".getBytes(StandardCharsets.UTF_8);
+                            ((IShellOutputReceiver) args[1]).addOutput(out, 0, out.length);
+                            ((IShellOutputReceiver) args[1]).flush();
+                            yield null;
+                        }
+                        case "hashCode" -> System.identityHashCode(proxy);
+                        case "equals" -> proxy == args[0];
+                        default -> null;
+                    };
+                });
+    }
+
+    @Test
+    public void testConcurrentCallersShareOneQuery() throws InterruptedException {
+        IDevice device = device("facts-a");
+        List<Thread> threads = new ArrayList<>();
+        List<String> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread(() -> {
+                String size = AndroidDeviceFacts.getScreenSize(device);
+                synchronized (results) {
+                    results.add(size);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        // 等所有线程都进入等待后再放行第一次查询
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (count("executeShellCommand") == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(50);
+        shellGate.countDown();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+        Assert.assertEquals(1, count("executeShellCommand"));
+        Assert.assertEquals(8, results.size());
+        Assert.assertEquals(1, results.stream().distinct().count());
+    }
+
+    @Test
+    public void testPropsAreParsedOnce() {
+        IDevice device = device("facts-b");
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(30, AndroidDeviceFacts.getApiLevel(device));
+            Assert.assertEquals("arm64-v8a", AndroidDeviceFacts.getAbi(device));
+        }
+        Assert.assertEquals(2, count("getProperty"));
+    }
+
+    @Test
+    public void testOrientationFollowsMonitor() {
+        shellGate.countDown();
+        IDevice device = device("facts-c");
+        AndroidDeviceFacts.onRotation(device, 3);
+        Assert.assertEquals(3, AndroidDeviceFacts.getOrientation(device));
+        Assert.assertEquals(0, count("executeShellCommand"));
+
+        // 监控停止后重新通过adb查询
+        AndroidDeviceFacts.onMonitorStopped(device);
+        try {
+            AndroidDeviceFacts.getOrientation(device);
+        } catch (RuntimeException ignored) {
+            // 这里的shell没有dumpsys的输出，只关心是否查询了
+        }
+        Assert.assertTrue(count("executeShellCommand") > 0);
+    }
+
+    @Test
+    public void testReconnectedDeviceStartsFresh() {
+        IDevice device = device("facts-d");
+        AndroidDeviceFacts.getApiLevel(device);
+        AndroidDeviceFacts.getApiLevel(device("facts-d"));
+        Assert.assertEquals(2, count("getProperty"));
+    }
+}
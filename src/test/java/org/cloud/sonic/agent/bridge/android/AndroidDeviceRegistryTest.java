@@ -0,0 +1,100 @@
+package org.cloud.sonic.agent.bridge.android;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.android.ddmlib.IDevice;
+
+public class AndroidDeviceRegistryTest {
+
+    private final List<String> events = new CopyOnWriteArrayList<>();
+
+    private final AndroidDeviceRegistry.Listener listener = (previous, current) -> events.add(
+            (previous == null ? "null" : previous.getState()) + "->" + (current == null ? "null" : current.getState()));
+
+    @After
+    public void tearDown() {
+        AndroidDeviceRegistry.unsubscribe(listener);
+    }
+
+    /**
+     * 只实现序列号与状态的IDevice
+     */
+    private static IDevice device(String serial, AtomicReference<IDevice.DeviceState> state) {
+        return (IDevice) Proxy.newProxyInstance(IDevice.class.getClassLoader(), new Class<?>[] { IDevice.class },
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "getSerialNumber" -> serial;
+                    case "getState" -> state.get();
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    default -> null;
+                });
+    }
+
+    @Test
+    public void testLookupFollowsState() {
+        AtomicReference<IDevice.DeviceState> state = new AtomicReference<>(IDevice.DeviceState.UNAUTHORIZED);
+        IDevice device = device("registry-a", state);
+        AndroidDeviceRegistry.update(device);
+        Assert.assertNull(AndroidDeviceRegistry.getOnline("registry-a"));
+        Assert.assertEquals(IDevice.DeviceState.UNAUTHORIZED, AndroidDeviceRegistry.get("registry-a").getState());
+
+        state.set(IDevice.DeviceState.ONLINE);
+        AndroidDeviceRegistry.update(device);
+        Assert.assertSame(device, AndroidDeviceRegistry.getOnline("registry-a"));
+        Assert.assertNull(AndroidDeviceRegistry.getOnline(null));
+        Assert.assertNull(AndroidDeviceRegistry.getOnline("registry-missing"));
+
+        AndroidDeviceRegistry.remove(device);
+        Assert.assertNull(AndroidDeviceRegistry.get("registry-a"));
+    }
+
+    @Test
+    public void testFactsAreKeptUntilReconnect() {
+        AtomicReference<IDevice.DeviceState> state = new AtomicReference<>(IDevice.DeviceState.ONLINE);
+        IDevice device = device("registry-b", state);
+        AndroidDeviceRegistry.update(device);
+        AndroidDeviceRegistry.updateFacts(device, Map.of(IDevice.PROP_DEVICE_MODEL, "m"), "1080x2340");
+        AndroidDeviceRegistry.Snapshot snapshot = AndroidDeviceRegistry.get("registry-b");
+        Assert.assertEquals("m", snapshot.getProperty(IDevice.PROP_DEVICE_MODEL));
+        Assert.assertEquals("1080x2340", snapshot.getSize());
+
+        // 状态没变时不替换快照
+        AndroidDeviceRegistry.update(device);
+        Assert.assertSame(snapshot, AndroidDeviceRegistry.get("registry-b"));
+
+        state.set(IDevice.DeviceState.OFFLINE);
+        AndroidDeviceRegistry.update(device);
+        Assert.assertEquals("1080x2340", AndroidDeviceRegistry.get("registry-b").getSize());
+
+        // 重新接入的是新的IDevice，旧设备晚到的断开回调不影响它
+        IDevice reconnected = device("registry-b", new AtomicReference<>(IDevice.DeviceState.ONLINE));
+        AndroidDeviceRegistry.update(reconnected);
+        AndroidDeviceRegistry.remove(device);
+        AndroidDeviceRegistry.updateFacts(device, Map.of(), "1x1");
+        Assert.assertSame(reconnected, AndroidDeviceRegistry.getOnline("registry-b"));
+        Assert.assertNull(AndroidDeviceRegistry.get("registry-b").getSize());
+        Assert.assertTrue(AndroidDeviceRegistry.get("registry-b").getProps().isEmpty());
+        AndroidDeviceRegistry.remove(reconnected);
+    }
+
+    @Test
+    public void testSubscribersSeeEveryChange() {
+        AndroidDeviceRegistry.subscribe(listener);
+        AtomicReference<IDevice.DeviceState> state = new AtomicReference<>(IDevice.DeviceState.OFFLINE);
+        IDevice device = device("registry-c", state);
+        AndroidDeviceRegistry.update(device);
+        state.set(IDevice.DeviceState.ONLINE);
+        AndroidDeviceRegistry.update(device);
+        AndroidDeviceRegistry.update(device);
+        AndroidDeviceRegistry.remove(device);
+        Assert.assertEquals(List.of("null->OFFLINE", "OFFLINE->ONLINE", "ONLINE->null"), events);
+    }
+}
@@ -0,0 +1,126 @@
+package org.cloud.sonic.agent.bridge.android;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.alibaba.fastjson.JSONObject;
+
+public class DeviceStatusAggregatorTest {
+
+    private ScheduledExecutorService scheduler;
+
+    private final List<JSONObject> sent = new CopyOnWriteArrayList<>();
+
+    private final Map<String, String> states = new ConcurrentHashMap<>();
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private DeviceStatusAggregator<String> aggregator;
+
+    @Before
+    public void setUp() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        aggregator = new DeviceStatusAggregator<>(serial -> {
+            loads.incrementAndGet();
+            if (!"ONLINE".equals(states.get(serial))) {
+                return null;
+            }
+            JSONObject facts = new JSONObject();
+            facts.put("model", "model-" + serial);
+            facts.put("size", "1080x2340");
+            return facts;
+        }, states::get, sent::add, scheduler, 50, 200);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * 等到发出expected条，再等一会确认没有多发
+     */
+    private void awaitSent(int expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (sent.size() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(150);
+        Assert.assertEquals(expected, sent.size());
+    }
+
+    @Test
+    public void testBurstIsCoalescedAndFactsCached() throws InterruptedException {
+        states.put("a", "UNAUTHORIZED");
+        aggregator.changed("a", "a");
+        // 未授权时拿不到属性，只发状态
+        awaitSent(1);
+        Assert.assertEquals("UNAUTHORIZED", sent.get(0).getString("status"));
+        Assert.assertFalse(sent.get(0).containsKey("model"));
+
+        states.put("a", "ONLINE");
+        for (int i = 0; i < 20; i++) {
+            aggregator.changed("a", "a");
+        }
+        awaitSent(2);
+        JSONObject full = sent.get(1);
+        Assert.assertEquals("deviceDetail", full.getString("msg"));
+        Assert.assertEquals("a", full.getString("udId"));
+        Assert.assertEquals("ONLINE", full.getString("status"));
+        Assert.assertEquals("model-a", full.getString("model"));
+
+        // 没有变化的字段不再发送，静态信息不再查询
+        aggregator.changed("a", "a");
+        awaitSent(2);
+        Assert.assertEquals(2, loads.get());
+        Assert.assertEquals(22, aggregator.getChangeCount());
+        Assert.assertEquals(2, aggregator.getSentCount());
+    }
+
+    @Test
+    public void testRemovedDeviceIsReloadedOnReconnect() throws InterruptedException {
+        states.put("a", "ONLINE");
+        aggregator.changed("a", "a");
+        awaitSent(1);
+        states.put("a", "OFFLINE");
+        aggregator.removed("a", "a");
+        awaitSent(2);
+        Assert.assertEquals(3, sent.get(1).size());
+        Assert.assertEquals("OFFLINE", sent.get(1).getString("status"));
+
+        states.put("a", "ONLINE");
+        aggregator.changed("a", "a");
+        awaitSent(3);
+        Assert.assertEquals("model-a", sent.get(2).getString("model"));
+        Assert.assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void testMaxDelayUnderContinuousChanges() throws InterruptedException {
+        states.put("a", "ONLINE");
+        states.put("b", "ONLINE");
+        long start = System.nanoTime();
+        // 每20ms变化一次，安静窗口永远等不到，最多200ms后也要发出
+        while (sent.isEmpty() && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2)) {
+            aggregator.changed("a", "a");
+            aggregator.changed("b", "b");
+            Thread.sleep(20);
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertTrue(elapsed < 1000);
+        awaitSent(2);
+        Assert.assertEquals("a", sent.get(0).getString("udId"));
+        Assert.assertEquals("b", sent.get(1).getString("udId"));
+    }
+}
@@ -0,0 +1,133 @@
+package org.cloud.sonic.agent.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BatterySamplerTest {
+
+    private final AtomicInteger running = new AtomicInteger();
+
+    private final AtomicInteger maxRunning = new AtomicInteger();
+
+    private final Map<String, Long> reported = new ConcurrentHashMap<>();
+
+    private BatterySampler<String> sampler;
+
+    @After
+    public void tearDown() {
+        if (sampler != null) {
+            sampler.close();
+        }
+    }
+
+    private static List<String> devices(int count) {
+        List<String> devices = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            devices.add("device-" + i);
+        }
+        return devices;
+    }
+
+    /**
+     * device-0采样耗时1秒，其余设备50毫秒
+     */
+    private BatterySampler.Sample probe(String udId) throws InterruptedException {
+        int now = running.incrementAndGet();
+        maxRunning.accumulateAndGet(now, Math::max);
+        try {
+            Thread.sleep(udId.equals("device-0") ? 1000 : 50);
+        } finally {
+            running.decrementAndGet();
+        }
+        return new BatterySampler.Sample(udId, 300, 50, 4000);
+    }
+
+    @Test
+    public void testParallelismIsBoundedAndResultsArriveEarly() throws Exception {
+        List<String> devices = devices(20);
+        CountDownLatch done = new CountDownLatch(devices.size());
+        long start = System.nanoTime();
+        sampler = new BatterySampler<>("test", 4, () -> devices, udId -> udId, this::probe, (udId, sample) -> {
+            reported.put(udId, System.nanoTime() - start);
+            done.countDown();
+        });
+        sampler.run();
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(4, maxRunning.get());
+        // 19台快设备由其余3个线程采完，早于慢设备上报，不用等整轮结束
+        long slow = reported.get("device-0");
+        for (int i = 1; i < devices.size(); i++) {
+            Assert.assertTrue(reported.get("device-" + i) < slow);
+        }
+        // 上报先于移出inFlight，等采样线程收尾
+        awaitIdle();
+    }
+
+    private void awaitIdle() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1000;
+        while (sampler.getInFlight() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, sampler.getInFlight());
+    }
+
+    @Test
+    public void testDeviceStillSamplingIsSkipped() throws Exception {
+        List<String> devices = devices(1);
+        AtomicInteger probes = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(1);
+        sampler = new BatterySampler<>("test", 2, () -> devices, udId -> udId, udId -> {
+            probes.incrementAndGet();
+            return probe(udId);
+        }, (udId, sample) -> done.countDown());
+        sampler.run();
+        Thread.sleep(100);
+        sampler.run();
+        sampler.run();
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, probes.get());
+    }
+
+    @Test
+    public void testFailedDeviceDoesNotBlockOthers() throws Exception {
+        List<String> devices = devices(3);
+        CountDownLatch done = new CountDownLatch(2);
+        sampler = new BatterySampler<>("test", 2, () -> devices, udId -> udId, udId -> {
+            if (udId.equals("device-1")) {
+                throw new IllegalStateException("offline");
+            }
+            return udId.equals("device-2") ? null : new BatterySampler.Sample(udId, 300, 50, 4000);
+        }, (udId, sample) -> {
+            reported.put(udId, 0L);
+            done.countDown();
+        });
+        sampler.run();
+        Assert.assertFalse(done.await(500, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(1, reported.size());
+        Assert.assertTrue(reported.containsKey("device-0"));
+        Assert.assertEquals(0, sampler.getInFlight());
+        // 失败的设备下一轮照常采样
+        sampler.run();
+        Thread.sleep(200);
+        Assert.assertEquals(0, sampler.getInFlight());
+    }
+
+    @Test
+    public void testHighTempTimesFollowsPeriod() {
+        // 原来固定按30秒一次计算
+        Assert.assertEquals(10, BatterySampler.highTempTimes(5, 30));
+        Assert.assertEquals(30, BatterySampler.highTempTimes(5, 10));
+        Assert.assertEquals(3, BatterySampler.highTempTimes(5, 120));
+        Assert.assertEquals(1, BatterySampler.highTempTimes(5, 600));
+        Assert.assertEquals(1, BatterySampler.highTempTimes(0, 30));
+    }
+}
@@ -0,0 +1,51 @@
+package org.cloud.sonic.agent.tests.android;
+
+import org.cloud.sonic.agent.tests.BatterySampler;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AndroidBatteryThreadTest {
+
+    private static final String DUMPSYS = "Current Battery Service state:\n"
+            + "  AC powered: false\n"
+            + "  USB powered: true\n"
+            + "  Wireless powered: false\n"
+            + "  Max charging current: 500000\n"
+            + "  Max charging voltage: 5000000\n"
+            + "  Charge counter: 2580000\n"
+            + "  status: 2\n"
+            + "  health: 2\n"
+            + "  present: true\n"
+            + "  level: 87\n"
+            + "  scale: 100\n"
+            + "  voltage: 4312\n"
+            + "  temperature: 325\n"
+            + "  technology: Li-ion\n";
+
+    @Test
+    public void testParse() {
+        BatterySampler.Sample sample = AndroidBatteryThread.parse("a", DUMPSYS);
+        Assert.assertEquals("a", sample.getUdId());
+        Assert.assertEquals(325, sample.getTem());
+        Assert.assertEquals(87, sample.getLevel());
+        // 不会取到Max charging voltage
+        Assert.assertEquals(4312, sample.getVol());
+    }
+
+    @Test
+    public void testParseCrlfAndNegativeTemperature() {
+        BatterySampler.Sample sample = AndroidBatteryThread.parse("a",
+                "  level: 5\r\n  voltage: 3700\r\n  temperature: -15\r\n");
+        Assert.assertEquals(-15, sample.getTem());
+        Assert.assertEquals(5, sample.getLevel());
+        Assert.assertEquals(3700, sample.getVol());
+    }
+
+    @Test
+    public void testIncompleteOutput() {
+        Assert.assertNull(AndroidBatteryThread.parse("a", null));
+        Assert.assertNull(AndroidBatteryThread.parse("a", ""));
+        Assert.assertNull(AndroidBatteryThread.parse("a", "error: device offline"));
+        Assert.assertNull(AndroidBatteryThread.parse("a", "  level: 87\n  voltage: 4312\n  temperature: \n"));
+    }
+}
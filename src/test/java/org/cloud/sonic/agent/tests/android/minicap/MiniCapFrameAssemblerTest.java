@@ -0,0 +1,132 @@
+package org.cloud.sonic.agent.tests.android.minicap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MiniCapFrameAssemblerTest {
+
+    private byte[] banner() {
+        ByteBuffer b = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+        b.put((byte) 1).put((byte) 24).putInt(1234).putInt(1080).putInt(2340).putInt(800).putInt(800)
+                .put((byte) 1).put((byte) 2);
+        return b.array();
+    }
+
+    private byte[] frame(int length, int seed) {
+        byte[] jpg = new byte[length];
+        for (int i = 0; i < length; i++) {
+            jpg[i] = (byte) (i + seed);
+        }
+        jpg[0] = (byte) 0xFF;
+        jpg[1] = (byte) 0xD8;
+        ByteBuffer b = ByteBuffer.allocate(4 + length).order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt(length).put(jpg);
+        return b.array();
+    }
+
+    /**
+     * 每次最多返回chunk字节，模拟socket分包
+     */
+    private ReadableByteChannel channel(byte[] data, int chunk) {
+        return new ReadableByteChannel() {
+            int pos = 0;
+
+            @Override
+            public int read(ByteBuffer dst) {
+                if (pos >= data.length) {
+                    return -1;
+                }
+                int n = Math.min(Math.min(chunk, dst.remaining()), data.length - pos);
+                dst.put(data, pos, n);
+                pos += n;
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @Test
+    public void testAssemble() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(banner());
+        List<byte[]> expected = new ArrayList<>();
+        int[] lengths = { 10, 70000, 3, 300000, 1024 };
+        for (int i = 0; i < lengths.length; i++) {
+            byte[] f = frame(lengths[i], i);
+            expected.add(f);
+            stream.write(f);
+        }
+        for (int chunk : new int[] { 1, 7, 1024, 1 << 20 }) {
+            AtomicReference<String[]> banner = new AtomicReference<>(new String[24]);
+            List<byte[]> frames = new ArrayList<>();
+            MiniCapFrameAssembler[] holder = new MiniCapFrameAssembler[1];
+            holder[0] = new MiniCapFrameAssembler(banner, 2, new MiniCapFrameAssembler.FrameListener() {
+                @Override
+                public void onBanner(String[] b) {
+                }
+
+                @Override
+                public void onFrame(ByteBuffer frame) {
+                    byte[] f = new byte[frame.remaining()];
+                    frame.get(f);
+                    frames.add(f);
+                    holder[0].getFramePool().release(frame);
+                }
+            });
+            ReadableByteChannel channel = channel(stream.toByteArray(), chunk);
+            while (holder[0].read(channel)) {
+            }
+            Assert.assertEquals("1080", banner.get()[9]);
+            Assert.assertEquals("2340", banner.get()[13]);
+            Assert.assertEquals("90", banner.get()[22]);
+            Assert.assertEquals(expected.size(), frames.size());
+            for (int i = 0; i < expected.size(); i++) {
+                byte[] e = expected.get(i);
+                Assert.assertArrayEquals(Arrays.copyOfRange(e, 4, e.length), frames.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testRejectOversizedFrameLength() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(banner());
+        stream.write(frame(1024, 0));
+        // 错位的长度头，超过1080x2340x4
+        stream.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(1080 * 2340 * 4 + 1).array());
+        stream.write(new byte[1024]);
+        List<ByteBuffer> frames = new ArrayList<>();
+        MiniCapFrameAssembler assembler = new MiniCapFrameAssembler(new AtomicReference<>(new String[24]), 2,
+                new MiniCapFrameAssembler.FrameListener() {
+                    @Override
+                    public void onBanner(String[] b) {
+                    }
+
+                    @Override
+                    public void onFrame(ByteBuffer frame) {
+                        frames.add(frame);
+                    }
+                });
+        ReadableByteChannel channel = channel(stream.toByteArray(), 1 << 20);
+        Assert.assertFalse(assembler.read(channel));
+        Assert.assertEquals(1, frames.size());
+    }
+}
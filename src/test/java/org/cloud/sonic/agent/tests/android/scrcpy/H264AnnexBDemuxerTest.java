@@ -0,0 +1,180 @@
+package org.cloud.sonic.agent.tests.android.scrcpy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+public class H264AnnexBDemuxerTest {
+
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    private static byte[] nal(int header, int firstByte, int length, Random random) {
+        byte[] nal = new byte[length];
+        random.nextBytes(nal);
+        for (int i = 0; i < length; i++) {
+            // 避免负载中出现起始码
+            if (nal[i] == 0) {
+                nal[i] = 0x55;
+            }
+        }
+        nal[0] = (byte) header;
+        nal[1] = (byte) firstByte;
+        return nal;
+    }
+
+    /**
+     * SPS、PPS、IDR(两个slice)，之后若干P帧
+     */
+    private static List<byte[]> accessUnits(int frames, int frameSize) throws IOException {
+        Random random = new Random(frames);
+        List<byte[]> units = new ArrayList<>();
+        for (int f = 0; f < frames; f++) {
+            ByteArrayOutputStream au = new ByteArrayOutputStream();
+            if (f % 30 == 0) {
+                au.write(START_CODE);
+                au.write(nal(0x67, 0x42, 12, random));
+                au.write(START_CODE);
+                au.write(nal(0x68, 0xce, 4, random));
+                au.write(START_CODE);
+                au.write(nal(0x65, 0x88, frameSize, random));
+                // 第二个slice，first_mb_in_slice不为0
+                au.write(START_CODE);
+                au.write(nal(0x65, 0x12, frameSize / 2, random));
+            } else {
+                au.write(START_CODE);
+                au.write(nal(0x41, 0x9a, frameSize / 4, random));
+            }
+            units.add(au.toByteArray());
+        }
+        return units;
+    }
+
+    private static byte[] concat(List<byte[]> units) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (byte[] unit : units) {
+            stream.write(unit);
+        }
+        return stream.toByteArray();
+    }
+
+    private static InputStream chunked(byte[] data, int chunk) {
+        return new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, chunk));
+            }
+        };
+    }
+
+    @Test
+    public void testSplitAccessUnits() throws IOException {
+        List<byte[]> expected = accessUnits(65, 3000);
+        byte[] stream = concat(expected);
+        for (int chunk : new int[]{1, 3, 7, 1500, 64 * 1024}) {
+            List<byte[]> units = new ArrayList<>();
+            List<Boolean> keyFrames = new ArrayList<>();
+            H264AnnexBDemuxer demuxer = new H264AnnexBDemuxer(4, (accessUnit, keyFrame) -> {
+                byte[] unit = new byte[accessUnit.remaining()];
+                accessUnit.get(unit);
+                units.add(unit);
+                keyFrames.add(keyFrame);
+            });
+            InputStream inputStream = chunked(stream, chunk);
+            while (demuxer.read(inputStream) >= 0) {
+            }
+            // 最后一个访问单元要等下一帧到来才能确定结束
+            Assert.assertEquals(expected.size() - 1, units.size());
+            for (int i = 0; i < units.size(); i++) {
+                Assert.assertArrayEquals("chunk " + chunk + " au " + i, expected.get(i), units.get(i));
+                Assert.assertEquals(i % 30 == 0, keyFrames.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testGrowForLargeAccessUnit() throws IOException {
+        List<byte[]> expected = accessUnits(3, 3 * 1024 * 1024);
+        List<Integer> sizes = new ArrayList<>();
+        H264AnnexBDemuxer demuxer = new H264AnnexBDemuxer(4, (accessUnit, keyFrame) -> sizes.add(accessUnit.remaining()));
+        InputStream inputStream = chunked(concat(expected), 64 * 1024);
+        while (demuxer.read(inputStream) >= 0) {
+        }
+        Assert.assertEquals(List.of(expected.get(0).length, expected.get(1).length), sizes);
+    }
+
+    @Test
+    public void testResyncDropsKeyFrameFlag() throws IOException {
+        Random random = new Random(1);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        // 超过缓冲上限的IDR会被丢弃
+        stream.write(START_CODE);
+        stream.write(nal(0x65, 0x88, 17 * 1024 * 1024, random));
+        for (int i = 0; i < 4; i++) {
+            stream.write(START_CODE);
+            stream.write(nal(0x41, 0x9a, 1000, random));
+        }
+        List<Boolean> keyFrames = new ArrayList<>();
+        H264AnnexBDemuxer demuxer = new H264AnnexBDemuxer(4, (accessUnit, keyFrame) -> keyFrames.add(keyFrame));
+        InputStream inputStream = chunked(stream.toByteArray(), 64 * 1024);
+        while (demuxer.read(inputStream) >= 0) {
+        }
+        Assert.assertEquals(List.of(false, false, false), keyFrames);
+    }
+
+    /**
+     * 与旧的逐个NAL重扫、整体前移缓冲的方式对比吞吐，
+     * 可通过-Dscrcpy.capture=录制的h264裸流文件回放真实数据
+     */
+    @Ignore
+    @Test
+    public void benchmarkThroughput() throws IOException {
+        String capture = System.getProperty("scrcpy.capture");
+        byte[] stream = capture == null ? concat(accessUnits(600, 40 * 1024)) : Files.readAllBytes(Paths.get(capture));
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            H264AnnexBDemuxer demuxer = new H264AnnexBDemuxer(4, (accessUnit, keyFrame) -> {
+            });
+            InputStream inputStream = chunked(stream, 5 * 1024);
+            while (demuxer.read(inputStream) >= 0) {
+            }
+            long demux = System.nanoTime() - start;
+            start = System.nanoTime();
+            legacySplit(chunked(stream, 5 * 1024));
+            long legacy = System.nanoTime() - start;
+            System.out.printf("demuxer %.1f MB/s, legacy %.1f MB/s%n",
+                    stream.length * 1e3 / demux, stream.length * 1e3 / legacy);
+        }
+    }
+
+    private static int legacySplit(InputStream inputStream) throws IOException {
+        int count = 0;
+        int readLength;
+        int bufferLength = 0;
+        byte[] buffer = new byte[1024 * 1024 * 10];
+        while ((readLength = inputStream.read(buffer, bufferLength, 1024 * 5)) > 0) {
+            bufferLength += readLength;
+            for (int i = 5; i < bufferLength - 4; i++) {
+                if (buffer[i] == 0x00 && buffer[i + 1] == 0x00 && buffer[i + 2] == 0x00 && buffer[i + 3] == 0x01) {
+                    byte[] naluBuffer = new byte[i];
+                    System.arraycopy(buffer, 0, naluBuffer, 0, i);
+                    count++;
+                    bufferLength -= i;
+                    System.arraycopy(buffer, i, buffer, 0, bufferLength);
+                    i = 5;
+                }
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,165 @@
+package org.cloud.sonic.agent.tests.android.scrcpy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class Mp4MuxerTest {
+
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x38, (byte) 0x80};
+
+    /**
+     * 按位写出测试用的SPS
+     */
+    private static class BitWriter {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        private int current = 0;
+
+        private int count = 0;
+
+        BitWriter bits(int value, int n) {
+            for (int i = n - 1; i >= 0; i--) {
+                current = (current << 1) | ((value >> i) & 1);
+                if (++count == 8) {
+                    out.write(current);
+                    current = 0;
+                    count = 0;
+                }
+            }
+            return this;
+        }
+
+        BitWriter ue(int value) {
+            int v = value + 1;
+            int length = 32 - Integer.numberOfLeadingZeros(v);
+            return bits(0, length - 1).bits(v, length);
+        }
+
+        byte[] finish() {
+            // rbsp_stop_one_bit
+            bits(1, 1);
+            while (count != 0) {
+                bits(0, 1);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * 1080x2340，宽高不是16的倍数，需要裁剪
+     */
+    private static byte[] sps(int profile) {
+        BitWriter writer = new BitWriter().bits(0x67, 8).bits(profile, 8).bits(0xc0, 8).bits(31, 8).ue(0);
+        if (profile == 100) {
+            // chroma_format_idc=1，8bit，无缩放矩阵
+            writer.ue(1).ue(0).ue(0).bits(0, 1).bits(0, 1);
+        }
+        writer.ue(0).ue(2).ue(1).bits(0, 1);
+        writer.ue(67).ue(146);
+        writer.bits(1, 1).bits(1, 1);
+        writer.bits(1, 1).ue(0).ue(4).ue(0).ue(6);
+        writer.bits(0, 1);
+        return writer.finish();
+    }
+
+    private static ByteBuffer accessUnit(byte[] sps, int header, int length) throws IOException {
+        ByteArrayOutputStream au = new ByteArrayOutputStream();
+        if (sps != null) {
+            au.write(START_CODE);
+            au.write(sps);
+            au.write(START_CODE);
+            au.write(PPS);
+        }
+        au.write(START_CODE);
+        byte[] slice = new byte[length];
+        Arrays.fill(slice, (byte) 0x55);
+        slice[0] = (byte) header;
+        au.write(slice);
+        return ByteBuffer.wrap(au.toByteArray());
+    }
+
+    private static String type(ByteBuffer box, int offset) {
+        byte[] type = new byte[4];
+        box.duplicate().position(box.position() + offset + 4).get(type);
+        return new String(type, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return 在buffer中查找box，返回box起始位置
+     */
+    private static int find(ByteBuffer buffer, String type) {
+        byte[] target = type.getBytes(StandardCharsets.US_ASCII);
+        for (int i = 4; i + 4 <= buffer.limit(); i++) {
+            if (buffer.get(i) == target[0] && buffer.get(i + 1) == target[1]
+                    && buffer.get(i + 2) == target[2] && buffer.get(i + 3) == target[3]) {
+                return i - 4;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void testReadSize() {
+        Assert.assertArrayEquals(new int[]{1080, 2340}, H264SpsReader.readSize(sps(66)));
+        Assert.assertArrayEquals(new int[]{1080, 2340}, H264SpsReader.readSize(sps(100)));
+    }
+
+    @Test
+    public void testInitSegmentAndFragments() throws IOException {
+        Mp4Muxer muxer = new Mp4Muxer();
+        // 还没有SPS、PPS
+        Assert.assertNull(muxer.mux(accessUnit(null, 0x41, 100), false, 0));
+        Assert.assertNull(muxer.getInitSegment());
+
+        byte[] sps = sps(66);
+        ByteBuffer key = accessUnit(sps, 0x65, 1000);
+        ByteBuffer fragment = muxer.mux(key, true, 1_000_000_000L);
+        Assert.assertEquals(0, key.position());
+        ByteBuffer init = muxer.getInitSegment();
+        Assert.assertEquals("ftyp", type(init, 0));
+        Assert.assertEquals("moov", type(init, init.getInt(0)));
+        Assert.assertEquals(init.limit(), init.getInt(0) + init.getInt(init.getInt(0)));
+        int tkhd = find(init, "tkhd");
+        Assert.assertEquals(1080 << 16, init.getInt(tkhd + 84));
+        Assert.assertEquals(2340 << 16, init.getInt(tkhd + 88));
+        int avcC = find(init, "avcC");
+        Assert.assertEquals(sps.length, init.getShort(avcC + 14));
+
+        Assert.assertEquals("moof", type(fragment, 0));
+        int moofSize = fragment.getInt(0);
+        Assert.assertEquals("mdat", type(fragment, moofSize));
+        // SPS、PPS、IDR各自带4字节长度
+        int sampleSize = 4 + sps.length + 4 + PPS.length + 4 + 1000;
+        Assert.assertEquals(8 + sampleSize, fragment.getInt(moofSize));
+        Assert.assertEquals(fragment.limit(), moofSize + 8 + sampleSize);
+        Assert.assertEquals(sps.length, fragment.getInt(moofSize + 8));
+        int trun = find(fragment, "trun");
+        Assert.assertEquals(moofSize + 8, fragment.getInt(trun + 16));
+        Assert.assertEquals(sampleSize, fragment.getInt(trun + 24));
+        Assert.assertEquals(0x02000000, fragment.getInt(trun + 28));
+
+        // 20ms后的P帧
+        ByteBuffer next = muxer.mux(accessUnit(null, 0x41, 200), false, 1_020_000_000L);
+        Assert.assertEquals(1800L, next.getLong(find(next, "tfdt") + 12));
+        int nextTrun = find(next, "trun");
+        Assert.assertEquals(1800, next.getInt(nextTrun + 20));
+        Assert.assertEquals(0x01010000, next.getInt(nextTrun + 28));
+        Assert.assertSame(init, muxer.getInitSegment());
+
+        // 重启后等待新的关键帧，时间轴继续
+        muxer.reset();
+        Assert.assertNull(muxer.mux(accessUnit(null, 0x41, 200), false, 2_000_000_000L));
+        ByteBuffer restarted = muxer.mux(accessUnit(sps(100), 0x65, 500), true, 2_040_000_000L);
+        Assert.assertEquals(93600L, restarted.getLong(find(restarted, "tfdt") + 12));
+        Assert.assertNotSame(init, muxer.getInitSegment());
+    }
+}
@@ -0,0 +1,39 @@
+package org.cloud.sonic.agent.tests.android.scrcpy;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+
+import org.cloud.sonic.agent.tests.handlers.TouchGesture;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ScrcpyControlChannelTest {
+
+    @Test
+    public void testTouchMessages() throws Exception {
+        Pipe pipe = Pipe.open();
+        ScrcpyControlChannel control = new ScrcpyControlChannel(pipe.sink(), 1080, 2340);
+        TouchGesture gesture = TouchGesture.press(540, 1200, 0);
+        long[] injected = control.perform(gesture);
+        Assert.assertEquals(2, injected.length);
+
+        ByteBuffer read = ByteBuffer.allocate(2 * ScrcpyControlChannel.TOUCH_MESSAGE_SIZE);
+        while (read.hasRemaining()) {
+            pipe.source().read(read);
+        }
+        read.flip();
+        for (int action : new int[]{TouchGesture.ACTION_DOWN, TouchGesture.ACTION_UP}) {
+            Assert.assertEquals(ScrcpyControlChannel.TYPE_INJECT_TOUCH_EVENT, read.get());
+            Assert.assertEquals(action, read.get());
+            Assert.assertEquals(0, read.getLong());
+            Assert.assertEquals(540, read.getInt());
+            Assert.assertEquals(1200, read.getInt());
+            Assert.assertEquals(1080, read.getShort());
+            Assert.assertEquals(2340, read.getShort());
+            Assert.assertEquals(action == TouchGesture.ACTION_UP ? 0 : 0xffff, read.getShort() & 0xffff);
+            Assert.assertEquals(0, read.getInt());
+        }
+        control.close();
+        Assert.assertFalse(control.isOpen());
+    }
+}
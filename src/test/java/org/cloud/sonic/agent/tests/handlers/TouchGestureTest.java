@@ -0,0 +1,82 @@
+package org.cloud.sonic.agent.tests.handlers;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TouchGestureTest {
+
+    private static final long MILLIS = 1_000_000L;
+
+    @Test
+    public void testInterpolateAt120Hz() {
+        TouchGesture gesture = TouchGesture.swipe(200, 1200, 200, 300, 300, 500, 200);
+        // 按下 + 60个移动 + 抬起
+        Assert.assertEquals(62, gesture.size());
+        Assert.assertEquals(TouchGesture.ACTION_DOWN, gesture.getAction(0));
+        Assert.assertEquals(0, gesture.getOffsetNanos(0));
+        Assert.assertEquals(TouchGesture.ACTION_MOVE, gesture.getAction(1));
+        Assert.assertEquals(1185, gesture.getY(1));
+        Assert.assertEquals(300 * MILLIS + 500 * MILLIS / 60, gesture.getOffsetNanos(1));
+        Assert.assertEquals(300, gesture.getY(60));
+        Assert.assertEquals(800 * MILLIS, gesture.getOffsetNanos(60));
+        Assert.assertEquals(TouchGesture.ACTION_UP, gesture.getAction(61));
+        Assert.assertEquals(300, gesture.getY(61));
+        Assert.assertEquals(1000 * MILLIS, gesture.getOffsetNanos(61));
+    }
+
+    @Test
+    public void testEncodeApkCommand() {
+        ByteBuffer out = ByteBuffer.allocate(256);
+        AndroidTouchHandler.encodeApkCommand(out, TouchGesture.ACTION_DOWN, 0, 1600);
+        AndroidTouchHandler.encodeApkCommand(out, TouchGesture.ACTION_MOVE, -1440, 95);
+        AndroidTouchHandler.encodeApkCommand(out, TouchGesture.ACTION_MOVE, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        AndroidTouchHandler.encodeApkCommand(out, TouchGesture.ACTION_UP, 7, 7);
+        Assert.assertEquals("down 0 1600\nmove -1440 95\nmove -2147483648 2147483647\nup\n",
+                new String(out.array(), 0, out.position(), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testPlayBatchesDueEvents() throws Exception {
+        TouchGesture gesture = TouchGesture.swipe(0, 0, 100, 0, 0, 50, 0);
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        List<Integer> batches = new ArrayList<>();
+        long[] injected = gesture.play(ByteBuffer.allocate(4 * TouchGesture.MAX_EVENT_BYTES),
+                AndroidTouchHandler::encodeApkCommand, batch -> {
+                    batches.add(batch.remaining());
+                    written.write(batch.array(), batch.position(), batch.remaining());
+                    // 模拟写入阻塞，后面到期的事件合并写出
+                    LockSupport.parkNanos(20 * MILLIS);
+                });
+        String commands = written.toString(StandardCharsets.US_ASCII);
+        Assert.assertTrue(commands.startsWith("down 0 0\nmove 16 0\n"));
+        Assert.assertTrue(commands.endsWith("move 100 0\nup\n"));
+        Assert.assertTrue(batches.size() < gesture.size());
+        for (int i = 0; i < gesture.size(); i++) {
+            Assert.assertTrue(injected[i] >= gesture.getOffsetNanos(i));
+        }
+        Assert.assertTrue(gesture.maxLagNanos(injected) >= 20 * MILLIS);
+    }
+
+    @Test
+    public void testInterruptedPlayFlushesImmediately() throws Exception {
+        TouchGesture gesture = TouchGesture.press(10, 10, 5000);
+        List<Integer> batches = new ArrayList<>();
+        Thread.currentThread().interrupt();
+        try {
+            long start = System.nanoTime();
+            gesture.play(ByteBuffer.allocate(256), AndroidTouchHandler::encodeApkCommand,
+                    batch -> batches.add(batch.remaining()));
+            Assert.assertTrue(System.nanoTime() - start < 1000 * MILLIS);
+        } finally {
+            Assert.assertTrue(Thread.interrupted());
+        }
+        Assert.assertEquals(1, batches.size());
+    }
+}
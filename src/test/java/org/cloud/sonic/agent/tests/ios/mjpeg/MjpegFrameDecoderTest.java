@@ -0,0 +1,154 @@
+package org.cloud.sonic.agent.tests.ios.mjpeg;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+public class MjpegFrameDecoderTest {
+
+    private static final String HTTP_HEADER = "HTTP/1.0 200 OK\r\n"
+            + "Server: WDA MJPEG Server\r\n"
+            + "Content-Length: 0\r\n"
+            + "Content-Type: multipart/x-mixed-replace; boundary=--BoundaryString\r\n\r\n";
+
+    private static byte[] jpeg(int length, Random random) {
+        byte[] jpeg = new byte[length];
+        random.nextBytes(jpeg);
+        for (int i = 0; i < length - 1; i++) {
+            // 避免负载中出现结束标记
+            if (jpeg[i] == (byte) 0xFF) {
+                jpeg[i] = 0x00;
+            }
+        }
+        jpeg[0] = (byte) 0xFF;
+        jpeg[1] = (byte) 0xD8;
+        jpeg[length - 2] = (byte) 0xFF;
+        jpeg[length - 1] = (byte) 0xD9;
+        return jpeg;
+    }
+
+    private static byte[] stream(List<byte[]> frames, boolean contentLength) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(HTTP_HEADER.getBytes(StandardCharsets.US_ASCII));
+        for (byte[] frame : frames) {
+            String header = "--BoundaryString\r\nContent-type: image/jpg\r\n"
+                    + (contentLength ? "CONTENT-LENGTH: " + frame.length + "\r\n" : "") + "\r\n";
+            stream.write(header.getBytes(StandardCharsets.US_ASCII));
+            stream.write(frame);
+            stream.write("\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        return stream.toByteArray();
+    }
+
+    private static ReadableByteChannel chunked(byte[] data, int chunk) {
+        return Channels.newChannel(new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, chunk));
+            }
+        });
+    }
+
+    private static List<byte[]> frames(int count) {
+        Random random = new Random(count);
+        List<byte[]> frames = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            // 包含远大于旧实现5KB限制的帧
+            frames.add(jpeg(i % 3 == 0 ? 600 * 1024 + i : 3000 + i * 17, random));
+        }
+        return frames;
+    }
+
+    private static void assertDecoded(List<byte[]> expected, byte[] stream, int chunk) throws IOException {
+        MjpegFrameDecoder decoder = new MjpegFrameDecoder(4);
+        ReadableByteChannel channel = chunked(stream, chunk);
+        for (int i = 0; i < expected.size(); i++) {
+            ByteBuffer frame = decoder.readFrame(channel);
+            Assert.assertNotNull("chunk " + chunk + " frame " + i, frame);
+            byte[] actual = new byte[frame.remaining()];
+            frame.get(actual);
+            Assert.assertArrayEquals("chunk " + chunk + " frame " + i, expected.get(i), actual);
+            decoder.getPool().release(frame);
+        }
+        Assert.assertNull(decoder.readFrame(channel));
+    }
+
+    @Test
+    public void testContentLength() throws IOException {
+        List<byte[]> frames = frames(7);
+        byte[] stream = stream(frames, true);
+        for (int chunk : new int[]{1, 13, 4096, 1024 * 1024}) {
+            assertDecoded(frames, stream, chunk);
+        }
+    }
+
+    @Test
+    public void testScanForEndOfImage() throws IOException {
+        List<byte[]> frames = frames(7);
+        byte[] stream = stream(frames, false);
+        for (int chunk : new int[]{1, 13, 4096, 1024 * 1024}) {
+            assertDecoded(frames, stream, chunk);
+        }
+    }
+
+    @Test
+    public void testSkipEmptyPart() throws IOException {
+        List<byte[]> frames = frames(2);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        byte[] data = stream(frames, true);
+        int firstPart = HTTP_HEADER.length();
+        stream.write(data, 0, firstPart);
+        stream.write("--BoundaryString\r\nContent-Length: 0\r\n\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        stream.write(data, firstPart, data.length - firstPart);
+        assertDecoded(frames, stream.toByteArray(), 4096);
+    }
+
+    @Test
+    public void testRejectOversizedContentLength() throws IOException {
+        for (String length : new String[]{"99999999999999999999", String.valueOf(MjpegFrameDecoder.MAX_FRAME_LENGTH + 1)}) {
+            byte[] data = (HTTP_HEADER + "--BoundaryString\r\nContent-Length: " + length + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+            MjpegFrameDecoder decoder = new MjpegFrameDecoder(4);
+            Assert.assertThrows(IOException.class, () -> decoder.readFrame(chunked(data, 4096)));
+        }
+    }
+
+    /**
+     * 回放吞吐，可通过-Dmjpeg.capture=录制的wda mjpeg响应（含HTTP头）回放真实数据
+     */
+    @Ignore
+    @Test
+    public void benchmarkReplay() throws IOException {
+        String capture = System.getProperty("mjpeg.capture");
+        byte[] stream = capture == null ? stream(frames(300), true) : Files.readAllBytes(Paths.get(capture));
+        for (int round = 0; round < 5; round++) {
+            MjpegFrameDecoder decoder = new MjpegFrameDecoder(4);
+            InputStream inputStream = new ByteArrayInputStream(stream);
+            ReadableByteChannel channel = Channels.newChannel(inputStream);
+            int count = 0;
+            long start = System.nanoTime();
+            ByteBuffer frame;
+            while ((frame = decoder.readFrame(channel)) != null) {
+                decoder.getPool().release(frame);
+                count++;
+            }
+            long cost = System.nanoTime() - start;
+            System.out.printf("%d frames, %.1f MB/s, %.0f frames/s%n",
+                    count, stream.length * 1e3 / cost, count * 1e9 / cost);
+        }
+    }
+}
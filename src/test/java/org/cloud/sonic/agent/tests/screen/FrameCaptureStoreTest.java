@@ -0,0 +1,110 @@
+package org.cloud.sonic.agent.tests.screen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FrameCaptureStoreTest {
+
+    private static final long MILLIS = 1_000_000L;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("capture-store").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static ByteBuffer frame(int tag, int length) {
+        byte[] frame = new byte[length];
+        Arrays.fill(frame, (byte) tag);
+        return ByteBuffer.wrap(frame);
+    }
+
+    private byte[] clip(FrameCaptureStore store) throws IOException {
+        File clip = new File(dir, "clip.mp4");
+        Assert.assertTrue(store.writeClip(clip));
+        return Files.readAllBytes(clip.toPath());
+    }
+
+    private static byte[] concat(ByteBuffer... frames) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ByteBuffer frame : frames) {
+            out.write(frame.array(), 0, frame.limit());
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testWrapAroundEvictsOldestFrames() throws IOException {
+        try (FrameCaptureStore store = new FrameCaptureStore(new File(dir, "ring.seg"), 100, 0)) {
+            store.setHeader(frame(9, 3));
+            Assert.assertFalse(store.writeClip(new File(dir, "empty.mp4")));
+            for (int i = 1; i <= 3; i++) {
+                Assert.assertTrue(store.append(frame(i, 30), i == 1, i * MILLIS));
+            }
+            Assert.assertArrayEquals(concat(frame(9, 3), frame(1, 30), frame(2, 30), frame(3, 30)), clip(store));
+
+            // 写不下后回到开头覆盖第一帧，关键帧被覆盖后没有可播放的开头
+            store.append(frame(4, 30), false, 4 * MILLIS);
+            Assert.assertEquals(3, store.size());
+            Assert.assertFalse(store.writeClip(new File(dir, "lost.mp4")));
+
+            store.append(frame(5, 40), true, 5 * MILLIS);
+            store.append(frame(6, 40), false, 6 * MILLIS);
+            store.append(frame(7, 40), true, 7 * MILLIS);
+            Assert.assertArrayEquals(concat(frame(9, 3), frame(7, 40)), clip(store));
+            Assert.assertFalse(store.append(frame(8, 101), true, 8 * MILLIS));
+            Assert.assertEquals(2, store.getClipCount());
+        }
+        Assert.assertFalse(new File(dir, "ring.seg").exists());
+    }
+
+    @Test
+    public void testKeepLastSecondsFromKeyFrame() throws IOException {
+        try (FrameCaptureStore store = new FrameCaptureStore(new File(dir, "window.seg"), 1024, 100 * MILLIS)) {
+            store.append(frame(1, 10), true, 0);
+            store.append(frame(2, 10), false, 50 * MILLIS);
+            store.append(frame(3, 10), true, 80 * MILLIS);
+            store.append(frame(4, 10), false, 120 * MILLIS);
+            store.append(frame(5, 10), false, 190 * MILLIS);
+            // 保留100ms窗口开始前最近的关键帧3
+            Assert.assertEquals(80 * MILLIS, store.getFirstNanos());
+            Assert.assertArrayEquals(concat(frame(3, 10), frame(4, 10), frame(5, 10)), clip(store));
+        }
+    }
+
+    @Test
+    public void testSameSegmentCanBeReopenedAfterClose() throws IOException {
+        File segment = new File(dir, "device.seg");
+        for (int run = 0; run < 3; run++) {
+            FrameCaptureStore store = new FrameCaptureStore(segment, 100, 0);
+            Assert.assertTrue(store.append(frame(run, 10), true, run * MILLIS));
+            Assert.assertArrayEquals(concat(frame(run, 10)), clip(store));
+            store.close();
+            Assert.assertFalse(segment.exists());
+            // 关闭后不再访问已解除的映射
+            Assert.assertFalse(store.append(frame(run, 10), true, run * MILLIS));
+            Assert.assertFalse(store.writeClip(new File(dir, "closed.mp4")));
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package org.cloud.sonic.agent.tests.screen;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+public class JpegLumaChangeDetectorTest {
+
+    private static final long MILLIS = 1_000_000L;
+
+    private static ByteBuffer jpeg(BufferedImage image, float quality) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(out)) {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    /**
+     * 左半边亮、右半边暗，带一些文字模拟应用界面
+     */
+    private static BufferedImage screen(int type) {
+        BufferedImage image = new BufferedImage(360, 780, type);
+        Graphics2D g = image.createGraphics();
+        g.setColor(new Color(200, 200, 200));
+        g.fillRect(0, 0, 180, 780);
+        g.setColor(new Color(50, 50, 50));
+        g.fillRect(180, 0, 180, 780);
+        g.setColor(Color.BLACK);
+        for (int y = 40; y < 780; y += 40) {
+            g.drawString("sonic agent " + y, 10, y);
+        }
+        g.dispose();
+        return image;
+    }
+
+    private static BufferedImage copy(BufferedImage image) {
+        BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), image.getType());
+        Graphics2D g = copy.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return copy;
+    }
+
+    @Test
+    public void testReadLumaGrid() throws IOException {
+        for (int type : new int[]{BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_BYTE_GRAY}) {
+            BufferedImage image = new BufferedImage(360, 780, type);
+            Graphics2D g = image.createGraphics();
+            g.setColor(new Color(200, 200, 200));
+            g.fillRect(0, 0, 180, 780);
+            g.setColor(new Color(50, 50, 50));
+            g.fillRect(180, 0, 180, 780);
+            g.dispose();
+            float[] grid = new float[16 * 16];
+            ByteBuffer frame = jpeg(image, 0.75f);
+            Assert.assertTrue(new JpegDcReader().read(frame, grid, 16));
+            Assert.assertEquals(0, frame.position());
+            for (int y = 0; y < 16; y++) {
+                Assert.assertEquals(200 - 128, grid[y * 16], 2f);
+                Assert.assertEquals(50 - 128, grid[y * 16 + 15], 2f);
+            }
+        }
+    }
+
+    @Test
+    public void testSkipNearIdenticalFrames() throws IOException {
+        JpegLumaChangeDetector detector = new JpegLumaChangeDetector(32, 3f, 1000 * MILLIS);
+        BufferedImage screen = screen(BufferedImage.TYPE_INT_RGB);
+        Assert.assertTrue(detector.changed(jpeg(screen, 0.75f), 0));
+        // 不同质量重新编码
+        Assert.assertFalse(detector.changed(jpeg(screen, 0.6f), 100 * MILLIS));
+
+        // 轻微的亮度变化
+        BufferedImage dimmed = copy(screen);
+        Graphics2D g = dimmed.createGraphics();
+        g.setColor(new Color(198, 198, 198));
+        g.fillRect(120, 100, 60, 200);
+        g.dispose();
+        Assert.assertFalse(detector.changed(jpeg(dimmed, 0.75f), 200 * MILLIS));
+
+        // 弹窗
+        BufferedImage dialog = copy(screen);
+        g = dialog.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(40, 300, 280, 200);
+        g.dispose();
+        Assert.assertTrue(detector.changed(jpeg(dialog, 0.75f), 300 * MILLIS));
+        Assert.assertFalse(detector.changed(jpeg(dialog, 0.75f), 400 * MILLIS));
+        // 超过保活间隔后强制发一帧
+        Assert.assertTrue(detector.changed(jpeg(dialog, 0.75f), 1300 * MILLIS));
+        Assert.assertEquals(3, detector.getSentCount());
+        Assert.assertEquals(3, detector.getSkippedCount());
+    }
+
+    @Test
+    public void testFlushLastDroppedFrame() throws IOException {
+        JpegLumaChangeDetector detector = new JpegLumaChangeDetector(32, 3f, 1000 * MILLIS);
+        BufferedImage screen = screen(BufferedImage.TYPE_INT_RGB);
+        Assert.assertTrue(detector.changed(jpeg(screen, 0.75f), 0));
+        Assert.assertFalse(detector.flushDue(2000 * MILLIS));
+
+        // 连续变化的最后一帧只多了一个字符，之后画面静止不再出帧
+        BufferedImage typed = copy(screen);
+        Graphics2D g = typed.createGraphics();
+        g.setColor(Color.BLACK);
+        g.drawString("a", 300, 500);
+        g.dispose();
+        ByteBuffer last = jpeg(typed, 0.75f);
+        Assert.assertFalse(detector.changed(last, 100 * MILLIS));
+        Assert.assertFalse(detector.flushDue(500 * MILLIS));
+        Assert.assertTrue(detector.flushDue(1100 * MILLIS));
+        detector.flushed(1100 * MILLIS);
+        Assert.assertFalse(detector.flushDue(3000 * MILLIS));
+        Assert.assertEquals(2, detector.getSentCount());
+        Assert.assertEquals(0, detector.getSkippedCount());
+
+        // 与补发的画面完全相同的帧被丢弃后不用再补发
+        Assert.assertFalse(detector.changed(last.duplicate(), 1200 * MILLIS));
+        Assert.assertFalse(detector.flushDue(3000 * MILLIS));
+    }
+
+    @Test
+    public void testFallbackToExactMatch() {
+        JpegLumaChangeDetector detector = new JpegLumaChangeDetector(32, 3f, 1000 * MILLIS);
+        ByteBuffer notJpeg = ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5, 6});
+        Assert.assertTrue(detector.changed(notJpeg, 0));
+        Assert.assertFalse(detector.changed(notJpeg.duplicate(), MILLIS));
+        Assert.assertTrue(detector.changed(ByteBuffer.wrap(new byte[]{1, 2, 3}), 2 * MILLIS));
+    }
+
+    /**
+     * 只解DC与完整解码的耗时对比
+     */
+    @Ignore
+    @Test
+    public void benchmarkDcVersusFullDecode() throws IOException {
+        BufferedImage image = new BufferedImage(1080, 2340, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        for (int y = 0; y < 2340; y += 30) {
+            g.setColor(new Color((y * 7) & 0xff, (y * 3) & 0xff, (y * 11) & 0xff));
+            g.fillRect(0, y, 1080, 30);
+            g.setColor(Color.BLACK);
+            g.drawString("sonic agent benchmark " + y, 20, y + 20);
+        }
+        g.dispose();
+        ByteBuffer frame = jpeg(image, 0.75f);
+        byte[] bytes = frame.array();
+        JpegDcReader reader = new JpegDcReader();
+        float[] grid = new float[32 * 32];
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < 50; i++) {
+                reader.read(frame, grid, 32);
+            }
+            long dc = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < 50; i++) {
+                ImageIO.read(new ByteArrayInputStream(bytes));
+            }
+            long full = System.nanoTime() - start;
+            System.out.printf("%d bytes, dc %.2f ms/frame, full decode %.2f ms/frame%n",
+                    bytes.length, dc / 50e6, full / 50e6);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package org.cloud.sonic.agent.tests.screen;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.alibaba.fastjson.JSONObject;
+
+import jakarta.websocket.RemoteEndpoint;
+import jakarta.websocket.SendHandler;
+import jakarta.websocket.SendResult;
+import jakarta.websocket.Session;
+
+public class ScreenBroadcasterTest {
+
+    private final ScreenBroadcaster broadcaster = ScreenBroadcaster.of("broadcaster-test");
+
+    @After
+    public void tearDown() {
+        broadcaster.close();
+    }
+
+    /**
+     * 发送立即完成的session，记录收到的消息
+     */
+    private Session session(List<Object> received) {
+        return session(received, false);
+    }
+
+    /**
+     * @param fmp4 是否要求fmp4，此时记录收到的box类型
+     */
+    private Session session(List<Object> received, boolean fmp4) {
+        RemoteEndpoint.Async async = (RemoteEndpoint.Async) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{RemoteEndpoint.Async.class}, (proxy, method, args) -> {
+                    if (fmp4) {
+                        ByteBuffer box = (ByteBuffer) args[0];
+                        byte[] type = new byte[4];
+                        box.duplicate().position(box.position() + 4).get(type);
+                        received.add(new String(type, StandardCharsets.US_ASCII));
+                    } else {
+                        received.add(args[0] instanceof ByteBuffer ? ((ByteBuffer) args[0]).get(0) : args[0]);
+                    }
+                    ((SendHandler) args[1]).onResult(new SendResult());
+                    return null;
+                });
+        Map<String, Object> userProperties = new HashMap<>();
+        if (fmp4) {
+            userProperties.put(ScreenBroadcaster.FORMAT_KEY, ScreenBroadcaster.FORMAT_FMP4);
+        }
+        return (Session) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{Session.class}, (proxy, method, args) -> switch (method.getName()) {
+                    case "getUserProperties" -> userProperties;
+                    case "isOpen" -> true;
+                    case "getAsyncRemote" -> async;
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    default -> null;
+                });
+    }
+
+    private static ByteBuffer buffer(int tag) {
+        return ByteBuffer.wrap(new byte[]{(byte) tag, 0});
+    }
+
+    @Test
+    public void testLateJoinerGetsSizeAndLastFrame() {
+        List<Object> first = new ArrayList<>();
+        List<ByteBuffer> released = new ArrayList<>();
+        broadcaster.subscribe(session(first));
+        JSONObject size = new JSONObject();
+        size.put("msg", "size");
+        broadcaster.sendText(size);
+        ByteBuffer f1 = buffer(1);
+        ByteBuffer f2 = buffer(2);
+        broadcaster.publishFrame(f1, released::add);
+        broadcaster.publishFrame(f2, released::add);
+        Assert.assertEquals(List.of(size.toJSONString(), (byte) 1, (byte) 2), first);
+        // 最新一帧还被缓存着
+        Assert.assertEquals(List.of(f1), released);
+
+        List<Object> late = new ArrayList<>();
+        broadcaster.subscribe(session(late));
+        Assert.assertEquals(List.of(size.toJSONString(), (byte) 2), late);
+        Assert.assertEquals(2, broadcaster.getSubscribers().size());
+
+        broadcaster.close();
+        Assert.assertEquals(List.of(f1, f2), released);
+    }
+
+    @Test
+    public void testLateJoinerGetsGopFromKeyFrame() {
+        List<Object> first = new ArrayList<>();
+        List<ByteBuffer> released = new ArrayList<>();
+        broadcaster.subscribe(session(first));
+        broadcaster.publishAccessUnit(buffer(1), false, released::add);
+        broadcaster.publishAccessUnit(buffer(2), true, released::add);
+        broadcaster.publishAccessUnit(buffer(3), false, released::add);
+        Assert.assertEquals(List.of((byte) 1, (byte) 2, (byte) 3), first);
+        // 关键帧之前的访问单元不缓存，发送完就归还；GOP中的访问单元被缓存引用着
+        Assert.assertEquals(1, released.size());
+
+        List<Object> late = new ArrayList<>();
+        broadcaster.subscribe(session(late));
+        Assert.assertEquals(List.of((byte) 2, (byte) 3), late);
+        Assert.assertEquals(1, released.size());
+
+        // 下一个关键帧到来后归还上一个GOP
+        broadcaster.publishAccessUnit(buffer(4), true, released::add);
+        Assert.assertEquals(3, released.size());
+        List<Object> later = new ArrayList<>();
+        broadcaster.subscribe(session(later));
+        Assert.assertEquals(List.of((byte) 4), later);
+
+        broadcaster.close();
+        Assert.assertEquals(4, released.size());
+    }
+
+    @Test
+    public void testCachedFrameSurvivesClearDuringPublish() {
+        List<ByteBuffer> released = new ArrayList<>();
+        ByteBuffer frame = buffer(1);
+        // 分发途中采集停止、缓存被清空，帧要等发送完成后才归还，且只归还一次
+        Session session = session(new ArrayList<>());
+        broadcaster.subscribe(session);
+        ScreenFrameGovernor.put(session, new ScreenFrameGovernor(60, new int[] { 80 }, null) {
+            @Override
+            public synchronized boolean tryAcquire(long now) {
+                broadcaster.stopCapture(false);
+                Assert.assertTrue(released.isEmpty());
+                return true;
+            }
+        });
+        broadcaster.publishFrame(frame, released::add);
+        Assert.assertEquals(List.of(frame), released);
+    }
+
+    /**
+     * baseline 64x64的SPS、PPS和IDR
+     */
+    private static ByteBuffer keyFrame() {
+        return ByteBuffer.wrap(new byte[]{0, 0, 0, 1, 0x67, 0x42, (byte) 0xc0, 0x1f, (byte) 0xf4, 0x08, 0x08, 0x40,
+                0, 0, 0, 1, 0x68, (byte) 0xce, 0x38, (byte) 0x80,
+                0, 0, 0, 1, 0x65, (byte) 0x88, 0x55});
+    }
+
+    private static ByteBuffer predicted() {
+        return ByteBuffer.wrap(new byte[]{0, 0, 0, 1, 0x41, (byte) 0x9a, 0x55});
+    }
+
+    @Test
+    public void testFmp4SessionsAndRecorder() {
+        List<Object> raw = new ArrayList<>();
+        broadcaster.subscribe(session(raw));
+        broadcaster.publishAccessUnit(keyFrame(), true, null);
+        broadcaster.publishAccessUnit(predicted(), false, null);
+        Assert.assertEquals(List.of((byte) 0, (byte) 0), raw);
+
+        // 封装器创建时用缓存的GOP预先封装
+        List<Object> mp4 = new ArrayList<>();
+        broadcaster.subscribe(session(mp4, true));
+        Assert.assertEquals(List.of("ftyp", "moof", "moof"), mp4);
+
+        List<ByteBuffer> recorded = new ArrayList<>();
+        broadcaster.addRecorder(recorded::add);
+        broadcaster.publishAccessUnit(predicted(), false, null);
+        Assert.assertEquals(List.of("ftyp", "moof", "moof", "moof"), mp4);
+        Assert.assertEquals(4, recorded.size());
+        Assert.assertEquals(3, raw.size());
+    }
+
+    /**
+     * 记录每次启动时的帧率上限，被中断时像真实链路一样通知退出
+     */
+    private Supplier<Thread> starter(List<Integer> starts) {
+        return () -> {
+            starts.add(broadcaster.getFpsCap());
+            Thread thread = new Thread(() -> {
+                try {
+                    Thread.sleep(10_000);
+                } catch (InterruptedException ignored) {
+                }
+                broadcaster.captureStopped(Thread.currentThread());
+            });
+            thread.setDaemon(true);
+            thread.start();
+            return thread;
+        };
+    }
+
+    @Test
+    public void testFpsCapRestartsScrcpyAtSource() throws InterruptedException {
+        List<Integer> starts = new CopyOnWriteArrayList<>();
+        broadcaster.startCapture("scrcpy", starter(starts));
+        broadcaster.setFpsCap(10);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (starts.size() < 2 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(List.of(Integer.MAX_VALUE, 10), starts);
+        Assert.assertTrue(broadcaster.isCapturing("scrcpy"));
+        // 上限没有变化时不重启
+        broadcaster.setFpsCap(10);
+        Thread.sleep(200);
+        Assert.assertEquals(2, starts.size());
+    }
+
+    @Test
+    public void testFpsCapDoesNotRestartMinicap() throws InterruptedException {
+        List<Integer> starts = new CopyOnWriteArrayList<>();
+        broadcaster.startCapture("minicap", starter(starts));
+        broadcaster.setFpsCap(10);
+        Thread.sleep(200);
+        Assert.assertEquals(1, starts.size());
+        Assert.assertEquals(10, broadcaster.getFpsCap());
+    }
+}
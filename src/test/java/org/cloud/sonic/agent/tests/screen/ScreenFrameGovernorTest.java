@@ -0,0 +1,71 @@
+package org.cloud.sonic.agent.tests.screen;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ScreenFrameGovernorTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * 按60帧的节奏喂帧，每帧发送耗时sendMs，返回结束时间
+     */
+    private long run(ScreenFrameGovernor governor, long now, long sendMs, int seconds) {
+        long end = now + seconds * 1000 * MS;
+        while (now < end) {
+            if (governor.tryAcquire(now)) {
+                now += sendMs * MS;
+                governor.onSent(sendMs * MS, 0, now);
+            }
+            now += 16 * MS;
+        }
+        return now;
+    }
+
+    @Test
+    public void testSlowViewer() {
+        List<Integer> qualities = new ArrayList<>();
+        ScreenFrameGovernor governor = new ScreenFrameGovernor(60, new int[] { 80, 60, 40 }, qualities::add);
+        long now = run(governor, 1, 100, 15);
+        Assert.assertTrue(governor.getFps() < 15);
+        Assert.assertEquals(60, governor.getQuality());
+        Assert.assertEquals(List.of(60), qualities);
+
+        // 网络恢复后帧率逐步回到上限，并恢复画质
+        run(governor, now, 1, 60);
+        Assert.assertEquals(60, governor.getFps());
+        Assert.assertEquals(80, governor.getQuality());
+    }
+
+    @Test
+    public void testLanViewer() {
+        ScreenFrameGovernor governor = new ScreenFrameGovernor(60, new int[] { 80, 60, 40 }, null);
+        run(governor, 1, 1, 10);
+        Assert.assertEquals(60, governor.getFps());
+        Assert.assertEquals(80, governor.getQuality());
+        governor.setMaxFps(ScreenFrameGovernor.maxFpsOf("low"));
+        Assert.assertEquals(15, governor.getFps());
+    }
+
+    @Test
+    public void testFpsCap() {
+        ScreenFrameGovernor governor = new ScreenFrameGovernor(60, new int[] { 80, 60, 40 }, null);
+        long now = run(governor, 1, 1, 5);
+        governor.setFpsCap(10);
+        Assert.assertEquals(10, governor.getFps());
+        // 封顶期间空闲也不会超过上限，也不因帧率低而降低画质
+        now = run(governor, now, 1, 20);
+        Assert.assertEquals(10, governor.getFps());
+        Assert.assertEquals(80, governor.getQuality());
+        governor.setMaxFps(ScreenFrameGovernor.maxFpsOf("low"));
+        Assert.assertEquals(10, governor.getFps());
+
+        governor.setFpsCap(Integer.MAX_VALUE);
+        run(governor, now, 1, 5);
+        Assert.assertEquals(15, governor.getFps());
+    }
+}
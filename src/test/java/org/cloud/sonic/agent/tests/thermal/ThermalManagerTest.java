@@ -0,0 +1,75 @@
+package org.cloud.sonic.agent.tests.thermal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ThermalManagerTest {
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+    private static final int LIMIT = 450;
+
+    @After
+    public void tearDown() {
+        ThermalManager.remove("thermal-a");
+        ThermalManager.remove("thermal-b");
+        ThermalManager.remove("thermal-c");
+    }
+
+    @Test
+    public void testRisingTrendThrottlesBeforeLimit() {
+        // 每30秒升高0.5℃，离阈值还有5℃时已经推算出会超过
+        long now = 0;
+        int tem = 380;
+        boolean throttled = false;
+        while (!throttled) {
+            throttled = ThermalManager.record("thermal-a", tem, now, LIMIT);
+            now += MINUTE / 2;
+            tem += 5;
+        }
+        Assert.assertTrue(tem - 5 < LIMIT - 40);
+        Assert.assertTrue(ThermalManager.isThrottled("thermal-a"));
+        Assert.assertEquals(ThermalManager.THROTTLED_FPS, ThermalManager.getFpsCap("thermal-a"));
+    }
+
+    @Test
+    public void testStableTemperatureBelowMarginIsNotThrottled() {
+        for (int i = 0; i < 20; i++) {
+            Assert.assertFalse(ThermalManager.record("thermal-b", 420, i * MINUTE / 2, LIMIT));
+        }
+        Assert.assertEquals(Integer.MAX_VALUE, ThermalManager.getFpsCap("thermal-b"));
+    }
+
+    @Test
+    public void testReleaseNeedsCooling() {
+        long now = 0;
+        for (int i = 0; i < 4; i++) {
+            now += MINUTE / 2;
+            ThermalManager.record("thermal-c", 440, now, LIMIT);
+        }
+        Assert.assertTrue(ThermalManager.isThrottled("thermal-c"));
+        // 回落到阈值附近时保持降载
+        for (int i = 0; i < 20; i++) {
+            now += MINUTE / 2;
+            ThermalManager.record("thermal-c", 425, now, LIMIT);
+        }
+        Assert.assertTrue(ThermalManager.isThrottled("thermal-c"));
+        for (int i = 0; i < 20 && ThermalManager.isThrottled("thermal-c"); i++) {
+            now += MINUTE / 2;
+            ThermalManager.record("thermal-c", 400, now, LIMIT);
+        }
+        Assert.assertFalse(ThermalManager.isThrottled("thermal-c"));
+    }
+
+    @Test
+    public void testNoLimitNoThrottle() {
+        Assert.assertFalse(ThermalManager.record("thermal-a", 600, 0, 0));
+        ThermalManager.record("thermal-a", 600, 0, LIMIT);
+        Assert.assertTrue(ThermalManager.isThrottled("thermal-a"));
+        ThermalManager.remove("thermal-a");
+        Assert.assertFalse(ThermalManager.isThrottled("thermal-a"));
+    }
+}
@@ -0,0 +1,62 @@
+package org.cloud.sonic.agent.tests.thermal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ThermalSeriesTest {
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+    @Test
+    public void testTrend() {
+        ThermalSeries series = new ThermalSeries(32, 10 * MINUTE);
+        Assert.assertEquals(Integer.MIN_VALUE, series.predict(0));
+        // 每30秒升高1℃
+        for (int i = 0; i < 6; i++) {
+            series.add(i * MINUTE / 2, 350 + i * 10);
+        }
+        Assert.assertEquals(20, series.slopePerMinute(), 0.001);
+        Assert.assertEquals(400, series.predict(0));
+        Assert.assertEquals(500, series.predict(5 * MINUTE));
+    }
+
+    @Test
+    public void testNoiseIsSmoothed() {
+        ThermalSeries series = new ThermalSeries(32, 10 * MINUTE);
+        int[] temps = { 400, 404, 398, 402, 400, 412 };
+        for (int i = 0; i < temps.length; i++) {
+            series.add(i * MINUTE / 2, temps[i]);
+        }
+        Assert.assertEquals(412, series.latest());
+        // 最后一次跳高被其余采样拉回
+        Assert.assertTrue(series.predict(0) < 410);
+    }
+
+    @Test
+    public void testCoolingIsNotExtrapolated() {
+        ThermalSeries series = new ThermalSeries(32, 10 * MINUTE);
+        for (int i = 0; i < 5; i++) {
+            series.add(i * MINUTE, 450 - i * 10);
+        }
+        Assert.assertTrue(series.slopePerMinute() < 0);
+        Assert.assertEquals(series.predict(0), series.predict(5 * MINUTE));
+    }
+
+    @Test
+    public void testWindowAndCapacity() {
+        ThermalSeries series = new ThermalSeries(4, 10 * MINUTE);
+        for (int i = 0; i < 10; i++) {
+            series.add(i * MINUTE, 300);
+        }
+        Assert.assertEquals(4, series.size());
+        series.add(30 * MINUTE, 350);
+        Assert.assertEquals(1, series.size());
+        Assert.assertEquals(350, series.predict(5 * MINUTE));
+        // 时间倒退时重新开始
+        series.add(0, 320);
+        Assert.assertEquals(1, series.size());
+        Assert.assertEquals(320, series.latest());
+    }
+}
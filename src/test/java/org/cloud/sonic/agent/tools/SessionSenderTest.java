@@ -0,0 +1,125 @@
+package org.cloud.sonic.agent.tools;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import jakarta.websocket.RemoteEndpoint;
+import jakarta.websocket.SendHandler;
+import jakarta.websocket.SendResult;
+import jakarta.websocket.Session;
+
+public class SessionSenderTest {
+
+    private final List<Object> sent = new ArrayList<>();
+
+    private final List<SendHandler> handlers = new ArrayList<>();
+
+    private Session session;
+
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    @Before
+    public void setUp() {
+        RemoteEndpoint.Async async = (RemoteEndpoint.Async) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{RemoteEndpoint.Async.class}, (proxy, method, args) -> {
+                    // 只记录，由测试决定何时完成发送
+                    sent.add(args[0]);
+                    handlers.add((SendHandler) args[1]);
+                    return null;
+                });
+        Map<String, Object> userProperties = new HashMap<>();
+        session = (Session) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{Session.class}, (proxy, method, args) -> switch (method.getName()) {
+                    case "getUserProperties" -> userProperties;
+                    case "isOpen" -> true;
+                    case "getAsyncRemote" -> async;
+                    case "close" -> {
+                        closed.countDown();
+                        yield null;
+                    }
+                    default -> null;
+                });
+    }
+
+    private void complete() {
+        handlers.remove(0).onResult(new SendResult());
+    }
+
+    @Test
+    public void testLatestFrameWinsAndTextFirst() {
+        SessionSender sender = SessionSender.of(session);
+        Assert.assertSame(sender, SessionSender.of(session));
+        List<ByteBuffer> released = new ArrayList<>();
+        ByteBuffer f1 = ByteBuffer.allocate(1);
+        ByteBuffer f2 = ByteBuffer.allocate(1);
+        ByteBuffer f3 = ByteBuffer.allocate(1);
+
+        sender.sendFrame(f1, released::add);
+        sender.sendFrame(f2, released::add);
+        sender.sendFrame(f3, released::add);
+        sender.sendText("msg");
+        // f1在发送中，f2被f3替换
+        Assert.assertEquals(List.of(f1), sent);
+        Assert.assertEquals(List.of(f2), released);
+        Assert.assertEquals(2, sender.getQueueDepth());
+
+        complete();
+        Assert.assertEquals(List.of(f1, "msg"), sent);
+        Assert.assertEquals(List.of(f2, f1), released);
+        complete();
+        Assert.assertEquals(List.of(f1, "msg", f3), sent);
+        complete();
+        Assert.assertEquals(List.of(f2, f1, f3), released);
+        Assert.assertEquals(0, sender.getQueueDepth());
+        Assert.assertEquals(3L, sender.getMetrics().getLongValue("sent"));
+        Assert.assertEquals(1L, sender.getMetrics().getLongValue("droppedFrames"));
+    }
+
+    @Test
+    public void testOrderedBinaryIsNotDropped() {
+        SessionSender sender = SessionSender.of(session);
+        for (int i = 0; i < 5; i++) {
+            sender.sendBinary(ByteBuffer.wrap(new byte[]{(byte) i}));
+        }
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(i + 1, sent.size());
+            Assert.assertEquals(i, ((ByteBuffer) sent.get(i)).get(0));
+            complete();
+        }
+        Assert.assertEquals(0, sender.getQueueDepth());
+    }
+
+    @Test
+    public void testLaggingStreamClosesSessionButKeepsText() throws InterruptedException {
+        SessionSender sender = SessionSender.of(session);
+        List<ByteBuffer> released = new ArrayList<>();
+        // 第一条在发送中，之后积压
+        for (int i = 0; i <= 2048; i++) {
+            sender.sendBinary(ByteBuffer.allocate(1), released::add);
+        }
+        for (int i = 0; i < 3000; i++) {
+            sender.sendText("rotation");
+        }
+        Assert.assertEquals(2048 + 3000, sender.getQueueDepth());
+        Assert.assertEquals(1, closed.getCount());
+
+        // 超过上限的访问单元不再逐条丢弃，而是关闭跟不上的session
+        sender.sendBinary(ByteBuffer.allocate(1), released::add);
+        Assert.assertTrue(closed.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(2048 + 1 + 1, released.size());
+        Assert.assertEquals(0, sender.getQueueDepth());
+        sender.sendBinary(ByteBuffer.allocate(1), released::add);
+        Assert.assertEquals(2048 + 1 + 2, released.size());
+        Assert.assertEquals(2L, sender.getMetrics().getLongValue("droppedMessages"));
+    }
+}
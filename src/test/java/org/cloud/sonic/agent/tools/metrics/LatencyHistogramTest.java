@@ -0,0 +1,47 @@
+package org.cloud.sonic.agent.tools.metrics;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketBoundaries() {
+        long previous = -1;
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            long highest = LatencyHistogram.highestOf(i);
+            Assert.assertTrue(highest > previous);
+            Assert.assertEquals(i, LatencyHistogram.indexOf(highest));
+            Assert.assertEquals(i, LatencyHistogram.indexOf(previous + 1));
+            previous = highest;
+        }
+        Assert.assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.indexOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testQuantilesWithinRelativeError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.getValueAtQuantile(0.99));
+        Random random = new Random(7);
+        long[] values = new long[100_000];
+        for (int i = 0; i < values.length; i++) {
+            // 对数分布在1微秒到10秒之间
+            values[i] = (long) Math.pow(10, 3 + random.nextDouble() * 7);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (double quantile : new double[]{0.5, 0.9, 0.99, 0.999}) {
+            long expected = values[(int) Math.ceil(quantile * values.length) - 1];
+            long actual = histogram.getValueAtQuantile(quantile);
+            Assert.assertTrue(actual >= expected);
+            Assert.assertTrue(actual - expected <= expected / 32);
+        }
+        Assert.assertEquals(values.length, histogram.getCount());
+        Assert.assertEquals(values[values.length - 1], histogram.getMax());
+        Assert.assertEquals(values[values.length - 1], histogram.getValueAtQuantile(1));
+        Assert.assertEquals(Arrays.stream(values).sum(), histogram.getSum());
+    }
+}
@@ -0,0 +1,39 @@
+package org.cloud.sonic.agent.tools.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MetricsRegistryTest {
+
+    @Test
+    public void testScrapeFormat() {
+        Counter counter = MetricsRegistry.counter("test_registry_messages_total", "Messages", "msg", "occupy");
+        Assert.assertSame(counter, MetricsRegistry.counter("test_registry_messages_total", "Messages", "msg", "occupy"));
+        counter.add(3);
+        MetricsRegistry.counter("test_registry_messages_total", "Messages", "msg", "say \"hi\"\n").increment();
+        MetricsRegistry.gauge("test_registry_queued", "Queued", () -> 42);
+        LatencyHistogram histogram = MetricsRegistry.histogram("test_registry_step_seconds", "Steps", "step", "click");
+        histogram.record(1_000_000);
+        histogram.record(3_000_000);
+
+        String text = MetricsRegistry.scrape();
+        Assert.assertTrue(text.contains("# TYPE test_registry_messages_total counter\n"));
+        Assert.assertTrue(text.contains("test_registry_messages_total{msg=\"occupy\"} 3\n"));
+        Assert.assertTrue(text.contains("test_registry_messages_total{msg=\"say \\\"hi\\\"\\n\"} 1\n"));
+        Assert.assertTrue(text.contains("# TYPE test_registry_queued gauge\ntest_registry_queued 42\n"));
+        Assert.assertTrue(text.contains("# TYPE test_registry_step_seconds summary\n"));
+        // 分位数是所在桶的上界
+        String median = "test_registry_step_seconds{step=\"click\",quantile=\"0.5\"} ";
+        int start = text.indexOf(median) + median.length();
+        Assert.assertEquals(0.001, Double.parseDouble(text.substring(start, text.indexOf('\n', start))), 0.001 / 32);
+        Assert.assertTrue(text.contains("test_registry_step_seconds_sum{step=\"click\"} 0.004\n"));
+        Assert.assertTrue(text.contains("test_registry_step_seconds_count{step=\"click\"} 2\n"));
+        Assert.assertTrue(text.contains("test_registry_step_seconds_max{step=\"click\"} 0.003\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTypeConflict() {
+        MetricsRegistry.counter("test_registry_conflict", "Conflict");
+        MetricsRegistry.histogram("test_registry_conflict", "Conflict");
+    }
+}
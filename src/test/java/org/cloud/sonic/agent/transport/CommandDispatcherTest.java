@@ -0,0 +1,202 @@
+package org.cloud.sonic.agent.transport;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CommandDispatcherTest {
+
+    private ExecutorService executor;
+
+    private ExecutorService controlExecutor;
+
+    private ExecutorService longExecutor;
+
+    private CommandDispatcher dispatcher;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+        controlExecutor = Executors.newSingleThreadExecutor();
+        longExecutor = Executors.newFixedThreadPool(1);
+        dispatcher = new CommandDispatcher(executor, controlExecutor, longExecutor);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        executor.shutdown();
+        controlExecutor.shutdown();
+        longExecutor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        Assert.assertTrue(controlExecutor.awaitTermination(5, TimeUnit.SECONDS));
+        Assert.assertTrue(longExecutor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSameDeviceRunsInOrder() throws InterruptedException {
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger overlap = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(200);
+        for (int i = 0; i < 200; i++) {
+            int n = i;
+            dispatcher.dispatch(i % 2 == 0 ? "occupy" : "release", "device-1", () -> {
+                if (running.incrementAndGet() > 1) {
+                    overlap.incrementAndGet();
+                }
+                order.add(n);
+                LockSupport.parkNanos(10_000);
+                running.decrementAndGet();
+                done.countDown();
+            });
+        }
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, overlap.get());
+        for (int i = 0; i < 200; i++) {
+            Assert.assertEquals(i, (int) order.get(i));
+        }
+        // 耗时在命令返回后才记录，最后一条可能还没记上
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (dispatcher.getStats("release").getCount() < 100 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        Assert.assertEquals(100, dispatcher.getStats("occupy").getCount());
+        Assert.assertEquals(100, dispatcher.getStats("release").getCount());
+    }
+
+    @Test
+    public void testBlockedDeviceDoesNotStallOthers() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch other = new CountDownLatch(2);
+        dispatcher.dispatch("occupy", "device-1", () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        dispatcher.dispatch("release", "device-1", release::countDown);
+        dispatcher.dispatch("occupy", "device-2", other::countDown);
+        dispatcher.dispatch("settings", null, other::countDown);
+        Assert.assertTrue(other.await(5, TimeUnit.SECONDS));
+        // device-1的release排在卡住的occupy之后
+        Assert.assertEquals(2, dispatcher.getQueueDepth("device-1"));
+        Assert.assertEquals(1, dispatcher.getStats("release").getPending());
+        release.countDown();
+    }
+
+    @Test
+    public void testFailedCommandKeepsLaneRunning() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        dispatcher.dispatch("runStep", "device-1", () -> {
+            throw new IllegalStateException("boom");
+        });
+        dispatcher.dispatch("runStep", "device-1", done::countDown);
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        CommandDispatcher.CommandStats stats = dispatcher.getStats("runStep");
+        Assert.assertEquals(1, stats.getFailed());
+        Assert.assertTrue(stats.getMaxWaitNanos() >= 0);
+        Assert.assertTrue(stats.getRunNanos() >= stats.getMaxRunNanos());
+    }
+
+    @Test
+    public void testErrorKeepsLaneRunning() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        dispatcher.dispatch("runStep", "device-1", () -> {
+            throw new StackOverflowError();
+        });
+        dispatcher.dispatch("runStep", "device-1", done::countDown);
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, dispatcher.getStats("runStep").getFailed());
+    }
+
+    @Test
+    public void testControlMessagesBypassBusyDevices() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch busy = new CountDownLatch(4);
+        for (int i = 0; i < 4; i++) {
+            dispatcher.dispatch("occupy", "device-" + i, () -> {
+                busy.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        Assert.assertTrue(busy.await(5, TimeUnit.SECONDS));
+        // 设备线程全部被占满，心跳仍然在控制线程上执行
+        CountDownLatch heartBeat = new CountDownLatch(1);
+        dispatcher.dispatch("heartBeat", null, heartBeat::countDown);
+        Assert.assertTrue(heartBeat.await(5, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    @Test
+    public void testLongCommandWaitsForEarlierDeviceCommands() throws InterruptedException {
+        List<String> order = new CopyOnWriteArrayList<>();
+        CountDownLatch occupied = new CountDownLatch(1);
+        CountDownLatch suiteDone = new CountDownLatch(1);
+        CountDownLatch releaseDone = new CountDownLatch(1);
+        dispatcher.dispatch("occupy", "device-1", () -> {
+            try {
+                occupied.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            order.add("occupy");
+        });
+        dispatcher.dispatchLong("suite", List.of("device-1", "device-2"), () -> {
+            order.add("suite");
+            try {
+                releaseDone.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            suiteDone.countDown();
+        });
+        dispatcher.dispatch("release", "device-1", () -> {
+            order.add("release");
+            releaseDone.countDown();
+        });
+        Thread.sleep(50);
+        Assert.assertTrue(order.isEmpty());
+        Assert.assertEquals(1, dispatcher.getStats("suite").getPending());
+        occupied.countDown();
+        // 套件执行时不占用设备邮箱，后到的release照常执行
+        Assert.assertTrue(suiteDone.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(List.of("occupy", "suite", "release"), order);
+    }
+
+    @Test
+    public void testLongCommandsAreBounded() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch first = new CountDownLatch(1);
+        CountDownLatch second = new CountDownLatch(1);
+        dispatcher.dispatchLong("suite", List.of(), () -> {
+            first.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        dispatcher.dispatchLong("suite", List.of("device-1"), second::countDown);
+        Assert.assertTrue(first.await(5, TimeUnit.SECONDS));
+        // 只有一个长命令线程，第二个套件排队等待
+        Assert.assertFalse(second.await(100, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(1, dispatcher.getStats("suite").getPending());
+        release.countDown();
+        Assert.assertTrue(second.await(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,59 @@
+package org.cloud.sonic.agent.transport;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.alibaba.fastjson.JSONObject;
+
+public class DeviceStateSnapshotTest {
+
+    private static JSONObject deviceDetail(String udId, String status) {
+        JSONObject message = new JSONObject();
+        message.put("msg", "deviceDetail");
+        message.put("udId", udId);
+        message.put("status", status);
+        return message;
+    }
+
+    @Test
+    public void testLatestStatusIsKept() {
+        DeviceStateSnapshot snapshot = new DeviceStateSnapshot();
+        snapshot.record(deviceDetail("a", "ONLINE"));
+        snapshot.record(deviceDetail("a", "DEBUGGING"));
+        snapshot.record(deviceDetail("b", "ONLINE"));
+        Assert.assertEquals(2, snapshot.size());
+        Assert.assertEquals("DEBUGGING", snapshot.get("a"));
+
+        List<JSONObject> messages = snapshot.resyncMessages();
+        Assert.assertEquals(2, messages.size());
+        for (JSONObject message : messages) {
+            Assert.assertEquals("deviceDetail", message.getString("msg"));
+            Assert.assertEquals(snapshot.get(message.getString("udId")), message.getString("status"));
+        }
+    }
+
+    @Test
+    public void testNullStatusRemovesDevice() {
+        DeviceStateSnapshot snapshot = new DeviceStateSnapshot();
+        snapshot.record(deviceDetail("a", "ONLINE"));
+        snapshot.record(deviceDetail("a", null));
+        Assert.assertEquals(0, snapshot.size());
+    }
+
+    @Test
+    public void testOtherMessagesAreIgnored() {
+        DeviceStateSnapshot snapshot = new DeviceStateSnapshot();
+        // 只改了属性的增量消息不带status
+        JSONObject delta = new JSONObject();
+        delta.put("msg", "deviceDetail");
+        delta.put("udId", "a");
+        delta.put("model", "m");
+        snapshot.record(delta);
+        JSONObject step = deviceDetail("a", "ONLINE");
+        step.put("msg", "step");
+        snapshot.record(step);
+        Assert.assertEquals(0, snapshot.size());
+    }
+}
@@ -0,0 +1,291 @@
+package org.cloud.sonic.agent.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.handshake.ServerHandshake;
+import org.java_websocket.server.WebSocketServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MuxSessionTest {
+
+    private static final int WINDOW = 64 * 1024;
+
+    private StandInServer server;
+
+    private MuxClient client;
+
+    /**
+     * 代替服务端：文本消息原样加前缀回复，通道读完后回复收到的字节数
+     */
+    private static class StandInServer extends WebSocketServer {
+
+        private volatile MuxSession mux;
+
+        private final CountDownLatch started = new CountDownLatch(1);
+
+        private final CountDownLatch slowReader = new CountDownLatch(1);
+
+        private final AtomicReference<byte[]> received = new AtomicReference<>();
+
+        StandInServer() {
+            super(new InetSocketAddress("127.0.0.1", 0));
+            setReuseAddr(true);
+        }
+
+        @Override
+        public void onOpen(WebSocket conn, ClientHandshake handshake) {
+            mux = new MuxSession(conn::send, false, WINDOW, 5000, channel -> new Thread(() -> {
+                try {
+                    if (channel.getName().startsWith("slow")) {
+                        slowReader.await(5, TimeUnit.SECONDS);
+                    }
+                    byte[] data = channel.readFully();
+                    received.set(data);
+                    channel.write(("{\"code\":2000,\"data\":\"" + data.length + "\"}").getBytes(StandardCharsets.UTF_8));
+                    channel.close();
+                } catch (IOException | InterruptedException e) {
+                    channel.reset(e.getMessage());
+                }
+            }).start());
+        }
+
+        @Override
+        public void onMessage(WebSocket conn, String message) {
+            conn.send("echo:" + message);
+        }
+
+        @Override
+        public void onMessage(WebSocket conn, ByteBuffer message) {
+            mux.receive(message);
+        }
+
+        @Override
+        public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+            mux.close();
+        }
+
+        @Override
+        public void onError(WebSocket conn, Exception ex) {
+        }
+
+        @Override
+        public void onStart() {
+            started.countDown();
+        }
+    }
+
+    private static class MuxClient extends WebSocketClient {
+
+        private final MuxSession mux = new MuxSession(this::send, true, WINDOW, 5000, null);
+
+        private final BlockingQueue<String> texts = new LinkedBlockingQueue<>();
+
+        MuxClient(URI uri) {
+            super(uri);
+        }
+
+        @Override
+        public void onOpen(ServerHandshake handshake) {
+        }
+
+        @Override
+        public void onMessage(String message) {
+            texts.offer(message);
+        }
+
+        @Override
+        public void onMessage(ByteBuffer bytes) {
+            mux.receive(bytes);
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+            mux.close();
+        }
+
+        @Override
+        public void onError(Exception ex) {
+        }
+    }
+
+    @Before
+    public void setUp() throws InterruptedException {
+        server = new StandInServer();
+        server.start();
+        Assert.assertTrue(server.started.await(5, TimeUnit.SECONDS));
+        client = new MuxClient(URI.create("ws://127.0.0.1:" + server.getPort()));
+        Assert.assertTrue(client.connectBlocking(5, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        client.closeBlocking();
+        server.stop(1000);
+    }
+
+    private static byte[] random(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void testUploadOverChannel() throws IOException {
+        byte[] data = random(3 * 1024 * 1024 + 7);
+        MuxChannel channel = client.mux.open("upload:imageFiles:a.jpg");
+        channel.write(data);
+        channel.close();
+        Assert.assertEquals("{\"code\":2000,\"data\":\"" + data.length + "\"}",
+                new String(channel.readFully(), StandardCharsets.UTF_8));
+        Assert.assertArrayEquals(data, server.received.get());
+        Assert.assertEquals(0, client.mux.getChannelCount());
+    }
+
+    @Test
+    public void testBulkChannelDoesNotStarveControlMessages() throws Exception {
+        byte[] data = random(1024 * 1024);
+        MuxChannel channel = client.mux.open("slow:recordFiles:a.mp4");
+        CountDownLatch written = new CountDownLatch(1);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            try {
+                channel.write(data);
+                channel.close();
+            } catch (IOException e) {
+                failure.set(e);
+            }
+            written.countDown();
+        });
+        writer.start();
+        // 服务端没有读取，发出一个窗口后写入阻塞
+        Assert.assertFalse(written.await(300, TimeUnit.MILLISECONDS));
+        long start = System.nanoTime();
+        client.send("ping");
+        Assert.assertEquals("echo:ping", client.texts.poll(2, TimeUnit.SECONDS));
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+
+        server.slowReader.countDown();
+        Assert.assertTrue(written.await(5, TimeUnit.SECONDS));
+        Assert.assertNull(failure.get());
+        Assert.assertTrue(new String(channel.readFully(), StandardCharsets.UTF_8).contains("2000"));
+        Assert.assertArrayEquals(data, server.received.get());
+    }
+
+    @Test
+    public void testChannelsFailWhenConnectionCloses() throws Exception {
+        MuxChannel channel = client.mux.open("slow:keepFiles:b.log");
+        channel.write(random(WINDOW));
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            try {
+                channel.write(random(WINDOW));
+            } catch (IOException e) {
+                failure.set(e);
+            }
+        });
+        writer.start();
+        client.closeBlocking();
+        writer.join(5000);
+        Assert.assertNotNull(failure.get());
+        try {
+            client.mux.open("upload:imageFiles:c.jpg");
+            Assert.fail();
+        } catch (IOException e) {
+            Assert.assertTrue(client.mux.isClosed());
+        }
+        server.slowReader.countDown();
+    }
+
+    @Test
+    public void testPeerViolatingCreditIsReset() throws IOException {
+        AtomicReference<MuxChannel> accepted = new AtomicReference<>();
+        MuxSession local = new MuxSession(frame -> { }, true, WINDOW, 1000, accepted::set);
+        ByteBuffer open = ByteBuffer.allocate(MuxSession.HEADER_SIZE + 4 + 1);
+        open.put(new byte[]{'S', 'M', 1, MuxSession.OPEN}).putInt(2).putInt(WINDOW).put((byte) 'x').flip();
+        local.receive(open);
+        Assert.assertEquals(1, local.getChannelCount());
+        byte[] chunk = new byte[MuxSession.HEADER_SIZE + WINDOW + 1];
+        System.arraycopy(new byte[]{'S', 'M', 1, MuxSession.DATA, 0, 0, 0, 2}, 0, chunk, 0, MuxSession.HEADER_SIZE);
+        local.receive(ByteBuffer.wrap(chunk));
+        Assert.assertEquals(0, local.getChannelCount());
+        try {
+            accepted.get().read();
+            Assert.fail();
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("flow control"));
+        }
+        Assert.assertFalse(MuxSession.isMuxFrame(ByteBuffer.wrap(Arrays.copyOf(chunk, 4))));
+    }
+
+    @Test
+    public void testSendBudgetIsSharedByChannels() throws Exception {
+        AtomicReference<MuxSession> local = new AtomicReference<>();
+        AtomicReference<MuxSession> remote = new AtomicReference<>();
+        AtomicLong sent = new AtomicLong();
+        BlockingQueue<MuxChannel> accepted = new LinkedBlockingQueue<>();
+        local.set(new MuxSession(frame -> {
+            if (frame.get(3) == MuxSession.DATA) {
+                sent.addAndGet(frame.remaining() - MuxSession.HEADER_SIZE);
+            }
+            synchronized (remote) {
+                remote.get().receive(frame);
+            }
+        }, true, WINDOW, 5000, null));
+        remote.set(new MuxSession(frame -> {
+            synchronized (local) {
+                local.get().receive(frame);
+            }
+        }, false, WINDOW, 5000, accepted::add));
+        CountDownLatch written = new CountDownLatch(2);
+        for (String name : new String[]{"a", "b"}) {
+            MuxChannel channel = local.get().open(name);
+            new Thread(() -> {
+                try {
+                    channel.write(random(WINDOW));
+                    channel.close();
+                    written.countDown();
+                } catch (IOException e) {
+                    channel.reset(e.getMessage());
+                }
+            }).start();
+        }
+        // 两个通道各有一个窗口的额度，但对端没有读取时合计只能发出一份预算
+        Assert.assertFalse(written.await(300, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(WINDOW, sent.get());
+
+        CountDownLatch read = new CountDownLatch(2);
+        for (int i = 0; i < 2; i++) {
+            MuxChannel channel = accepted.poll(1, TimeUnit.SECONDS);
+            Assert.assertNotNull(channel);
+            new Thread(() -> {
+                try {
+                    Assert.assertEquals(WINDOW, channel.readFully().length);
+                    read.countDown();
+                } catch (IOException e) {
+                    channel.reset(e.getMessage());
+                }
+            }).start();
+        }
+        Assert.assertTrue(written.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(read.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(2 * WINDOW, sent.get());
+    }
+}
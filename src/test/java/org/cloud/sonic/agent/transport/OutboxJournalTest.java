@@ -0,0 +1,146 @@
+package org.cloud.sonic.agent.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OutboxJournalTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("outbox").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static byte[] message(int i) {
+        return ("{\"msg\":\"step\",\"des\":\"step " + i + "\"}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void assertRead(OutboxJournal journal, int from, int to) throws IOException {
+        for (int i = from; i <= to; i++) {
+            OutboxJournal.Entry entry = journal.read();
+            Assert.assertEquals(i, entry.getSeq());
+            Assert.assertArrayEquals(message(i), entry.getPayload());
+        }
+    }
+
+    @Test
+    public void testRollReadAndCompact() throws IOException {
+        try (OutboxJournal journal = new OutboxJournal(dir, 256, 16)) {
+            for (int i = 1; i <= 20; i++) {
+                Assert.assertEquals(i, journal.append(message(i)));
+            }
+            Assert.assertTrue(journal.getSegmentCount() > 3);
+            assertRead(journal, 1, 20);
+            Assert.assertNull(journal.read());
+
+            // 断线后从未确认处重读
+            journal.acknowledge(7);
+            journal.rewind();
+            assertRead(journal, 8, 10);
+            journal.acknowledge(20);
+            Assert.assertEquals(1, journal.getSegmentCount());
+            Assert.assertEquals(0, journal.size());
+            Assert.assertNull(journal.read());
+            journal.append(message(21));
+            assertRead(journal, 21, 21);
+        }
+    }
+
+    @Test
+    public void testRecoverAfterRestart() throws IOException {
+        try (OutboxJournal journal = new OutboxJournal(dir, 256, 16)) {
+            for (int i = 1; i <= 12; i++) {
+                journal.append(message(i));
+            }
+            assertRead(journal, 1, 9);
+            journal.acknowledge(5);
+        }
+        try (OutboxJournal journal = new OutboxJournal(dir, 256, 16)) {
+            Assert.assertEquals(5, journal.getAckedSeq());
+            Assert.assertEquals(7, journal.size());
+            assertRead(journal, 6, 12);
+            Assert.assertNull(journal.read());
+            Assert.assertEquals(13, journal.append(message(13)));
+        }
+    }
+
+    @Test
+    public void testTornRecordIsDiscarded() throws IOException {
+        try (OutboxJournal journal = new OutboxJournal(dir, 4096, 16)) {
+            for (int i = 1; i <= 3; i++) {
+                journal.append(message(i));
+            }
+        }
+        File[] segments = dir.listFiles((d, name) -> name.endsWith(".seg"));
+        Assert.assertEquals(1, segments.length);
+        // 破坏第三条记录的内容
+        int offset = 2 * (16 + message(1).length) + 16 + 3;
+        try (RandomAccessFile file = new RandomAccessFile(segments[0], "rw")) {
+            file.seek(offset);
+            file.write('x');
+        }
+        try (OutboxJournal journal = new OutboxJournal(dir, 4096, 16)) {
+            Assert.assertEquals(2, journal.size());
+            assertRead(journal, 1, 2);
+            Assert.assertNull(journal.read());
+            Assert.assertEquals(3, journal.append(message(3)));
+            assertRead(journal, 3, 3);
+        }
+    }
+
+    @Test
+    public void testDropOldestWhenFull() throws IOException {
+        try (OutboxJournal journal = new OutboxJournal(dir, 128, 3)) {
+            for (int i = 1; i <= 30; i++) {
+                journal.append(message(i));
+            }
+            Assert.assertEquals(3, journal.getSegmentCount());
+            Assert.assertTrue(journal.getDroppedCount() > 0);
+            Assert.assertEquals(30, journal.getAckedSeq() + journal.size());
+            OutboxJournal.Entry entry = journal.read();
+            Assert.assertEquals(journal.getAckedSeq() + 1, entry.getSeq());
+        }
+        Assert.assertEquals(3, dir.listFiles((d, name) -> name.endsWith(".seg")).length);
+    }
+
+    @Test
+    public void testClosedJournalRejectsAccess() throws IOException {
+        OutboxJournal journal = new OutboxJournal(dir, 128, 16);
+        for (int i = 1; i <= 10; i++) {
+            journal.append(message(i));
+        }
+        assertRead(journal, 1, 4);
+        journal.close();
+        // 映射已解除，不能再读写
+        Assert.assertThrows(IOException.class, () -> journal.append(message(11)));
+        Assert.assertThrows(IOException.class, journal::read);
+        journal.acknowledge(4);
+        journal.close();
+        try (OutboxJournal reopened = new OutboxJournal(dir, 128, 16)) {
+            Assert.assertEquals(10, reopened.size());
+            assertRead(reopened, 1, 10);
+            reopened.acknowledge(10);
+            Assert.assertEquals(1, dir.listFiles((d, name) -> name.endsWith(".seg")).length);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.cloud.sonic.agent.transport;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ReconnectBackoffTest {
+
+    @Test
+    public void testDelayGrowsWithinJitterRange() {
+        ReconnectBackoff backoff = new ReconnectBackoff(1000, 60_000, new Random(1));
+        long ceiling = 1000;
+        for (int i = 0; i < 20; i++) {
+            long delay = backoff.nextDelayMillis();
+            Assert.assertTrue(delay >= ceiling / 2);
+            Assert.assertTrue(delay <= ceiling);
+            ceiling = Math.min(60_000, ceiling * 2);
+        }
+    }
+
+    @Test
+    public void testResetStartsFromBase() {
+        ReconnectBackoff backoff = new ReconnectBackoff(1000, 60_000, new Random(2));
+        for (int i = 0; i < 10; i++) {
+            backoff.nextDelayMillis();
+        }
+        Assert.assertTrue(backoff.nextDelayMillis() >= 30_000);
+        backoff.reset();
+        Assert.assertTrue(backoff.nextDelayMillis() <= 1000);
+    }
+
+    @Test
+    public void testNoOverflowAfterManyAttempts() {
+        ReconnectBackoff backoff = new ReconnectBackoff(1000, Long.MAX_VALUE, new Random(3));
+        for (int i = 0; i < 200; i++) {
+            Assert.assertTrue(backoff.nextDelayMillis() > 0);
+        }
+    }
+
+    @Test
+    public void testAgentsAreSpreadOut() {
+        // 同时断开的agent第一次重连不应集中在同一时刻
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < 100; i++) {
+            ReconnectBackoff backoff = new ReconnectBackoff(1000, 60_000, new Random(i));
+            backoff.nextDelayMillis();
+            long delay = backoff.nextDelayMillis();
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        Assert.assertTrue(max - min > 500);
+    }
+}
@@ -0,0 +1,129 @@
+package org.cloud.sonic.agent.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import com.alibaba.fastjson.JSON;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class RoutingDelegateTest {
+
+    private HttpServer server;
+
+    private int port;
+
+    private final Set<Integer> remotePorts = ConcurrentHashMap.newKeySet();
+
+    private final RoutingDelegate delegate = new RoutingDelegate();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+        port = server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    /**
+     * /screenshot返回二进制内容，/missing返回404，其余路径原样回显方法、查询参数与请求体
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        remotePorts.add(exchange.getRemoteAddress().getPort());
+        byte[] body;
+        int status = 200;
+        String path = exchange.getRequestURI().getPath();
+        if (path.equals("/screenshot")) {
+            body = new byte[256 * 1024];
+            for (int i = 0; i < body.length; i++) {
+                body[i] = (byte) i;
+            }
+            exchange.getResponseHeaders().add("Content-Type", "image/png");
+        } else {
+            if (path.equals("/missing")) {
+                status = 404;
+            }
+            byte[] request;
+            try (InputStream in = exchange.getRequestBody()) {
+                request = in.readAllBytes();
+            }
+            body = (exchange.getRequestMethod() + " " + exchange.getRequestURI() + " "
+                    + new String(request, StandardCharsets.UTF_8)).getBytes(StandardCharsets.UTF_8);
+        }
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private MockHttpServletResponse proxy(MockHttpServletRequest request) {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        delegate.redirect(request, response, "http://127.0.0.1:" + port + request.getRequestURI()
+                .replace(TransportController.DELEGATE_PREFIX + "/" + port, ""), request.getRequestURI());
+        return response;
+    }
+
+    @Test
+    public void testBinaryResponseIsCopiedAsIs() {
+        MockHttpServletResponse response = proxy(new MockHttpServletRequest("GET", "/uia/" + port + "/screenshot"));
+        Assert.assertEquals(200, response.getStatus());
+        Assert.assertEquals("image/png", response.getContentType());
+        byte[] body = response.getContentAsByteArray();
+        Assert.assertEquals(256 * 1024, body.length);
+        for (int i = 0; i < body.length; i++) {
+            Assert.assertEquals((byte) i, body[i]);
+        }
+    }
+
+    @Test
+    public void testRequestBodyAndQueryAreForwarded() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/uia/" + port + "/session/1/element");
+        request.setQueryString("a=1");
+        request.setContentType("application/json");
+        request.setContent("{\"using\":\"xpath\"}".getBytes(StandardCharsets.UTF_8));
+        MockHttpServletResponse response = proxy(request);
+        Assert.assertEquals(200, response.getStatus());
+        Assert.assertEquals("POST /session/1/element?a=1 {\"using\":\"xpath\"}", response.getContentAsString());
+    }
+
+    @Test
+    public void testUpstreamStatusIsKept() throws Exception {
+        MockHttpServletResponse response = proxy(new MockHttpServletRequest("DELETE", "/uia/" + port + "/missing"));
+        Assert.assertEquals(404, response.getStatus());
+        Assert.assertEquals("DELETE /missing ", response.getContentAsString());
+    }
+
+    @Test
+    public void testConnectionIsReused() {
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals(200, proxy(new MockHttpServletRequest("GET", "/uia/" + port + "/status")).getStatus());
+        }
+        Assert.assertEquals(1, remotePorts.size());
+    }
+
+    @Test
+    public void testUnreachableTargetReturnsWebDriverError() throws Exception {
+        server.stop(0);
+        MockHttpServletResponse response = proxy(new MockHttpServletRequest("GET", "/uia/" + port + "/status"));
+        Assert.assertEquals(500, response.getStatus());
+        Assert.assertEquals("REDIRECT ERROR",
+                JSON.parseObject(response.getContentAsString()).getJSONObject("value").getString("message"));
+    }
+}
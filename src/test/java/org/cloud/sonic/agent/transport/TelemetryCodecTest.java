@@ -0,0 +1,146 @@
+package org.cloud.sonic.agent.transport;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+
+public class TelemetryCodecTest {
+
+    private static JSONObject step(int i) {
+        JSONObject message = new JSONObject();
+        message.put("msg", "step");
+        message.put("des", "点击控件元素 登录按钮 " + i);
+        message.put("status", 1);
+        message.put("log", "");
+        message.put("cid", 1024);
+        message.put("rid", 20481);
+        message.put("udId", "emulator-5554");
+        message.put("time", "2023-04-01 12:00:0" + (i % 10));
+        message.put("agentId", 3);
+        return message;
+    }
+
+    private static JSONObject perform() {
+        JSONObject detail = new JSONObject();
+        detail.put("cpu", 12.5);
+        detail.put("mem", 1_234_567_890_123L);
+        detail.put("fps", List.of(60, 59, 58, -1));
+        JSONObject message = new JSONObject();
+        message.put("msg", "perform");
+        message.put("des", "");
+        message.put("status", 1);
+        message.put("log", detail.toJSONString());
+        message.put("cid", 1024);
+        message.put("rid", 20481);
+        message.put("udId", "emulator-5554");
+        message.put("agentId", 3);
+        return message;
+    }
+
+    private static JSONObject battery() {
+        JSONArray detail = new JSONArray();
+        for (int i = 0; i < 8; i++) {
+            JSONObject device = new JSONObject();
+            device.put("udId", "R58M" + i + "0ABCDE");
+            device.put("tem", 320 + i);
+            device.put("level", 90 - i);
+            device.put("vol", 4100 + i);
+            detail.add(device);
+        }
+        JSONObject message = new JSONObject();
+        message.put("msg", "battery");
+        message.put("detail", detail);
+        message.put("agentId", 3);
+        return message;
+    }
+
+    @Test
+    public void testRoundTrip() {
+        JSONObject message = perform();
+        message.put("nothing", null);
+        message.put("ok", true);
+        message.put("ratio", new BigDecimal("0.125"));
+        message.put("nested", battery());
+        byte[] encoded = TelemetryCodec.encodeBinary(message);
+        Assert.assertTrue(TelemetryCodec.isBinary(encoded));
+        Assert.assertEquals(JSON.parseObject(message.toJSONString()), TelemetryCodec.decode(encoded));
+
+        byte[] json = TelemetryCodec.encodeJson(message);
+        Assert.assertFalse(TelemetryCodec.isBinary(json));
+        Assert.assertSame(json, TelemetryCodec.convert(json, false));
+        Assert.assertArrayEquals(encoded, TelemetryCodec.convert(json, true));
+        Assert.assertEquals(TelemetryCodec.decode(json), TelemetryCodec.decode(TelemetryCodec.convert(encoded, false)));
+    }
+
+    @Test
+    public void testUnknownValuesKeepJsonForm() {
+        JSONObject message = new JSONObject();
+        message.put("msg", "record");
+        message.put("time", new Date(1680000000000L));
+        message.put("名称", "中文内容");
+        JSONObject decoded = TelemetryCodec.decode(TelemetryCodec.encodeBinary(message));
+        Assert.assertEquals(JSON.parseObject(message.toJSONString()), decoded);
+    }
+
+    @Test
+    public void testFrameMixesBinaryAndJson() {
+        List<byte[]> messages = new ArrayList<>();
+        messages.add(TelemetryCodec.encodeBinary(step(1)));
+        messages.add(TelemetryCodec.encodeJson(step(2)));
+        messages.add(TelemetryCodec.encodeBinary(battery()));
+        ByteBuffer frame = TelemetryCodec.frame(messages);
+        JSONArray decoded = TelemetryCodec.unframe(frame);
+        Assert.assertEquals(3, decoded.size());
+        Assert.assertEquals(step(1), decoded.getJSONObject(0));
+        Assert.assertEquals(step(2), decoded.getJSONObject(1));
+        Assert.assertEquals(JSON.parseObject(battery().toJSONString()), decoded.getJSONObject(2));
+    }
+
+    @Test
+    public void testSmallerThanJson() {
+        for (JSONObject message : new JSONObject[]{step(1), perform(), battery()}) {
+            int json = TelemetryCodec.encodeJson(message).length;
+            int binary = TelemetryCodec.encodeBinary(message).length;
+            Assert.assertTrue(message.getString("msg") + " " + binary + "/" + json, binary < json * 0.8);
+        }
+    }
+
+    /**
+     * JSON与二进制编码的耗时和大小对比
+     */
+    @Ignore
+    @Test
+    public void benchmarkJsonVersusBinary() {
+        JSONObject[] messages = {step(1), perform(), battery()};
+        int rounds = 200_000;
+        for (int round = 0; round < 5; round++) {
+            for (JSONObject message : messages) {
+                long start = System.nanoTime();
+                long jsonBytes = 0;
+                for (int i = 0; i < rounds; i++) {
+                    jsonBytes += TelemetryCodec.encodeJson(message).length;
+                }
+                long json = System.nanoTime() - start;
+                start = System.nanoTime();
+                long binaryBytes = 0;
+                for (int i = 0; i < rounds; i++) {
+                    binaryBytes += TelemetryCodec.encodeBinary(message).length;
+                }
+                long binary = System.nanoTime() - start;
+                System.out.printf("%-8s json %4d bytes %6.0f ns, binary %4d bytes %6.0f ns%n",
+                        message.getString("msg"), jsonBytes / rounds, (double) json / rounds,
+                        binaryBytes / rounds, (double) binary / rounds);
+            }
+        }
+    }
+}
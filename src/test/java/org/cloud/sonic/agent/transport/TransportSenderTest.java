@@ -0,0 +1,207 @@
+package org.cloud.sonic.agent.transport;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.alibaba.fastjson.JSONObject;
+
+public class TransportSenderTest {
+
+    private final AtomicBoolean active = new AtomicBoolean(true);
+
+    private final BlockingQueue<List<String>> batches = new LinkedBlockingQueue<>();
+
+    private volatile boolean open = true;
+
+    private final List<Boolean> binaryFrames = new ArrayList<>();
+
+    private Thread thread;
+
+    private final TransportSender.FrameSink sink = new TransportSender.FrameSink() {
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void send(List<byte[]> messages, boolean binary) {
+            for (byte[] message : messages) {
+                Assert.assertEquals(binary, TelemetryCodec.isBinary(message));
+            }
+            binaryFrames.add(binary);
+            batches.add(names(messages));
+        }
+    };
+
+    private TransportSender start(long lingerMillis, int bulkCapacity) {
+        TransportSender sender = new TransportSender(sink, m -> m.put("agentId", 1), 4, 1024, lingerMillis,
+                bulkCapacity, 50);
+        thread = new Thread(() -> sender.run(active::get));
+        return sender;
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        active.set(false);
+        if (thread != null) {
+            thread.join(3000);
+        }
+    }
+
+    private static List<String> names(List<byte[]> messages) {
+        List<String> names = new ArrayList<>();
+        for (byte[] message : messages) {
+            names.add(TelemetryCodec.decode(message).getString("msg"));
+        }
+        return names;
+    }
+
+    private static JSONObject message(String msg) {
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("msg", msg);
+        return jsonObject;
+    }
+
+    @Test
+    public void testCoalesceWithinLinger() throws InterruptedException {
+        TransportSender sender = start(100, 100);
+        thread.start();
+        long start = System.nanoTime();
+        for (int i = 0; i < 6; i++) {
+            sender.send(message("step" + i), TransportSender.Priority.BULK);
+        }
+        Assert.assertEquals(List.of("step0", "step1", "step2", "step3"), batches.poll(1, TimeUnit.SECONDS));
+        Assert.assertEquals(List.of("step4", "step5"), batches.poll(1, TimeUnit.SECONDS));
+        // 没有凑满时等到延迟预算用完
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        tearDown();
+        Assert.assertEquals(6, sender.getSentCount());
+        Assert.assertEquals(2, sender.getBatchCount());
+    }
+
+    @Test
+    public void testControlGoesFirstWithoutWaiting() throws InterruptedException {
+        TransportSender sender = start(5000, 100);
+        sender.send(message("step"), TransportSender.Priority.BULK);
+        sender.send(message("battery"), TransportSender.Priority.NORMAL);
+        sender.send(message("heartBeat"), TransportSender.Priority.CONTROL);
+        thread.start();
+        long start = System.nanoTime();
+        Assert.assertEquals(List.of("heartBeat", "battery", "step"), batches.poll(1, TimeUnit.SECONDS));
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1000));
+    }
+
+    @Test
+    public void testHoldUntilConnected() throws InterruptedException {
+        open = false;
+        TransportSender sender = start(0, 100);
+        thread.start();
+        sender.send(message("deviceDetail"), TransportSender.Priority.CONTROL);
+        Assert.assertNull(batches.poll(200, TimeUnit.MILLISECONDS));
+        open = true;
+        sender.wakeUp();
+        Assert.assertEquals(List.of("deviceDetail"), batches.poll(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testReplayJournalOnNewSession() throws Exception {
+        File dir = Files.createTempDirectory("outbox").toFile();
+        Object[] session = {new Object()};
+        TransportSender.FrameSink reconnecting = new TransportSender.FrameSink() {
+            @Override
+            public boolean isOpen() {
+                return open;
+            }
+
+            @Override
+            public void send(List<byte[]> messages, boolean binary) {
+                batches.add(names(messages));
+            }
+
+            @Override
+            public boolean isFlushed() {
+                return false;
+            }
+
+            @Override
+            public Object getSession() {
+                return session[0];
+            }
+        };
+        try (OutboxJournal journal = new OutboxJournal(dir, 1024, 4)) {
+            TransportSender sender = new TransportSender(reconnecting, m -> m.put("agentId", 1), journal, 4, 1024,
+                    0, 100, 50);
+            sender.send(message("step1"), TransportSender.Priority.BULK);
+            sender.send(message("step2"), TransportSender.Priority.BULK);
+            thread = new Thread(() -> sender.run(active::get));
+            thread.start();
+            Assert.assertEquals(List.of("step1", "step2"), batches.poll(1, TimeUnit.SECONDS));
+            Assert.assertEquals(2, journal.size());
+
+            // 连接断开时写出的消息没有确认，重连后在新消息之前重发
+            open = false;
+            session[0] = new Object();
+            sender.send(message("step3"), TransportSender.Priority.BULK);
+            Assert.assertNull(batches.poll(200, TimeUnit.MILLISECONDS));
+            open = true;
+            sender.wakeUp();
+            Assert.assertEquals(List.of("step1", "step2", "step3"), batches.poll(2, TimeUnit.SECONDS));
+            tearDown();
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testConvertJournalAfterSwitchToBinary() throws Exception {
+        File dir = Files.createTempDirectory("outbox").toFile();
+        try (OutboxJournal journal = new OutboxJournal(dir, 1024, 4)) {
+            TransportSender sender = new TransportSender(sink, m -> m.put("agentId", 1), journal, 4, 1024, 0, 100,
+                    50);
+            // 断线期间按JSON写入，重连后服务端选择了二进制
+            sender.send(message("step"), TransportSender.Priority.BULK);
+            sender.setBinary(true);
+            sender.send(message("perform"), TransportSender.Priority.BULK);
+            sender.send(message("heartBeat"), TransportSender.Priority.CONTROL);
+            thread = new Thread(() -> sender.run(active::get));
+            thread.start();
+            Assert.assertEquals(List.of("heartBeat", "step", "perform"), batches.poll(1, TimeUnit.SECONDS));
+            Assert.assertEquals(List.of(true), binaryFrames);
+            tearDown();
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testBackpressureOnBulk() {
+        TransportSender sender = start(0, 2);
+        sender.send(message("log"), TransportSender.Priority.BULK);
+        sender.send(message("log"), TransportSender.Priority.BULK);
+        long start = System.nanoTime();
+        sender.send(message("log"), TransportSender.Priority.BULK);
+        // 积压满时阻塞到超时，仍然入队
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        Assert.assertEquals(1, sender.getOverflowCount());
+        start = System.nanoTime();
+        sender.send(message("heartBeat"), TransportSender.Priority.CONTROL);
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(50));
+        Assert.assertEquals(4, sender.size());
+    }
+}